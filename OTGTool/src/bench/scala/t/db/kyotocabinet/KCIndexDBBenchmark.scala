@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet
+
+import java.util.concurrent.TimeUnit
+
+import kyotocabinet.DB
+import org.openjdk.jmh.annotations._
+import t.db.ProbeIndex
+import t.db.testing.DBTestData
+
+/**
+ * Lookups of probe ids, both directly in the index DB and
+ * in the in-memory ProbeIndex that is normally built from it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class KCIndexDBBenchmark {
+  @Param(Array("30000"))
+  var probes: Int = _
+
+  private var store: DB = _
+  private var db: KCIndexDB = _
+  private var index: ProbeIndex = _
+  private var keys: Array[String] = _
+  private var next = 0
+
+  @Setup
+  def setup(): Unit = {
+    store = DBTestData.memDBHash
+    db = new KCIndexDB(store, true)
+    keys = (0 until probes).map(i => s"probe_$i").toArray
+    for (k <- keys) {
+      db.put(k)
+    }
+    index = new ProbeIndex(db)
+  }
+
+  @TearDown
+  def teardown(): Unit = {
+    store.close()
+  }
+
+  private def nextKey(): String = {
+    val k = keys(next % keys.length)
+    next += 1
+    k
+  }
+
+  @Benchmark
+  def dbGet(): Option[Int] =
+    db.get(nextKey())
+
+  @Benchmark
+  def indexPack(): Int =
+    index.pack(nextKey())
+
+  @Benchmark
+  def indexUnpack(): String = {
+    val i = next % keys.length
+    next += 1
+    index.unpack(i)
+  }
+
+  /**
+   * Loading of the full map, as done when a ProbeIndex is constructed.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  def fullMap(): Map[String, Int] =
+    db.fullMap
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet
+
+import java.util.concurrent.TimeUnit
+
+import kyotocabinet.DB
+import org.openjdk.jmh.annotations._
+import t.{OTGSeries, OTGTimeSeriesBuilder, TimeSeries}
+import t.db.SeriesPoint
+import t.db.testing.{DBTestData, ScalableTestData}
+
+/**
+ * Reading and point insertion for time series.
+ * Reads use a key with only the probe and compound specified, as in the
+ * series ranking and charting code paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class KCSeriesDBBenchmark {
+  /**
+   * Number of probes that have series.
+   */
+  @Param(Array("2000"))
+  var probes: Int = _
+
+  private var data: ScalableTestData = _
+  private var store: DB = _
+  private var db: KCSeriesDB[OTGSeries] = _
+  private var series: IndexedSeq[OTGSeries] = _
+  private var compounds: Seq[String] = _
+  private var next = 0
+
+  @Setup
+  def setup(): Unit = {
+    data = new ScalableTestData(probes, 1)
+    store = DBTestData.memDBHash
+    db = new KCSeriesDB(store, true, OTGTimeSeriesBuilder, false)(data.context)
+    series = data.series(TimeSeries, probes).toIndexedSeq
+    for (s <- series) {
+      db.addPoints(s)
+    }
+    compounds = series.map(_.compound).distinct
+  }
+
+  @TearDown
+  def teardown(): Unit = {
+    store.close()
+  }
+
+  @Benchmark
+  def read(): Iterable[OTGSeries] = {
+    val probe = next % probes
+    val compound = compounds((next / probes) % compounds.size)
+    next += 1
+    db.read(OTGSeries(TimeSeries, null, null, null, probe, compound, null, null))
+  }
+
+  /**
+   * Insertion of a single point into an existing series.
+   * Points are replaced after the first pass, so the database does not grow.
+   */
+  @Benchmark
+  def addPoints(): Unit = {
+    val s = series(next % series.size)
+    next += 1
+    val p = s.points(next % s.points.size)
+    db.addPoints(s.copy(points = Seq(SeriesPoint(p.code, p.value))))
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import t.db.testing.DBTestData
+
+/**
+ * Encoding and decoding of single vector chunks in the supported formats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class ChunkCodecBenchmark {
+  import DBTestData.calls
+
+  @Param(Array("legacy", "columnar", "columnar-float"))
+  var format: String = _
+
+  /**
+   * Fraction of the probes in the chunk that have values.
+   */
+  @Param(Array("1.0", "0.3"))
+  var density: Double = _
+
+  private var chunkFormat: ChunkFormat = _
+  private val cols = new ChunkColumns
+  private val decoded = new ChunkColumns
+  private var encoded: Array[Byte] = _
+
+  @Setup
+  def setup(): Unit = {
+    chunkFormat = format match {
+      case "legacy" => LegacyChunkFormat
+      case "columnar" => ColumnarChunkFormat(false, true)
+      case "columnar-float" => ColumnarChunkFormat(true, true)
+    }
+    val r = new scala.util.Random(1)
+    var n = 0
+    for (p <- CHUNKSIZE until 2 * CHUNKSIZE; if r.nextDouble < density) {
+      cols.probes(n) = p
+      cols.values(n) = r.nextDouble * 100000
+      cols.pValues(n) = r.nextDouble
+      cols.calls(n) = calls(r.nextInt(calls.size))
+      n += 1
+    }
+    cols.size = n
+    encoded = ChunkCodec.encode(cols, chunkFormat)
+  }
+
+  @Benchmark
+  def encode(): Array[Byte] =
+    ChunkCodec.encode(cols, chunkFormat)
+
+  @Benchmark
+  def decode(): ChunkColumns = {
+    ChunkCodec.decodeInto(encoded, decoded)
+    decoded
+  }
+}
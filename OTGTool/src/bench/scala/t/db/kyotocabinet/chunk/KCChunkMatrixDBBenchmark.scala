@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.util.concurrent.TimeUnit
+
+import kyotocabinet.DB
+import org.openjdk.jmh.annotations._
+import t.db._
+import t.db.testing.{DBTestData, ScalableTestData}
+
+/**
+ * Reads from a populated chunk matrix DB through valuesForSamplesAndProbes.
+ * The default shape is 30,000 probes x 1,000 samples. The full 5,000 sample shape
+ * can be selected with -p samples=5000, given enough heap for the in-memory database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+class KCChunkMatrixDBBenchmark {
+  @Param(Array("30000"))
+  var probes: Int = _
+
+  @Param(Array("1000"))
+  var samples: Int = _
+
+  @Param(Array("1.0"))
+  var density: Double = _
+
+  /**
+   * Number of samples in a sample-major read, and number of probes in a probe-major read.
+   */
+  @Param(Array("50"))
+  var batch: Int = _
+
+  private var data: ScalableTestData = _
+  private var store: DB = _
+  private var db: KCChunkMatrixDB = _
+  private var allProbes: Seq[Int] = _
+  private var next = 0
+
+  @Setup
+  def setup(): Unit = {
+    data = new ScalableTestData(probes, samples, density)
+    store = DBTestData.memDBHash
+    db = new KCChunkMatrixDB(store, true)(data.context)
+    data.populate(db)
+    allProbes = 0 until probes
+  }
+
+  @TearDown
+  def teardown(): Unit = {
+    store.close()
+  }
+
+  /**
+   * The next consecutive window of `size` elements from xs, wrapping around.
+   */
+  private def window[T](xs: Seq[T], size: Int): Seq[T] = {
+    val start = next % xs.size
+    next += size
+    (start until start + size).map(i => xs(i % xs.size))
+  }
+
+  /**
+   * All probes for a batch of samples, as when displaying a full platform.
+   */
+  @Benchmark
+  def sampleMajorRead(): Array[Array[PExprValue]] =
+    db.valuesForSamplesAndProbes(window(data.samples, batch), allProbes)
+
+  /**
+   * A batch of probes for all samples, as when displaying a gene set or a chart.
+   */
+  @Benchmark
+  def probeMajorRead(): Array[Array[PExprValue]] =
+    db.valuesForSamplesAndProbes(data.samples, window(allProbes, batch).sorted)
+}
+
+/**
+ * Throughput of writeMany, writing the full set of values for one sample per call.
+ * A fresh database is used for each iteration, so that the first pass over the samples
+ * creates chunks and subsequent passes merge into existing ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+class KCChunkMatrixDBWriteBenchmark {
+  @Param(Array("30000"))
+  var probes: Int = _
+
+  /**
+   * Number of distinct samples written.
+   */
+  @Param(Array("200"))
+  var samples: Int = _
+
+  @Param(Array("1.0", "0.3"))
+  var density: Double = _
+
+  @Param(Array("columnar", "legacy"))
+  var format: String = _
+
+  private var data: ScalableTestData = _
+  private var values: Array[Seq[(Int, PExprValue)]] = _
+  private var store: DB = _
+  private var db: KCChunkMatrixDB = _
+  private var next = 0
+
+  @Setup(Level.Trial)
+  def generate(): Unit = {
+    data = new ScalableTestData(probes, samples, density)
+    values = data.samples.map(data.values(_)).toArray
+  }
+
+  @Setup(Level.Iteration)
+  def openDB(): Unit = {
+    val chunkFormat = if (format == "legacy") LegacyChunkFormat else ChunkFormat.default
+    store = DBTestData.memDBHash
+    db = new KCChunkMatrixDB(store, true, chunkFormat)(data.context)
+    next = 0
+  }
+
+  @TearDown(Level.Iteration)
+  def closeDB(): Unit = {
+    store.close()
+  }
+
+  @Benchmark
+  def writeMany(): Unit = {
+    val i = next % samples
+    db.writeMany(data.samples(i), values(i))
+    next += 1
+  }
+}
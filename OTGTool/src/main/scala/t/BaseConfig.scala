@@ -44,9 +44,15 @@ case class TriplestoreConfig(url: String, updateUrl: String,
                              user: String, pass: String, repository: String) {
   lazy val triplestore: RepositoryConnection = {
     println("SPARQLRepository connect to " + this.url + " and " + this.updateUrl)
-    Triplestore.connectSPARQLRepository(this.url, this.updateUrl, user, pass)
+    Triplestore.connect(this.url, this.updateUrl, user, pass)
   }
 
-  def get = new t.sparql.SimpleTriplestore(triplestore, updateUrl == null)
+  /**
+   * Identifies the endpoint, so that all configurations for the same endpoint
+   * share cached query results.
+   */
+  def endpointKey: String = s"$url|$updateUrl|$user"
+
+  def get = new t.sparql.SimpleTriplestore(triplestore, updateUrl == null, endpointKey)
 }
 
@@ -20,6 +20,7 @@
 package t
 
 import t.db.MatrixContext
+import t.platform.{PlatformAnnotationStore, SuggestionStore}
 import t.sparql.{ProbeStore, SampleStore}
 
 object Context {
@@ -41,6 +42,12 @@ class Context(val config: BaseConfig,
               val sampleStore: SampleStore,
               val matrix: MatrixContext) {
 
+  /**
+   * Locally stored probe annotations, by platform.
+   */
+  lazy val annotations = new PlatformAnnotationStore(config.data.annotationDir)
+  lazy val suggestions = new SuggestionStore(config.data.suggestionDir)
+
   /*
    * Note: this may not be the best location for the auxSortMap
    */
@@ -47,6 +47,9 @@ class DataConfig(val dir: String, val matrixDbOptions: String) {
 
   def mirnaDir = s"$dir/mirna"
 
+  def annotationDir = s"$dir/annotations"
+  def suggestionDir = s"$dir/suggestions"
+
   //Task: remove the fold wrap when possible
   def foldWrap(db: MatrixDBReader[PExprValue]): MatrixDBReader[PExprValue] =
     new TransformingWrapper(db) {
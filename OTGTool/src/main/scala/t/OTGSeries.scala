@@ -143,7 +143,7 @@ class OTGSeriesBuilder(val seriesType: OTGSeriesType) extends SeriesBuilder[OTGS
   }
 
   def rebuild(from: OTGSeries, points: Iterable[SeriesPoint]): OTGSeries = {
-    from.copy(points = points.toVector)
+    from.copy(points = TSeries.sortedPoints(points.toVector))
   }
 
   def keysFor(group: OTGSeries)(implicit mc: MatrixContext): Iterable[OTGSeries] = {
@@ -264,9 +264,21 @@ class OTGSeriesBuilder(val seriesType: OTGSeriesType) extends SeriesBuilder[OTGS
     val independentVariableCodes = independentVariablePoints.map(indepnedentVariableMap) //sorted
     val absentValue = BasicExprValue(0, 'A')
 
+    //Output positions of the expected codes, in code order, for merging with the sorted points
+    val byCode = independentVariableCodes.zipWithIndex.sortBy(_._1).toArray
+
     data.map(s => {
-      rebuild(s,
-        independentVariableCodes.map(c => s.points.find(_.code == c).getOrElse(SeriesPoint(c, absentValue))))
+      val points = TSeries.sortedPoints(s.points)
+      val r = new Array[SeriesPoint](byCode.length)
+      val it = points.iterator.buffered
+      for ((c, i) <- byCode) {
+        while (it.hasNext && it.head.code < c) {
+          it.next
+        }
+        r(i) = if (it.hasNext && it.head.code == c) it.head else SeriesPoint(c, absentValue)
+      }
+      s.copy(points = r.toVector)
     })
   }
+
 }
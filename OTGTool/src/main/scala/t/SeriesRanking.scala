@@ -19,10 +19,46 @@
 
 package t
 
+import scala.collection.mutable
+
 import t.util.SafeMath
 import t.db._
 import friedrich.data.Statistics
 
+/**
+ * Values of a number of series, stored as primitive arrays (series x point) for fast scoring.
+ * Series with fewer points than the widest one are padded with absent values.
+ */
+final class SeriesMatrix(val series: Array[OTGSeries]) {
+  val rows = series.length
+  val lengths: Array[Int] = series.map(_.points.size)
+  val width = if (rows == 0) 0 else lengths.max
+  val values = new Array[Double](rows * width)
+  val present = new Array[Boolean](rows * width)
+
+  for (r <- 0 until rows) {
+    var i = 0
+    for (p <- series(r).points) {
+      values(r * width + i) = p.value.value
+      present(r * width + i) = p.value.present
+      i += 1
+    }
+  }
+
+  def value(row: Int, point: Int): Double = values(row * width + point)
+  def isPresent(row: Int, point: Int): Boolean = present(row * width + point)
+
+  /**
+   * Indexes of the rows whose series match a predicate.
+   */
+  def rowsWhere(f: OTGSeries => Boolean): Array[Int] =
+    (0 until rows).filter(r => f(series(r))).toArray
+}
+
+object SeriesMatrix {
+  def apply(series: Iterable[OTGSeries]): SeriesMatrix = new SeriesMatrix(series.toArray)
+}
+
 class SeriesRanking(val db: SeriesDB[OTGSeries], val key: OTGSeries)
                    (implicit context: MatrixContext)  {
   import SafeMath._
@@ -38,16 +74,14 @@ class SeriesRanking(val db: SeriesDB[OTGSeries], val key: OTGSeries)
     refCurves
   }
 
-  protected def getScores(mt: RankType): Iterable[(OTGSeries, Double)] = {
-    mt match {
-      case r: ReferenceCompound => {
-        //Init this once and reuse across all the compounds
-        r.refCurves = loadRefCurves(key.copy(compound = r.compound,
-          doseOrTime = r.doseOrTime))
-      }
-      case _ => {}
-    }
-    mt.matchOneProbe(this, key.probe)
+  /**
+   * Load all series for a probe.
+   */
+  protected def loadSeries(probe: Int): SeriesMatrix = {
+    val key = this.key.copy(probe = probe).asSingleProbeKey
+    val data = db.read(key)
+    println(s"Read for key: $key result size ${data.size}")
+    SeriesMatrix(data)
   }
 
   /**
@@ -56,29 +90,58 @@ class SeriesRanking(val db: SeriesDB[OTGSeries], val key: OTGSeries)
    */
   def rankCompoundsCombined(probesRules: Seq[(String, RankType)]): Iterable[(String, String, Double)] = {
 
-    // Get scores for each rule
-    val allScores = probesRules.map(pr => withProbe(pr._1).getScores(pr._2))
-    val dosesOrTimes = allScores.flatMap(_.map(_._1.doseOrTime)).distinct
-    val compounds = allScores.flatMap(_.map(_._1.compound)).distinct
+    // Get scores for each rule, reading the series of each distinct probe only once
+    val byProbe = mutable.Map[Int, SeriesMatrix]()
+    val allScores = probesRules.map(pr => {
+      val m = byProbe.getOrElseUpdate(packProbe(pr._1), loadSeries(packProbe(pr._1)))
+      (m, pr._2.scoreAll(m))
+    })
+
+    val dosesOrTimes = mutable.LinkedHashMap[String, Int]()
+    val compounds = mutable.LinkedHashMap[String, Int]()
+    for ((m, _) <- allScores; s <- m.series) {
+      dosesOrTimes.getOrElseUpdate(s.doseOrTime, dosesOrTimes.size)
+      compounds.getOrElseUpdate(s.compound, compounds.size)
+    }
 
     //We score each combination of compounds and fixed doses (for time series)
-    //or fixed times (for dose series) independently
-
-    val products = (for (
-      dt <- dosesOrTimes; c <- compounds;
-      allCorresponding = allScores.map(_.find(series =>
-        series._1.doseOrTime == dt && series._1.compound == c));
-      scores = allCorresponding.map(_.map(_._2).getOrElse(Double.NaN));
-      product = safeProduct(scores);
-      result = (c, dt, product)
-    ) yield result)
-
-    val byCompound = products.groupBy(_._1)
-    byCompound.map(x => {
+    //or fixed times (for dose series) independently.
+    //Cells are indexed as doseOrTime * compounds.size + compound.
+
+    val nc = compounds.size
+    val cells = dosesOrTimes.size * nc
+    val products = Array.fill(cells)(1.0)
+    val counts = new Array[Int](cells)
+    for ((m, scores) <- allScores) {
+      //Only the first series for each combination is used
+      val seen = new Array[Boolean](cells)
+      for (r <- 0 until m.rows) {
+        val s = m.series(r)
+        val cell = dosesOrTimes(s.doseOrTime) * nc + compounds(s.compound)
+        if (!seen(cell)) {
+          seen(cell) = true
+          if (java.lang.Double.isFinite(scores(r))) {
+            products(cell) *= scores(r)
+            counts(cell) += 1
+          }
+        }
+      }
+    }
+
+    def product(cell: Int) = if (counts(cell) == 0) Double.NaN else products(cell)
+
+    val dts = dosesOrTimes.keys.toArray
+    for ((c, ci) <- compounds.toSeq; if dts.nonEmpty) yield {
       //highest scoring dose or time for each compound
       //NaN values must be handled properly
-      x._2.sortWith((a, b) => safeIsGreater(a._3, b._3)).head
-    })
+      var best = 0
+      for (d <- 1 until dts.length) {
+        if (safeIsGreater(product(d * nc + ci), product(best * nc + ci))) {
+          best = d
+        }
+      }
+      (c, dts(best), product(best * nc + ci))
+    }
   }
 }
 
@@ -108,62 +171,202 @@ object SeriesRanking {
     }
 
     def scoreAllSeries(series: Seq[OTGSeries]): Iterable[(OTGSeries, Double)] = {
-      series.map(s => (s, scoreSeries(s)))
+      val m = SeriesMatrix(series)
+      m.series.toSeq.zip(scoreAll(m))
+    }
+
+    /**
+     * Score every series (row) in a matrix.
+     */
+    def scoreAll(m: SeriesMatrix): Array[Double] = {
+      val r = new Array[Double](m.rows)
+      var i = 0
+      while (i < m.rows) {
+        r(i) = scoreRow(m, i)
+        i += 1
+      }
+      r
+    }
+
+    def scoreRow(m: SeriesMatrix, row: Int): Double
+
+    def scoreSeries(s: OTGSeries): Double =
+      scoreRow(SeriesMatrix(Seq(s)), 0)
+  }
+
+  /*
+   * Statistics over the present, finite values of a row.
+   * These agree with the corresponding SafeMath functions applied to Series.presentValues.
+   */
+
+  private def isUsable(m: SeriesMatrix, row: Int, i: Int): Boolean =
+    m.isPresent(row, i) && java.lang.Double.isFinite(m.value(row, i))
+
+  private def presentMean(m: SeriesMatrix, row: Int): Double = {
+    var sum = 0.0
+    var n = 0
+    var i = 0
+    while (i < m.lengths(row)) {
+      if (isUsable(m, row, i)) {
+        sum += m.value(row, i)
+        n += 1
+      }
+      i += 1
     }
+    if (n == 0) Double.NaN else sum / n
+  }
 
-    def scoreSeries(s: OTGSeries): Double
+  private def presentSumOfSquares(m: SeriesMatrix, row: Int): Double = {
+    var sum = 0.0
+    var n = 0
+    var i = 0
+    while (i < m.lengths(row)) {
+      val x = m.value(row, i)
+      if (m.isPresent(row, i) && java.lang.Double.isFinite(x * x)) {
+        sum += x * x
+        n += 1
+      }
+      i += 1
+    }
+    if (n == 0) Double.NaN else sum
+  }
+
+  private def presentSigma(m: SeriesMatrix, row: Int): Double = {
+    val mean = presentMean(m, row)
+    var terms = 0.0
+    var n = 0
+    var i = 0
+    while (i < m.lengths(row)) {
+      if (isUsable(m, row, i)) {
+        val d = m.value(row, i) - mean
+        terms += d * d
+        n += 1
+      }
+      i += 1
+    }
+    if (n == 0) Double.NaN else Math.sqrt(1.0 / (n - 1) * terms)
+  }
+
+  private def presentExtreme(m: SeriesMatrix, row: Int, max: Boolean): Double = {
+    var r = Double.NaN
+    var i = 0
+    while (i < m.lengths(row)) {
+      if (isUsable(m, row, i)) {
+        val x = m.value(row, i)
+        if (java.lang.Double.isNaN(r) || (if (max) x > r else x < r)) {
+          r = x
+        }
+      }
+      i += 1
+    }
+    r
+  }
+
+  /**
+   * Pearson correlation of the first n values of two arrays, with a 0.0 point
+   * prepended to each, as in safePCorrelation.
+   * The arithmetic follows Statistics.pearsonCorrelation.
+   */
+  private def originPCorrelation(x: Array[Double], y: Array[Double], n: Int): Double = {
+    val size = n + 1
+    var sx = 0.0
+    var sy = 0.0
+    var i = 0
+    while (i < n) {
+      sx += x(i)
+      sy += y(i)
+      i += 1
+    }
+    val mx = sx / size
+    val my = sy / size
+
+    var tx = mx * mx
+    var ty = my * my
+    i = 0
+    while (i < n) {
+      tx += (x(i) - mx) * (x(i) - mx)
+      ty += (y(i) - my) * (y(i) - my)
+      i += 1
+    }
+    val stdx = Math.sqrt(1.0 / (size - 1) * tx)
+    val stdy = Math.sqrt(1.0 / (size - 1) * ty)
+
+    var terms = (0.0 - mx) / stdx * (0.0 - my) / stdy
+    i = 0
+    while (i < n) {
+      terms += (x(i) - mx) / stdx * (y(i) - my) / stdy
+      i += 1
+    }
+    1.0 / (size - 1.0) * terms
   }
 
   case class MultiSynthetic(pattern: Vector[Double]) extends RankType {
-    def scoreSeries(s: OTGSeries): Double =
-      safePCorrelation(pattern, s.values.toVector.map(_.value)) + 1
+    private val patternArray = pattern.toArray
+
+    def scoreRow(m: SeriesMatrix, row: Int): Double = {
+      val n = m.lengths(row)
+      if (n != patternArray.length) {
+        //We don't expect this but let's handle it nicely.
+        println("Warning: attempt to do safePCorrelation for vectors of different length.")
+        Double.NaN
+      } else if (n < 2) {
+        Double.NaN
+      } else {
+        val values = java.util.Arrays.copyOfRange(m.values, row * m.width, row * m.width + n)
+        originPCorrelation(patternArray, values, n) + 1
+      }
+    }
   }
 
   object Sum extends RankType {
     // Note: numbers like 50 are ad hoc to 'guarantee' a positive result
-    def scoreSeries(s: OTGSeries): Double =
-      (50 + safeMean(s.presentValues)) / 50
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      (50 + presentMean(m, row)) / 50
   }
 
   object NegativeSum extends RankType {
-    def scoreSeries(s: OTGSeries): Double =
-      (50 - safeMean(s.presentValues)) / 50
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      (50 - presentMean(m, row)) / 50
   }
 
   object Unchanged extends RankType {
-    def scoreSeries(s: OTGSeries): Double =
-      (1000 - safeSum(s.presentValues.map(x => x * x))) / 1000
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      (1000 - presentSumOfSquares(m, row)) / 1000
   }
 
   /**
    * This match type maximises standard deviation.
    */
   object HighVariance extends RankType {
-    def scoreSeries(s: OTGSeries): Double =
-      (10 + safeSigma(s.presentValues)) / 10
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      (10 + presentSigma(m, row)) / 10
   }
 
   /**
    * This match type minimises standard deviation.
    */
   object LowVariance extends RankType {
-    def scoreSeries(s: OTGSeries): Double =
-      (10 - safeSigma(s.presentValues)) / 10
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      (10 - presentSigma(m, row)) / 10
   }
 
   object MonotonicIncreasing extends RankType {
-    def scoreSeries(s: OTGSeries): Double = {
+    def scoreRow(m: SeriesMatrix, row: Int): Double = {
       var score = 5
-      if (s.values(0).value < 0 || s.values(0).call == 'A') { //optional: remove this constraint
+      if (m.value(row, 0) < 0 || !m.isPresent(row, 0)) { //optional: remove this constraint
         score -= 1
       }
 
-      for (Seq(fst, snd) <- s.values.sliding(2)) {
-        if (snd.value < fst.value - 0.001 ||
-            snd.value < 0.001 ||
-            snd.call == 'A') {
+      var i = 1
+      while (i < m.lengths(row)) {
+        val fst = m.value(row, i - 1)
+        val snd = m.value(row, i)
+        if (snd < fst - 0.001 ||
+            snd < 0.001 ||
+            !m.isPresent(row, i)) {
           score -= 1
         }
+        i += 1
       }
 
       /*
@@ -175,18 +378,22 @@ object SeriesRanking {
   }
 
   object MonotonicDecreasing extends RankType {
-    def scoreSeries(s: OTGSeries): Double = {
+    def scoreRow(m: SeriesMatrix, row: Int): Double = {
       var score = 5
-      if (s.values(0).value > 0 || s.values(0).call == 'A') { //optional: remove this constraint
+      if (m.value(row, 0) > 0 || !m.isPresent(row, 0)) { //optional: remove this constraint
         score -= 1
       }
 
-      for (Seq(fst, snd) <- s.values.sliding(2)) {
-        if (snd.value > fst.value + 0.001 ||
-            snd.value > 0.001 ||
-            snd.call == 'A') {
+      var i = 1
+      while (i < m.lengths(row)) {
+        val fst = m.value(row, i - 1)
+        val snd = m.value(row, i)
+        if (snd > fst + 0.001 ||
+            snd > 0.001 ||
+            !m.isPresent(row, i)) {
           score -= 1
         }
+        i += 1
       }
 
       //score -= (4 - s.values.size) //penalise missing data heavily
@@ -195,17 +402,69 @@ object SeriesRanking {
   }
 
   object MinFold extends RankType {
-    def scoreSeries(s: OTGSeries): Double = 20 - safeMin(s.presentValues)
+    def scoreRow(m: SeriesMatrix, row: Int): Double = 20 - presentExtreme(m, row, false)
   }
 
   object MaxFold extends RankType {
-    def scoreSeries(s: OTGSeries): Double = 20 + safeMax(s.presentValues)
+    def scoreRow(m: SeriesMatrix, row: Int): Double = 20 + presentExtreme(m, row, true)
   }
 
+  /**
+   * Ranks series by their best correlation with the series of a reference compound
+   * at a fixed dose or time. When scoring a matrix, the reference curves are taken from
+   * the same matrix; refCurves is only used when scoring individual series.
+   */
   class ReferenceCompound(val compound: String, val doseOrTime: String,
       var refCurves: Iterable[Series[_]] = Seq()) extends RankType {
 
-    def scoreSeries(s: OTGSeries): Double = {
+    override def scoreAll(m: SeriesMatrix): Array[Double] = {
+      val refs = m.rowsWhere(s => s.compound == compound && s.doseOrTime == doseOrTime)
+      println("Initialised " + refs.size + " reference curves")
+      if (refs.isEmpty) {
+        Console.err.println("Warning: no reference curves available")
+      }
+
+      val x = new Array[Double](m.width)
+      val y = new Array[Double](m.width)
+      Array.tabulate(m.rows)(row => {
+        var best = Double.NaN
+        for (ref <- refs) {
+          val score = mutualPCorrelation(m, ref, row, x, y) + 1
+          if (java.lang.Double.isFinite(score) &&
+              (java.lang.Double.isNaN(best) || score > best)) {
+            best = score
+          }
+        }
+        best
+      })
+    }
+
+    /**
+     * Correlation over the points that are present in both rows, as in
+     * safePCorrelation(Series, Series). x and y are scratch buffers.
+     */
+    private def mutualPCorrelation(m: SeriesMatrix, r1: Int, r2: Int,
+        x: Array[Double], y: Array[Double]): Double = {
+      if (m.lengths(r1) != m.lengths(r2)) {
+        return Double.NaN
+      }
+      var n = 0
+      var i = 0
+      while (i < m.lengths(r1)) {
+        if (m.isPresent(r1, i) && m.isPresent(r2, i)) {
+          x(n) = m.value(r1, i)
+          y(n) = m.value(r2, i)
+          n += 1
+        }
+        i += 1
+      }
+      if (n < 2) Double.NaN else originPCorrelation(x, y, n)
+    }
+
+    def scoreRow(m: SeriesMatrix, row: Int): Double =
+      scoreSeries(m.series(row))
+
+    override def scoreSeries(s: OTGSeries): Double = {
       if (refCurves.isEmpty) {
         Console.err.println("Warning: no reference curves available")
       }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db
+
+import java.io._
+
+import scala.collection.mutable
+
+object ExternalSeriesBuilder {
+  /**
+   * The maximum number of samples used to build each run (system property
+   * t.series.samplesPerRun).
+   */
+  def samplesPerRun: Int =
+    Option(System.getProperty("t.series.samplesPerRun")).map(_.toInt).getOrElse(200)
+
+  /**
+   * Divide grouped samples into chunks of at most maxSamples samples, without
+   * splitting any group (unless the group alone is larger than maxSamples).
+   * Series built from different chunks can then be merged point by point.
+   */
+  def sampleChunks[S](groups: Iterable[(S, Iterable[Sample])], maxSamples: Int): Seq[Seq[Sample]] = {
+    val r = mutable.ArrayBuffer[Seq[Sample]]()
+    var current = Vector[Sample]()
+    for ((_, ss) <- groups) {
+      if (!current.isEmpty && current.size + ss.size > maxSamples) {
+        r += current
+        current = Vector()
+      }
+      current ++= ss
+    }
+    if (!current.isEmpty) {
+      r += current
+    }
+    r
+  }
+}
+
+/**
+ * Builds a large number of series out of core.
+ * Partial series are added in batches, each of which is sorted by (probe, class code)
+ * and spilled to a temporary run file. The runs are then merged, combining the points
+ * of partial series with the same key, so that each series can be written with a single
+ * database operation.
+ * Only the value and call of each point are kept, as in KCSeriesDB.
+ */
+class ExternalSeriesBuilder[S <: Series[S]](builder: SeriesBuilder[S], tempDir: File = null)
+  (implicit mc: MatrixContext) extends Closeable {
+
+  private val runs = mutable.ArrayBuffer[File]()
+  private val readers = mutable.ArrayBuffer[RunReader]()
+  private var spilled = 0
+
+  /**
+   * The total number of partial series added so far.
+   */
+  def size: Int = spilled
+
+  def runCount: Int = runs.size
+
+  /**
+   * Sort the given (partial) series and spill them to a new run.
+   */
+  def add(series: Iterable[S]): Unit = {
+    val keyed = series.toArray.map(s => (s.probe, s.classCode, s)).
+      sortWith((a, b) => a._1 < b._1 || (a._1 == b._1 && a._2 < b._2))
+    if (keyed.isEmpty) {
+      return
+    }
+
+    val file = File.createTempFile("series", ".run", tempDir)
+    file.deleteOnExit()
+    runs += file
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))
+    try {
+      for ((probe, code, s) <- keyed) {
+        out.writeInt(probe)
+        out.writeLong(code)
+        out.writeInt(s.points.size)
+        for (p <- s.points) {
+          out.writeInt(p.code)
+          out.writeDouble(p.value.value)
+          out.writeChar(p.value.call)
+        }
+      }
+    } finally {
+      out.close()
+    }
+    spilled += keyed.size
+  }
+
+  private class RunReader(file: File) {
+    private val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))
+    private var remaining = file.length
+
+    var probe: Int = _
+    var code: Long = _
+    var points: Vector[SeriesPoint] = _
+
+    def hasCurrent = points != null
+
+    def advance(): Unit = {
+      if (remaining <= 0) {
+        points = null
+        in.close()
+      } else {
+        probe = in.readInt
+        code = in.readLong
+        val n = in.readInt
+        val probeName = mc.probeMap.unpack(probe)
+        points = Vector.fill(n)({
+          val c = in.readInt
+          val v = in.readDouble
+          val call = in.readChar
+          SeriesPoint(c, BasicExprValue(v, call, probeName))
+        })
+        remaining -= 16 + n * 14
+      }
+    }
+
+    def close(): Unit = in.close()
+
+    advance()
+  }
+
+  /**
+   * Merge all runs, returning each series once, in (probe, class code) order.
+   * The points of partial series with the same key are combined.
+   */
+  def merged: Iterator[S] = new Iterator[S] {
+    private val queue = new java.util.PriorityQueue[RunReader](math.max(1, runs.size),
+      new java.util.Comparator[RunReader] {
+        def compare(a: RunReader, b: RunReader) = {
+          val c = Integer.compare(a.probe, b.probe)
+          if (c != 0) c else java.lang.Long.compare(a.code, b.code)
+        }
+      })
+    for (r <- runs) {
+      val reader = new RunReader(r)
+      readers += reader
+      if (reader.hasCurrent) {
+        queue.add(reader)
+      }
+    }
+
+    def hasNext = !queue.isEmpty
+
+    def next: S = {
+      val first = queue.poll()
+      val probe = first.probe
+      val code = first.code
+      var r = builder.rebuild(builder.build(code, probe), first.points)
+      advance(first)
+
+      while (!queue.isEmpty && queue.peek.probe == probe && queue.peek.code == code) {
+        val reader = queue.poll()
+        r = r.addPoints(builder.rebuild(r, reader.points), builder)
+        advance(reader)
+      }
+      r
+    }
+
+    private def advance(reader: RunReader): Unit = {
+      reader.advance()
+      if (reader.hasCurrent) {
+        queue.add(reader)
+      }
+    }
+  }
+
+  /**
+   * Close any open readers and delete the run files.
+   */
+  def close(): Unit = {
+    for (r <- readers) {
+      r.close()
+    }
+    readers.clear()
+    for (r <- runs) {
+      r.delete()
+    }
+    runs.clear()
+  }
+}
@@ -181,6 +181,16 @@ trait MatrixDBWriter[E <: ExprValue] {
     }
   }
 
+  /**
+   * Write values for several samples. Implementations may coalesce the writes
+   * for the whole batch. The values for each sample must be sorted by probe.
+   */
+  def writeSamples(data: Iterable[(Sample, Iterable[(Int, E)])]): Unit = {
+    for ((s, vs) <- data) {
+      writeMany(s, vs)
+    }
+  }
+
   def deleteSample(s: Sample): Unit
 
   def deleteSamples(ss: Iterable[Sample]): Unit = {
@@ -19,6 +19,14 @@
 
 package t.db
 
+import java.util.concurrent.Executors
+
+import scala.collection.mutable
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext
+import scala.concurrent.Future
+import scala.concurrent.duration.Duration
+
 import t.manager.AtomicTask
 import t.manager.Task
 
@@ -42,6 +50,29 @@ class SimpleValueInsert(getDB: () => MatrixDBWriter[PExprValue], raw: ColumnExpr
   lazy val db = getDB()
 }
 
+object MatrixInsert {
+  /**
+   * Number of threads used to prepare sample data for writing
+   * (system property t.db.insertWorkers).
+   */
+  def workerCount: Int =
+    Option(System.getProperty("t.db.insertWorkers")).map(_.toInt).
+      getOrElse(Math.max(1, Runtime.getRuntime.availableProcessors - 1))
+
+  /**
+   * Number of samples whose chunk updates are coalesced into a single write
+   * (system property t.db.insertBatchSize).
+   */
+  def writeBatchSize: Int =
+    Option(System.getProperty("t.db.insertBatchSize")).map(_.toInt).getOrElse(32)
+}
+
+/**
+ * Inserts the data of a ColumnExpressionData into a matrix database.
+ * Insertion is pipelined: while sample data is read from the source, a pool of workers
+ * packs probes and builds values, and the writer (the task's own thread) coalesces
+ * the prepared samples into batches that are written with MatrixDBWriter.writeSamples.
+ */
 abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
 (implicit context: MatrixContext) {
 
@@ -67,6 +98,15 @@ abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
     }
   }
 
+  /**
+   * Pack probes and build values for a sample, sorted by probe.
+   * Values for unknown probes are dropped.
+   */
+  private def prepare(knownProbes: Set[String],
+      data: Seq[(ProbeId, FoldPExpr)]): Seq[(Int, E)] =
+    data.flatMap(x => packProbe(knownProbes, x._1, _ => ()).map(p => (p, mkValue(x._2)))).
+      sortBy(_._1)
+
   def insert(name: String): Task[Unit] = {
     new AtomicTask[Unit](name) {
       override def run(): Unit = {
@@ -89,15 +129,47 @@ abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
           var pcomp = 0d
           var nvalues = 0
 
-          for {
-            (sample, data) <- raw.samplesAndData
-            if shouldContinue(pcomp)
-            withProbes = data.map { case (p, v) => (packProbe(knownProbes, p, x => log(x)), v) }
-            values = withProbes.collect {case (Some(probe), (v, c, p)) => (probe, mkValue(v, c, p)) }
-          } {
-            nvalues += values.size
-            db.writeMany(sample, values)
-            pcomp += 100.0 / nsamples
+          val workers = MatrixInsert.workerCount
+          val batchSize = MatrixInsert.writeBatchSize
+          val pool = Executors.newFixedThreadPool(workers)
+          implicit val ec = ExecutionContext.fromExecutorService(pool)
+
+          val pending = mutable.Queue[Future[(Sample, Seq[(Int, E)])]]()
+          val batch = mutable.ArrayBuffer[(Sample, Seq[(Int, E)])]()
+
+          def flush(): Unit = {
+            if (!batch.isEmpty) {
+              db.writeSamples(batch.toList)
+              pcomp += 100.0 * batch.size / nsamples
+              batch.clear()
+            }
+          }
+
+          def takeOne(): Unit = {
+            val prepared = Await.result(pending.dequeue, Duration.Inf)
+            nvalues += prepared._2.size
+            batch += prepared
+            if (batch.size >= batchSize) {
+              flush()
+            }
+          }
+
+          try {
+            val samples = raw.samplesAndData
+            while (samples.hasNext && shouldContinue(pcomp)) {
+              val (sample, data) = samples.next
+              pending += Future { (sample, prepare(knownProbes, data)) }
+              //Limit the amount of prepared data held in memory
+              if (pending.size >= workers * 2) {
+                takeOne()
+              }
+            }
+            while (!pending.isEmpty && shouldContinue(pcomp)) {
+              takeOne()
+            }
+            flush()
+          } finally {
+            pool.shutdown()
           }
 
           logResult(s"${nvalues} values written")
@@ -19,6 +19,8 @@
 
 package t.db
 
+import scala.collection.mutable
+
 import t.Factory
 import t.model.sample.CoreParameter.{Batch, ControlGroup}
 import t.model.sample.OTGAttribute.{DoseLevel, ExposureTime}
@@ -58,18 +60,41 @@ trait Metadata extends SampleSet {
   def mapParameter(fact: Factory, key: String, f: String => String): Metadata
 
 
-  private def controlGroupKey(s: Sample) =
+  type ControlGroupKey = (Option[String], Option[String], Option[String])
+
+  protected def controlGroupKey(s: Sample): ControlGroupKey =
     (sampleAttribute(s, ControlGroup), sampleAttribute(s, ExposureTime), sampleAttribute(s, Batch))
 
-  def controlSamples(s: Sample): Iterable[Sample] = {
-    val key = controlGroupKey(s)
-    samples.filter(controlGroupKey(_) == key).filter(isControl)
-  }
+  private def keyedControls(ss: Iterable[Sample]) =
+    ss.filter(isControl).map(s => (controlGroupKey(s), s))
+
+  /**
+   * Control samples indexed by control group key. Built once, on first use, from the
+   * samples at that time. The index is a snapshot: if the underlying samples may change
+   * (as with TriplestoreMetadata), a new Metadata object should be obtained afterwards.
+   */
+  protected lazy val controlGroupIndex: ControlGroupIndex[ControlGroupKey] =
+    new ControlGroupIndex(keyedControls(samples))
 
+  def controlSamples(s: Sample): Iterable[Sample] =
+    controlGroupIndex(controlGroupKey(s))
+
+  /**
+   * Group samples into treated/control units in a single pass.
+   * Samples are first grouped by control group key, and groups that share the same
+   * control samples are then combined.
+   * @return pairs of treated samples (one dose level each) and the control samples from ss
+   *  that they should be compared against
+   */
   def treatedControlGroups(ss: Iterable[Sample]): Iterable[(Iterable[Sample], Iterable[Sample])] = {
+    val byKey = mutable.LinkedHashMap[ControlGroupKey, mutable.ArrayBuffer[Sample]]()
+    for (s <- ss) {
+      byKey.getOrElseUpdate(controlGroupKey(s), mutable.ArrayBuffer()) += s
+    }
+
     // gs was the return value for the old t (non-otg) implementation
-    val gs = ss.groupBy(controlSamples(_)).toSeq.map(sg => {
-      sg._2.partition(!isControl(_))
+    val gs = byKey.values.toSeq.groupBy(g => controlSamples(g.head)).values.toSeq.map(sg => {
+      sg.flatten.partition(!isControl(_))
     })
     gs.flatMap({
       case (treated, control) => {
@@ -79,6 +104,39 @@ trait Metadata extends SampleSet {
   }
 }
 
+/**
+ * Control samples grouped by a key, in the order they were added.
+ * Supports incremental updates.
+ */
+class ControlGroupIndex[K](initial: Iterable[(K, Sample)]) {
+  private val groups = mutable.HashMap[K, Vector[Sample]]()
+  add(initial)
+
+  def apply(key: K): Seq[Sample] = synchronized {
+    groups.getOrElse(key, Vector())
+  }
+
+  def keys: Iterable[K] = synchronized { groups.keys.toList }
+
+  def add(ss: Iterable[(K, Sample)]): Unit = synchronized {
+    for ((k, s) <- ss) {
+      groups(k) = groups.getOrElse(k, Vector()) :+ s
+    }
+  }
+
+  def remove(ss: Iterable[(K, Sample)]): Unit = synchronized {
+    for ((k, rs) <- ss.groupBy(_._1); group <- groups.get(k)) {
+      val removed = rs.map(_._2).toSet
+      val keep = group.filter(!removed.contains(_))
+      if (keep.isEmpty) {
+        groups -= k
+      } else {
+        groups(k) = keep
+      }
+    }
+  }
+}
+
 /**
  * A limited view of a larger metadata set, where only some samples are visible.
  * Note: the filtering is intended to keep control units intact, so filters should not
@@ -24,25 +24,28 @@ import java.util.NoSuchElementException
 import scala.reflect.ClassTag
 
 /**
- * A series of expression values ranging over some independent variable
+ * A series of expression values ranging over some independent variable.
+ * Points are kept sorted by code.
  */
 abstract class Series[This <: Series[This]](val probe: Int, val points: Seq[SeriesPoint]) {
   this: This =>
   def classCode(implicit mc: MatrixContext): Long
 
-  def addPoints(from: This, builder: SeriesBuilder[This]): This = {
-    val keep = points.filter(x => !from.points.exists(y => y.code == x.code))
-    builder.rebuild(this, keep ++ from.points)
-  }
+  /**
+   * Add points, replacing any existing points with the same code.
+   * The result is sorted by code.
+   */
+  def addPoints(from: This, builder: SeriesBuilder[This]): This =
+    builder.rebuild(this, Series.mergePoints(Series.sortedPoints(points),
+      Series.sortedPoints(from.points)))
 
   /**
    * Remove points based on the point code (independent value) of the supplied points.
    * Their expression value is ignored.
    */
-  def removePoints(toRemove: This, builder: SeriesBuilder[This]): This = {
-    val keep = points.filter(x => !toRemove.points.exists(y => y.code == x.code))
-    builder.rebuild(this, keep)
-  }
+  def removePoints(toRemove: This, builder: SeriesBuilder[This]): This =
+    builder.rebuild(this, Series.subtractPoints(Series.sortedPoints(points),
+      Series.sortedPoints(toRemove.points)))
 
   def values = points.map(_.value)
 
@@ -59,6 +62,71 @@ abstract class Series[This <: Series[This]](val probe: Int, val points: Seq[Seri
   def constraints: Map[Attribute, String] = Map()
 }
 
+object Series {
+  def isSorted(points: Seq[SeriesPoint]): Boolean = {
+    val it = points.iterator
+    var ok = true
+    if (it.hasNext) {
+      var last = it.next.code
+      while (ok && it.hasNext) {
+        val c = it.next.code
+        ok = c >= last
+        last = c
+      }
+    }
+    ok
+  }
+
+  /**
+   * Points sorted by code. Points that are already sorted are returned as they are.
+   */
+  def sortedPoints(points: Seq[SeriesPoint]): Seq[SeriesPoint] =
+    if (isSorted(points)) points else points.sortBy(_.code)
+
+  /**
+   * Merge two point sequences sorted by code. Where both have a point with the same
+   * code, the point from added is kept.
+   */
+  def mergePoints(existing: Seq[SeriesPoint], added: Seq[SeriesPoint]): Vector[SeriesPoint] = {
+    val r = Vector.newBuilder[SeriesPoint]
+    val ie = existing.iterator.buffered
+    val ia = added.iterator.buffered
+    while (ie.hasNext && ia.hasNext) {
+      val ce = ie.head.code
+      val ca = ia.head.code
+      if (ce < ca) {
+        r += ie.next
+      } else if (ce == ca) {
+        ie.next
+        r += ia.next
+      } else {
+        r += ia.next
+      }
+    }
+    r ++= ie
+    r ++= ia
+    r.result
+  }
+
+  /**
+   * The points of existing whose codes do not occur in removed.
+   * Both sequences must be sorted by code.
+   */
+  def subtractPoints(existing: Seq[SeriesPoint], removed: Seq[SeriesPoint]): Vector[SeriesPoint] = {
+    val r = Vector.newBuilder[SeriesPoint]
+    val ir = removed.iterator.buffered
+    for (p <- existing) {
+      while (ir.hasNext && ir.head.code < p.code) {
+        ir.next
+      }
+      if (!(ir.hasNext && ir.head.code == p.code)) {
+        r += p
+      }
+    }
+    r.result
+  }
+}
+
 /**
  * Code is the encoded enum value of the independent variable, e.g.
  * 24hr for a time series.
@@ -19,155 +19,90 @@
 
 package t.db.file
 
-import scala.io.Source
 import scala.collection.{ Map => CMap }
 import t.db._
-import scala.collection.mutable.ArrayBuffer
 
 class ParseException(msg: String) extends Exception
 
 /**
  * Raw data in CSV files.
- * Will be read a few samples at a time, saving memory, possibly sacrificing speed.
+ * The files are memory-mapped and indexed once, after which the values of each sample
+ * are parsed directly from the mapped file when requested, saving memory.
  * Call files may be absent, in which case all values are treated as present call (P).
+ * The files stay mapped until release is called.
  */
 class CSVRawExpressionData(exprFile: String,
     callFile: Option[String], expectedSamples: Option[Int],
     parseWarningHandler: (String) => Unit) extends ColumnExpressionData {
 
-  import t.util.DoThenClose._
-
-  private def samplesInFile(file: String) = {
-    val firstLine = doThenClose(Source.fromFile(file))(_.getLines.next)
-    val columns = firstLine.split(",", -1).map(_.trim)
-    columns.drop(1).toVector.map(s => Sample(unquote(s)))
-  }
-
-  override lazy val samples: Vector[Sample] =
-    samplesInFile(exprFile).distinct
-
-  override lazy val probes: Vector[String] =
-    probesInFile(exprFile).toVector
-
-  private def probesInFile(file: String): Seq[ProbeId] = {
-    doThenClose(Source.fromFile(file))(ls => {
-      (for {
-        line <- ls.getLines().drop(1)
-        columns = line.split(",", -1).map(_.trim)
-        probe = unquote(columns.head)
-      } yield probe).toList //force evaluation
-    })
-  }
-
   protected val expectedColumns = expectedSamples.map(_ + 1)
 
-  protected def traverseFile[T](file: String,
-    lineHandler: (Array[String], String) => Unit): Array[String] = {
-    println("Read " + file)
-    doThenClose(Source.fromFile(file))(s => {
-      val ls = s.getLines
-      val columns = ls.next.split(",", -1).map(x => unquote(x.trim))
-
-      for (l <- ls) {
-        lineHandler(columns, l)
-      }
-      columns
-    })
-  }
-
-  protected def probeBuffer[T] = {
-    val r = ArrayBuffer[T]()
-    r.sizeHint(probes.size)
-    r
-  }
+  private var openTables = List[MappedCSVTable]()
 
-  protected def sampleBuffer[T] = {
-    val r = ArrayBuffer[T]()
-    r.sizeHint(samples.size)
-    r
+  private def open(file: String): MappedCSVTable = synchronized {
+    val table = new MappedCSVTable(file, expectedColumns, parseWarningHandler)
+    openTables ::= table
+    table
   }
 
-  protected def readValuesFromTable[T](file: String, ss: Iterable[Sample],
-    extract: String => T): CMap[Sample, Seq[T]] = {
-    val samples = ss.map(_.sampleId).toSet
-
-    val raw = probeBuffer[IndexedSeq[String]]
-    var keptColumns: Option[IndexedSeq[String]] = None
-    var keptIndices: Option[IndexedSeq[Int]] = None
+  protected lazy val exprTable = open(exprFile)
 
-    traverseFile(file, (columns, l) => {
-      if(keptColumns == None) {
-        keptColumns = Some(ArrayBuffer(columns.head) ++
-           columns.filter(x => samples.contains(x)))
-        keptIndices = Some(ArrayBuffer(0) ++
-           columns.indices.filter(i => samples.contains(columns(i))))
-      }
+  protected lazy val callTable = callFile.map(open)
 
-      val spl = l.split(",", -1).map(x => x.trim)
-      if (expectedColumns != None && spl.size < expectedColumns.get) {
-        val wmsg =
-            s"Too few columns on line (expected $expectedColumns, got ${spl.size}. Line starts with: " + l.take(30)
-        parseWarningHandler(wmsg)
-      } else {
-        raw += keptIndices.get.map(spl)
-      }
-    })
+  /**
+   * Unmap the files. Sample and probe names remain available, but values can no
+   * longer be read from the files.
+   */
+  override def release(): Unit = synchronized {
+    openTables.foreach(_.close())
+    openTables = Nil
+  }
 
-    val rawAndProbes = raw zip probes
+  override lazy val samples: Vector[Sample] =
+    exprTable.columns.drop(1).toVector.map(Sample(_)).distinct
 
-    var r = Map[Sample, Seq[T]]()
-    for (c <- 1 until keptColumns.get.size;
-      sampleId = keptColumns.get(c); sample = Sample(sampleId)) {
+  override lazy val probes: Vector[String] = exprTable.rowKeys
 
-      val col = rawAndProbes.map {case (row, probe) =>
+  /**
+   * Expression values for a sample, in probe order, if the sample is present.
+   */
+  protected def exprColumn(s: Sample): Option[Array[Double]] =
+    exprTable.columnIndex(s.sampleId).map(c =>
+      Array.tabulate(exprTable.rows)(r =>
         try {
-          extract(row(c))
+          exprTable.double(r, c)
         } catch {
           case nfe: NumberFormatException =>
-            val wmsg = s"Number format error: unable to parse string '${row(c)}' for probe $probe" +
-              s" and sample $sampleId"
+            val wmsg = s"Number format error: unable to parse string '${exprTable.string(r, c).getOrElse("")}' " +
+              s"for probe ${probes(r)} and sample ${s.sampleId}"
             parseWarningHandler(wmsg)
             throw nfe
-        }
-      }
-      r += sample -> col.toVector
-    }
-
-    r
-  }
-
-  private[this] def unquote(x: String) = x.replace("\"", "")
-
-  protected def readCalls(file: String, ss: Iterable[Sample]): CMap[Sample, Seq[Char]] = {
-    //get the second char in a string like "A" or "P"
-    readValuesFromTable(file, ss, x => unquote(x)(0))
-  }
-
-  lazy val defaultCalls = probes.map(_ => 'P')
+        }))
 
   /**
-   * Read expression values from a file.
-   * The result is a map that maps samples to probe IDs and values.
+   * Calls for a sample, in probe order, if a call file is used and the sample is present.
    */
-  protected def readExprValues(file: String, ss: Iterable[Sample]): CMap[Sample, Seq[Double]] = {
-    import java.lang.{Double => JDouble}
-    readValuesFromTable(file, ss, _.toDouble)
-  }
+  protected def callColumn(s: Sample): Option[Array[Char]] =
+    for {
+      t <- callTable
+      c <- t.columnIndex(s.sampleId)
+    } yield Array.tabulate(t.rows)(t.char(_, c))
 
-  import java.lang.{Double => JDouble}
-  override def data(ss: Iterable[Sample]): CMap[Sample, CMap[ProbeId, FoldPExpr]] = {
-    val exprs = readExprValues(exprFile, ss.toSeq.distinct)
-    val calls = callFile.map(readCalls(_, ss.toSeq.distinct)).getOrElse(Map())
+  lazy val defaultCalls = probes.map(_ => 'P')
 
-    exprs.map { case (s, col) => {
-        val sampleCalls = calls.getOrElse(s, defaultCalls)
-        s -> (Map() ++ (probes.iterator zip (col.iterator zip sampleCalls.iterator)).map {
-          case (p, (v, c)) => {
-            (p -> (v, c, Double.NaN))
-          }
-        }).filter(v => ! JDouble.isNaN(v._2._1))
-      }
+  import java.lang.{Double => JDouble}
+  override def data(ss: Iterable[Sample]): CMap[Sample, CMap[ProbeId, FoldPExpr]] =
+    Map() ++ ss.toSeq.distinct.flatMap(s => exprColumn(s).map(col => s -> sampleData(s, col)))
+
+  private def sampleData(s: Sample, col: Array[Double]): CMap[ProbeId, FoldPExpr] = {
+    val calls = callColumn(s)
+    val n = Math.min(Math.min(col.length, probes.size),
+      calls.map(_.length).getOrElse(Int.MaxValue))
+    val r = Map.newBuilder[ProbeId, FoldPExpr]
+    for (i <- 0 until n; if !JDouble.isNaN(col(i))) {
+      r += (probes(i) -> (col(i), calls.map(_(i)).getOrElse('P'), Double.NaN))
     }
+    r.result
   }
 
   def data(s: Sample): CMap[ProbeId, FoldPExpr] = {
@@ -177,80 +112,29 @@ class CSVRawExpressionData(exprFile: String,
 
 /**
  * Immediately caches all samples in memory to gain more speed.
+ * Values are held in primitive arrays.
  */
 class CachedCSVRawExpressionData(exprFile: String,
     callFile: Option[String], expectedSamples: Option[Int],
     parseWarningHandler: (String) => Unit)
     extends CSVRawExpressionData(exprFile, callFile, expectedSamples, parseWarningHandler) {
 
-  var exprCache: CMap[Sample, Seq[Double]] = Map()
-  var callsCache: CMap[Sample, Seq[Char]] = Map()
+  private val exprCache: Map[Sample, Array[Double]] =
+    Map() ++ samples.flatMap(s => super.exprColumn(s).map(s -> _))
 
-  exprCache = readExprValues(exprFile, samples)
-  callsCache = callFile match {
-    case Some(f) => readCalls(f, samples)
-    case _ => Map()
-  }
+  private val callsCache: Map[Sample, Array[Char]] =
+    Map() ++ samples.flatMap(s => super.callColumn(s).map(s -> _))
 
-  /*
-   * Read all data at once, ignoring the ss parameter.
-   */
-   override protected def readValuesFromTable[T](file: String, ss: Iterable[Sample],
-    extract: String => T): CMap[Sample, Seq[T]] = {
+  //Everything has been read into memory
+  release()
 
-    val raw = probeBuffer[IndexedSeq[T]]
+  override protected def exprColumn(s: Sample): Option[Array[Double]] = exprCache.get(s)
 
-    traverseFile(file, (columns, l) => {
-
-      val spl = l.split(",", -1).map(x => x.trim)
-      if (expectedColumns != None && spl.size < expectedColumns.get) {
-        val wmsg =
-            s"Too few columns on line (expected $expectedColumns, got ${spl.size}. Line starts with: " + l.take(30)
-        parseWarningHandler(wmsg)
-      } else {
-        try {
-          raw += spl.drop(1).map(extract)
-        } catch {
-          case nfe: NumberFormatException =>
-            val wmsg = s"Number format error: unable to parse row for probe ${spl(0)}. " +
-              "Try with non-cached mode for more detailed error message."
-            parseWarningHandler(wmsg)
-            throw nfe
-        }
-      }
-    })
-
-    var r = Map[Sample, Seq[T]]()
-
-    for (c <- 0 until samples.size;
-      sample = samples(c)) {
-      r += sample -> raw.map(_(c))
-    }
-    r
-  }
+  override protected def callColumn(s: Sample): Option[Array[Char]] = callsCache.get(s)
 
   override def calls(x: Sample): Seq[Option[Char]] =
-    callsCache.getOrElse(x, defaultCalls).map(Some(_))
+    callsCache.get(x).map(_.toSeq).getOrElse(defaultCalls).map(Some(_))
 
   override def exprs(x: Sample): Seq[Option[Double]] =
-    exprCache(x).map(Some(_))
-
-  override protected def readCalls(file: String, ss: Iterable[Sample]): CMap[Sample, Seq[Char]] = {
-    val (preExisting, notYetRead) = ss.partition(callsCache.contains(_))
-    if (notYetRead.nonEmpty) {
-      callsCache ++= super.readCalls(file, notYetRead)
-    }
-    val sampleSet = ss.toSet
-    callsCache.filter(x => sampleSet.contains(x._1))
-  }
-
-  override protected def readExprValues(file: String, ss: Iterable[Sample]): CMap[Sample, Seq[Double]] = {
-    val (preExisting, notYetRead) = ss.partition(exprCache.contains(_))
-    if (notYetRead.nonEmpty) {
-      exprCache ++= super.readExprValues(file, notYetRead)
-    }
-    val sampleSet = ss.toSet
-    exprCache.filter(x => sampleSet.contains(x._1))
-  }
-
+    exprCache(x).toSeq.map(Some(_))
 }
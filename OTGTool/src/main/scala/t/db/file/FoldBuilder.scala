@@ -44,10 +44,20 @@ abstract class FoldValueBuilder(md: Metadata, input: ColumnExpressionData)
 
   protected lazy val groups = md.treatedControlGroups(input.samples)
 
+  /**
+   * The groups that each treated sample belongs to.
+   */
+  protected lazy val groupsBySample: Map[Sample, Seq[(Iterable[Sample], Iterable[Sample])]] = {
+    val r = HashMap[Sample, Vector[(Iterable[Sample], Iterable[Sample])]]()
+    for (g <- groups; s <- g._1.toSet[Sample]) {
+      r(s) = r.getOrElse(s, Vector()) :+ g
+    }
+    Map() ++ r
+  }
+
   def data(s: Sample): CMap[String, FoldPExpr] = {
     var r = List[Entry]()
-    for ((ts, cs) <- groups;
-      if ts.toSet.contains(s)) {
+    for ((ts, cs) <- groupsBySample.getOrElse(s, Seq())) {
       println("Control barcodes: " + cs)
       println("Treated: " + ts)
       r = makeFolds(cs.toSeq, ts.toSeq, s, r)
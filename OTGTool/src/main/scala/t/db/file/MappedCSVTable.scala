@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.file
+
+import java.io.RandomAccessFile
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
+
+import scala.collection.mutable
+
+object MappedCSVTable {
+  private val SEGMENT_BITS = 30
+  private val SEGMENT_SIZE = 1L << SEGMENT_BITS
+  private val SEGMENT_MASK = SEGMENT_SIZE - 1
+
+  /**
+   * The offset of every CHECKPOINT_INTERVAL:th field in each line is stored in the index.
+   * Other fields are found by scanning forward from the nearest checkpoint.
+   */
+  val CHECKPOINT_INTERVAL = 16
+
+  //Powers of ten that can be represented exactly as doubles
+  private val POW10 = Array.tabulate(23)(i => Math.pow(10, i))
+
+  /**
+   * Release a mapping now rather than when the buffer is garbage collected.
+   * This matters on Windows, where a mapped file cannot be deleted or replaced.
+   * The JDK offers no public API for this, so the internal cleaner is used
+   * (sun.misc.Unsafe.invokeCleaner on Java 9 and later, DirectBuffer.cleaner on Java 8).
+   * If neither is available, the mapping is left to the garbage collector.
+   */
+  private def unmap(buffer: MappedByteBuffer): Unit = {
+    try {
+      try {
+        val unsafeClass = Class.forName("sun.misc.Unsafe")
+        val invokeCleaner = unsafeClass.getMethod("invokeCleaner", classOf[ByteBuffer])
+        val theUnsafe = unsafeClass.getDeclaredField("theUnsafe")
+        theUnsafe.setAccessible(true)
+        invokeCleaner.invoke(theUnsafe.get(null), buffer)
+      } catch {
+        case nsme: NoSuchMethodException =>
+          val cleanerMethod = buffer.getClass.getMethod("cleaner")
+          cleanerMethod.setAccessible(true)
+          val cleaner = cleanerMethod.invoke(buffer)
+          if (cleaner != null) {
+            cleaner.getClass.getMethod("clean").invoke(cleaner)
+          }
+      }
+    } catch {
+      case e: Exception =>
+        println(s"Unable to unmap file buffer, leaving it to the garbage collector: $e")
+    }
+  }
+}
+
+/**
+ * A CSV table in a memory-mapped file.
+ * The file is indexed in a single pass when the table is created, after which
+ * individual fields are located through the index and parsed directly from the mapped
+ * bytes, without reading whole lines into strings.
+ * The first line holds the column names and the first column holds the row keys.
+ * Fields may be quoted and padded with whitespace, but may not contain commas or
+ * line breaks. Lines may end with LF, CRLF or CR.
+ * The mapping is held until close is called, after which the table may no longer be read.
+ * Column names and row keys remain available after closing.
+ * @param expectedColumns if given, lines with fewer columns than this are skipped
+ *  with a warning.
+ */
+class MappedCSVTable(file: String, expectedColumns: Option[Int],
+    warningHandler: String => Unit) {
+  import MappedCSVTable._
+
+  /**
+   * The mapped segments, or null once the table has been closed.
+   */
+  private var segments: Array[MappedByteBuffer] = _
+
+  private val length: Long = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val ch = raf.getChannel
+      val size = ch.size
+      val segs = for (start <- 0L until size by SEGMENT_SIZE)
+        yield ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start))
+      segments = segs.toArray[MappedByteBuffer]
+      size
+    } finally {
+      raf.close()
+    }
+  }
+
+  private def byteAt(pos: Long): Byte =
+    segments((pos >>> SEGMENT_BITS).toInt).get((pos & SEGMENT_MASK).toInt)
+
+  /**
+   * Whether a line ends at pos. For CRLF line endings, the LF is then read as
+   * an empty line, which is skipped like other blank lines.
+   */
+  private def isLineEnd(pos: Long): Boolean =
+    pos >= length || {
+      val b = byteAt(pos)
+      b == '\n' || b == '\r'
+    }
+
+  /**
+   * End (exclusive) of the line starting at pos.
+   */
+  private def lineEnd(pos: Long): Long = {
+    var p = pos
+    while (!isLineEnd(p)) {
+      p += 1
+    }
+    p
+  }
+
+  /**
+   * End (exclusive) of the field starting at pos.
+   */
+  private def fieldEnd(pos: Long): Long = {
+    var p = pos
+    while (!isLineEnd(p) && byteAt(p) != ',') {
+      p += 1
+    }
+    p
+  }
+
+  private def isPadding(b: Byte) = b == ' ' || b == '\t' || b == '\r' || b == '"'
+
+  private def trimmedStart(from: Long, to: Long): Long = {
+    var p = from
+    while (p < to && isPadding(byteAt(p))) {
+      p += 1
+    }
+    p
+  }
+
+  private def trimmedEnd(from: Long, to: Long): Long = {
+    var p = to
+    while (p > from && isPadding(byteAt(p - 1))) {
+      p -= 1
+    }
+    p
+  }
+
+  private def text(from: Long, to: Long): String = {
+    val bs = new Array[Byte]((to - from).toInt)
+    for (i <- 0 until bs.length) {
+      bs(i) = byteAt(from + i)
+    }
+    new String(bs, "UTF-8").replace("\"", "")
+  }
+
+  private def fieldText(from: Long): String = {
+    val end = fieldEnd(from)
+    val s = trimmedStart(from, end)
+    text(s, trimmedEnd(s, end))
+  }
+
+  /**
+   * Column names, from the first line.
+   */
+  val columns: Array[String] = {
+    val end = lineEnd(0)
+    val r = mutable.ArrayBuffer[String]()
+    var p = 0L
+    while (p <= end && p < length) {
+      r += fieldText(p)
+      p = fieldEnd(p) + 1
+    }
+    r.toArray
+  }
+
+  private val columnIndexes: Map[String, Int] =
+    Map() ++ columns.zipWithIndex.reverse
+
+  /**
+   * The index of a column, by name. If the name occurs several times, the first
+   * occurrence is used.
+   */
+  def columnIndex(name: String): Option[Int] = columnIndexes.get(name)
+
+  private val stride = Math.max(1, (columns.length + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL)
+
+  private val (lineStarts, checkpoints, keys) = {
+    println("Read " + file)
+    val starts = mutable.ArrayBuilder.make[Long]
+    val cps = mutable.ArrayBuilder.make[Int]
+    val ks = Vector.newBuilder[String]
+    val lineCps = new Array[Int](stride)
+
+    var pos = lineEnd(0) + 1
+    while (pos < length) {
+      java.util.Arrays.fill(lineCps, -1)
+      lineCps(0) = 0
+      var fields = 1
+      var p = pos
+      while (!isLineEnd(p)) {
+        if (byteAt(p) == ',') {
+          if (fields % CHECKPOINT_INTERVAL == 0 && fields / CHECKPOINT_INTERVAL < stride) {
+            lineCps(fields / CHECKPOINT_INTERVAL) = (p + 1 - pos).toInt
+          }
+          fields += 1
+        }
+        p += 1
+      }
+
+      if (trimmedStart(pos, p) == p) {
+        //blank line
+      } else if (expectedColumns != None && fields < expectedColumns.get) {
+        warningHandler(s"Too few columns on line (expected ${expectedColumns.get}, got $fields. " +
+          "Line starts with: " + text(pos, Math.min(p, pos + 30)))
+      } else {
+        starts += pos
+        cps ++= lineCps
+        ks += fieldText(pos)
+      }
+      pos = p + 1
+    }
+    (starts.result, cps.result, ks.result)
+  }
+
+  /**
+   * Row keys (the first field of each data line).
+   */
+  def rowKeys: Vector[String] = keys
+
+  def rows: Int = lineStarts.length
+
+  /**
+   * Start of a field, or -1 if the line has too few fields.
+   */
+  private def fieldStart(row: Int, col: Int): Long = {
+    if (segments == null) {
+      throw new IllegalStateException(s"$file has been closed")
+    }
+    val cp = checkpoints(row * stride + col / CHECKPOINT_INTERVAL)
+    if (cp < 0) {
+      -1
+    } else {
+      var p = lineStarts(row) + cp
+      var skip = col % CHECKPOINT_INTERVAL
+      while (skip > 0 && !isLineEnd(p)) {
+        if (byteAt(p) == ',') {
+          skip -= 1
+        }
+        p += 1
+      }
+      if (skip > 0) -1 else p
+    }
+  }
+
+  def string(row: Int, col: Int): Option[String] = {
+    val start = fieldStart(row, col)
+    if (start < 0) None else Some(fieldText(start))
+  }
+
+  /**
+   * The first character of a field, ignoring padding and quotes.
+   */
+  def char(row: Int, col: Int): Char = {
+    val start = fieldStart(row, col)
+    if (start < 0) {
+      throw new IndexOutOfBoundsException(s"Missing column $col on row $row")
+    }
+    val end = fieldEnd(start)
+    val s = trimmedStart(start, end)
+    if (s >= end) {
+      throw new IndexOutOfBoundsException(s"Empty field at column $col on row $row")
+    }
+    byteAt(s).toChar
+  }
+
+  /**
+   * Parse a field as a double. Missing fields are NaN.
+   * Plain decimal numbers with at most 15 significant digits are parsed directly
+   * from the bytes; the result is the same as from java.lang.Double.parseDouble,
+   * which is used for all other forms.
+   * @throws NumberFormatException if the field is not a number
+   */
+  def double(row: Int, col: Int): Double = {
+    val start = fieldStart(row, col)
+    if (start < 0) {
+      Double.NaN
+    } else {
+      val end = fieldEnd(start)
+      val s = trimmedStart(start, end)
+      parseDouble(s, trimmedEnd(s, end))
+    }
+  }
+
+  private def isDigit(b: Byte) = b >= '0' && b <= '9'
+
+  private def parseDouble(from: Long, to: Long): Double = {
+    var p = from
+    var negative = false
+    if (p < to && (byteAt(p) == '-' || byteAt(p) == '+')) {
+      negative = byteAt(p) == '-'
+      p += 1
+    }
+
+    var mantissa = 0L
+    var significant = 0
+    var scale = 0
+    var anyDigits = false
+    while (p < to && isDigit(byteAt(p))) {
+      mantissa = mantissa * 10 + (byteAt(p) - '0')
+      if (mantissa != 0) {
+        significant += 1
+      }
+      anyDigits = true
+      p += 1
+      if (significant > 15) {
+        return slowParse(from, to)
+      }
+    }
+    if (p < to && byteAt(p) == '.') {
+      p += 1
+      while (p < to && isDigit(byteAt(p))) {
+        mantissa = mantissa * 10 + (byteAt(p) - '0')
+        if (mantissa != 0) {
+          significant += 1
+        }
+        scale -= 1
+        anyDigits = true
+        p += 1
+        if (significant > 15) {
+          return slowParse(from, to)
+        }
+      }
+    }
+
+    var exponent = 0
+    if (anyDigits && p < to && (byteAt(p) == 'e' || byteAt(p) == 'E')) {
+      p += 1
+      var negExp = false
+      if (p < to && (byteAt(p) == '-' || byteAt(p) == '+')) {
+        negExp = byteAt(p) == '-'
+        p += 1
+      }
+      if (p >= to) {
+        return slowParse(from, to)
+      }
+      while (p < to && isDigit(byteAt(p)) && exponent < 1000) {
+        exponent = exponent * 10 + (byteAt(p) - '0')
+        p += 1
+      }
+      if (negExp) {
+        exponent = -exponent
+      }
+    }
+
+    val e = scale + exponent
+    if (!anyDigits || p != to || e < -22 || e > 22) {
+      slowParse(from, to)
+    } else {
+      //Both operands are exact, so a single operation is correctly rounded
+      val v = if (e < 0) mantissa / POW10(-e) else mantissa * POW10(e)
+      if (negative) -v else v
+    }
+  }
+
+  private def slowParse(from: Long, to: Long): Double =
+    java.lang.Double.parseDouble(text(from, to))
+
+  /**
+   * Unmap the file. The table must not be read afterwards, and this must not be
+   * called while other threads may be reading it.
+   */
+  def close(): Unit = synchronized {
+    if (segments != null) {
+      val segs = segments
+      segments = null
+      segs.foreach(unmap)
+    }
+  }
+}
@@ -28,6 +28,10 @@ import t.db._
 import t.global.KCDBRegistry
 
 object KCSeriesDB {
+  /**
+   * Encoded size of a point: code (int), value (double) and call (char)
+   */
+  val POINT_SIZE = 14
   val c20g = 20l * 1204 * 1204 * 1024
   val c1g = 1l * 1204 * 1204 * 1024
   val c8g = 8l * 1204 * 1204 * 1024
@@ -66,6 +70,7 @@ object KCSeriesDB {
 class KCSeriesDB[S <: Series[S]](db: DB, writeMode: Boolean,
     builder: SeriesBuilder[S], normalize: Boolean)(implicit val context: MatrixContext) extends
   KyotoCabinetDB(db, writeMode) with SeriesDB[S] {
+  import KCSeriesDB.POINT_SIZE
 
   private[this] def formKey(series: S): Array[Byte] = {
     val r = ByteBuffer.allocate(12)
@@ -82,8 +87,8 @@ class KCSeriesDB[S <: Series[S]](db: DB, writeMode: Boolean,
   }
 
   private[this] def formValue(series: S): Array[Byte] = {
-    val r = ByteBuffer.allocate(14 * series.points.size)
-    for (v <- series.points) {
+    val r = ByteBuffer.allocate(POINT_SIZE * series.points.size)
+    for (v <- Series.sortedPoints(series.points)) {
       r.putInt(v.code)
       r.putDouble(v.value.value)
       r.putChar(v.value.call)
@@ -94,7 +99,7 @@ class KCSeriesDB[S <: Series[S]](db: DB, writeMode: Boolean,
   private[this] def extractValue(data: Array[Byte], into: S): S = {
     val b = ByteBuffer.wrap(data)
     val pmap = context.probeMap
-    val vs = Vector() ++ (0 until data.size / 14).map(i => {
+    val vs = Vector() ++ (0 until data.size / POINT_SIZE).map(i => {
       val p = b.getInt
       val v = b.getDouble
       val c = b.getChar
@@ -122,30 +127,114 @@ class KCSeriesDB[S <: Series[S]](db: DB, writeMode: Boolean,
     }
   }
 
+  /**
+   * The code of the i:th encoded point.
+   */
+  private[this] def codeAt(data: Array[Byte], i: Int): Int = {
+    val o = i * POINT_SIZE
+    ((data(o) & 0xff) << 24) | ((data(o + 1) & 0xff) << 16) |
+      ((data(o + 2) & 0xff) << 8) | (data(o + 3) & 0xff)
+  }
+
+  private[this] def isSortedValue(data: Array[Byte]): Boolean = {
+    val n = data.length / POINT_SIZE
+    var i = 1
+    while (i < n && codeAt(data, i - 1) <= codeAt(data, i)) {
+      i += 1
+    }
+    i >= n
+  }
+
+  /**
+   * Merge two encoded point lists sorted by code, without decoding them.
+   * Where both have a point with the same code, the point from added is kept.
+   */
+  private[this] def mergeValues(existing: Array[Byte], added: Array[Byte]): Array[Byte] = {
+    val ne = existing.length / POINT_SIZE
+    val na = added.length / POINT_SIZE
+    val r = new Array[Byte](existing.length + added.length)
+    var ie = 0
+    var ia = 0
+    var n = 0
+    def copy(from: Array[Byte], i: Int): Unit = {
+      System.arraycopy(from, i * POINT_SIZE, r, n * POINT_SIZE, POINT_SIZE)
+      n += 1
+    }
+    while (ie < ne && ia < na) {
+      val ce = codeAt(existing, ie)
+      val ca = codeAt(added, ia)
+      if (ce < ca) {
+        copy(existing, ie)
+        ie += 1
+      } else {
+        if (ce == ca) {
+          ie += 1
+        }
+        copy(added, ia)
+        ia += 1
+      }
+    }
+    while (ie < ne) {
+      copy(existing, ie)
+      ie += 1
+    }
+    while (ia < na) {
+      copy(added, ia)
+      ia += 1
+    }
+    java.util.Arrays.copyOf(r, n * POINT_SIZE)
+  }
+
+  /**
+   * The encoded points of existing whose codes do not occur in removed.
+   * Both must be sorted by code.
+   */
+  private[this] def subtractValues(existing: Array[Byte], removed: Array[Byte]): Array[Byte] = {
+    val ne = existing.length / POINT_SIZE
+    val nr = removed.length / POINT_SIZE
+    val r = new Array[Byte](existing.length)
+    var ir = 0
+    var n = 0
+    for (ie <- 0 until ne) {
+      val c = codeAt(existing, ie)
+      while (ir < nr && codeAt(removed, ir) < c) {
+        ir += 1
+      }
+      if (!(ir < nr && codeAt(removed, ir) == c)) {
+        System.arraycopy(existing, ie * POINT_SIZE, r, n * POINT_SIZE, POINT_SIZE)
+        n += 1
+      }
+    }
+    java.util.Arrays.copyOf(r, n * POINT_SIZE)
+  }
+
+  /**
+   * A visitor that adds or removes points.
+   * Stored points are kept sorted by code, so updates are merged directly on the
+   * encoded values. Values in an older, unsorted layout are decoded and sorted first.
+   */
   def pointsVisitor(points: S, remove: Boolean): Visitor = {
+    val encoded = formValue(points)
     new Visitor {
       def visit_empty(key: Array[Byte]): Array[Byte] = {
         if (remove) {
           Visitor.NOP
         } else {
-          formValue(points)
+          encoded
         }
       }
 
       def visit_full(key: Array[Byte], value: Array[Byte]): Array[Byte] = {
+        val old = if (isSortedValue(value)) value else formValue(extractValue(value, points))
         if (remove) {
-          val old = extractValue(value, points)
-          val removed = old.removePoints(points, builder)
-          if (removed.points.nonEmpty) {
-            formValue(removed)
+          val removed = subtractValues(old, encoded)
+          if (removed.nonEmpty) {
+            removed
           } else {
             Visitor.REMOVE
           }
         } else {
-          //add data
-          val old = extractValue(value, points)
-          val added = old.addPoints(points, builder)
-          formValue(added)
+          mergeValues(old, encoded)
         }
       }
     }
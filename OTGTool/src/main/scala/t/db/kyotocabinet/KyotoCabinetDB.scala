@@ -20,17 +20,26 @@
 package t.db.kyotocabinet
 
 import java.io.Closeable
+import java.util.concurrent.atomic.AtomicBoolean
 
 import kyotocabinet.DB
 import t.global.KCDBRegistry
 
+/**
+ * A database handle obtained from the KCDBRegistry. Each instance is one borrower
+ * of the (possibly shared) underlying DB, and returns it to the registry at most once.
+ */
 abstract class KyotoCabinetDB(db: DB, writeMode: Boolean) extends Closeable {
+  private val released = new AtomicBoolean(false)
+
   def get(key: Array[Byte]): Option[Array[Byte]] =
     Option(db.get(key))
 
   def release() {
     val path = db.path()
-    if (path != null &&
+    if (!released.compareAndSet(false, true)) {
+      println(s"Warning: $path released twice, ignoring")
+    } else if (path != null &&
         path != "*" && //in memory cache DB
         path != "%" && //in-memory tree DB
       //if maintenance mode, all DBs are closed together when the application exits
@@ -39,7 +48,7 @@ abstract class KyotoCabinetDB(db: DB, writeMode: Boolean) extends Closeable {
       if (writeMode) {
        KCDBRegistry.releaseWriter(path)
       } else {
-        db.close()
+        KCDBRegistry.releaseReader(db)
       }
     }
   }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.nio.ByteBuffer
+
+import t.db.PExprValue
+import t.db.ProbeId
+
+/**
+ * Primitive, column-oriented contents of a single vector chunk.
+ * Instances are mutable and intended to be reused across many decode operations.
+ * Only the first `size` entries of each array are valid.
+ */
+final class ChunkColumns(capacity: Int = CHUNKSIZE) {
+  val probes = new Array[Int](capacity)
+  val values = new Array[Double](capacity)
+  val pValues = new Array[Double](capacity)
+  val calls = new Array[Char](capacity)
+  var size: Int = 0
+
+  def clear(): Unit = {
+    size = 0
+  }
+
+  /**
+   * Index of the given probe in this chunk, or -1 if it is not present.
+   * Probes are kept sorted, so binary search is possible.
+   */
+  def indexOf(probe: Int): Int = {
+    val i = java.util.Arrays.binarySearch(probes, 0, size, probe)
+    if (i >= 0) i else -1
+  }
+
+  def valueAt(i: Int, probe: ProbeId): PExprValue =
+    PExprValue(values(i), pValues(i), calls(i), probe)
+}
+
+/**
+ * On-disk representation of vector chunks.
+ */
+sealed trait ChunkFormat
+
+/**
+ * The original format: interleaved records of
+ * (probe int, value double, p double, call char), 22 bytes each.
+ */
+case object LegacyChunkFormat extends ChunkFormat
+
+/**
+ * Versioned, columnar format. Probes, values, p-values and calls are stored
+ * as separate primitive columns.
+ * @param floatValues if set, values and p-values are stored as 32-bit floats.
+ *  This halves their size but loses precision.
+ * @param packProbes if set, probe ids are delta-encoded and bit-packed.
+ */
+case class ColumnarChunkFormat(floatValues: Boolean = false, packProbes: Boolean = true)
+  extends ChunkFormat
+
+object ChunkFormat {
+  /**
+   * The format used for writing unless otherwise specified. Lossless.
+   */
+  val default: ChunkFormat = ColumnarChunkFormat()
+}
+
+/**
+ * Encoding and decoding of vector chunks.
+ *
+ * Columnar layout (all multi-byte values big-endian):
+ * magic (1b), version (1b), flags (1b), size (2b),
+ * probes (size * 4b, or: first probe (4b), bit width (1b), packed deltas),
+ * values (size * 8b or 4b), p-values (size * 8b or 4b), calls (size * 1b).
+ *
+ * Legacy chunks start with a non-negative probe int, so their first byte never has
+ * the high bit set. The magic byte does, which lets both formats coexist in one database.
+ */
+object ChunkCodec {
+  val MAGIC: Byte = 0xC5.toByte
+  val VERSION: Byte = 1
+
+  private val FLAG_FLOAT = 1
+  private val FLAG_PACKED_PROBES = 2
+
+  private val HEADER_SIZE = 5
+  private val LEGACY_RECORD_SIZE = 4 + 8 + 8 + 2
+
+  def isLegacy(data: Array[Byte]): Boolean =
+    data.length == 0 || data(0) != MAGIC
+
+  /**
+   * Encode the first `size` entries of the given columns.
+   * Probes must be sorted in ascending order and distinct.
+   */
+  def encode(cols: ChunkColumns, format: ChunkFormat): Array[Byte] =
+    encode(cols.probes, cols.values, cols.pValues, cols.calls, cols.size, format)
+
+  def encode(probes: Array[Int], values: Array[Double], pValues: Array[Double],
+      calls: Array[Char], size: Int, format: ChunkFormat): Array[Byte] = {
+    format match {
+      case LegacyChunkFormat =>
+        encodeLegacy(probes, values, pValues, calls, size)
+      case ColumnarChunkFormat(floatValues, packProbes) =>
+        encodeColumnar(probes, values, pValues, calls, size, floatValues, packProbes)
+    }
+  }
+
+  private def encodeLegacy(probes: Array[Int], values: Array[Double], pValues: Array[Double],
+      calls: Array[Char], size: Int): Array[Byte] = {
+    val r = ByteBuffer.allocate(size * LEGACY_RECORD_SIZE)
+    var i = 0
+    while (i < size) {
+      r.putInt(probes(i))
+      r.putDouble(values(i))
+      r.putDouble(pValues(i))
+      r.putChar(calls(i))
+      i += 1
+    }
+    r.array()
+  }
+
+  private def bitWidth(x: Int): Int =
+    Math.max(1, 32 - Integer.numberOfLeadingZeros(x))
+
+  private def encodeColumnar(probes: Array[Int], values: Array[Double], pValues: Array[Double],
+      calls: Array[Char], size: Int, floatValues: Boolean, packProbes: Boolean): Array[Byte] = {
+    assert(size <= Short.MaxValue)
+
+    val pack = packProbes && size > 0
+    var width = 0
+    if (pack) {
+      var maxDelta = 0
+      var i = 1
+      while (i < size) {
+        val d = probes(i) - probes(i - 1)
+        assert(d > 0, "Probes must be sorted and distinct")
+        if (d > maxDelta) maxDelta = d
+        i += 1
+      }
+      width = bitWidth(maxDelta)
+    }
+
+    val probeBytes = if (pack) {
+      4 + 1 + ((size - 1) * width + 7) / 8
+    } else {
+      size * 4
+    }
+    val valueSize = if (floatValues) 4 else 8
+    val flags = (if (floatValues) FLAG_FLOAT else 0) |
+      (if (pack) FLAG_PACKED_PROBES else 0)
+
+    val r = ByteBuffer.allocate(HEADER_SIZE + probeBytes + size * (valueSize * 2 + 1))
+    r.put(MAGIC)
+    r.put(VERSION)
+    r.put(flags.toByte)
+    r.putShort(size.toShort)
+
+    if (pack) {
+      r.putInt(probes(0))
+      r.put(width.toByte)
+      var acc = 0L
+      var bits = 0
+      var i = 1
+      while (i < size) {
+        acc = (acc << width) | (probes(i) - probes(i - 1))
+        bits += width
+        while (bits >= 8) {
+          bits -= 8
+          r.put((acc >>> bits).toByte)
+        }
+        i += 1
+      }
+      if (bits > 0) {
+        r.put((acc << (8 - bits)).toByte)
+      }
+    } else {
+      var i = 0
+      while (i < size) {
+        r.putInt(probes(i))
+        i += 1
+      }
+    }
+
+    putValues(r, values, size, floatValues)
+    putValues(r, pValues, size, floatValues)
+
+    var i = 0
+    while (i < size) {
+      r.put(calls(i).toByte)
+      i += 1
+    }
+    r.array()
+  }
+
+  private def putValues(r: ByteBuffer, xs: Array[Double], size: Int, floatValues: Boolean) {
+    var i = 0
+    if (floatValues) {
+      while (i < size) {
+        r.putFloat(xs(i).toFloat)
+        i += 1
+      }
+    } else {
+      while (i < size) {
+        r.putDouble(xs(i))
+        i += 1
+      }
+    }
+  }
+
+  /**
+   * Decode a chunk in either format directly into the given columns, replacing
+   * their previous contents. No intermediate objects are allocated per value.
+   */
+  def decodeInto(data: Array[Byte], into: ChunkColumns): Unit = {
+    if (isLegacy(data)) {
+      decodeLegacy(data, into)
+    } else {
+      decodeColumnar(data, into)
+    }
+  }
+
+  private def decodeLegacy(data: Array[Byte], into: ChunkColumns): Unit = {
+    val b = ByteBuffer.wrap(data)
+    val n = data.length / LEGACY_RECORD_SIZE
+    var i = 0
+    while (i < n) {
+      into.probes(i) = b.getInt
+      into.values(i) = b.getDouble
+      into.pValues(i) = b.getDouble
+      into.calls(i) = b.getChar
+      i += 1
+    }
+    into.size = n
+  }
+
+  private def decodeColumnar(data: Array[Byte], into: ChunkColumns): Unit = {
+    val b = ByteBuffer.wrap(data)
+    b.get() //magic
+    val version = b.get()
+    if (version != VERSION) {
+      throw new Exception(s"Unsupported chunk format version $version")
+    }
+    val flags = b.get()
+    val size = b.getShort.toInt
+    val floatValues = (flags & FLAG_FLOAT) != 0
+
+    if ((flags & FLAG_PACKED_PROBES) != 0) {
+      var p = b.getInt
+      val width = b.get().toInt
+      val mask = (1L << width) - 1
+      into.probes(0) = p
+      var acc = 0L
+      var bits = 0
+      var i = 1
+      while (i < size) {
+        while (bits < width) {
+          acc = (acc << 8) | (b.get() & 0xFF)
+          bits += 8
+        }
+        bits -= width
+        p += ((acc >>> bits) & mask).toInt
+        into.probes(i) = p
+        i += 1
+      }
+    } else {
+      var i = 0
+      while (i < size) {
+        into.probes(i) = b.getInt
+        i += 1
+      }
+    }
+
+    getValues(b, into.values, size, floatValues)
+    getValues(b, into.pValues, size, floatValues)
+
+    var i = 0
+    while (i < size) {
+      into.calls(i) = (b.get() & 0xFF).toChar
+      i += 1
+    }
+    into.size = size
+  }
+
+  private def getValues(b: ByteBuffer, into: Array[Double], size: Int, floatValues: Boolean) {
+    var i = 0
+    if (floatValues) {
+      while (i < size) {
+        into(i) = b.getFloat.toDouble
+        i += 1
+      }
+    } else {
+      while (i < size) {
+        into(i) = b.getDouble
+        i += 1
+      }
+    }
+  }
+}
@@ -21,12 +21,13 @@ package t.db.kyotocabinet.chunk
 
 import java.nio.ByteBuffer
 
+import scala.collection.mutable
 import scala.reflect._
 import kyotocabinet.DB
 import t.db._
 import t.db.ExtMatrixDB
 import t.db.kyotocabinet.KyotoCabinetDB
-import t.global.KCDBRegistry
+import t.global.{KCDBRegistry, Metrics}
 
 /**
  * A vector-chunk of adjacent values in a vector in the matrix.
@@ -103,11 +104,24 @@ object KCChunkMatrixDB {
 
   def removePrefix(file: String) = file.split(CHUNK_PREFIX)(1)
 
-  def apply(file: String, writeMode: Boolean)(implicit context: MatrixContext) = {
+  /**
+   * Maximum number of keys requested in a single bulk get.
+   */
+  val BULK_GET_SIZE = 1024
+
+  val bulkReadTimer = Metrics.timer("t_matrix_db_bulk_read_seconds",
+    "Bulk reads of values for many samples and probes from chunk matrix databases")
+  val sampleReadTimer = Metrics.timer("t_matrix_db_sample_read_seconds",
+    "Reads of values in a single sample from chunk matrix databases")
+  val chunksRead = Metrics.counter("t_matrix_db_chunks_read",
+    "Chunks fetched by bulk reads from chunk matrix databases")
+
+  def apply(file: String, writeMode: Boolean,
+      format: ChunkFormat = ChunkFormat.default)(implicit context: MatrixContext) = {
     val db = KCDBRegistry.get(file, writeMode)
     db match {
       case Some(d) =>
-        new KCChunkMatrixDB(d, writeMode)
+        new KCChunkMatrixDB(d, writeMode, format)
       case None => throw new Exception("Unable to get DB")
     }
   }
@@ -116,14 +130,22 @@ object KCChunkMatrixDB {
 /**
  * Chunked matrix DB.
  * Key size: 8 bytes (sample + probe)
- * Value size: 22b * chunksize (2816b at 128 probe chunks)
+ * Value size: at most 22b * chunksize (2816b at 128 probe chunks) in the legacy format,
+ * approximately 17b * chunksize in the default columnar format (see ChunkCodec).
  * Expected number of records: 5-10 million
+ * @param format the format used when writing chunks. Chunks in any format can be read.
  */
-class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
+class KCChunkMatrixDB(db: DB, writeMode: Boolean,
+    format: ChunkFormat = ChunkFormat.default)(implicit mc: MatrixContext)
   extends KyotoCabinetDB(db, writeMode) with ExtMatrixDB {
 
   type V = VectorChunk[PExprValue]
 
+  /**
+   * Maximum number of keys requested in a single bulk get or set.
+   */
+  protected def bulkGetSize: Int = KCChunkMatrixDB.BULK_GET_SIZE
+
   protected def formKey(vc: V): Array[Byte] =
     formKey(vc.sample, vc.start)
 
@@ -142,32 +164,42 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     (b.getInt, b.getInt)
   }
 
-  private val CHUNKVALSIZE = (4 + (8 + 8 + 2))
-
   protected def formValue(vc: V): Array[Byte] = {
-    val r = ByteBuffer.allocate(vc.xs.size * CHUNKVALSIZE)
+    val cols = new ChunkColumns(vc.xs.size)
     for (x <- vc.xs) {
-      r.putInt(x._1) //probe
-      r.putDouble(x._2.value)
-      r.putDouble(x._2.p)
-      r.putChar(x._2.call)
+      val i = cols.size
+      cols.probes(i) = x._1
+      cols.values(i) = x._2.value
+      cols.pValues(i) = x._2.p
+      cols.calls(i) = x._2.call
+      cols.size += 1
     }
-    r.array()
+    ChunkCodec.encode(cols, format)
   }
 
   protected def extractValue(sample: Int, start: Int,
       data: Array[Byte]): V = {
-    val b = ByteBuffer.wrap(data)
-    var r = Vector[(Int, PExprValue)]()
-
-    while(b.hasRemaining()) {
-      val pr = b.getInt
-      val x = b.getDouble
-      val p = b.getDouble
-      val c = b.getChar
-      r :+= (pr, PExprValue(x, p, c))
+    val cols = new ChunkColumns
+    ChunkCodec.decodeInto(data, cols)
+    val r = Vector.newBuilder[(Int, PExprValue)]
+    r.sizeHint(cols.size)
+    for (i <- 0 until cols.size) {
+      r += ((cols.probes(i), PExprValue(cols.values(i), cols.pValues(i), cols.calls(i))))
+    }
+    VectorChunk(sample, start, r.result)
+  }
+
+  /**
+   * Decode the chunk with the given key directly into the given columns.
+   * If the chunk does not exist, the columns will be empty.
+   */
+  protected def readChunk(sample: Int, start: Int, into: ChunkColumns): Unit = {
+    val v = db.get(formKey(sample, start))
+    if (v == null) {
+      into.clear()
+    } else {
+      ChunkCodec.decodeInto(v, into)
     }
-    VectorChunk(sample, start, r)
   }
 
   /**
@@ -255,9 +287,17 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
 
   def valuesForProbe(probe: Int, xs: Seq[Sample]): Iterable[(Sample, PExprValue)] = {
     val probeName = probeMap.unpack(probe)
-    val cs = xs.map(x => findOrCreateChunk(x.dbCode, probe))
-    for (c <- cs; x <- c.xs; if (x._1 == probe))
-      yield (Sample(c.sample), x._2.copy(probe = probeName))
+    val start = chunkStartFor(probe)
+    val cols = new ChunkColumns
+    val r = Vector.newBuilder[(Sample, PExprValue)]
+    for (x <- xs) {
+      readChunk(x.dbCode, start, cols)
+      val i = cols.indexOf(probe)
+      if (i != -1) {
+        r += ((Sample(x.dbCode), cols.valueAt(i, probeName)))
+      }
+    }
+    r.result
   }
 
   private def potentialChunks(x: Sample): Iterable[V] =
@@ -271,43 +311,91 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
 
   //probes must be sorted in an order consistent with the chunkDB.
   def valuesInSample(x: Sample, probes: Seq[Int],
-      padMissingValues: Boolean): Iterable[PExprValue] = {
-    //The chunk system guarantees that values will be read in order.
-    //We exploit the ordering here when checking for missing values.
-
-//    assert(probes.toSeq.sorted == probes.toSeq)
+      padMissingValues: Boolean): Iterable[PExprValue] = KCChunkMatrixDB.sampleReadTimer.time {
+    //Each chunk is decoded once into primitive columns and merged against the
+    //requested probes, which must be sorted.
+    val dbCode = x.getDbCode
+    val cols = new ChunkColumns
+    val pit = probes.iterator.buffered
+    val r = Vector.newBuilder[PExprValue]
 
-    val chunks = potentialChunks(x, probes)
+    while (pit.hasNext) {
+      val start = chunkStartFor(pit.head)
+      dbCode match {
+        case Some(d) => readChunk(d, start, cols)
+        case None => cols.clear()
+      }
 
-//    assert(chunks.sortBy(_.start) == chunks)
-//    for (c <- chunks) {
-//      if(c.xs.sortBy(_._1) != c.xs) {
-//        println(c.xs)
-//        assert(false)
-//      }
-//    }
+      var i = 0
+      while (pit.hasNext && chunkStartFor(pit.head) == start) {
+        val p = pit.next
+        while (i < cols.size && cols.probes(i) < p) {
+          i += 1
+        }
+        if (i < cols.size && cols.probes(i) == p) {
+          r += cols.valueAt(i, probeMap.unpack(p))
+        } else if (padMissingValues) {
+          r += emptyValue(probeMap.unpack(p))
+        }
+      }
+    }
+    r.result
+  }
 
-    val pit = probes.iterator.buffered
-    val vit = (chunks.flatMap(_.xs)).iterator.buffered
-    var r = Vector[PExprValue]()
-
-    while (vit.hasNext && pit.hasNext) {
-      if (vit.head._1 > pit.head) {
-        //missing value - do not advance vit
-        if (padMissingValues) {
-          r :+= emptyValue(probeMap.unpack(pit.next))
-        } else {
-          pit.next
+  /**
+   * Bulk read of values for many samples and probes.
+   * All needed chunk keys are computed up front and fetched with get_bulk in sorted
+   * key order (sample-major), rather than issuing one get per sample and chunk.
+   * The shape and ordering of the result is the same as for MatrixDBReader.
+   */
+  override def valuesForSamplesAndProbes(xs: Seq[Sample], probes: Seq[Int],
+    sparseRead: Boolean, presentOnly: Boolean)(implicit tag: ClassTag[PExprValue]): Array[Array[PExprValue]] =
+    KCChunkMatrixDB.bulkReadTimer.time {
+
+    val ps = (if (sparseRead) probes else probes.filter(probeMap.keys.contains(_)).sorted).toArray
+    val probeNames = ps.map(probeMap.unpack)
+
+    //Row indexes grouped by chunk, each group sorted by probe
+    val rowsByChunk = (0 until ps.length).sortBy(ps(_)).toArray.groupBy(r => chunkStartFor(ps(r)))
+    val chunkStarts = rowsByChunk.keys.toSeq.sorted
+
+    //Sample db code to column indexes
+    val columns = xs.zipWithIndex.flatMap(x => x._1.getDbCode.map(c => (c, x._2))).
+      groupBy(_._1).mapValues(_.map(_._2))
+
+    val keys = for (code <- columns.keys.toSeq.sorted; start <- chunkStarts)
+      yield formKey(code, start)
+
+    val r = Array.ofDim[PExprValue](ps.length, xs.size)
+    val cols = new ChunkColumns
+
+    KCChunkMatrixDB.chunksRead.inc(keys.size)
+    for (batch <- keys.grouped(bulkGetSize)) {
+      val data = db.get_bulk(batch.toArray, false)
+      for (i <- Range(0, data.length, 2)) {
+        val (code, start) = extractKey(data(i))
+        ChunkCodec.decodeInto(data(i + 1), cols)
+        val rows = rowsByChunk(start)
+
+        var j = 0
+        for (row <- rows) {
+          val p = ps(row)
+          while (j < cols.size && cols.probes(j) < p) {
+            j += 1
+          }
+          if (j < cols.size && cols.probes(j) == p &&
+            !(sparseRead && presentOnly && cols.calls(j) == 'A')) {
+            val v = cols.valueAt(j, probeNames(row))
+            for (col <- columns(code)) {
+              r(row)(col) = v
+            }
+          }
         }
-      } else if (vit.head._1 < pit.head) {
-        //non-requested value
-        vit.next
-      } else {
-        r :+= vit.next._2.copy(probe = probeMap.unpack(pit.next))
       }
     }
-    while (pit.hasNext && padMissingValues) {
-        r :+= emptyValue(probeMap.unpack(pit.next))
+
+    for (row <- 0 until ps.length; col <- 0 until xs.size; if r(row)(col) == null) {
+      r(row)(col) = emptyValue(probeNames(row))
     }
     r
   }
@@ -338,6 +426,48 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     }
   }
 
+  /**
+   * Coalesced write of values for several samples.
+   * The values are grouped by chunk and the affected chunks are fetched with get_bulk.
+   * Merging and encoding is done in parallel (on the default parallel collection pool,
+   * while holding this database's lock), and the updated chunks are then
+   * written with set_bulk in sorted key order.
+   * If a sample or probe occurs more than once, the last value is kept,
+   * as with successive calls to write.
+   */
+  override def writeSamples(data: Iterable[(Sample, Iterable[(Int, PExprValue)])]): Unit = {
+    val updates = mutable.TreeMap[(Int, Int), mutable.HashMap[Int, PExprValue]]()
+    for ((s, vs) <- data; v <- vs) {
+      val k = (s.dbCode, chunkStartFor(v._1))
+      updates.getOrElseUpdate(k, mutable.HashMap()) += v
+    }
+
+    synchronized {
+      for (batch <- updates.toSeq.grouped(bulkGetSize)) {
+        val keys = batch.map(u => formKey(u._1._1, u._1._2)).toArray
+        val found = db.get_bulk(keys, false)
+        val existing = mutable.HashMap[(Int, Int), Array[Byte]]()
+        for (i <- Range(0, found.length, 2)) {
+          existing(extractKey(found(i))) = found(i + 1)
+        }
+
+        val records = new Array[Array[Byte]](keys.length * 2)
+        for (i <- (0 until batch.size).par) {
+          val ((code, start), vs) = batch(i)
+          val chunk = existing.get((code, start)) match {
+            case Some(d) => extractValue(code, start, d)
+            case None => new VectorChunk[PExprValue](code, start, Seq())
+          }
+          records(i * 2) = keys(i)
+          records(i * 2 + 1) = formValue(chunk.insert(vs.toSeq.sortBy(_._1)))
+        }
+        if (db.set_bulk(records, false) != keys.length) {
+          throw new Exception("Failed to write values")
+        }
+      }
+    }
+  }
+
   def write(s: Sample, probe: Int, e: PExprValue): Unit = synchronized {
     val c = findOrCreateChunk(s.dbCode, probe)
     val u = c.insert(probe, e)
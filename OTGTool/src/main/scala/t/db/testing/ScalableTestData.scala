@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.testing
+
+import scala.util.Random
+
+import t.db._
+import t.model.sample.Attribute
+import t.model.sample.CoreParameter._
+import t.model.sample.OTGAttribute._
+import t.testing.FakeContext
+import t.{OTGSeries, OTGSeriesType}
+
+/**
+ * Deterministic test data of configurable size, for benchmarks and
+ * large-scale tests. Samples and probes follow the conventions of DBTestData
+ * (the same enum values and probe naming), but any number of them can be generated,
+ * e.g. 30,000 probes x 5,000 samples.
+ * Values are generated on demand from the seed, so that large matrices
+ * do not need to be held in memory.
+ *
+ * @param density the fraction of (sample, probe) pairs that have a value.
+ */
+class ScalableTestData(val nProbes: Int, val nSamples: Int,
+    val density: Double = 1.0, seed: Long = 1L) {
+  import DBTestData.{calls, cgroup, enumMaps, enumValues, mrnaPlatformId, sampleIndex}
+
+  val probeIds: Seq[ProbeId] = (0 until nProbes).map(i => s"probe_$i")
+
+  implicit val probeMap: ProbeIndex =
+    new ProbeIndex(Map() ++ probeIds.zipWithIndex)
+
+  private def enumValue(key: String, i: Int) = {
+    val vs = enumValues(key).toSeq.sorted
+    vs(i % vs.size)
+  }
+
+  val samples: Seq[Sample] = (0 until nSamples).map(i => {
+    val dose = enumValue(DoseLevel.id, i)
+    val time = enumValue(ExposureTime.id, i / 5)
+    val compound = enumValue(Compound.id, i / 20)
+    val ind = "" + (i % 3 + 1)
+    val values: Map[Attribute, String] = Map(DoseLevel -> dose, Individual -> ind,
+      ExposureTime -> time, Compound -> compound,
+      Repeat -> "Single", Organ -> "Liver",
+      TestType -> "Vivo", Organism -> "Rat",
+      Type -> "mRNA",
+      Platform -> mrnaPlatformId,
+      ControlGroup -> cgroup(time, compound))
+    Sample(s"s$i", values)
+  })
+
+  val sampleMap: SampleIndex = sampleIndex(samples)
+
+  implicit lazy val context: FakeContext = new FakeContext(sampleMap, probeMap)
+
+  /**
+   * The values of a sample, as packed probes in ascending order.
+   * The same sample always yields the same values.
+   */
+  def values(s: Sample): Seq[(Int, PExprValue)] = {
+    val r = new Random(seed * 31 + s.sampleId.hashCode)
+    for {
+      p <- 0 until nProbes
+      if density >= 1.0 || r.nextDouble < density
+    } yield (p, randomValue(r, probeIds(p)))
+  }
+
+  def randomValue(r: Random, probe: ProbeId): PExprValue =
+    PExprValue(r.nextDouble * 100000, r.nextDouble, calls(r.nextInt(calls.size)), probe)
+
+  /**
+   * Write all samples into the given database, one sample at a time.
+   */
+  def populate(db: MatrixDBWriter[PExprValue]): Unit = {
+    for ((s, i) <- samples.zipWithIndex) {
+      db.writeMany(s, values(s))
+      if (i % 500 == 499) {
+        println(s"Populated ${i + 1}/$nSamples samples")
+      }
+    }
+  }
+
+  /**
+   * Series of the given type for the first `probes` probes.
+   * One series is generated for each compound, fixed dose/time, and probe.
+   */
+  def series(seriesType: OTGSeriesType, probes: Int): Seq[OTGSeries] = {
+    val r = new Random(seed)
+    val independent = seriesType.independentVariable.id
+    val fixed = seriesType.lastConstraint.id
+    val points = enumMaps(independent).values.toSeq.sorted
+    for {
+      compound <- enumValues(Compound.id).toSeq.sorted
+      doseOrTime <- enumValues(fixed).toSeq.sorted
+      p <- 0 until (probes min nProbes)
+    } yield OTGSeries(seriesType, "Single", "Liver", "Rat", p,
+      compound, doseOrTime, "Vivo",
+      points.map(c => SeriesPoint(c, randomValue(r, probeIds(p)))))
+  }
+}
@@ -20,7 +20,10 @@
 
 package t.global
 
+import java.util.concurrent.{Executors, ScheduledExecutorService, ThreadFactory, TimeUnit}
+
 import kyotocabinet.DB
+import scala.collection.JavaConverters._
 import scala.collection.mutable.Map
 
 /**
@@ -47,6 +50,55 @@ object KCDBRegistry {
 
   private var maintenance: Boolean = false
 
+  /**
+   * A shared, reference counted read-only handle.
+   * @param retired if set, the handle will not be handed out again, and will be closed
+   * when its last user releases it.
+   */
+  private class PooledReader(val path: String, val options: String, val db: DB) {
+    var refCount = 0
+    var lastUsed = System.currentTimeMillis()
+    var retired = false
+  }
+
+  /**
+   * Statistics for the reader pool.
+   * @param opens number of read handles opened
+   * @param hits number of read requests served by an already open handle
+   * @param evictions number of idle handles closed by the pool
+   * @param open number of pooled handles currently open
+   * @param inUse number of pooled handles currently borrowed by at least one user
+   * @param borrowers total number of outstanding borrowers
+   */
+  case class ReaderPoolStats(opens: Long, hits: Long, evictions: Long,
+    open: Int, inUse: Int, borrowers: Int)
+
+  /**
+   * Maps file path to the shared reader for that path
+   */
+  private val pooledReaders = Map[String, PooledReader]()
+
+  /**
+   * All handles handed out by getReader that are still open, including retired ones.
+   */
+  private val readerHandles = new java.util.IdentityHashMap[DB, PooledReader]()
+
+  private var maxOpenReaders: Int =
+    Option(System.getProperty("otg.kcdb.maxOpenReaders")).map(_.toInt).getOrElse(32)
+  private var readerIdleMillis: Long =
+    Option(System.getProperty("otg.kcdb.readerIdleSeconds")).map(_.toLong * 1000).getOrElse(600 * 1000L)
+
+  /**
+   * Interval at which idle readers are looked for and closed.
+   */
+  val EVICTION_INTERVAL_SECONDS = 60
+
+  private var evictionScheduler: Option[ScheduledExecutorService] = None
+
+  private var readerOpens = 0L
+  private var readerHits = 0L
+  private var readerEvictions = 0L
+
   def isMaintenanceMode: Boolean = maintenance
 
   /**
@@ -64,6 +116,11 @@ object KCDBRegistry {
    */
   private def onlyFileName(file: String) = file.split("#")(0)
 
+  /**
+   * Kyoto cabinet options of a file name, if any
+   */
+  private def options(file: String) = file.drop(onlyFileName(file).length)
+
   def get(file: String, writeMode: Boolean): Option[DB] = {
     if (writeMode) {
       getWriter(file)
@@ -74,7 +131,9 @@ object KCDBRegistry {
 
   /**
    * Get a reader.
-   * This class will not track readers. Users should close them manually after use.
+   * Readers are shared between users of the same file and reference counted.
+   * Users should release them after use with releaseReader (done by KyotoCabinetDB.release),
+   * and must not close them directly.
    */
   def getReader(file: String): Option[DB] = synchronized {
     println(s"Read request for $file")
@@ -82,59 +141,273 @@ object KCDBRegistry {
     if (maintenance) {
       getWriter(file)
     } else {
-     Some(openRead(file))
+      startEvictionScheduler()
+      evictIdleReaders()
+      val reader = pooledReaders.get(rp) match {
+        case Some(r) =>
+          readerHits += 1
+          if (r.options != options(file)) {
+            println(s"Warning: reader for $rp requested with options '${options(file)}', " +
+              s"but it is open with options '${r.options}'")
+          }
+          r
+        case None =>
+          if (pooledReaders.size >= maxOpenReaders) {
+            evictLeastRecentlyUsed()
+          }
+          val r = new PooledReader(rp, options(file), openRead(file))
+          readerOpens += 1
+          readerHandles.put(r.db, r)
+          if (pooledReaders.size < maxOpenReaders) {
+            pooledReaders += rp -> r
+          } else {
+            //Pool is full of handles in use. This handle will be closed when released.
+            r.retired = true
+          }
+          r
+      }
+      reader.refCount += 1
+      reader.lastUsed = System.currentTimeMillis()
+      Some(reader.db)
     }
   }
 
-  private def tryGetWriter(file: String): Option[DB] = synchronized {
-    val onlyFile = onlyFileName(file)
-    if (openWriters.contains(onlyFile)) {
-      //Only one open writer per file allowed concurrently
-      None
+  /**
+   * Release a reader obtained from getReader.
+   * Handles not obtained from getReader are simply closed.
+   */
+  def releaseReader(db: DB): Unit = synchronized {
+    val r = readerHandles.get(db)
+    if (r == null) {
+      db.close()
+    } else if (r.refCount <= 0) {
+      println(s"Warning: reader for ${r.path} released more times than it was borrowed")
     } else {
-      openWrite(file) match {
-        case Some(w) =>
-          openWriters += onlyFile -> w
-          Some(w)
-        case None =>
-          throw new Exception("Failed to open database")
+      r.refCount -= 1
+      r.lastUsed = System.currentTimeMillis()
+      if (r.refCount <= 0 && r.retired) {
+        closeReader(r)
       }
     }
   }
 
+  /**
+   * Configure the reader pool.
+   * @param maxOpen the maximum number of pooled read handles kept open
+   * @param idleMillis the time after which unused read handles are closed
+   */
+  def configureReaderPool(maxOpen: Int, idleMillis: Long): Unit = synchronized {
+    maxOpenReaders = maxOpen
+    readerIdleMillis = idleMillis
+    evictIdleReaders()
+  }
+
+  def readerPoolStats: ReaderPoolStats = synchronized {
+    val pooled = pooledReaders.values
+    ReaderPoolStats(readerOpens, readerHits, readerEvictions,
+      pooled.size, pooled.count(_.refCount > 0),
+      readerHandles.values.asScala.map(_.refCount).sum)
+  }
+
+  Metrics.gauge("t_kc_open_readers", "Pooled Kyoto Cabinet read handles currently open") {
+    readerPoolStats.open
+  }
+  Metrics.gauge("t_kc_reader_borrowers", "Outstanding borrowers of Kyoto Cabinet read handles") {
+    readerPoolStats.borrowers
+  }
+  Metrics.gauge("t_kc_reader_opens", "Kyoto Cabinet read handles opened since startup") {
+    readerPoolStats.opens
+  }
+  Metrics.gauge("t_kc_open_writers", "Kyoto Cabinet databases currently open for writing") {
+    openWriters.size
+  }
+
+  /**
+   * Close pooled readers that have been unused for longer than the idle timeout.
+   */
+  def evictIdleReaders(): Unit = synchronized {
+    val limit = System.currentTimeMillis() - readerIdleMillis
+    for (r <- pooledReaders.values.toList; if r.refCount == 0 && r.lastUsed < limit) {
+      readerEvictions += 1
+      closeReader(r)
+    }
+  }
+
+  /**
+   * Start periodically closing idle readers, so that they are closed even if no
+   * further readers are requested.
+   */
+  private def startEvictionScheduler(): Unit = {
+    if (evictionScheduler.isEmpty) {
+      val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        def newThread(r: Runnable): Thread = {
+          val thread = new Thread(r, "KCDBRegistry reader eviction")
+          thread.setDaemon(true)
+          thread
+        }
+      })
+      scheduler.scheduleWithFixedDelay(new Runnable {
+        def run(): Unit = {
+          try {
+            evictIdleReaders()
+          } catch {
+            case e: Exception => e.printStackTrace()
+          }
+        }
+      }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS)
+      evictionScheduler = Some(scheduler)
+    }
+  }
+
+  private def evictLeastRecentlyUsed(): Unit = {
+    val idle = pooledReaders.values.filter(_.refCount == 0)
+    if (idle.nonEmpty) {
+      readerEvictions += 1
+      closeReader(idle.minBy(_.lastUsed))
+    }
+  }
+
+  /**
+   * Stop handing out the current readers of a file (for example after it has been written to),
+   * closing them as soon as they are no longer in use.
+   */
+  private def retireReaders(file: String): Unit = {
+    for (r <- pooledReaders.get(file)) {
+      pooledReaders -= file
+      r.retired = true
+      if (r.refCount <= 0) {
+        closeReader(r)
+      }
+    }
+  }
+
+  private def closeReader(r: PooledReader): Unit = {
+    println(s"Close reader for ${r.path}")
+    if (pooledReaders.get(r.path).exists(_ eq r)) {
+      pooledReaders -= r.path
+    }
+    readerHandles.remove(r.db)
+    r.db.close()
+  }
+
+  /**
+   * A thread holding, or waiting for, a writer.
+   */
+  private class WriterRequest(val thread: String) {
+    val since = System.currentTimeMillis()
+  }
+
+  /**
+   * Current state of the writer for a file.
+   * @param holder name of the thread holding the writer
+   * @param heldMillis time for which the writer has been held
+   * @param waiting threads waiting for the writer, in queue order
+   */
+  case class WriterStatus(file: String, holder: Option[String], heldMillis: Long,
+    waiting: Seq[String])
+
+  /**
+   * Maps file path to the current holder of its writer
+   */
+  private val writerHolders = Map[String, WriterRequest]()
+
+  /**
+   * Maps file path to the FIFO queue of threads waiting for its writer
+   */
+  private val writerQueues = Map[String, java.util.ArrayDeque[WriterRequest]]()
+
   /**
    * Get a writer.
    * Only one outstanding writer per file is allowed. The request
-   * will block until any current writers are closed.
+   * will block until any current writers are closed. Competing requests
+   * are served in FIFO order.
    * Writers should be released after use.
    * Note that not even the same thread may request the same writer twice without
    * first closing the first one.
+   * @param timeoutMillis if given, the maximum time to wait for the writer.
+   * @return the writer, or None if the request timed out.
    */
-  def getWriter(file: String): Option[DB] = {
+  def getWriter(file: String, timeoutMillis: Option[Long] = None): Option[DB] = synchronized {
     println(s"Write request for $file")
 
     val filePath = onlyFileName(file)
-    if (openWriters.contains(filePath)) {
-      if (maintenance) {
-        return Some(openWriters(filePath))
+    if (maintenance && openWriters.contains(filePath)) {
+      Some(openWriters(filePath))
+    } else {
+      val request = new WriterRequest(Thread.currentThread.getName)
+      val queue = writerQueues.getOrElseUpdate(filePath, new java.util.ArrayDeque[WriterRequest]())
+      queue.addLast(request)
+
+      val deadline = timeoutMillis.map(request.since + _)
+      var timedOut = false
+      var waited = false
+      try {
+        while (!timedOut &&
+          (openWriters.contains(filePath) || !(queue.peekFirst eq request))) {
+          val remaining = deadline.map(_ - System.currentTimeMillis())
+          if (remaining.exists(_ <= 0)) {
+            timedOut = true
+          } else {
+            val holder = writerHolders.get(filePath).map(_.thread).getOrElse("none")
+            println(s"Waiting for writer on $file (held by $holder, ${queue.size - 1} in queue)")
+            waited = true
+            //wait(0) waits until notified
+            wait(remaining.getOrElse(0L))
+          }
+        }
+      } finally {
+        queue.remove(request)
+        if (queue.isEmpty) {
+          writerQueues -= filePath
+        }
+        //Let the next request in line re-check its position
+        notifyAll()
+      }
+
+      if (timedOut) {
+        println(s"Timed out waiting for writer on $file")
+        None
+      } else {
+        if (waited) {
+          println(s"Obtained writer on $file after ${System.currentTimeMillis() - request.since} ms")
+        }
+        openWrite(file) match {
+          case Some(w) =>
+            openWriters += filePath -> w
+            writerHolders += filePath -> new WriterRequest(request.thread)
+            Some(w)
+          case None =>
+            throw new Exception("Failed to open database")
+        }
       }
     }
+  }
 
-    var w = tryGetWriter(file)
-    while(w == None) {
-      println(s"Waiting for writer on $file")
-      Thread.sleep(1000)
-      w = tryGetWriter(file)
+  /**
+   * Report who holds, and who is waiting for, the writers of all files currently in use.
+   */
+  def writerStatus: Seq[WriterStatus] = synchronized {
+    val now = System.currentTimeMillis()
+    val files = (writerHolders.keySet ++ writerQueues.keySet).toSeq.sorted
+    for (f <- files) yield {
+      val holder = writerHolders.get(f)
+      val waiting = writerQueues.get(f).toSeq.flatMap(_.asScala.map(_.thread))
+      WriterStatus(f, holder.map(_.thread), holder.map(now - _.since).getOrElse(0L), waiting)
     }
-    w
   }
 
   def releaseWriter(path: String): Unit = synchronized {
     val file = onlyFileName(path)
     assert (openWriters.contains(file))
-    println(s"Close $file")
+    for (h <- writerHolders.get(file)) {
+      println(s"Close $file (held by ${h.thread} for ${System.currentTimeMillis() - h.since} ms)")
+    }
     openWriters(file).close()
     openWriters -= file
+    writerHolders -= file
+    //Readers opened before the write may not see its effects
+    retireReaders(file)
+    notifyAll()
   }
 
   /**
@@ -143,7 +416,7 @@ object KCDBRegistry {
    * In normal operation, each writer should be released individually after use.
    */
   def closeWriters(): Unit = synchronized {
-    for ((f, db) <- openWriters) {
+    for (f <- openWriters.keys.toList) {
       releaseWriter(f)
     }
   }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.global
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray, LongAdder}
+import javax.management.{Attribute, AttributeList, AttributeNotFoundException, DynamicMBean,
+  MBeanAttributeInfo, MBeanInfo, ObjectName, ReflectionException}
+
+import scala.collection.JavaConverters._
+import scala.reflect.ClassTag
+
+/**
+ * A named measurement in the metrics registry.
+ */
+sealed trait Metric {
+  def name: String
+  def help: String
+
+  /**
+   * Lines in the Prometheus text exposition format.
+   */
+  def exposition: Seq[String]
+
+  /**
+   * Named values to be exposed as JMX attributes.
+   */
+  def attributes: Seq[(String, Double)]
+}
+
+/**
+ * A monotonically increasing count.
+ */
+class Counter(val name: String, val help: String) extends Metric {
+  private val count = new LongAdder
+
+  def inc(n: Long = 1): Unit = count.add(n)
+
+  def value: Long = count.sum
+
+  def exposition = Seq(s"# TYPE $name counter", s"$name $value")
+  def attributes = Seq(name -> value.toDouble)
+}
+
+/**
+ * A value that is sampled when read, e.g. the size of a cache.
+ */
+class Gauge(val name: String, val help: String, read: () => Double) extends Metric {
+  def value: Double = try {
+    read()
+  } catch {
+    case e: Exception => Double.NaN
+  }
+
+  def exposition = Seq(s"# TYPE $name gauge", s"$name $value")
+  def attributes = Seq(name -> value)
+}
+
+object Timer {
+  /**
+   * Upper bounds of the histogram buckets, in seconds.
+   */
+  val buckets: Array[Double] = Array(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+    0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60)
+}
+
+/**
+ * Durations of an operation, with a histogram of fixed buckets.
+ * Recording is lock-free, so that timers can be used on hot paths.
+ */
+class Timer(val name: String, val help: String) extends Metric {
+  import Timer.buckets
+
+  //The last slot counts durations above the largest bucket
+  private val counts = new AtomicLongArray(buckets.length + 1)
+  private val totalNanos = new LongAdder
+  private val maxNanos = new AtomicLong
+
+  def record(nanos: Long): Unit = {
+    val seconds = nanos / 1e9
+    var i = 0
+    while (i < buckets.length && seconds > buckets(i)) {
+      i += 1
+    }
+    counts.incrementAndGet(i)
+    totalNanos.add(nanos)
+    maxNanos.accumulateAndGet(nanos, (a: Long, b: Long) => Math.max(a, b))
+  }
+
+  def time[T](f: => T): T = {
+    val start = System.nanoTime()
+    try {
+      f
+    } finally {
+      record(System.nanoTime() - start)
+    }
+  }
+
+  private def bucketCounts: Array[Long] = Array.tabulate(counts.length)(counts.get)
+
+  def count: Long = bucketCounts.sum
+
+  def totalSeconds: Double = totalNanos.sum / 1e9
+
+  def maxSeconds: Double = maxNanos.get / 1e9
+
+  /**
+   * Estimate a quantile (0 to 1) as the upper bound of the bucket that contains it.
+   * Durations above the largest bucket are estimated as the maximum.
+   */
+  def quantile(q: Double): Double = {
+    val cs = bucketCounts
+    val target = Math.max(1L, Math.ceil(q * cs.sum).toLong)
+    var cumulative = cs(0)
+    var i = 0
+    while (i < buckets.length && cumulative < target) {
+      i += 1
+      cumulative += cs(i)
+    }
+    if (cs.sum == 0) {
+      0.0
+    } else if (i < buckets.length) {
+      Math.min(buckets(i), maxSeconds)
+    } else {
+      maxSeconds
+    }
+  }
+
+  def exposition = {
+    val cs = bucketCounts
+    val cumulative = cs.scanLeft(0L)(_ + _).tail
+    Seq(s"# TYPE $name histogram") ++
+      buckets.indices.map(i => s"""${name}_bucket{le="${buckets(i)}"} ${cumulative(i)}""") ++
+      Seq(s"""${name}_bucket{le="+Inf"} ${cumulative.last}""",
+        s"${name}_sum $totalSeconds",
+        s"${name}_count ${cumulative.last}")
+  }
+
+  def attributes = Seq(s"${name}_count" -> count.toDouble,
+    s"${name}_sum" -> totalSeconds,
+    s"${name}_p50" -> quantile(0.5),
+    s"${name}_p99" -> quantile(0.99),
+    s"${name}_max" -> maxSeconds)
+}
+
+/**
+ * Registry of counters, timers and gauges for the hot paths of the system,
+ * e.g. database reads, SPARQL queries and matrix operations.
+ * Metrics can be scraped as text (see scrape) or read through JMX once registerJMX
+ * has been called.
+ *
+ * Metric names follow Prometheus conventions: lower case with underscores,
+ * prefixed with t_, and timers are measured in seconds.
+ * Registering a name that already exists returns the existing metric.
+ */
+object Metrics {
+  private val metrics = new ConcurrentHashMap[String, Metric]()
+
+  private val validName = "[a-zA-Z_:][a-zA-Z0-9_:]*"
+
+  private def register[M <: Metric : ClassTag](name: String, create: => M): M = {
+    if (!name.matches(validName)) {
+      throw new IllegalArgumentException(s"Invalid metric name: $name")
+    }
+    metrics.computeIfAbsent(name, _ => create) match {
+      case m: M => m
+      case other =>
+        throw new IllegalArgumentException(
+          s"Metric $name is already registered as a ${other.getClass.getSimpleName}")
+    }
+  }
+
+  def counter(name: String, help: String): Counter =
+    register(name, new Counter(name, help))
+
+  def timer(name: String, help: String): Timer =
+    register(name, new Timer(name, help))
+
+  /**
+   * Register a gauge. If the name is already registered, the existing gauge is kept.
+   */
+  def gauge(name: String, help: String)(read: => Double): Gauge =
+    register(name, new Gauge(name, help, () => read))
+
+  def all: Seq[Metric] = metrics.values.asScala.toSeq.sortBy(_.name)
+
+  def get(name: String): Option[Metric] = Option(metrics.get(name))
+
+  /**
+   * All metrics in the Prometheus text exposition format (version 0.0.4).
+   */
+  def scrape: String = {
+    val lines = for (m <- all; l <- s"# HELP ${m.name} ${m.help}" +: m.exposition)
+      yield l
+    lines.mkString("", "\n", "\n")
+  }
+
+  /**
+   * Exposes the registry as a single JMX bean, with one attribute per value.
+   */
+  private class MetricsMBean extends DynamicMBean {
+    private def values: Map[String, Double] = Map[String, Double]() ++ all.flatMap(_.attributes)
+
+    def getAttribute(attribute: String): AnyRef =
+      values.get(attribute).map(Double.box).getOrElse(
+        throw new AttributeNotFoundException(attribute))
+
+    def getAttributes(names: Array[String]): AttributeList = {
+      val vs = values
+      val r = new AttributeList()
+      for (n <- names; v <- vs.get(n)) {
+        r.add(new Attribute(n, Double.box(v)))
+      }
+      r
+    }
+
+    def setAttribute(attribute: Attribute): Unit =
+      throw new AttributeNotFoundException("Metrics are read-only")
+
+    def setAttributes(attributes: AttributeList): AttributeList = new AttributeList()
+
+    def invoke(action: String, params: Array[AnyRef], signature: Array[String]): AnyRef =
+      throw new ReflectionException(new NoSuchMethodException(action))
+
+    def getMBeanInfo: MBeanInfo = {
+      val attrs = for (m <- all; (n, _) <- m.attributes)
+        yield new MBeanAttributeInfo(n, "double", m.help, true, false, false)
+      new MBeanInfo(getClass.getName, "Toxygates metrics", attrs.toArray,
+        null, null, null)
+    }
+  }
+
+  /**
+   * Register the metrics with the platform MBean server under t:type=Metrics,name=<name>.
+   * Several web applications in one JVM should use different names.
+   */
+  def registerJMX(name: String): Unit = synchronized {
+    val objectName = new ObjectName(s"t:type=Metrics,name=${ObjectName.quote(name)}")
+    val server = ManagementFactory.getPlatformMBeanServer
+    if (!server.isRegistered(objectName)) {
+      server.registerMBean(new MetricsMBean, objectName)
+      println(s"Registered metrics with JMX as $objectName")
+    }
+  }
+
+  def unregisterJMX(name: String): Unit = synchronized {
+    val objectName = new ObjectName(s"t:type=Metrics,name=${ObjectName.quote(name)}")
+    val server = ManagementFactory.getPlatformMBeanServer
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName)
+    }
+  }
+
+  private val memory = ManagementFactory.getMemoryMXBean
+
+  gauge("t_jvm_heap_used_bytes", "Heap memory in use") {
+    memory.getHeapMemoryUsage.getUsed
+  }
+  gauge("t_jvm_heap_max_bytes", "Maximum heap memory") {
+    memory.getHeapMemoryUsage.getMax
+  }
+}
@@ -262,10 +262,18 @@ class BatchManager(context: Context) {
           }
           _ <- addExprData(metadata, dataFile, callFile, cached, conversion)(mc) andThen
                 recalculateFoldsAndSeries(batch, metadata, simpleLog2)
-        } yield ())
+        } yield ()) andThen
+        invalidateQueryCache
     } yield ()
   }
 
+  /**
+   * Discard cached SPARQL results, since they may refer to changed RDF data.
+   */
+  def invalidateQueryCache = Task.simple("Invalidate query cache") {
+    Triplestore.invalidateCache()
+  }
+
   def updateMetadata(batch: Batch, metaFile: String,
       recalculate: Boolean = false, simpleLog2: Boolean = false,
       force: Boolean = false): Task[Unit] = {
@@ -274,7 +282,8 @@ class BatchManager(context: Context) {
       _ <- updateMetadataCheck(batch.title, metadata, config, force) andThen
         deleteRDF(batch.title) andThen
         addMetadata(batch, metadata, false, true) andThen
-        (if (recalculate) recalculateFoldsAndSeries(batch, metadata, simpleLog2) else Task.success)
+        (if (recalculate) recalculateFoldsAndSeries(batch, metadata, simpleLog2) else Task.success) andThen
+        invalidateQueryCache
     } yield ()
   }
 
@@ -388,7 +397,8 @@ class BatchManager(context: Context) {
       println("RDF ONLY mode - not deleting series, fold, expr, sample ID data")
       Task.success
     }) andThen
-      deleteRDF(title) //Also removes the "batch record"
+      deleteRDF(title) andThen //Also removes the "batch record"
+      invalidateQueryCache
   }
 
   def newMetadataCheck(title: String, metadata: Metadata, baseConfig: BaseConfig, append: Boolean) =
@@ -570,6 +580,7 @@ class BatchManager(context: Context) {
     for {
       data <- readCSVExpressionData(md, niFile, callFile, cached, conversion)
       _ <- new SimpleValueInsert(db, data).insert("Insert expression value data")
+      _ <- Task.simple("Release expression data") { data.release() }
     } yield ()
   }
 
@@ -675,31 +686,33 @@ class BatchManager(context: Context) {
       var inserted = 0
       val treated = md.samples.filter(x => !md.isControl(x))
 
-      val data = builder.makeNew(source, md, treated)
-      println(s"${data.size} series to insert")
-      val total = data.size
-
       /*
-      This method (and deleteSeriesData) groups the data by probe before performing db reads/writes
-      to obtain better performance.
-      If a large number of samples is operated on at once, we might run out of memory. If that happens,
-      chunking the samples/control groups on the outer level should resolve the issue.
-      The next step would be the unify the this method with deleteSeriesData, since the structure is so similar.
+      To bound memory use, series are built from a limited number of samples at a time and
+      spilled to sorted temporary runs. The runs are then merged, so that each series is
+      written with a single database operation, in (probe, class code) order.
        */
+      val spill = new ExternalSeriesBuilder(builder)
       try {
+        val chunks = ExternalSeriesBuilder.sampleChunks(builder.groupSamples(treated, md),
+          ExternalSeriesBuilder.samplesPerRun)
+        var pcomp = 0d
+        for ((chunk, i) <- chunks.zipWithIndex; if shouldContinue(pcomp)) {
+          spill.add(builder.makeNew(source, md, chunk))
+          pcomp = 50.0 * (i + 1) / chunks.size
+        }
+        val total = spill.size
+        println(s"$total series to insert from ${spill.runCount} runs")
+
         target = KCSeriesDB[S](dbName, true, builder, false)
-          var pcomp = 0d
-          for {
-            ss <- data.groupBy(_.probe).values;
-            s <- ss;
-            if shouldContinue(pcomp)
-          } {
-            target.addPoints(s)
-            inserted += 1
-            pcomp = 100.0 * inserted / total
-          }
+        val merged = spill.merged
+        while (merged.hasNext && shouldContinue(pcomp)) {
+          target.addPoints(merged.next)
+          inserted += 1
+          pcomp = 50 + 50.0 * inserted / total
+        }
       } finally {
         logResult(s"Series for $inserted series inserted")
+        spill.close()
         if (target != null) {
           target.release
         }
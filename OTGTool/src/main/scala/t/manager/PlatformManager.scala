@@ -2,9 +2,10 @@ package t.manager
 
 import t.db.kyotocabinet.KCIndexDB
 import t.global.KCDBRegistry
-import t.platform.{AffymetrixPlatform, BioPlatform, EnsemblPlatform, GeneralPlatform, PlatformDefFile, PlatformFormat}
+import t.platform.{AffymetrixPlatform, BioPlatform, EnsemblPlatform, GeneralPlatform, PlatformDefFile, PlatformFormat, SuggestionStore}
 import t.platform.affy.Converter
-import t.sparql.{PlatformStore, ProbeStore, TRDF}
+import t.sparql.{PlatformStore, ProbeStore, TRDF, Triplestore}
+import t.sparql.secondary.B2RKegg
 import t.util.TempFiles
 import t.util.DoThenClose.doThenClose
 import t.Context
@@ -36,7 +37,17 @@ class PlatformManager(context: Context) {
               addProbeIDs(title)
           case _ => throw new Exception("Unsupported platform format")
         }
-        )
+        ) andThen
+      invalidateQueryCache andThen
+      buildAnnotations(title) andThen
+      buildSuggestions(title)
+  }
+
+  /**
+   * Discard cached SPARQL results, since they may refer to changed RDF data.
+   */
+  def invalidateQueryCache = Task.simple("Invalidate query cache") {
+    Triplestore.invalidateCache()
   }
 
   def consistencyCheck(title: String): AtomicTask[Unit] = new AtomicTask[Unit]("Consistency check") {
@@ -132,13 +143,68 @@ class PlatformManager(context: Context) {
       }
     }
 
+  /**
+   * Build the local annotation file for a platform from the triplestore.
+   */
+  def buildAnnotations(title: String): AtomicTask[Unit] =
+    new AtomicTask[Unit]("Build probe annotations") {
+      override def run(): Unit = {
+        val probes = new ProbeStore(config.triplestore)
+        val n = context.annotations.build(title, probes)
+        logResult(s"Stored annotations for $n probes in ${context.annotations.file(title)}")
+      }
+    }
+
+  /**
+   * Build the local gene symbol suggestion index for a platform from the triplestore.
+   */
+  def buildSuggestions(title: String): AtomicTask[Unit] =
+    new AtomicTask[Unit]("Build gene suggestions") {
+      override def run(): Unit = {
+        val probes = new ProbeStore(config.triplestore)
+        val n = context.suggestions.buildGenes(title, probes)
+        val file = context.suggestions.file(SuggestionStore.genes(title))
+        logResult(s"Stored $n gene suggestions in $file")
+      }
+    }
+
+  /**
+   * Build the local GO term and pathway suggestion indexes from the triplestore.
+   */
+  def buildTermSuggestions: AtomicTask[Unit] =
+    new AtomicTask[Unit]("Build GO term and pathway suggestions") {
+      override def run(): Unit = {
+        val ts = config.triplestore
+        val goTerms = context.suggestions.buildGOTerms(new ProbeStore(ts))
+        val pathways = context.suggestions.buildPathways(new B2RKegg(ts.triplestore))
+        logResult(s"Stored $goTerms GO term and $pathways pathway suggestions")
+      }
+    }
+
   def delete(title: String): Task[Unit] = {
       //Do not delete the probe IDs - keep them so they can be reused if we
       //redefine the platform
       //deleteProbeIDs(title) andThen
-      deleteRDF(title)
+      deleteRDF(title) andThen
+      deleteAnnotations(title) andThen
+      deleteSuggestions(title) andThen
+      invalidateQueryCache
   }
 
+  def deleteAnnotations(title: String): AtomicTask[Unit] =
+    new AtomicTask[Unit]("Delete probe annotations") {
+      override def run(): Unit = {
+        context.annotations.delete(title)
+      }
+    }
+
+  def deleteSuggestions(title: String): AtomicTask[Unit] =
+    new AtomicTask[Unit]("Delete gene suggestions") {
+      override def run(): Unit = {
+        context.suggestions.delete(SuggestionStore.genes(title))
+      }
+    }
+
   def deleteRDF(title: String): AtomicTask[Unit] = new AtomicTask[Unit]("Delete platform") {
     override def run(): Unit = {
       val platforms = new PlatformStore(config)
@@ -193,6 +259,17 @@ object PlatformManager extends ManagerTool {
             val title = require(stringOption(args, "-title"),
               "Please specify a title with -title")
             startTaskRunner(manager.delete(title))
+          case "annotations" =>
+            val title = require(stringOption(args, "-title"),
+              "Please specify a title with -title")
+            startTaskRunner(manager.buildAnnotations(title))
+          case "suggestions" =>
+            stringOption(args, "-title") match {
+              case Some(title) => startTaskRunner(manager.buildSuggestions(title))
+              case None =>
+                val all = platforms.list.map(manager.buildSuggestions)
+                startTaskRunner(all.foldLeft(manager.buildTermSuggestions: Task[Unit])(_ andThen _))
+            }
           case "list" =>
             for (p <- platforms.list) {
               println(p)
@@ -206,6 +283,6 @@ object PlatformManager extends ManagerTool {
   }
 
   def showHelp() {
-    println("Please specify a command (add/addEnsembl/addAffy/delete/list)")
+    println("Please specify a command (add/addEnsembl/addAffy/delete/list/annotations/suggestions)")
   }
 }
\ No newline at end of file
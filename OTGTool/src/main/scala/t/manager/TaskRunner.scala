@@ -25,6 +25,8 @@ import scala.util.Try
 import scala.util.Success
 import scala.util.Failure
 
+import t.global.Metrics
+
 /**
  * New monadic Task API that allows for comprehensions
  * Tasks are synchronously executing tasks with deferred execution, typically meant
@@ -104,6 +106,7 @@ abstract class AtomicTask[+T](val name: String) extends Task[T] {
     if (!TaskRunner.shouldStop) {
       TaskRunner._currentAtomicTask = Some(this)
       log("Start task \"" + name + "\"")
+      val start = System.nanoTime()
       try {
         val result = run()
         log("Finish task \"" + name + "\"")
@@ -111,7 +114,10 @@ abstract class AtomicTask[+T](val name: String) extends Task[T] {
       } catch {
         case e @ (_: Exception | _: Error) =>
           log("Failed task \"" + name + "\"")
+          TaskRunner.taskFailures.inc()
           Failure(e)
+      } finally {
+        TaskRunner.taskTimer.record(System.nanoTime() - start)
       }
     } else {
       Failure(new Exception("Task not started due to TaskRunner shutdown"))
@@ -136,6 +142,12 @@ object TaskRunner {
 
   @volatile var _currentAtomicTask: Option[AtomicTask[_]] = None
 
+  val taskTimer = Metrics.timer("t_task_seconds", "Atomic maintenance tasks, such as data insertion")
+  val taskFailures = Metrics.counter("t_task_failures", "Atomic maintenance tasks that failed")
+  Metrics.gauge("t_task_runner_busy", "1 if the task runner is running tasks, otherwise 0") {
+    if (busy) 1 else 0
+  }
+
   @volatile private var _shouldStop = false
   @volatile private var _available: Boolean = true
 
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform
+
+import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.concurrent.ConcurrentHashMap
+
+object LocalFileStore {
+  /**
+   * Minimum time between checks of a store's directory for changed files.
+   */
+  val CHECK_INTERVAL_MILLIS = 10000L
+}
+
+/**
+ * A directory of data files, one per name, each read into memory the first time it is needed.
+ * Files written or deleted through the store are picked up immediately; other changes
+ * are noticed within CHECK_INTERVAL_MILLIS.
+ * Lookups of data already in memory only read a snapshot and take no lock. A file is
+ * loaded while holding a lock for its name only, so that loading one file does not hold
+ * up lookups in the others.
+ * @param dir the directory containing the files
+ * @param suffix the suffix of the file names
+ */
+abstract class LocalFileStore[T](dir: String, suffix: String) {
+  import LocalFileStore._
+
+  private case class Loaded(lastModified: Long, data: T)
+
+  @volatile private var loaded: Map[String, Loaded] = Map()
+
+  /**
+   * Names of the files, and their modification times, as of the last check.
+   */
+  @volatile private var available: Map[String, Long] = Map()
+  @volatile private var lastChecked = 0L
+
+  /**
+   * Incremented whenever loaded data may have become stale, so that a load that
+   * overlapped with a change is not kept.
+   */
+  private var changes = 0L
+
+  private val loadLocks = new ConcurrentHashMap[String, AnyRef]()
+
+  /**
+   * Read the data of a file.
+   */
+  protected def read(in: DataInputStream): T
+
+  def file(name: String): File = new File(dir, name + suffix)
+
+  def contains(name: String): Boolean = file(name).exists
+
+  /**
+   * Write a file with the given function. The file is replaced atomically.
+   */
+  protected def writeFile(name: String)(write: DataOutputStream => Unit): Unit = {
+    new File(dir).mkdirs()
+    val temp = File.createTempFile("store", ".tmp", new File(dir))
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))
+    try {
+      write(out)
+    } finally {
+      out.close()
+    }
+    Files.move(temp.toPath, file(name).toPath, StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE)
+    changed(name)
+  }
+
+  def delete(name: String): Unit = {
+    file(name).delete()
+    changed(name)
+  }
+
+  /**
+   * Forget the data of a file and check the files again on the next lookup.
+   */
+  private def changed(name: String): Unit = synchronized {
+    loaded -= name
+    changes += 1
+    lastChecked = 0
+  }
+
+  private def load(f: File): T = {
+    println(s"Load $f")
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536))
+    try {
+      read(in)
+    } finally {
+      in.close()
+    }
+  }
+
+  private def checkDue = System.currentTimeMillis - lastChecked >= CHECK_INTERVAL_MILLIS
+
+  /**
+   * Check the files for changes, at most once per CHECK_INTERVAL_MILLIS.
+   * Data whose files have changed or disappeared is dropped from memory,
+   * to be loaded again when next needed.
+   */
+  private def checkFiles(): Unit = {
+    if (checkDue) {
+      synchronized {
+        if (checkDue) {
+          val files = Option(new File(dir).listFiles).toSeq.flatten.
+            filter(_.getName.endsWith(suffix))
+          available = Map() ++ files.map(f =>
+            f.getName.dropRight(suffix.length) -> f.lastModified)
+          val kept = loaded.filter(l => available.get(l._1) == Some(l._2.lastModified))
+          if (kept.size != loaded.size) {
+            loaded = kept
+            changes += 1
+          }
+          lastChecked = System.currentTimeMillis
+        }
+      }
+    }
+  }
+
+  /**
+   * Names of the files in the store, as of the last check.
+   */
+  def names: Seq[String] = {
+    checkFiles()
+    available.keys.toSeq.sorted
+  }
+
+  /**
+   * Names of the files whose data is in memory.
+   */
+  protected def loadedNames: Seq[String] = loaded.keys.toSeq
+
+  /**
+   * The data of a file, loading it if necessary.
+   * @return the data, or None if there is no such file
+   */
+  def get(name: String): Option[T] = {
+    checkFiles()
+    loaded.get(name).map(_.data).orElse({
+      val lock = loadLocks.computeIfAbsent(name, _ => new Object)
+      lock.synchronized {
+        loaded.get(name).map(_.data).orElse({
+          val f = file(name)
+          val (changesBefore, modified) = synchronized { (changes, f.lastModified) }
+          if (available.contains(name) && modified != 0L) {
+            val data = load(f)
+            synchronized {
+              if (changes == changesBefore) {
+                loaded += name -> Loaded(modified, data)
+              }
+            }
+            Some(data)
+          } else {
+            None
+          }
+        })
+      }
+    })
+  }
+}
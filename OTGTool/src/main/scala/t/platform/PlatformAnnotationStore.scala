@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform
+
+import java.io._
+
+import t.sparql.ProbeStore
+import t.sparql.secondary.{B2RKegg, Gene, Protein}
+
+object PlatformAnnotationStore {
+  val FILE_SUFFIX = ".ann"
+  private val FORMAT_VERSION = 1
+
+  /**
+   * Number of probes whose annotations are fetched from the triplestore together.
+   */
+  val FETCH_BATCH_SIZE = 1000
+
+  private def writeStrings(out: DataOutputStream, xs: Iterable[String]): Unit = {
+    out.writeInt(xs.size)
+    for (x <- xs) {
+      out.writeUTF(x)
+    }
+  }
+
+  private def readStrings(in: DataInputStream): Seq[String] =
+    Vector.fill(in.readInt)(in.readUTF)
+
+  def writeTo(out: DataOutputStream, platform: String, probes: Iterable[Probe]): Unit = {
+    out.writeInt(FORMAT_VERSION)
+    out.writeUTF(platform)
+    out.writeInt(probes.size)
+    for (p <- probes) {
+      out.writeUTF(p.identifier)
+      out.writeUTF(p.name)
+      writeStrings(out, p.titles)
+      writeStrings(out, p.genes.map(_.identifier))
+      writeStrings(out, p.symbols)
+      writeStrings(out, p.proteins.map(_.identifier))
+    }
+  }
+
+  def readFrom(in: DataInputStream): (String, Map[String, Probe]) = {
+    val version = in.readInt
+    if (version != FORMAT_VERSION) {
+      throw new IOException(s"Unsupported annotation file version $version")
+    }
+    val platform = in.readUTF
+    val taxon = B2RKegg.platformTaxon(platform)
+    val probes = Vector.fill(in.readInt)({
+      val id = in.readUTF
+      val name = in.readUTF
+      val titles = readStrings(in)
+      val genes = readStrings(in).map(Gene(_, keggShortCode = taxon))
+      val symbols = readStrings(in)
+      val proteins = readStrings(in).map(Protein(_))
+      Probe(id, name = name, titles = titles, genes = genes, symbols = symbols,
+        proteins = proteins, platform = platform)
+    })
+    (platform, Map() ++ probes.map(p => p.identifier -> p))
+  }
+}
+
+/**
+ * Precomputed probe annotations (titles, gene IDs, symbols and proteins),
+ * stored locally with one file per platform, so that annotating rows does not
+ * require triplestore queries.
+ * The files are built from the triplestore when a platform is added or updated.
+ * Each platform is loaded into memory the first time a lookup needs it.
+ * Files changed or removed through this store are picked up immediately; other changes
+ * are noticed within LocalFileStore.CHECK_INTERVAL_MILLIS.
+ * @param dir the directory containing the annotation files
+ */
+class PlatformAnnotationStore(dir: String)
+  extends LocalFileStore[Map[String, Probe]](dir, PlatformAnnotationStore.FILE_SUFFIX) {
+  import PlatformAnnotationStore._
+
+  protected def read(in: DataInputStream): Map[String, Probe] = readFrom(in)._2
+
+  /**
+   * Fetch annotations for all probes of a platform from the triplestore and
+   * store them, replacing any existing file for the platform.
+   * @return the number of probes stored
+   */
+  def build(platform: String, probeStore: ProbeStore): Int = {
+    val ids = probeStore.forPlatform(platform).toVector
+    val probes = ids.grouped(FETCH_BATCH_SIZE).flatMap(g =>
+      probeStore.withAttributes(g.map(Probe(_)))).toVector
+    write(platform, probes)
+    probes.size
+  }
+
+  /**
+   * Store annotations for a platform. The file is replaced atomically.
+   */
+  def write(platform: String, probes: Iterable[Probe]): Unit =
+    writeFile(platform)(writeTo(_, platform, probes))
+
+  /**
+   * Obtain stored annotations for the given probes.
+   * Probes that specify a platform are only looked up in that platform. For the others,
+   * platforms already in memory are searched first, and further platforms are only
+   * loaded while some probes remain unresolved.
+   * @return annotated probes, and probes that were not found in any platform
+   */
+  def lookup(probes: Iterable[Probe]): (Seq[Probe], Seq[Probe]) = {
+    val (withPlatform, withoutPlatform) = probes.toSeq.partition(p =>
+      p.platform != null && p.platform != "")
+
+    var found = Map[String, Probe]()
+    for ((platform, ps) <- withPlatform.groupBy(_.platform);
+      annotations <- get(platform)) {
+      found ++= ps.flatMap(p => annotations.get(p.identifier)).map(a => a.identifier -> a)
+    }
+
+    var unresolved = withoutPlatform.map(_.identifier).toSet
+    val inMemory = loadedNames
+    val platforms = (inMemory ++ names.filter(!inMemory.contains(_))).iterator
+    while (!unresolved.isEmpty && platforms.hasNext) {
+      for (annotations <- get(platforms.next)) {
+        val hits = unresolved.flatMap(annotations.get)
+        found ++= hits.map(a => a.identifier -> a)
+        unresolved --= hits.map(_.identifier)
+      }
+    }
+
+    val result = probes.toSeq.map(p => (p, found.get(p.identifier)))
+    (result.flatMap(_._2), result.filter(_._2 == None).map(_._1))
+  }
+
+  /**
+   * Annotate the given probes, using the stored annotations where available,
+   * and querying the triplestore only for the remaining probes.
+   */
+  def withAttributes(probes: Iterable[Probe], probeStore: ProbeStore): Iterable[Probe] = {
+    val (found, missing) = lookup(probes)
+    if (missing.isEmpty) {
+      found
+    } else {
+      found ++ probeStore.withAttributes(missing)
+    }
+  }
+}
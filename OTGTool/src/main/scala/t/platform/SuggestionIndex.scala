@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform
+
+import java.io._
+import java.util.Locale
+
+import scala.collection.mutable
+
+object SuggestionIndex {
+  /**
+   * A suggestion. The text is what the user's input is matched against and what is
+   * shown, and the value identifies the suggested object (e.g. a probe or a GO term).
+   */
+  case class Entry(text: String, value: String)
+
+  val FILE_SUFFIX = ".sug"
+  private val FORMAT_VERSION = 1
+
+  /**
+   * Length of the n-grams used for matching inside words.
+   * Shorter queries only match at the start of words.
+   */
+  val GRAM_LENGTH = 3
+
+  //Match classes, from best to worst
+  private val EXACT = 0
+  private val PREFIX = 1
+  private val WORD = 2
+  private val SUBSTRING = 3
+
+  def normalise(text: String): String = text.trim.toLowerCase(Locale.ROOT)
+
+  private def isWordStart(key: String, i: Int): Boolean =
+    i == 0 ||
+      (!Character.isLetterOrDigit(key.charAt(i - 1)) && Character.isLetterOrDigit(key.charAt(i)))
+
+  private def gramsOf(key: String): Seq[String] =
+    (0 to key.length - GRAM_LENGTH).map(i => key.substring(i, i + GRAM_LENGTH)).distinct
+
+  private def pack(item: Int, offset: Int): Long = (item.toLong << 32) | offset
+  private def itemOf(p: Long): Int = (p >>> 32).toInt
+  private def offsetOf(p: Long): Int = p.toInt
+
+  /**
+   * Compare the suffix of k1 starting at o1 with the suffix of k2 starting at o2.
+   */
+  private def compareAt(k1: String, o1: Int, k2: String, o2: Int): Int = {
+    val n = math.min(k1.length - o1, k2.length - o2)
+    var i = 0
+    while (i < n) {
+      val d = k1.charAt(o1 + i) - k2.charAt(o2 + i)
+      if (d != 0) {
+        return d
+      }
+      i += 1
+    }
+    (k1.length - o1) - (k2.length - o2)
+  }
+
+  /**
+   * Intersect two sorted arrays of item numbers.
+   */
+  private def intersect(a: Array[Int], b: Array[Int]): Array[Int] = {
+    val r = new mutable.ArrayBuilder.ofInt
+    var i = 0
+    var j = 0
+    while (i < a.length && j < b.length) {
+      if (a(i) < b(j)) {
+        i += 1
+      } else if (a(i) > b(j)) {
+        j += 1
+      } else {
+        r += a(i)
+        i += 1
+        j += 1
+      }
+    }
+    r.result
+  }
+
+  def writeTo(out: DataOutputStream, entries: Iterable[Entry]): Unit = {
+    out.writeInt(FORMAT_VERSION)
+    out.writeInt(entries.size)
+    for (e <- entries) {
+      out.writeUTF(e.text)
+      out.writeUTF(e.value)
+    }
+  }
+
+  def readFrom(in: DataInputStream): Vector[Entry] = {
+    val version = in.readInt
+    if (version != FORMAT_VERSION) {
+      throw new IOException(s"Unsupported suggestion file version $version")
+    }
+    Vector.fill(in.readInt)(Entry(in.readUTF, in.readUTF))
+  }
+}
+
+/**
+ * An in-memory index for autocompletion.
+ * Queries are matched case-insensitively against the start of entries, the start of
+ * words inside entries, and (for queries of at least GRAM_LENGTH characters) anywhere
+ * inside entries. Prefix and word matches are found by binary search in a sorted array of
+ * word starts; other substring matches by intersecting trigram posting lists.
+ * Results are ranked by match class (exact, prefix, word start, substring), then by
+ * length, so that the shortest and most specific suggestions come first.
+ */
+class SuggestionIndex(entries: Iterable[SuggestionIndex.Entry]) {
+  import SuggestionIndex._
+
+  private val items: Array[Entry] = entries.filter(e => normalise(e.text).nonEmpty).
+    toVector.distinct.toArray
+  private val keys: Array[String] = items.map(e => normalise(e.text))
+
+  def size: Int = items.length
+
+  /*
+   * Word starts of all keys as packed (item, offset) pairs, sorted by the
+   * suffix of the key that starts at the offset.
+   */
+  private val wordStarts: Array[Long] = {
+    val b = new mutable.ArrayBuilder.ofLong
+    for {
+      i <- keys.indices
+      o <- 0 until keys(i).length
+      if isWordStart(keys(i), o)
+    } b += pack(i, o)
+    b.result.sortWith((x, y) =>
+      compareAt(keys(itemOf(x)), offsetOf(x), keys(itemOf(y)), offsetOf(y)) < 0)
+  }
+
+  /*
+   * Sorted posting lists of items for each trigram.
+   */
+  private val grams: Map[String, Array[Int]] = {
+    val building = mutable.HashMap[String, mutable.ArrayBuilder.ofInt]()
+    for (i <- keys.indices; g <- gramsOf(keys(i))) {
+      building.getOrElseUpdate(g, new mutable.ArrayBuilder.ofInt) += i
+    }
+    building.map({ case (g, b) => g -> b.result }).toMap
+  }
+
+  /**
+   * Items having a word (or, if prefixOnly is set, the whole key) starting with q.
+   */
+  private def wordMatches(q: String, prefixOnly: Boolean): Seq[Int] = {
+    var lo = 0
+    var hi = wordStarts.length
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      val p = wordStarts(mid)
+      if (compareAt(keys(itemOf(p)), offsetOf(p), q, 0) < 0) {
+        lo = mid + 1
+      } else {
+        hi = mid
+      }
+    }
+    val r = new mutable.ArrayBuilder.ofInt
+    var i = lo
+    while (i < wordStarts.length &&
+      keys(itemOf(wordStarts(i))).startsWith(q, offsetOf(wordStarts(i)))) {
+      if (!prefixOnly || offsetOf(wordStarts(i)) == 0) {
+        r += itemOf(wordStarts(i))
+      }
+      i += 1
+    }
+    r.result
+  }
+
+  /**
+   * Items containing q anywhere. q must be at least GRAM_LENGTH long.
+   */
+  private def substringMatches(q: String): Seq[Int] = {
+    val postings = gramsOf(q).map(g => grams.getOrElse(g, Array.emptyIntArray)).
+      sortBy(_.length)
+    postings.reduceLeft(intersect).filter(i => keys(i).contains(q))
+  }
+
+  /**
+   * The k best matches, in order, with the match class of each item.
+   */
+  private def topK(matches: Iterable[(Int, Int)], k: Int): Seq[Int] = {
+    val order = Ordering.by((m: (Int, Int)) => (m._2, keys(m._1).length, keys(m._1), m._1))
+    //A max-heap of the best matches so far, with the worst one at the head
+    val best = mutable.PriorityQueue[(Int, Int)]()(order)
+    for (m <- matches) {
+      best.enqueue(m)
+      if (best.size > k) {
+        best.dequeue()
+      }
+    }
+    best.toVector.sorted(order).map(_._1)
+  }
+
+  /**
+   * Find the best suggestions for a partial input.
+   * @param query the user's input
+   * @param k the maximum number of suggestions
+   * @param prefixOnly if set, only match at the start of entries
+   */
+  def search(query: String, k: Int, prefixOnly: Boolean = false): Seq[Entry] = {
+    val q = normalise(query)
+    if (q.isEmpty || k <= 0) {
+      Seq()
+    } else {
+      val classes = mutable.HashMap[Int, Int]()
+      for (i <- wordMatches(q, prefixOnly)) {
+        val cls = if (keys(i) == q) EXACT else if (keys(i).startsWith(q)) PREFIX else WORD
+        if (cls < classes.getOrElse(i, SUBSTRING)) {
+          classes(i) = cls
+        }
+      }
+      if (!prefixOnly && q.length >= GRAM_LENGTH) {
+        for (i <- substringMatches(q); if !classes.contains(i)) {
+          classes(i) = SUBSTRING
+        }
+      }
+      topK(classes, k).map(items(_))
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform
+
+import java.io.DataInputStream
+
+import t.platform.SuggestionIndex.Entry
+import t.sparql.ProbeStore
+import t.sparql.secondary.B2RKegg
+
+object SuggestionStore {
+  val GO_TERMS = "goterms"
+  val PATHWAYS = "pathways"
+
+  /**
+   * Name of the gene symbol index for a platform.
+   */
+  def genes(platform: String): String = s"genes.$platform"
+}
+
+/**
+ * Suggestion indexes for autocompletion of gene symbols (one per platform),
+ * GO terms and pathway titles, stored locally with one file per index, so that
+ * autocompletion does not require triplestore queries.
+ * The files are built from the triplestore, and are loaded into memory on first use.
+ * Files changed or removed through this store are picked up immediately; other changes
+ * are noticed within LocalFileStore.CHECK_INTERVAL_MILLIS.
+ * @param dir the directory containing the suggestion files
+ */
+class SuggestionStore(dir: String)
+  extends LocalFileStore[SuggestionIndex](dir, SuggestionIndex.FILE_SUFFIX) {
+  import SuggestionStore._
+
+  protected def read(in: DataInputStream): SuggestionIndex =
+    new SuggestionIndex(SuggestionIndex.readFrom(in))
+
+  /**
+   * Index the probes of a platform by gene symbol and by probe ID.
+   * @return the number of entries stored
+   */
+  def buildGenes(platform: String, probeStore: ProbeStore): Int = {
+    val entries = probeStore.symbolsForPlatform(platform).flatMap(x =>
+      Seq(Entry(x._1, x._2), Entry(x._2, x._2))).distinct
+    write(genes(platform), entries)
+    entries.size
+  }
+
+  /**
+   * Index the names of all GO terms.
+   * @return the number of entries stored
+   */
+  def buildGOTerms(probeStore: ProbeStore): Int = {
+    val entries = probeStore.allGoTerms.map(term => Entry(term.name, term.identifier))
+    write(GO_TERMS, entries)
+    entries.size
+  }
+
+  /**
+   * Index the titles of all pathways.
+   * @return the number of entries stored
+   */
+  def buildPathways(kegg: B2RKegg): Int = {
+    val entries = kegg.allPathwayTitles.map(title => Entry(title, title))
+    write(PATHWAYS, entries)
+    entries.size
+  }
+
+  /**
+   * Build those indexes for the given platforms, GO terms and pathways that
+   * do not exist yet.
+   */
+  def buildMissing(platforms: Iterable[String], probeStore: ProbeStore, kegg: B2RKegg): Unit = {
+    for (p <- platforms; if !contains(genes(p))) {
+      println(s"Stored ${buildGenes(p, probeStore)} gene suggestions for $p")
+    }
+    if (!contains(GO_TERMS)) {
+      println(s"Stored ${buildGOTerms(probeStore)} GO term suggestions")
+    }
+    if (!contains(PATHWAYS)) {
+      println(s"Stored ${buildPathways(kegg)} pathway suggestions")
+    }
+  }
+
+  /**
+   * Store the entries of an index. The file is replaced atomically.
+   */
+  def write(name: String, entries: Iterable[Entry]): Unit =
+    writeFile(name)(SuggestionIndex.writeTo(_, entries))
+
+  /**
+   * Obtain an index, loading it if it is not in memory yet.
+   * @return the index, or None if it has not been built
+   */
+  def index(name: String): Option[SuggestionIndex] = get(name)
+
+  /**
+   * Platforms that have a gene suggestion index.
+   */
+  def genePlatforms: Seq[String] = {
+    val prefix = genes("")
+    names.filter(_.startsWith(prefix)).map(_.drop(prefix.length))
+  }
+
+  /**
+   * Find the best k suggestions for a partial input in an index.
+   * @return the suggestions, or nothing if the index has not been built
+   */
+  def search(name: String, query: String, k: Int): Seq[Entry] =
+    index(name).toSeq.flatMap(_.search(query, k))
+
+  /**
+   * Find the best k gene symbols or probe IDs starting with a partial input,
+   * in those of the given platforms that have been indexed.
+   */
+  def geneSuggestions(platforms: Iterable[String], query: String, k: Int): Seq[Entry] = {
+    val q = SuggestionIndex.normalise(query)
+    val hits = platforms.toSeq.flatMap(p => index(genes(p))).
+      flatMap(_.search(query, k, prefixOnly = true)).distinct
+    hits.sortBy(e => {
+      val key = SuggestionIndex.normalise(e.text)
+      (key != q, key.length, key)
+    }).take(k)
+  }
+}
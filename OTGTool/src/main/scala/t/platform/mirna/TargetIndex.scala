@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform.mirna
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+import scala.collection.mutable
+
+/**
+ * Compressed sparse row index from keys (e.g. miRNA or transcript IDs) to the rows
+ * of a TargetTable. The postings of each key are sorted by descending score,
+ * so that score threshold and count limited queries can stop early.
+ * @param keys distinct keys
+ * @param offsets postings of key k are postings(offsets(k)) until postings(offsets(k + 1))
+ * @param postings row indexes
+ */
+class TargetIndex(val keys: Array[String], val offsets: Array[Int], val postings: Array[Int]) {
+  private val lookup: Map[String, Int] = Map() ++ keys.zipWithIndex
+
+  def contains(key: String): Boolean = lookup.contains(key)
+
+  /**
+   * Rows for a key, in descending score order.
+   * @param minScore only rows with at least this score are returned
+   * @param limit the maximum number of rows to return
+   */
+  def rows(key: String, scores: Array[Double], minScore: Double = Double.NegativeInfinity,
+      limit: Int = Int.MaxValue): Seq[Int] = {
+    lookup.get(key) match {
+      case Some(k) =>
+        val r = mutable.ArrayBuffer[Int]()
+        var i = offsets(k)
+        val end = offsets(k + 1)
+        while (i < end && r.size < limit && scores(postings(i)) >= minScore) {
+          r += postings(i)
+          i += 1
+        }
+        r
+      case None => Seq()
+    }
+  }
+
+  def writeTo(out: DataOutputStream): Unit = {
+    out.writeInt(keys.length)
+    for (k <- keys) {
+      out.writeUTF(k)
+    }
+    for (o <- offsets) {
+      out.writeInt(o)
+    }
+    out.writeInt(postings.length)
+    for (p <- postings) {
+      out.writeInt(p)
+    }
+  }
+}
+
+object TargetIndex {
+
+  /**
+   * Row indexes sorted by descending score. Ties keep the row order, and NaN scores come last.
+   */
+  def byScore(scores: Array[Double]): Array[Int] = {
+    val rows = Array.tabulate(scores.length)(i => i)
+    val tmp = new Array[Int](rows.length)
+
+    //Bottom-up merge sort on primitive indexes (stable)
+    var width = 1
+    var from = rows
+    var to = tmp
+    while (width < rows.length) {
+      var lo = 0
+      while (lo < rows.length) {
+        val mid = Math.min(lo + width, rows.length)
+        val hi = Math.min(lo + 2 * width, rows.length)
+        var i = lo
+        var j = mid
+        var k = lo
+        while (k < hi) {
+          if (j >= hi || (i < mid &&
+              (scores(from(i)) >= scores(from(j)) || java.lang.Double.isNaN(scores(from(j)))))) {
+            to(k) = from(i)
+            i += 1
+          } else {
+            to(k) = from(j)
+            j += 1
+          }
+          k += 1
+        }
+        lo = hi
+      }
+      val swap = from
+      from = to
+      to = swap
+      width *= 2
+    }
+    from
+  }
+
+  /**
+   * Build an index over the given row keys.
+   * @param order rows in descending score order, as produced by byScore
+   */
+  def build(rowKeys: Array[String], order: Array[Int]): TargetIndex = {
+    val keyIds = mutable.HashMap[String, Int]()
+    val rowKeyIds = rowKeys.map(k => keyIds.getOrElseUpdate(k, keyIds.size))
+    val keys = new Array[String](keyIds.size)
+    for ((k, i) <- keyIds) {
+      keys(i) = k
+    }
+
+    val offsets = new Array[Int](keys.length + 1)
+    for (k <- rowKeyIds) {
+      offsets(k + 1) += 1
+    }
+    for (k <- 0 until keys.length) {
+      offsets(k + 1) += offsets(k)
+    }
+
+    //Distributing rows in score order keeps each key's postings sorted by score
+    val fill = java.util.Arrays.copyOf(offsets, keys.length)
+    val postings = new Array[Int](rowKeys.length)
+    for (row <- order) {
+      val k = rowKeyIds(row)
+      postings(fill(k)) = row
+      fill(k) += 1
+    }
+    new TargetIndex(keys, offsets, postings)
+  }
+
+  def readFrom(in: DataInputStream): TargetIndex = {
+    val keys = Array.fill(in.readInt)(in.readUTF)
+    val offsets = Array.fill(keys.length + 1)(in.readInt)
+    val postings = Array.fill(in.readInt)(in.readInt)
+    new TargetIndex(keys, offsets, postings)
+  }
+}
@@ -19,6 +19,11 @@
 
 package t.platform.mirna
 
+import java.io._
+import java.lang.ref.WeakReference
+
+import scala.collection.mutable
+
 import t.db._
 import t.platform.Species.Species
 import t.platform._
@@ -26,6 +31,112 @@ import t.sparql._
 
 object TargetTable {
   def empty = (new TargetTableBuilder).build
+
+  val MAGIC = 0x54544258 //"TTBX"
+  val VERSION = 1
+
+  private val MAX_PLATFORM_INDEXES = 8
+  private var platformIndexes = List[(WeakReference[Iterable[Probe]], Map[RefSeq, Seq[Probe]])]()
+
+  /**
+   * Transcript to probe lookup for a platform. Platforms are large and usually
+   * obtained from a shared cache, so lookups for the same platform object are reused.
+   */
+  def transcriptIndex(platform: Iterable[Probe]): Map[RefSeq, Seq[Probe]] = synchronized {
+    platformIndexes.find(_._1.get eq platform) match {
+      case Some((_, index)) => index
+      case None =>
+        val pairs = for {
+          p <- platform.toSeq;
+          trn <- p.transcripts
+        } yield (trn, p)
+        val index = Map() ++ pairs.groupBy(_._1).mapValues(_.map(_._2))
+        platformIndexes = ((new WeakReference(platform), index) ::
+          platformIndexes.filter(_._1.get != null)).take(MAX_PLATFORM_INDEXES)
+        index
+    }
+  }
+
+  private[mirna] def writeInfo(out: DataOutputStream, info: TargetSourceInfo): Unit = info match {
+    case BlankSourceInfo(name) =>
+      out.writeByte(0)
+      out.writeUTF(name)
+    case ScoreSourceInfo(name) =>
+      out.writeByte(1)
+      out.writeUTF(name)
+    case SupportSourceInfo(name, support) =>
+      out.writeByte(2)
+      out.writeUTF(name)
+      out.writeUTF(support)
+  }
+
+  private def readInfo(in: DataInputStream): TargetSourceInfo = in.readByte match {
+    case 0 => BlankSourceInfo(in.readUTF)
+    case 1 => ScoreSourceInfo(in.readUTF)
+    case 2 => SupportSourceInfo(in.readUTF, in.readUTF)
+    case x => throw new IOException(s"Unexpected target source info type $x")
+  }
+
+  /**
+   * Read a table, including its indexes, previously written by writeTo.
+   */
+  def readFrom(in: DataInputStream): TargetTable = {
+    if (in.readInt != MAGIC || in.readInt != VERSION) {
+      throw new IOException("Not a target table file, or unsupported version")
+    }
+    val n = in.readInt
+    val originIndex = TargetIndex.readFrom(in)
+    val targetIndex = TargetIndex.readFrom(in)
+    val scores = Array.fill(n)(in.readDouble)
+    val infoTable = Array.fill(in.readInt)(readInfo(in))
+    val infos = Array.fill(n)(infoTable(in.readInt))
+
+    def rowKeys(index: TargetIndex): Array[String] = {
+      val r = new Array[String](n)
+      for (k <- 0 until index.keys.length; i <- index.offsets(k) until index.offsets(k + 1)) {
+        r(index.postings(i)) = index.keys(k)
+      }
+      r
+    }
+    new TargetTable(rowKeys(originIndex), rowKeys(targetIndex), scores, infos,
+      Some((originIndex, targetIndex)))
+  }
+
+  def readFrom(file: String): TargetTable = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+    try {
+      readFrom(in)
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+   * Load a table from a binary cache next to the given source file, if the cache
+   * is newer than the source. Otherwise, build the table and write the cache.
+   */
+  def cached(sourceFile: String)(build: => TargetTable): TargetTable = {
+    val source = new File(sourceFile)
+    val cache = new File(sourceFile + ".ttbx")
+    if (cache.exists && cache.lastModified >= source.lastModified) {
+      try {
+        return readFrom(cache.getPath)
+      } catch {
+        case e: IOException =>
+          Console.err.println(s"Unable to read cached target table $cache, rebuilding")
+          e.printStackTrace()
+      }
+    }
+    val r = build
+    try {
+      r.writeTo(cache.getPath)
+    } catch {
+      case e: IOException =>
+        Console.err.println(s"Unable to write cached target table $cache")
+        e.printStackTrace()
+    }
+    r
+  }
 }
 
 sealed trait TargetSourceInfo {
@@ -51,9 +162,10 @@ case class SupportSourceInfo(name: String, support: String) extends TargetSource
  * As much as possible we filter this table eagerly, to control the size and speed up
  * subsequent operations.
  *
- * Because the table can be large, access operations are based on traversing the entire table
- * each time data is requested. It is thus more efficient to request interactions for a set of
- * probes than to ask for a few probes at a time.
+ * Lookups go through forward (miRNA) and reverse (transcript) indexes, which are built
+ * on first use, or loaded together with the table (see TargetTable.readFrom).
+ * The postings in each index are sorted by descending score, so count limits
+ * select the highest scoring interactions.
  *
  * Convention: origins are miRNAs such as hsa-let-7a-2-3p,
  * targets are mRNAs (identified by refSeq transcripts
@@ -63,24 +175,73 @@ class TargetTable(
   val origins: Array[String],
   val targets: Array[String],
   val scores: Array[Double],
-  val infos: Array[TargetSourceInfo]) extends IndexedSeq[Interaction] {
+  val infos: Array[TargetSourceInfo],
+  prebuiltIndexes: Option[(TargetIndex, TargetIndex)] = None) extends IndexedSeq[Interaction] {
 
   override val length: Int = origins.length
 
   def apply(i: Int) = (MiRNA(origins(i)), RefSeq(targets(i)), scores(i), infos(i))
 
-  def filterWith(test: Int => Boolean): TargetTable = {
-    val builder = new TargetTableBuilder()
-    for {
-      i <- 0 until size;
-      if test(i)
-    } builder.add(MiRNA(origins(i)), RefSeq(targets(i)), scores(i), infos(i))
+  /**
+   * All rows in descending score order.
+   */
+  private lazy val rowsByScore = TargetIndex.byScore(scores)
+
+  /**
+   * miRNA to rows index.
+   */
+  lazy val originIndex: TargetIndex =
+    prebuiltIndexes.map(_._1).getOrElse(TargetIndex.build(origins, rowsByScore))
+
+  /**
+   * Transcript to rows index.
+   */
+  lazy val targetIndex: TargetIndex =
+    prebuiltIndexes.map(_._2).getOrElse(TargetIndex.build(targets, rowsByScore))
 
-    builder.build
+  /**
+   * Write this table and its indexes in a compact binary format.
+   */
+  def writeTo(out: DataOutputStream): Unit = {
+    out.writeInt(TargetTable.MAGIC)
+    out.writeInt(TargetTable.VERSION)
+    out.writeInt(length)
+    originIndex.writeTo(out)
+    targetIndex.writeTo(out)
+    for (s <- scores) {
+      out.writeDouble(s)
+    }
+    val infoIds = mutable.LinkedHashMap[TargetSourceInfo, Int]()
+    val rowInfos = infos.map(i => infoIds.getOrElseUpdate(i, infoIds.size))
+    out.writeInt(infoIds.size)
+    for (i <- infoIds.keys) {
+      TargetTable.writeInfo(out, i)
+    }
+    for (i <- rowInfos) {
+      out.writeInt(i)
+    }
   }
 
-  def scoreFilter(minScore: Double): TargetTable =
-    filterWith(scores(_) >= minScore)
+  def writeTo(file: String): Unit = {
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+    try {
+      writeTo(out)
+    } finally {
+      out.close()
+    }
+  }
+
+  private def selectRows(rows: Array[Int]): TargetTable =
+    new TargetTable(rows.map(origins(_)), rows.map(targets(_)), rows.map(scores(_)), rows.map(infos(_)))
+
+  def filterWith(test: Int => Boolean): TargetTable =
+    selectRows((0 until size).filter(test).toArray)
+
+  def scoreFilter(minScore: Double): TargetTable = {
+    val passing = rowsByScore.takeWhile(scores(_) >= minScore)
+    java.util.Arrays.sort(passing)
+    selectRows(passing)
+  }
 
   def speciesFilter(species: Species): TargetTable = {
     val shortCode = species.shortCode
@@ -92,15 +253,12 @@ class TargetTable(
    */
   def probesForTranscripts(platform: Iterable[Probe], transcripts: Iterable[RefSeq]):
     Iterable[(RefSeq, Iterable[Probe])] = {
-    // Note: this function could be a static lookup map?
-    val allTrn = transcripts.toSet
-    val r = for {
-      p <- platform.toSeq;
-      foundTrn <- p.transcripts.filter(allTrn.contains)
-    } yield (foundTrn, p)
-    r.groupBy(_._1).mapValues(_.map(_._2))
+    val index = TargetTable.transcriptIndex(platform)
+    transcripts.toSeq.distinct.flatMap(t => index.get(t).map(t -> _))
   }
 
+  private def limit(countLimit: Option[Int]) = countLimit.map(_ + 1).getOrElse(Int.MaxValue)
+
   /**
    * miRNA to mRNA lookup without a platform. Simple RefSeq IDs will be returned.
    * @param countLimit An optional limit on the number of targets to return for
@@ -109,16 +267,18 @@ class TargetTable(
    */
   def targets(miRNAs: Iterable[MiRNA],
               countLimit: Option[Int] = None
-             ): Iterable[(MiRNA, RefSeq, Double, String)] = {
-    val allMicro = miRNAs.toSet
-    val allResults = for {
-      (origin, target, score, info) <- this;
-      if (allMicro.contains(origin))
-    } yield (origin, target, score, info.label(score))
-    countLimit match {
-      case Some(n) => allResults.groupBy(_._1).mapValues(_.slice(0, n+1)).values.flatten
-      case None => allResults
-    }
+             ): Iterable[(MiRNA, RefSeq, Double, String)] =
+    targets(miRNAs, countLimit, Double.NegativeInfinity)
+
+  /**
+   * miRNA to mRNA lookup for interactions with at least the given score.
+   */
+  def targets(miRNAs: Iterable[MiRNA], countLimit: Option[Int],
+              minScore: Double): Iterable[(MiRNA, RefSeq, Double, String)] = {
+    for {
+      origin <- miRNAs.toSeq.distinct;
+      i <- originIndex.rows(origin.id, scores, minScore, limit(countLimit))
+    } yield (origin, RefSeq(targets(i)), scores(i), infos(i).label(scores(i)))
   }
 
   /**
@@ -132,7 +292,7 @@ class TargetTable(
                          countLimit: Option[Int] = None
              ): Iterable[(MiRNA, Probe, Double, String)] = {
     val allTrn = targets(miRNAs, countLimit)
-    val probeLookup = Map() ++ probesForTranscripts(platform, allTrn.map(_._2))
+    val probeLookup = TargetTable.transcriptIndex(platform)
     //note: we are not deduplicating here, should define how to do it
     //(handling multiple scores for the same pair, etc)
     allTrn.flatMap(x => probeLookup.get(x._2) match {
@@ -151,18 +311,22 @@ class TargetTable(
   def reverseTargets(mRNAs: Iterable[Probe],
                      countLimit: Option[Int] = None
                     ): Iterable[(Probe, MiRNA, Double, String)] = {
-    val allTrns = mRNAs.flatMap(p => p.transcripts.map(tr => (tr, p)))
-    val allTrLookup = allTrns.groupBy(_._1)
-    val allTrKeys = allTrLookup.keySet
-    println(s"Size ${allTrKeys.size} transcript key set")
-    val allResults = for {
-      (origin, target, score, info) <- this;
-      if allTrKeys contains target;
-      (refSeq, probe) <- allTrLookup(target)
-    } yield (probe, origin, score, info.label(score))
-    countLimit match {
-      case Some(n) => allResults.groupBy(_._1).mapValues(_.slice(0, n+1)).values.flatten
-      case None => allResults
+    for {
+      probe <- mRNAs.toSeq.distinct;
+      i <- reverseRows(probe, countLimit)
+    } yield (probe, MiRNA(origins(i)), scores(i), infos(i).label(scores(i)))
+  }
+
+  /**
+   * Rows targeting any transcript of a probe, in descending score order.
+   */
+  private def reverseRows(probe: Probe, countLimit: Option[Int]): Seq[Int] = {
+    val n = limit(countLimit)
+    probe.transcripts.toSeq.distinct match {
+      case Seq(trn) => targetIndex.rows(trn.id, scores, limit = n)
+      case trns =>
+        val all = trns.flatMap(t => targetIndex.rows(t.id, scores, limit = n))
+        all.sortWith((a, b) => scores(a) > scores(b)).take(n)
     }
   }
 
@@ -335,6 +335,23 @@ class ProbeStore(val config: TriplestoreConfig) extends ListManager(config)
     makeMultiMap(triplestore.mapQuery(query).map(x => (Probe.unpack(x("p")), Gene(x("x")))))
   }
 
+  /**
+   * Obtain gene IDs for the given probes only.
+   */
+  def geneIds(probes: Iterable[Probe]): MMap[Probe, Gene] = {
+    if (probes.isEmpty) {
+      return makeMultiMap(Seq[(Probe, Gene)]())
+    }
+    val query = s"""$prefixes
+                   |SELECT DISTINCT ?p ?x WHERE {
+                   |  ${valuesMultiFilter("?p", probes.map(p => bracket(p.pack)))}
+                   |  GRAPH ?g {
+                   |    ?p a t:probe ; t:entrez ?x .
+                   |  }
+                   |}""".stripMargin
+    makeMultiMap(triplestore.mapQuery(query).map(x => (Probe.unpack(x("p")), Gene(x("x")))))
+  }
+
 
   def forTitlePatterns(patterns: Iterable[String]): Iterable[Probe] = {
     val query = s"""$tPrefixes
@@ -410,6 +427,22 @@ class ProbeStore(val config: TriplestoreConfig) extends ListManager(config)
       (x.getOrElse("s", x("l")), x("l")))
   }
 
+  /**
+   * All probes of a platform, as pairs of (symbol, probe label) like
+   * probesForPartialSymbol. Probes without a symbol are paired with their label.
+   */
+  def symbolsForPlatform(platform: String): Vector[(String, String)] = {
+    val query = s"""$prefixes
+                   |SELECT DISTINCT ?s ?l WHERE {
+                   |  GRAPH <${PlatformStore.defaultPrefix}/$platform> {
+                   |    ?p a $itemClass; rdfs:label ?l.
+                   |    OPTIONAL { ?p t:symbol ?s. }
+                   |  }
+                   |}""".stripMargin
+    triplestore.mapQuery(query, 60000).map(x =>
+      (x.getOrElse("s", x("l")), x("l")))
+  }
+
   /**
    * Based on a set of gene symbols, return the corresponding probes.
    */
@@ -453,6 +486,20 @@ class ProbeStore(val config: TriplestoreConfig) extends ListManager(config)
     triplestore.mapQuery(query).map(x => GOTerm(unpackGoterm(x("got")), x("gotn")))
   }
 
+  /**
+   * All GO terms, for building the local suggestion index.
+   */
+  def allGoTerms: Vector[GOTerm] = {
+    val query = s"""$tPrefixes
+                   |PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>
+                   |SELECT DISTINCT ?got ?gotn WHERE {
+                   |  GRAPH ?g {
+                   |    ?got rdfs:label ?gotn ; oboInOwl:id ?id
+                   |  }
+                   |}""".stripMargin
+    triplestore.mapQuery(query, 120000).map(x => GOTerm(unpackGoterm(x("got")), x("gotn")))
+  }
+
   //Task: A better solution is to have the URI of the GOTerm as a starting point to find the
   //probes, instead of looking for a matching name.
   def forGoTerm(term: GOTerm): Iterable[Probe] = {
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import scala.collection.JavaConverters._
+
+case class QueryCacheStats(hits: Long, misses: Long, evictions: Long, expirations: Long,
+  invalidations: Long, entries: Int, bytes: Long) {
+
+  def hitRate: Double = if (hits + misses == 0) 0 else hits.toDouble / (hits + misses)
+
+  override def toString =
+    s"QueryCache: $entries entries (about ${bytes / 1024} kB), $hits hits, $misses misses, " +
+    s"$evictions evicted, $expirations expired, $invalidations invalidations"
+}
+
+/**
+ * Cache for SPARQL query results.
+ * Keys are the normalised query text, prefixed with the kind of query and the
+ * endpoint queried, and values are immutable result vectors.
+ */
+trait QueryCache {
+  def get(key: String): Option[Vector[_]]
+
+  def put(key: String, result: Vector[_]): Unit
+
+  /**
+   * Store a result only if the cache has not been invalidated since the given
+   * generation was read. Protects against storing a result computed from data that
+   * was changed while the query was running.
+   */
+  def put(key: String, result: Vector[_], generation: Long): Unit
+
+  /**
+   * Remove all entries. Should be called when the underlying RDF data has changed.
+   */
+  def invalidate(): Unit
+
+  /**
+   * The number of invalidations so far. Read before computing a result to be stored.
+   */
+  def generation: Long
+
+  def stats: QueryCacheStats
+}
+
+object QueryCache {
+  /**
+   * Normalise query text so that queries differing only in layout share an entry.
+   * Runs of whitespace are collapsed, except inside quoted literals, where whitespace
+   * is part of the query's meaning.
+   */
+  def normalize(query: String): String = {
+    val r = new StringBuilder(query.length)
+    var quote = 0.toChar
+    var escaped = false
+    var pendingSpace = false
+    for (c <- query.trim) {
+      if (quote != 0) {
+        r += c
+        if (escaped) {
+          escaped = false
+        } else if (c == '\\') {
+          escaped = true
+        } else if (c == quote) {
+          quote = 0
+        }
+      } else if (Character.isWhitespace(c)) {
+        pendingSpace = true
+      } else {
+        if (pendingSpace) {
+          r += ' '
+          pendingSpace = false
+        }
+        if (c == '"' || c == '\'') {
+          quote = c
+        }
+        r += c
+      }
+    }
+    r.toString
+  }
+
+  /**
+   * Approximate heap size in bytes of a key or result, for bounding the cache.
+   */
+  def approximateSize(x: Any): Long = x match {
+    case s: String => 40 + 2L * s.length
+    case m: Map[_, _] => m.foldLeft(48L)((n, e) => n + 32 + approximateSize(e._1) +
+      approximateSize(e._2))
+    case xs: Iterable[_] => xs.foldLeft(24L)((n, y) => n + 8 + approximateSize(y))
+    case _ => 16
+  }
+
+  /**
+   * The cache shared by all triplestores, configured by the system properties
+   * t.sparql.cacheMegabytes (approximate maximum size of keys and results, 0 to disable)
+   * and t.sparql.cacheTTLSeconds.
+   */
+  def fromSystemProperties: QueryCache = {
+    val megabytes = Option(System.getProperty("t.sparql.cacheMegabytes")).map(_.toLong).
+      getOrElse(128L)
+    val ttl = Option(System.getProperty("t.sparql.cacheTTLSeconds")).map(_.toLong).
+      getOrElse(1800L)
+    if (megabytes <= 0) {
+      NoQueryCache
+    } else {
+      new LRUQueryCache(megabytes * 1024 * 1024, ttl * 1000)
+    }
+  }
+}
+
+object NoQueryCache extends QueryCache {
+  private val misses = new java.util.concurrent.atomic.AtomicLong()
+
+  def get(key: String) = {
+    misses.incrementAndGet()
+    None
+  }
+  def put(key: String, result: Vector[_]) {}
+  def put(key: String, result: Vector[_], generation: Long) {}
+  def invalidate() {}
+  def generation = 0L
+  def stats = QueryCacheStats(0, misses.get, 0, 0, 0, 0, 0)
+}
+
+/**
+ * A least recently used cache, bounded by the approximate total size of its keys and
+ * results (see QueryCache.approximateSize). Keys count too, since queries with large
+ * VALUES clauses can be much larger than their results.
+ * @param maxBytes the approximate maximum total size. Entries larger than this
+ *  are not cached.
+ * @param ttlMillis the maximum age of an entry
+ */
+class LRUQueryCache(maxBytes: Long, ttlMillis: Long) extends QueryCache {
+  private case class Entry(result: Vector[_], created: Long, weight: Long)
+
+  private val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+  private var bytes = 0L
+
+  private var hits = 0L
+  private var misses = 0L
+  private var evictions = 0L
+  private var expirations = 0L
+  private var invalidations = 0L
+
+  private def now = System.currentTimeMillis()
+
+  private def remove(key: String): Unit = {
+    val old = entries.remove(key)
+    if (old != null) {
+      bytes -= old.weight
+    }
+  }
+
+  def get(key: String): Option[Vector[_]] = synchronized {
+    Option(entries.get(key)) match {
+      case Some(e) if now - e.created <= ttlMillis =>
+        hits += 1
+        Some(e.result)
+      case Some(e) =>
+        remove(key)
+        expirations += 1
+        misses += 1
+        None
+      case None =>
+        misses += 1
+        None
+    }
+  }
+
+  def put(key: String, result: Vector[_]): Unit = synchronized {
+    val weight = QueryCache.approximateSize(key) + QueryCache.approximateSize(result)
+    if (weight <= maxBytes) {
+      remove(key)
+      entries.put(key, Entry(result, now, weight))
+      bytes += weight
+
+      //Iteration order is least recently used first
+      val it = entries.entrySet.iterator
+      while (bytes > maxBytes && it.hasNext) {
+        val e = it.next
+        it.remove()
+        bytes -= e.getValue.weight
+        evictions += 1
+      }
+    }
+  }
+
+  def put(key: String, result: Vector[_], generation: Long): Unit = synchronized {
+    if (generation == invalidations) {
+      put(key, result)
+    }
+  }
+
+  def invalidate(): Unit = synchronized {
+    entries.clear()
+    bytes = 0
+    invalidations += 1
+  }
+
+  def generation: Long = synchronized { invalidations }
+
+  /**
+   * Remove expired entries.
+   */
+  def expire(): Unit = synchronized {
+    val time = now
+    for (k <- entries.asScala.filter(e => time - e._2.created > ttlMillis).keys.toList) {
+      remove(k)
+      expirations += 1
+    }
+  }
+
+  def stats = synchronized {
+    QueryCacheStats(hits, misses, evictions, expirations, invalidations, entries.size, bytes)
+  }
+}
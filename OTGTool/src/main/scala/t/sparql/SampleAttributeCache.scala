@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import t.db.SampleId
+import t.model.sample.Attribute
+
+object SampleAttributeCache {
+  /**
+   * The cache shared by all sample stores, configured by the system properties
+   * t.sparql.sampleCacheSize (maximum number of samples, 0 to disable) and
+   * t.sparql.sampleCacheTTLSeconds.
+   */
+  def fromSystemProperties: SampleAttributeCache = {
+    val size = Option(System.getProperty("t.sparql.sampleCacheSize")).map(_.toInt).
+      getOrElse(50000)
+    val ttl = Option(System.getProperty("t.sparql.sampleCacheTTLSeconds")).map(_.toLong).
+      getOrElse(1800L)
+    new SampleAttributeCache(size, ttl * 1000)
+  }
+}
+
+/**
+ * Cache for sample attribute values, at the level of individual (sample, attribute) pairs,
+ * so that queries for overlapping sample and attribute sets can share results.
+ * Attributes known to be absent for a sample are cached as None.
+ * Samples are cached per endpoint (see Triplestore.endpointKey), since the same
+ * sample ID may have different attributes in different triplestores.
+ * @param maxSamples the maximum number of samples to hold. The least recently used
+ *  samples are dropped first.
+ * @param ttlMillis the maximum age of a sample's cached values
+ */
+class SampleAttributeCache(maxSamples: Int, ttlMillis: Long) {
+  private case class Entry(values: Map[Attribute, Option[String]], created: Long)
+
+  private val entries = new java.util.LinkedHashMap[(String, SampleId), Entry](16, 0.75f, true)
+  private var invalidations = 0L
+
+  private def now = System.currentTimeMillis()
+
+  /**
+   * Look up the given attributes of a sample. The result is only defined if all of
+   * the attributes are cached, and preserves their order.
+   */
+  def get(endpoint: String, sample: SampleId,
+          attributes: Seq[Attribute]): Option[Seq[(Attribute, Option[String])]] = synchronized {
+    val key = (endpoint, sample)
+    Option(entries.get(key)) match {
+      case Some(e) if now - e.created > ttlMillis =>
+        entries.remove(key)
+        None
+      case Some(e) if attributes.forall(e.values.contains) =>
+        Some(attributes.map(a => (a, e.values(a))))
+      case _ => None
+    }
+  }
+
+  /**
+   * Add attribute values for a sample, keeping any other values already cached for it.
+   * The values are only stored if the cache has not been invalidated since the given
+   * generation was read, i.e. while they were being queried.
+   */
+  def put(endpoint: String, sample: SampleId,
+          values: Iterable[(Attribute, Option[String])], generation: Long): Unit = synchronized {
+    if (maxSamples > 0 && generation == invalidations) {
+      val key = (endpoint, sample)
+      //Merged values expire with the oldest of them
+      val entry = Option(entries.get(key)) match {
+        case Some(old) => Entry(old.values ++ values, old.created)
+        case None => Entry(Map() ++ values, now)
+      }
+      entries.put(key, entry)
+
+      //Iteration order is least recently used first
+      val it = entries.entrySet.iterator
+      while (entries.size > maxSamples && it.hasNext) {
+        it.next
+        it.remove()
+      }
+    }
+  }
+
+  /**
+   * Remove all entries. Should be called when the underlying RDF data has changed.
+   */
+  def invalidate(): Unit = synchronized {
+    entries.clear()
+    invalidations += 1
+  }
+
+  /**
+   * The number of invalidations so far. Read before querying values to be stored.
+   */
+  def generation: Long = synchronized { invalidations }
+
+  def size: Int = synchronized { entries.size }
+}
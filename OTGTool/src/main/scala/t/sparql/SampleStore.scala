@@ -25,13 +25,33 @@ import t.db.Sample
 import t.sparql.{Filter => TFilter}
 import t.model.sample.{Attribute, AttributeSet, CoreParameter, OTGAttribute}
 
+import java.util.concurrent.ForkJoinPool
+
 import scala.collection.JavaConverters._
+import scala.collection.parallel.ForkJoinTaskSupport
 import t.model.sample.CoreParameter._
 import t.model.SampleClass
 
 object SampleStore extends RDFClass {
   val defaultPrefix = s"$tRoot/sample"
   val itemClass = "t:sample"
+
+  /**
+   * The maximum number of samples in each batched attribute query
+   * (system property t.sparql.sampleBatchSize).
+   */
+  def attributeBatchSize: Int =
+    Option(System.getProperty("t.sparql.sampleBatchSize")).map(_.toInt).getOrElse(200)
+
+  /**
+   * The maximum number of batched attribute queries to run at the same time
+   * (system property t.sparql.sampleQueryParallelism).
+   */
+  lazy val attributeQueryParallelism: Int =
+    Option(System.getProperty("t.sparql.sampleQueryParallelism")).map(_.toInt).getOrElse(4)
+
+  private lazy val attributeQueryTasks =
+    new ForkJoinTaskSupport(new ForkJoinPool(attributeQueryParallelism))
 }
 
 /**
@@ -223,9 +243,7 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestore)
 
   override def sampleAttributes(sample: Sample,
                                 querySet: Iterable[Attribute]): Seq[(Attribute, String)] =
-    parameterQuery(sample.sampleId, querySet).collect {
-      case (sp, Some(v)) => (sp, v)
-    }
+    batchedSampleAttributes(Seq(sample.sampleId), querySet).getOrElse(sample.sampleId, Seq())
 
   /**
    * Can the given predicate ID be queried as a predicate of a sample?
@@ -233,6 +251,75 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestore)
   protected def isPredicateAttribute(attribute: Attribute): Boolean =
     attribute != Batch
 
+  /**
+   * The attributes to query for, given a requested set (all attributes if empty).
+   */
+  protected def queryAttributes(querySet: Iterable[Attribute]): Seq[Attribute] =
+    (if (querySet.isEmpty) {
+      bc.attributes.getAll.asScala.toSeq
+    } else {
+      querySet
+    }).toSeq.filter(a => isPredicateAttribute(a))
+
+  protected def attributeCache: SampleAttributeCache = Triplestore.sampleAttributeCache
+
+  /**
+   * Get attribute values, if present, for a set of samples.
+   * Values found in the attribute cache are not queried again. Samples that were not
+   * found at all are not cached, since they may still be inserted. The remaining samples
+   * are fetched with VALUES queries of at most SampleStore.attributeBatchSize samples each,
+   * running up to SampleStore.attributeQueryParallelism queries at a time.
+   * @param querySet the attributes to fetch. If ordered, we preserve the ordering in the result
+   * @return attribute values for each sample. Samples that were not found have no values.
+   */
+  def batchedSampleAttributes(sampleIds: Iterable[DSampleId],
+                              querySet: Iterable[Attribute] = Seq()
+                             ): Map[DSampleId, Seq[(Attribute, String)]] = {
+    val queryParams = queryAttributes(querySet)
+    val endpoint = triplestore.endpointKey
+    val generation = attributeCache.generation
+    val lookups = sampleIds.toSeq.distinct.map(s =>
+      (s, attributeCache.get(endpoint, s, queryParams)))
+    val missing = lookups.collect { case (s, None) => s }
+
+    val batches = missing.grouped(SampleStore.attributeBatchSize).toVector.par
+    batches.tasksupport = SampleStore.attributeQueryTasks
+    val fetched = Map() ++ batches.map(b => attributeBatchQuery(b, queryParams)).seq.flatten
+    for ((s, values) <- fetched) {
+      attributeCache.put(endpoint, s, values, generation)
+    }
+
+    val all = lookups.collect { case (s, Some(values)) => (s, values) } ++ fetched
+    Map() ++ all.map { case (s, values) =>
+      s -> values.collect { case (a, Some(v)) => (a, v) }
+    }
+  }
+
+  /**
+   * Query attribute values for a single batch of samples.
+   * Samples that were not found are omitted from the result.
+   */
+  private def attributeBatchQuery(sampleIds: Seq[DSampleId], queryParams: Seq[Attribute]
+                                 ): Map[DSampleId, Seq[(Attribute, Option[String])]] = {
+    val withIndex = queryParams.zipWithIndex
+    val vars = withIndex.map("?k" + _._2 + " ").mkString
+    val triples = withIndex.map(x => " OPTIONAL { ?x t:" + x._1.id + " ?k" + x._2 + ". } ").mkString
+    val values = valuesMultiFilter("?id", sampleIds.map("\"" + _ + "\""))
+    val r = triplestore.mapQuery(s"""$tPrefixes
+                                   |SELECT ?id $vars WHERE {
+                                   |  $values
+                                   |  GRAPH ?batchGraph {
+                                   |    ?x rdfs:label ?id.
+                                   |    $triples
+                                   |  }
+                                   |}""".stripMargin, 20000)
+
+    Map() ++ r.groupBy(_("id")).map { case (id, rows) =>
+      val h = rows.head
+      id -> withIndex.map(x => (x._1, h.get("k" + x._2)))
+    }
+  }
+
   /**
    * Get parameter values for a set of samples. Values will only be returned
    * for samples that have values for *all* of the parameters requested.
@@ -242,11 +329,7 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestore)
                             queryAttribs: Iterable[Attribute] = Seq()
                            ): Seq[Sample] = {
 
-    val queryParams = (if (queryAttribs.isEmpty) {
-      bc.attributes.getAll.asScala.toSeq
-    } else {
-      queryAttribs
-    }).toSeq.filter(a => isPredicateAttribute(a))
+    val queryParams = queryAttributes(queryAttribs)
     val withIndex = queryParams.zipWithIndex
     val vars = withIndex.map("?k" + _._2 + " ").mkString
     val triples = withIndex.map(x => " ?x t:" + x._1.id + " ?k" + x._2 + ".  ").mkString
@@ -280,12 +363,7 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestore)
   def parameterQuery(sample: DSampleId,
                      querySet: Iterable[Attribute] = Seq()): Seq[(Attribute, Option[String])] = {
 
-    //val attrs = otg.model.sample.AttributeSet.getDefault
-    val queryParams = (if (querySet.isEmpty) {
-      bc.attributes.getAll.asScala.toSeq
-    } else {
-      querySet
-    }).toSeq.filter(a => isPredicateAttribute(a))
+    val queryParams = queryAttributes(querySet)
 
     val withIndex = queryParams.zipWithIndex
     val triples = withIndex.map(x => " OPTIONAL { ?x t:" + x._1.id + " ?k" + x._2 + ". } ")
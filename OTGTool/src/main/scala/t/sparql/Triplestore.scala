@@ -28,6 +28,7 @@ import org.eclipse.rdf4j.query.QueryLanguage
 import org.eclipse.rdf4j.repository.RepositoryConnection
 import org.eclipse.rdf4j.repository.sparql.SPARQLRepository
 import org.eclipse.rdf4j.rio.RDFFormat
+import t.global.Metrics
 
 import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext
@@ -37,6 +38,45 @@ object Triplestore {
   val executor = Executors.newCachedThreadPool()
   val executionContext = ExecutionContext.fromExecutor(executor)
 
+  /**
+   * Result cache shared by all triplestores. May be replaced, e.g. with NoQueryCache.
+   */
+  @volatile var queryCache: QueryCache = QueryCache.fromSystemProperties
+
+  /**
+   * Sample attribute values shared by all sample stores.
+   */
+  @volatile var sampleAttributeCache: SampleAttributeCache =
+    SampleAttributeCache.fromSystemProperties
+
+  val queryTimer = Metrics.timer("t_sparql_query_seconds",
+    "SPARQL queries not answered by the query cache, including fetching of results")
+  val updateTimer = Metrics.timer("t_sparql_update_seconds", "SPARQL updates and data insertions")
+
+  Metrics.gauge("t_sparql_cache_entries", "Entries in the SPARQL query cache") {
+    queryCache.stats.entries
+  }
+  Metrics.gauge("t_sparql_cache_hits", "SPARQL queries answered by the query cache") {
+    queryCache.stats.hits
+  }
+  Metrics.gauge("t_sparql_cache_misses", "SPARQL queries not answered by the query cache") {
+    queryCache.stats.misses
+  }
+  Metrics.gauge("t_sample_attribute_cache_samples",
+    "Samples in the sample attribute cache") {
+    sampleAttributeCache.size
+  }
+
+  /**
+   * Discard all cached query results. To be called after RDF data has been changed,
+   * e.g. by batch or platform management.
+   */
+  def invalidateCache(): Unit = {
+    queryCache.invalidate()
+    sampleAttributeCache.invalidate()
+    println(queryCache.stats)
+  }
+
   val tPrefixes: String = """PREFIX purl:<http://purl.org/dc/elements/1.1/>
     |PREFIX rdf:<http://www.w3.org/1999/02/22-rdf-syntax-ns#>
     |PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
@@ -63,6 +103,31 @@ object Triplestore {
     println("Get connection")
     rep.getConnection
   }
+
+  private val instances = new java.util.concurrent.atomic.AtomicLong()
+
+  /**
+   * Connections for repository URLs that are not SPARQL endpoints, by URL prefix.
+   * Tests can register e.g. in-process repositories here.
+   */
+  @volatile private var repositoryFactories = Map[String, String => RepositoryConnection]()
+
+  def registerRepositoryFactory(prefix: String, connect: String => RepositoryConnection): Unit =
+    synchronized {
+      repositoryFactories += prefix -> connect
+    }
+
+  /**
+   * Connect to the repository with the given URL, using a registered factory if one
+   * matches the URL, or as a SPARQL endpoint otherwise.
+   */
+  def connect(url: String, updateUrl: String = null,
+    user: String = null, pass: String = null): RepositoryConnection = {
+    repositoryFactories.find(f => url != null && url.startsWith(f._1)) match {
+      case Some((_, factory)) => factory(url)
+      case None => connectSPARQLRepository(url, updateUrl, user, pass)
+    }
+  }
 }
 
 abstract class Triplestore extends Closeable {
@@ -81,6 +146,32 @@ abstract class Triplestore extends Closeable {
   // Necessary for futures
   private[this] implicit val executionContext = Triplestore.executionContext
 
+  protected def cache: QueryCache = Triplestore.queryCache
+
+  private lazy val instanceKey = s"instance${Triplestore.instances.incrementAndGet}"
+
+  /**
+   * Identifies the endpoint queried, for keeping cached results apart.
+   * Triplestores with the same endpoint key share cached results. By default,
+   * each triplestore object has its own key.
+   */
+  def endpointKey: String = instanceKey
+
+  /**
+   * Obtain a query result from the cache, or compute and cache it.
+   */
+  private def cached[T](kind: String, query: String)(compute: => Vector[T]): Vector[T] = {
+    val key = s"$endpointKey:$kind:${QueryCache.normalize(query)}"
+    cache.get(key) match {
+      case Some(r) => r.asInstanceOf[Vector[T]]
+      case None =>
+        val generation = cache.generation
+        val r = Triplestore.queryTimer.time(compute)
+        cache.put(key, r, generation)
+        r
+    }
+  }
+
   /**
    * Perform a SPARQL query.
    */
@@ -114,7 +205,9 @@ abstract class Triplestore extends Closeable {
       try {
         val pq = con.prepareUpdate(QueryLanguage.SPARQL, query)
         pq.setMaxExecutionTime(0)
-        pq.execute()
+        Triplestore.updateTimer.time(pq.execute())
+        cache.invalidate()
+        Triplestore.sampleAttributeCache.invalidate()
       } catch {
         case e: Exception =>
           Console.err.println("Exception on query: " + query)
@@ -131,7 +224,11 @@ abstract class Triplestore extends Closeable {
       println(s"Triplestore is read-only, ignoring data insertion of $file into $context")
     } else {
       println(s"Insert file $file into $context")
-      con.add(file, null, RDFFormat.TURTLE, SimpleValueFactory.getInstance.createIRI(context))
+      Triplestore.updateTimer.time {
+        con.add(file, null, RDFFormat.TURTLE, SimpleValueFactory.getInstance.createIRI(context))
+      }
+      cache.invalidate()
+      Triplestore.sampleAttributeCache.invalidate()
     }
   }
 
@@ -149,7 +246,8 @@ abstract class Triplestore extends Closeable {
   /**
    * Query for some number of records, each containing a single field.
    */
-  def simpleQuery(query: String, quiet: Boolean = false, timeoutMillis: Int = 10000): Vector[String] = {
+  def simpleQuery(query: String, quiet: Boolean = false,
+      timeoutMillis: Int = 10000): Vector[String] = cached("simple", query) {
     val start = System.currentTimeMillis()
     val rs = evaluate(query, timeoutMillis)
     val recs = for (
@@ -167,7 +265,8 @@ abstract class Triplestore extends Closeable {
   /**
    * Query for some number of records, each containing some number of fields.
    */
-  def multiQuery(query: String, timeoutMillis: Int = 10000): Vector[Vector[String]] = {
+  def multiQuery(query: String,
+      timeoutMillis: Int = 10000): Vector[Vector[String]] = cached("multi", query) {
     val start = System.currentTimeMillis()
     val rs = evaluate(query, timeoutMillis)
     val recs = for (
@@ -182,7 +281,8 @@ abstract class Triplestore extends Closeable {
   /**
    * Query for some number of records, each containing named fields.
    */
-  def mapQuery(query: String, timeoutMillis: Int = 10000): Vector[Map[String, String]] = {
+  def mapQuery(query: String,
+      timeoutMillis: Int = 10000): Vector[Map[String, String]] = cached("map", query) {
     val start = System.currentTimeMillis()
     val rs = evaluate(query, timeoutMillis)
     val recs = for (
@@ -212,8 +312,15 @@ abstract class Triplestore extends Closeable {
   }
 }
 
-class SimpleTriplestore(val con: RepositoryConnection, override val isReadonly: Boolean) extends Triplestore {
+/**
+ * @param endpoint identifies the endpoint connected to (see endpointKey), or null if
+ *  results should not be shared with other triplestore objects
+ */
+class SimpleTriplestore(val con: RepositoryConnection, override val isReadonly: Boolean,
+                        endpoint: String = null) extends Triplestore {
   if (isReadonly) {
     println("SPARQL READ ONLY MODE - no RDF data will be inserted or updated")
   }
+
+  override def endpointKey: String = Option(endpoint).getOrElse(super.endpointKey)
 }
@@ -41,11 +41,18 @@ class TriplestoreMetadata(sampleStore: SampleStore,
 
   override def samples: Iterable[Sample] = sampleStore.samples(SampleClassFilter(), sf)
 
-  override def sampleAttributes(s: Sample): Seq[(Attribute, String)] = {
-    sampleStore.parameterQuery(s.identifier, querySet).collect( {
-      case (sp, Some(s)) => (sp, s)
-    })
-  }
+  /**
+   * Attributes of all samples, fetched with batched queries on first use,
+   * so that iterating over the samples does not issue one query per sample.
+   */
+  protected lazy val attributesBySample: Map[DSampleId, Seq[(Attribute, String)]] =
+    sampleStore.batchedSampleAttributes(samples.map(_.sampleId), querySet)
+
+  override def sampleAttributes(s: Sample): Seq[(Attribute, String)] =
+    attributesBySample.get(s.sampleId) match {
+      case Some(attribs) => attribs
+      case None => sampleStore.sampleAttributes(s, querySet)
+    }
 
   override def attributeValues(attribute: Attribute): Seq[String] =
     sampleStore.sampleAttributeQuery(attribute, sf)().distinct
@@ -90,6 +90,16 @@ class B2RKegg(val con: RepositoryConnection) extends Triplestore with Store[Path
         "} } order by ?title limit " + maxSize).toVector
   }
 
+  /**
+   * All pathway titles, for building the local suggestion index.
+   */
+  def allPathwayTitles: Vector[String] = {
+    simpleQuery(prefixes +
+      """SELECT DISTINCT ?title where { graph ?gr {
+        ?pw rdf:type kv:Pathway;
+        dc:title ?title . } }""", false, 120000)
+  }
+
   /**
    * Obtain all pathways associated with each of a set of genes.
    */
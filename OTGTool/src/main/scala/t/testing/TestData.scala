@@ -43,11 +43,11 @@ object TestData {
     (p, enumMaps(DoseLevel.id)(p)))
 
   def mkPointsTime(pr: String): Seq[SeriesPoint] = {
-    usedTimePoints.map(t => mkPoint(pr, t._2)).toSeq
+    usedTimePoints.map(t => mkPoint(pr, t._2)).toSeq.sortBy(_.code)
   }
 
   def mkPointsDose(pr: String): Seq[SeriesPoint] = {
-    usedDosePoints.map(t => mkPoint(pr, t._2)).toSeq
+    usedDosePoints.map(t => mkPoint(pr, t._2)).toSeq.sortBy(_.code)
   }
 
   lazy val series = for (compound <- enumValues(Compound.id).toSeq;
@@ -60,4 +60,45 @@ class SeriesMatchingTest extends TTestSuite {
     val x = safePCorrelation(d1, d2)
     assert(java.lang.Double.isNaN(x))
   }
+
+  test("Scoring series matrices") {
+    import t.SeriesMatrix
+    import t.SeriesRanking._
+    import t.util.SafeMath._
+
+    val series = Seq(
+      Seq(ExprValue(1.0), ExprValue(2.0, 'A'), ExprValue(3.0)),
+      Seq(ExprValue(-1.0), ExprValue(-2.0), ExprValue(-4.0)),
+      Seq(ExprValue(0.5), ExprValue(Double.NaN), ExprValue(2.0)),
+      Seq(ExprValue(1.0, 'A'), ExprValue(2.0, 'A'), ExprValue(3.0, 'A'))
+    ).map(ps => OTGSeries(TimeSeries, null, null, null, 0, "c", "t", null, mkSeries(ps)))
+    val m = SeriesMatrix(series)
+
+    def check(rt: RankType, expected: OTGSeries => Double) {
+      for ((s, score) <- series.zip(rt.scoreAll(m))) {
+        val e = expected(s)
+        if (java.lang.Double.isNaN(e)) {
+          assert(java.lang.Double.isNaN(score))
+        } else {
+          score should equal(e)
+        }
+      }
+    }
+
+    check(Sum, s => (50 + safeMean(s.presentValues)) / 50)
+    check(Unchanged, s => (1000 - safeSum(s.presentValues.map(x => x * x))) / 1000)
+    check(HighVariance, s => (10 + safeSigma(s.presentValues)) / 10)
+    check(MinFold, s => 20 - safeMin(s.presentValues))
+    check(MaxFold, s => 20 + safeMax(s.presentValues))
+
+    val pattern = Vector(1.0, 2.0, 4.0)
+    check(MultiSynthetic(pattern),
+      s => safePCorrelation(pattern, s.values.map(_.value).toVector) + 1)
+
+    val ref = new ReferenceCompound("c", "t")
+    check(ref, s => safeMax(series.map(rc => safePCorrelation(rc, s) + 1)))
+
+    MonotonicIncreasing.scoreAll(m)(0) should equal(4)
+    MonotonicDecreasing.scoreAll(m)(1) should equal(5)
+  }
 }
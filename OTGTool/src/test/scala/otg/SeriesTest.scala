@@ -115,4 +115,15 @@ class SeriesTest extends TTestSuite {
         equal(ss.map(s => (s.probe, s.classCode)))
     }
   }
+
+  test("point merging") {
+    import t.db.{BasicExprValue, SeriesPoint}
+    def pts(codes: Int*) = codes.map(c => SeriesPoint(c, BasicExprValue(c, 'P')))
+    val base = OData.series.head.copy(points = pts(5, 1, 3))
+    val added = base.addPoints(base.copy(points = pts(4, 3)), OTGTimeSeriesBuilder)
+    added.points.map(_.code) should equal(Seq(1, 3, 4, 5))
+
+    val removed = added.removePoints(base.copy(points = pts(5, 2, 1)), OTGTimeSeriesBuilder)
+    removed.points.map(_.code) should equal(Seq(3, 4))
+  }
 }
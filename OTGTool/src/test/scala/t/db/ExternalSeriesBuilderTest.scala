@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.db
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.testing.FakeContext
+import t._
+
+@RunWith(classOf[JUnitRunner])
+class ExternalSeriesBuilderTest extends TTestSuite {
+  import t.testing.{TestData => OData}
+
+  test("Spill and merge") {
+    implicit val context = new FakeContext()
+    val input = OData.series
+    val ext = new ExternalSeriesBuilder(OTGTimeSeriesBuilder)
+    try {
+      //Split the points of each series over two runs, and the series themselves over a third
+      val (split, whole) = input.partition(_.probe % 2 == 0)
+      ext.add(split.map(s => s.copy(points = s.points.take(1))))
+      ext.add(split.map(s => s.copy(points = s.points.drop(1))).reverse)
+      ext.add(whole)
+      ext.runCount should equal(3)
+      ext.size should equal(split.size * 2 + whole.size)
+
+      val merged = ext.merged.toList
+      merged should contain theSameElementsAs(input)
+      val keys = merged.map(s => (s.probe, s.classCode))
+      keys should equal(keys.sorted)
+    } finally {
+      ext.close()
+    }
+  }
+
+  test("Sample chunks") {
+    val groups = Seq(("a", Seq(Sample("1"), Sample("2"))), ("b", Seq(Sample("3"))),
+      ("c", Seq(Sample("4"), Sample("5"), Sample("6"))))
+    ExternalSeriesBuilder.sampleChunks(groups, 3).map(_.map(_.sampleId)) should equal(
+      Seq(Seq("1", "2", "3"), Seq("4", "5", "6")))
+    ExternalSeriesBuilder.sampleChunks(groups, 2).map(_.map(_.sampleId)) should equal(
+      Seq(Seq("1", "2"), Seq("3"), Seq("4", "5", "6")))
+  }
+}
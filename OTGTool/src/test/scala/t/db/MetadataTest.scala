@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.db
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.model.sample.CoreParameter.{Batch, ControlGroup}
+import t.model.sample.OTGAttribute.ExposureTime
+
+@RunWith(classOf[JUnitRunner])
+class MetadataTest extends TTestSuite {
+  import t.testing.{TestData => OData}
+
+  val md = OData.metadata
+
+  def key(s: Sample) =
+    (md.sampleAttribute(s, ControlGroup), md.sampleAttribute(s, ExposureTime),
+      md.sampleAttribute(s, Batch))
+
+  test("control samples") {
+    for (s <- md.samples) {
+      val expected = md.samples.filter(x => key(x) == key(s) && md.isControl(x))
+      md.controlSamples(s).toSeq should equal(expected.toSeq)
+    }
+  }
+
+  test("treated and control groups") {
+    val groups = md.treatedControlGroups(md.samples)
+    groups.flatMap(_._1).toSeq should contain theSameElementsAs(
+      md.samples.filter(!md.isControl(_)).toSeq)
+    for ((treated, controls) <- groups; t <- treated) {
+      controls.toSet should equal(md.controlSamples(t).toSet)
+    }
+  }
+
+  test("control group index updates") {
+    val controls = md.samples.filter(md.isControl).toSeq
+    val (s1, s2) = (controls(0), controls(1))
+    val index = new ControlGroupIndex(Seq("a" -> s1))
+    index.add(Seq("a" -> s2, "b" -> s2))
+    index("a") should equal(Seq(s1, s2))
+    index("b") should equal(Seq(s2))
+
+    index.remove(Seq("a" -> s1, "b" -> s2))
+    index("a") should equal(Seq(s2))
+    index("b") should equal(Seq())
+    index.keys.toSet should equal(Set("a"))
+
+    //Removing unknown samples or keys has no effect
+    index.remove(Seq("a" -> s1, "c" -> s1))
+    index("a") should equal(Seq(s2))
+  }
+}
@@ -59,4 +59,40 @@ class CSVRawExpressionDataTest extends TTestSuite {
       d1.calls(s) should equal(d2.calls(s))
     }
   }
+
+  test("mapped table") {
+    val f = java.io.File.createTempFile("mapped", ".csv")
+    f.deleteOnExit()
+    val values = Seq("1.5", "-0.25", "33.4524620452089", "1e-3", "\"2.5E+4\"",
+      "0.1234567890123456789", "NaN", "-0", "7", " 12.75 ", "1e30", "3.")
+    val header = "\"\"," + (0 until values.size).map(i => s"\"s$i\"").mkString(",")
+    val lines = Seq(header, "\"p1\"," + values.mkString(","), "", "\"p2\",1,2")
+    java.nio.file.Files.write(f.toPath, lines.mkString("\r\n").getBytes("UTF-8"))
+
+    var warnings = 0
+    val t = new MappedCSVTable(f.getPath, Some(values.size + 1), _ => warnings += 1)
+    t.columns.toSeq should equal("" +: (0 until values.size).map(i => s"s$i"))
+    t.rowKeys should equal(Seq("p1"))
+    warnings should equal(1)
+    for ((v, i) <- values.zipWithIndex) {
+      val expected = java.lang.Double.parseDouble(v.replace("\"", "").trim)
+      java.lang.Double.compare(t.double(0, i + 1), expected) should equal(0)
+    }
+  }
+
+  test("mapped table with CR line endings, closing") {
+    val f = java.io.File.createTempFile("mapped", ".csv")
+    f.deleteOnExit()
+    java.nio.file.Files.write(f.toPath, "\"\",\"s1\"\r\"p1\",1.5\r\r\"p2\",2".getBytes("UTF-8"))
+
+    val table = new MappedCSVTable(f.getPath, Some(2), _ => ())
+    table.columns.toSeq should equal(Seq("", "s1"))
+    table.rowKeys should equal(Seq("p1", "p2"))
+    table.double(1, 1) should equal(2.0)
+
+    table.close()
+    table.rowKeys should equal(Seq("p1", "p2"))
+    an[IllegalStateException] should be thrownBy table.double(0, 1)
+    f.delete() should equal(true)
+  }
 }
@@ -19,10 +19,11 @@
 
 package t.db.kyotocabinet.chunk
 
+import kyotocabinet.DB
 import t.TTestSuite
 import t.db.kyotocabinet.KCDBTest
 import t.db.testing.DBTestData
-import t.db.PExprValue
+import t.db.{ColumnExpressionData, PExprValue, Sample}
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -48,6 +49,198 @@ class KCChunkMatrixDBTest extends TTestSuite {
     edb.release
   }
 
+  test("legacy format") {
+    val db = memDBHash
+    val edb = new KCChunkMatrixDB(db, true, LegacyChunkFormat)
+
+    testExtDb(edb, makeTestData(true))
+    edb.release
+  }
+
+  test("mixed formats") {
+    val db = memDBHash
+    val data = makeTestData(true)
+    val (first, second) = data.samples.splitAt(data.samples.size / 2)
+
+    val legacy = new KCChunkMatrixDB(db, true, LegacyChunkFormat)
+    for { s <- first; (p, v) <- data.asExtValues(s) } {
+      legacy.write(s, probeMap.pack(p), v)
+    }
+    val columnar = new KCChunkMatrixDB(db, true)
+    for { s <- second; (p, v) <- data.asExtValues(s) } {
+      columnar.write(s, probeMap.pack(p), v)
+    }
+
+    val ppacked = data.probes.map(probeMap.pack).sorted
+    for (s <- data.samples) {
+      val vs = columnar.valuesInSample(s, ppacked, false)
+      vs.toSet should equal(data.asExtValues(s).values.toSet)
+    }
+    db.close()
+  }
+
+  /**
+   * A database that fetches and stores only a few chunks per bulk operation,
+   * so that the test data spans many batches.
+   */
+  class SmallBatchDB(db: DB, format: ChunkFormat) extends KCChunkMatrixDB(db, true, format) {
+    override protected def bulkGetSize = 7
+  }
+
+  /**
+   * Reference result for valuesForSamplesAndProbes, read one probe (sparse)
+   * or one sample (dense) at a time like the MatrixDBReader implementation.
+   */
+  def perSampleRead(db: KCChunkMatrixDB, xs: Seq[Sample], probes: Seq[Int],
+      sparseRead: Boolean, presentOnly: Boolean): Seq[Seq[PExprValue]] = {
+    if (sparseRead) {
+      probes.map(p => {
+        val dat = Map() ++ db.valuesForProbe(p, xs).filter(!presentOnly || _._2.present)
+        xs.map(x => dat.getOrElse(x, db.emptyValue(probeMap, p)))
+      })
+    } else {
+      val ps = probes.filter(probeMap.keys.contains(_)).sorted
+      val columns = xs.map(x => db.valuesInSample(x, ps, true).toSeq)
+      ps.indices.map(p => xs.indices.map(columns(_)(p)))
+    }
+  }
+
+  def checkBulkRead(db: KCChunkMatrixDB, xs: Seq[Sample], probes: Seq[Int],
+      sparseRead: Boolean, presentOnly: Boolean) {
+    val bulk = db.valuesForSamplesAndProbes(xs, probes, sparseRead, presentOnly)
+    bulk.map(_.toSeq).toSeq should equal(perSampleRead(db, xs, probes, sparseRead, presentOnly))
+  }
+
+  def populated(db: KCChunkMatrixDB): KCChunkMatrixDB = {
+    val data = makeTestData(true)
+    for { s <- data.samples; (p, v) <- data.asExtValues(s) } {
+      db.write(s, probeMap.pack(p), v)
+    }
+    db
+  }
+
+  test("bulk read: sparse and present only") {
+    val edb = populated(new KCChunkMatrixDB(memDBHash, true))
+    val xs = edb.sortSamples(scala.util.Random.shuffle(samples.toSeq).take(30))
+    //Unsorted probes, spread over all chunks
+    val ps = scala.util.Random.shuffle(probes.toSeq).take(40)
+    for (presentOnly <- Seq(false, true)) {
+      checkBulkRead(edb, xs, ps, true, presentOnly)
+      checkBulkRead(edb, xs, ps, false, presentOnly)
+    }
+    edb.release
+  }
+
+  test("bulk read: probes absent from the probe map") {
+    val edb = populated(new KCChunkMatrixDB(memDBHash, true))
+    val xs = edb.sortSamples(samples.toSeq.take(20))
+    val ps = Seq(3, 1000, 130, 2000, 499)
+    checkBulkRead(edb, xs, ps, false, false)
+    edb.valuesForSamplesAndProbes(xs, ps, false, false).map(_.head.probe).toSeq should
+      equal(Seq(3, 130, 499).map(probeMap.unpack))
+    edb.release
+  }
+
+  test("bulk read: batch boundaries") {
+    for (format <- Seq(ChunkFormat.default, LegacyChunkFormat)) {
+      val edb = populated(new SmallBatchDB(memDBHash, format))
+      val xs = edb.sortSamples(samples.toSeq)
+      for (sparse <- Seq(false, true); presentOnly <- Seq(false, true)) {
+        checkBulkRead(edb, xs, probes, sparse, presentOnly)
+      }
+      edb.release
+    }
+  }
+
+  def packedValues(data: ColumnExpressionData, s: Sample): Seq[(Int, PExprValue)] =
+    data.asExtValues(s).toSeq.map(x => (probeMap.pack(x._1), x._2))
+
+  test("bulk write over existing chunks") {
+    for (format <- Seq(ChunkFormat.default, LegacyChunkFormat)) {
+      val edb = new SmallBatchDB(memDBHash, format)
+      val (first, second) = (makeTestData(true), makeTestData(true))
+      val existing = first.samples.take(first.samples.size / 2).toSet
+      for { s <- existing; (p, v) <- first.asExtValues(s) } {
+        edb.write(s, probeMap.pack(p), v)
+      }
+
+      //Several samples per batch, each batch spanning several bulk operations
+      val updates = second.samples.map(s => (s, packedValues(second, s)))
+      for (batch <- updates.grouped(25)) {
+        edb.writeSamples(batch)
+      }
+
+      val ppacked = probes.sorted
+      for (s <- second.samples) {
+        val old = if (existing.contains(s)) first.asExtValues(s) else Map()
+        val expected = old ++ second.asExtValues(s)
+        edb.valuesInSample(s, ppacked, false).toSet should equal(expected.values.toSet)
+      }
+      edb.release
+    }
+  }
+
+  test("bulk write: repeated samples and probes") {
+    for (format <- Seq(ChunkFormat.default, LegacyChunkFormat)) {
+      val edb = new KCChunkMatrixDB(memDBHash, true, format)
+      val data = makeTestData(false)
+      val s = data.samples.head
+      val vs = packedValues(data, s)
+      val replaced = vs.take(200).map(x => (x._1, x._2.copy(value = x._2.value + 1)))
+
+      edb.writeSamples(Seq((s, vs), (s, replaced)))
+      //The same probe twice for one sample
+      val (p, v) = replaced.head
+      val again = (p, v.copy(value = v.value + 1))
+      edb.writeSamples(Seq((s, Seq(replaced.head, again))))
+
+      val expected = Map() ++ vs ++ replaced + again
+      val read = edb.valuesInSample(s, probes.sorted, false).toSeq
+      read.size should equal(expected.size)
+      read.toSet should equal(expected.values.toSet)
+      edb.release
+    }
+  }
+
+  test("Chunk codec") {
+    def roundTrip(probes: Seq[Int], format: ChunkFormat): ChunkColumns = {
+      val cols = new ChunkColumns
+      for ((p, i) <- probes.zipWithIndex) {
+        val v = randomPExpr(probeMap.unpack(p))
+        cols.probes(i) = p
+        cols.values(i) = v.value
+        cols.pValues(i) = v.p
+        cols.calls(i) = v.call
+      }
+      cols.size = probes.size
+
+      val decoded = new ChunkColumns
+      ChunkCodec.decodeInto(ChunkCodec.encode(cols, format), decoded)
+      decoded.size should equal(cols.size)
+      decoded.probes.take(cols.size) should equal(cols.probes.take(cols.size))
+      decoded.calls.take(cols.size) should equal(cols.calls.take(cols.size))
+      for (i <- 0 until cols.size) {
+        decoded.values(i) should equal(cols.values(i) +- Math.abs(cols.values(i) * 1e-6))
+        decoded.pValues(i) should equal(cols.pValues(i) +- 1e-6)
+      }
+      decoded
+    }
+
+    val formats = List(LegacyChunkFormat, ColumnarChunkFormat(false, false),
+      ColumnarChunkFormat(false, true), ColumnarChunkFormat(true, true))
+    val dense = (128 until 256)
+    val sparse = dense.filter(_ => Math.random > 0.7)
+    for (f <- formats; ps <- List(dense, sparse, Seq(1000), Seq())) {
+      roundTrip(ps, f)
+    }
+
+    val packed = ChunkCodec.encode(roundTrip(dense, ChunkFormat.default), ChunkFormat.default)
+    val legacy = ChunkCodec.encode(roundTrip(dense, LegacyChunkFormat), LegacyChunkFormat)
+    ChunkCodec.isLegacy(packed) should be(false)
+    ChunkCodec.isLegacy(legacy) should be(true)
+    packed.length should be < legacy.length
+  }
+
   test("Vector Chunk") {
     def mkValues(n: Int) = (0 until n).map(i => randomPExpr(probeMap.unpack(i)))
 
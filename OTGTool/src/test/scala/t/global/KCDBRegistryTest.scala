@@ -19,7 +19,13 @@
 
 package t.global
 
+import scala.concurrent.Await
+import scala.concurrent.Future
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+
 import t.TTestSuite
+import t.db.kyotocabinet.KCIndexDB
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -44,4 +50,84 @@ class KCDBRegistryTest extends TTestSuite {
     KCDBRegistry.closeWriters()
   }
 
+  test("Reader pool") {
+    KCDBRegistry.getWriter(testFile)
+    KCDBRegistry.closeWriters()
+
+    val before = KCDBRegistry.readerPoolStats
+    val r1 = KCDBRegistry.getReader(testFile).get
+    val r2 = KCDBRegistry.getReader(testFile).get
+    assert(r1 eq r2)
+
+    val during = KCDBRegistry.readerPoolStats
+    during.opens should equal(before.opens + 1)
+    during.hits should equal(before.hits + 1)
+    during.borrowers should equal(before.borrowers + 2)
+
+    KCDBRegistry.releaseReader(r1)
+    KCDBRegistry.releaseReader(r2)
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers)
+
+    //Idle readers are reused
+    val r3 = KCDBRegistry.getReader(testFile).get
+    assert(r3 eq r1)
+    KCDBRegistry.releaseReader(r3)
+
+    //Writing retires the current reader
+    KCDBRegistry.getWriter(testFile)
+    KCDBRegistry.closeWriters()
+    val r4 = KCDBRegistry.getReader(testFile).get
+    assert(!(r4 eq r1))
+    KCDBRegistry.releaseReader(r4)
+  }
+
+  test("Double release") {
+    KCDBRegistry.getWriter(testFile)
+    KCDBRegistry.closeWriters()
+
+    val before = KCDBRegistry.readerPoolStats
+    val a = KCIndexDB(testFile, false)
+    val b = KCIndexDB(testFile, false)
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers + 2)
+
+    //Each borrower releases the shared handle at most once
+    a.release()
+    a.release()
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers + 1)
+    b.release()
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers)
+
+    //Releasing a handle more often than it was borrowed does not affect the count
+    val r = KCDBRegistry.getReader(testFile).get
+    KCDBRegistry.releaseReader(r)
+    KCDBRegistry.releaseReader(r)
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers)
+    val r2 = KCDBRegistry.getReader(testFile).get
+    KCDBRegistry.readerPoolStats.borrowers should equal(before.borrowers + 1)
+    KCDBRegistry.releaseReader(r2)
+  }
+
+  test("Writer queue") {
+    val w = KCDBRegistry.getWriter(testFile)
+    w should not equal(None)
+
+    val status = KCDBRegistry.writerStatus.find(_.file == testFileShort)
+    status.flatMap(_.holder) should equal(Some(Thread.currentThread.getName))
+
+    //Cannot be obtained while held
+    Await.result(Future { KCDBRegistry.getWriter(testFile, Some(100)) }, 10.seconds) should equal(None)
+
+    val waiter = Future {
+      val w2 = KCDBRegistry.getWriter(testFile, Some(10000))
+      w2 should not equal(None)
+      KCDBRegistry.releaseWriter(testFileShort)
+    }
+    Thread.sleep(100)
+    KCDBRegistry.writerStatus.find(_.file == testFileShort).map(_.waiting.size) should equal(Some(1))
+    KCDBRegistry.releaseWriter(testFileShort)
+    Await.result(waiter, 10.seconds)
+
+    KCDBRegistry.writerStatus.find(_.file == testFileShort) should equal(None)
+  }
+
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.global
+
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class MetricsTest extends TTestSuite {
+
+  test("counter") {
+    val c = Metrics.counter("t_test_counter", "Test counter")
+    val before = c.value
+    c.inc()
+    c.inc(4)
+    c.value should equal(before + 5)
+    Metrics.counter("t_test_counter", "Test counter") should be theSameInstanceAs(c)
+  }
+
+  test("timer quantiles") {
+    val timer = new Timer("t_test_timer_local", "Test timer")
+    timer.quantile(0.5) should equal(0.0)
+    for (i <- 0 until 90) {
+      timer.record(2 * 1000 * 1000) // 2 ms
+    }
+    for (i <- 0 until 10) {
+      timer.record(200L * 1000 * 1000) // 200 ms
+    }
+    timer.count should equal(100)
+    timer.quantile(0.5) should equal(0.0025)
+    timer.quantile(0.99) should equal(0.2)
+    timer.maxSeconds should equal(0.2)
+    timer.totalSeconds should be (2.18 +- 1e-9)
+
+    timer.record(100L * 1000 * 1000 * 1000) // above the largest bucket
+    timer.quantile(1.0) should equal(100.0)
+  }
+
+  test("timer exposition") {
+    val timer = Metrics.timer("t_test_timer", "Test timer")
+    timer.time { Thread.sleep(5) }
+    val lines = timer.exposition
+    lines should contain("# TYPE t_test_timer histogram")
+    lines should contain("""t_test_timer_bucket{le="+Inf"} 1""")
+    lines should contain("t_test_timer_count 1")
+  }
+
+  test("gauge and scrape") {
+    var x = 1.0
+    Metrics.gauge("t_test_gauge", "Test gauge")(x)
+    x = 3.0
+    val scrape = Metrics.scrape
+    scrape should include("# HELP t_test_gauge Test gauge\n")
+    scrape should include("t_test_gauge 3.0\n")
+  }
+
+  test("invalid and conflicting names") {
+    an[IllegalArgumentException] should be thrownBy {
+      Metrics.counter("t test", "Invalid")
+    }
+    Metrics.counter("t_test_conflict", "Counter")
+    an[IllegalArgumentException] should be thrownBy {
+      Metrics.timer("t_test_conflict", "Timer")
+    }
+  }
+
+  test("JMX") {
+    Metrics.counter("t_test_jmx", "Test counter").inc(2)
+    Metrics.registerJMX("test")
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = new ObjectName("t:type=Metrics,name=" + ObjectName.quote("test"))
+      server.getAttribute(name, "t_test_jmx") should equal(2.0)
+    } finally {
+      Metrics.unregisterJMX("test")
+    }
+  }
+}
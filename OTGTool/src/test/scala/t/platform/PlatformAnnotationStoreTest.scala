@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.platform
+
+import java.nio.file.Files
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.sparql.secondary.{Gene, Protein}
+
+@RunWith(classOf[JUnitRunner])
+class PlatformAnnotationStoreTest extends TTestSuite {
+  val dir = Files.createTempDirectory("annotations").toFile
+  dir.deleteOnExit()
+
+  val store = new PlatformAnnotationStore(dir.getAbsolutePath)
+
+  val p1 = Probe("p1", name = "Probe 1", titles = Seq("Probe 1"),
+    genes = Seq(Gene("100"), Gene("101")), symbols = Seq("Abc1"),
+    proteins = Seq(Protein("Q1")), platform = "pf1")
+  val p2 = Probe("p2", platform = "pf1")
+  val p3 = Probe("p3", symbols = Seq("Def2"), platform = "pf2")
+
+  test("write and look up") {
+    store.write("pf1", Seq(p1, p2))
+    store.write("pf2", Seq(p3))
+    store.contains("pf1") should equal(true)
+
+    val (found, missing) = store.lookup(Seq(Probe("p1"), Probe("p3"), Probe("p4")))
+    found.map(_.identifier) should equal(Seq("p1", "p3"))
+    missing.map(_.identifier) should equal(Seq("p4"))
+
+    val r1 = found(0)
+    r1.name should equal("Probe 1")
+    r1.titles.toSeq should equal(Seq("Probe 1"))
+    r1.genes.map(_.identifier).toSeq should equal(Seq("100", "101"))
+    r1.symbols.toSeq should equal(Seq("Abc1"))
+    r1.proteins.map(_.identifier).toSeq should equal(Seq("Q1"))
+    r1.platform should equal("pf1")
+    found(1).symbols.toSeq should equal(Seq("Def2"))
+
+    //Probes with a platform are only looked up in that platform
+    store.lookup(Seq(Probe("p1", platform = "pf2")))._2.map(_.identifier) should equal(Seq("p1"))
+    store.lookup(Seq(Probe("p3", platform = "pf2")))._1.map(_.identifier) should equal(Seq("p3"))
+  }
+
+  test("replace and delete") {
+    store.write("pf2", Seq(p3.copy(symbols = Seq("Xyz3"))))
+    //Make sure the change is detected even with coarse file timestamps
+    store.file("pf2").setLastModified(store.file("pf2").lastModified + 2000)
+    store.lookup(Seq(Probe("p3")))._1.head.symbols.toSeq should equal(Seq("Xyz3"))
+
+    store.delete("pf2")
+    store.contains("pf2") should equal(false)
+    store.lookup(Seq(Probe("p3")))._2.map(_.identifier) should equal(Seq("p3"))
+  }
+}
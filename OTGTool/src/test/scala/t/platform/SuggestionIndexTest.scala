@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.platform
+package t.platform
+
+import java.nio.file.Files
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.platform.SuggestionIndex.Entry
+
+@RunWith(classOf[JUnitRunner])
+class SuggestionIndexTest extends TTestSuite {
+  val index = new SuggestionIndex(Seq(
+    Entry("cell cycle", "GO:1"),
+    Entry("Cell", "GO:2"),
+    Entry("regulation of cell cycle", "GO:3"),
+    Entry("cellular response to stress", "GO:4"),
+    Entry("Wnt signaling", "GO:5"),
+    Entry("intracellular transport", "GO:6"),
+    Entry("Cell", "GO:2")))
+
+  def texts(query: String, k: Int = 10, prefixOnly: Boolean = false) =
+    index.search(query, k, prefixOnly).map(_.text)
+
+  test("ranking") {
+    index.size should equal(6)
+    texts("cell") should equal(Seq("Cell", "cell cycle", "cellular response to stress",
+      "regulation of cell cycle", "intracellular transport"))
+    texts("CELL", 2) should equal(Seq("Cell", "cell cycle"))
+    index.search("cell", 1).map(_.value) should equal(Seq("GO:2"))
+  }
+
+  test("word starts and substrings") {
+    texts("cyc") should equal(Seq("cell cycle", "regulation of cell cycle"))
+    texts("ycl") should equal(Seq("cell cycle", "regulation of cell cycle"))
+    texts("sig") should equal(Seq("Wnt signaling"))
+    //short queries only match at the start of words
+    texts("ce") should equal(Seq("Cell", "cell cycle", "cellular response to stress",
+      "regulation of cell cycle"))
+    texts("ll") should equal(Seq())
+  }
+
+  test("prefix only") {
+    texts("cell", prefixOnly = true) should equal(Seq("Cell", "cell cycle",
+      "cellular response to stress"))
+    texts("cyc", prefixOnly = true) should equal(Seq())
+  }
+
+  test("no matches") {
+    texts("xyz") should equal(Seq())
+    texts("") should equal(Seq())
+    texts("cell", 0) should equal(Seq())
+  }
+
+  test("store") {
+    val dir = Files.createTempDirectory("suggestions").toFile
+    dir.deleteOnExit()
+    val store = new SuggestionStore(dir.getAbsolutePath)
+
+    store.write(SuggestionStore.genes("pf1"), Seq(Entry("Cyp1a1", "p1"), Entry("p1", "p1"),
+      Entry("Cyp1a2", "p2"), Entry("p2", "p2")))
+    store.write(SuggestionStore.genes("pf2"), Seq(Entry("Cyp2e1", "p3"), Entry("Cyp1a1", "p4")))
+    store.genePlatforms.toSet should equal(Set("pf1", "pf2"))
+
+    store.geneSuggestions(Seq("pf1", "pf2", "pf3"), "cyp1", 10).map(_.value) should
+      equal(Seq("p1", "p4", "p2"))
+    store.geneSuggestions(Seq("pf2"), "cyp", 1) should equal(Seq(Entry("Cyp1a1", "p4")))
+    store.geneSuggestions(Seq("pf1"), "P2", 10) should equal(Seq(Entry("p2", "p2")))
+    store.search(SuggestionStore.GO_TERMS, "cell", 10) should equal(Seq())
+
+    store.delete(SuggestionStore.genes("pf2"))
+    store.genePlatforms should equal(Seq("pf1"))
+    store.index(SuggestionStore.genes("pf2")) should equal(None)
+
+    //Loaded indexes are reused, and replaced when written through the store
+    val pf1 = store.index(SuggestionStore.genes("pf1")).get
+    (store.index(SuggestionStore.genes("pf1")).get eq pf1) should equal(true)
+    store.write(SuggestionStore.genes("pf1"), Seq(Entry("Cyp3a4", "p5")))
+    store.geneSuggestions(Seq("pf1"), "cyp", 10) should equal(Seq(Entry("Cyp3a4", "p5")))
+  }
+}
@@ -39,4 +39,44 @@ class TargetTableTest extends TTestSuite {
      assert(tt.scoreFilter(90).toSet === assocs.filter(_._3 >= 90).toSet)
      assert(tt.scoreFilter(0).toSet === tt.toSet)
    }
+
+   test("indexed lookup") {
+     import NetworkTestData._
+     val tt = targets
+     val mirnas = mirnaIds.take(20).map(MiRNA(_))
+
+     val expected = tt.filter(x => mirnas.contains(x._1)).map(x => (x._1, x._2, x._3)).toSet
+     tt.targets(mirnas).map(x => (x._1, x._2, x._3)).toSet should equal(expected)
+     tt.targets(mirnas, None, 50).map(x => (x._1, x._2, x._3)).toSet should equal(
+       expected.filter(_._3 >= 50))
+
+     //Count limited lookups return the highest scoring targets
+     for ((m, ts) <- tt.targets(mirnas, Some(2)).groupBy(_._1)) {
+       val all = expected.filter(_._1 == m).toSeq.map(_._3).sorted.reverse
+       ts.map(_._3).toSeq should equal(all.take(3))
+     }
+
+     val mrnas = mrnaProbes.take(20)
+     val reverse = tt.reverseTargets(mrnas).map(x => (x._1.identifier, x._2, x._3)).toSet
+     reverse should equal((for {
+       p <- mrnas; trn <- p.transcripts; x <- tt; if x._2 == trn
+     } yield (p.identifier, x._1, x._3)).toSet)
+
+     val forPlatform = tt.targetsForPlatform(mirnas, mrnaProbes).map(x => (x._1, x._2.identifier)).toSet
+     forPlatform should equal((for {
+       x <- expected.toSeq; p <- mrnaProbes; if p.transcripts.toSeq.contains(x._2)
+     } yield (x._1, p.identifier)).toSet)
+   }
+
+   test("serialization") {
+     import java.io._
+     val tt = NetworkTestData.targets
+     val bytes = new ByteArrayOutputStream()
+     tt.writeTo(new DataOutputStream(bytes))
+     val read = TargetTable.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray)))
+
+     read.toVector should equal(tt.toVector)
+     val mirnas = NetworkTestData.mirnaIds.take(10).map(MiRNA(_))
+     read.targets(mirnas).toSet should equal(tt.targets(mirnas).toSet)
+   }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import org.eclipse.rdf4j.repository.{Repository, RepositoryConnection}
+import org.eclipse.rdf4j.repository.sail.SailRepository
+import org.eclipse.rdf4j.sail.memory.MemoryStore
+
+/**
+ * In-process, in-memory repositories, which can be used instead of a SPARQL endpoint
+ * by giving a triplestore URL such as memory:test, once register has been called.
+ * All connections to the same URL within a JVM see the same data, which is lost
+ * when the JVM exits.
+ */
+object MemoryRepository {
+  val PREFIX = "memory:"
+
+  private var repositories = Map[String, Repository]()
+
+  /**
+   * Make memory: URLs available to Triplestore.connect.
+   */
+  def register(): Unit =
+    Triplestore.registerRepositoryFactory(PREFIX, connect)
+
+  /**
+   * Connect to the in-memory repository with the given URL, creating it if necessary.
+   */
+  def connect(url: String): RepositoryConnection = {
+    val rep = synchronized {
+      repositories.get(url) match {
+        case Some(r) => r
+        case None =>
+          println("Initialize in-memory repository " + url)
+          val r = new SailRepository(new MemoryStore())
+          r.init()
+          repositories += url -> r
+          r
+      }
+    }
+    rep.getConnection
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.sparql
+
+import org.eclipse.rdf4j.repository.sail.SailRepository
+import org.eclipse.rdf4j.sail.memory.MemoryStore
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class QueryCacheTest extends TTestSuite {
+  val q1 = QueryCache.normalize("SELECT ?x WHERE {\n  ?x a ?y }")
+  val q2 = QueryCache.normalize("  SELECT ?x   WHERE { ?x a ?y }  ")
+
+  test("normalize") {
+    q1 should equal(q2)
+  }
+
+  test("normalize keeps whitespace in literals") {
+    def query(pattern: String) =
+      s"""SELECT ?x WHERE {  ?x rdfs:label ?l. FILTER regex(?l, $pattern) }"""
+    val (x, y) = (QueryCache.normalize(query("\"a  b\"")), QueryCache.normalize(query("\"a b\"")))
+    x should not equal(y)
+    x should include("\"a  b\"")
+    QueryCache.normalize(query("'a\\'  b'")) should include("'a\\'  b'")
+    QueryCache.normalize(query("\"\"\"a \n b\"\"\"")) should include("a \n b")
+  }
+
+  test("hits, misses and invalidation") {
+    val cache = new LRUQueryCache(10000, 60000)
+    cache.get(q1) should equal(None)
+    cache.put(q1, Vector("a", "b"))
+    cache.get(q2) should equal(Some(Vector("a", "b")))
+
+    val stats = cache.stats
+    stats.hits should equal(1)
+    stats.misses should equal(1)
+    stats.entries should equal(1)
+
+    cache.invalidate()
+    cache.get(q1) should equal(None)
+    cache.stats.entries should equal(0)
+  }
+
+  test("size bound") {
+    //Each of the entries a, b and c takes about 140 bytes
+    val cache = new LRUQueryCache(300, 60000)
+    cache.put("a", Vector(1, 2, 3))
+    cache.put("b", Vector(1, 2, 3))
+    cache.get("a") //a is now the most recently used entry
+    cache.put("c", Vector(1, 2, 3))
+
+    cache.get("b") should equal(None)
+    cache.get("a") should equal(Some(Vector(1, 2, 3)))
+    cache.stats.evictions should equal(1)
+
+    //Too large to be cached
+    cache.put("d", Vector.fill(20)(0))
+    cache.get("d") should equal(None)
+    //Keys count towards the size too
+    cache.put("e" * 200, Vector())
+    cache.get("e" * 200) should equal(None)
+  }
+
+  test("expiry") {
+    val cache = new LRUQueryCache(10000, 0)
+    cache.put("a", Vector(1))
+    Thread.sleep(5)
+    cache.get("a") should equal(None)
+    cache.stats.expirations should equal(1)
+  }
+
+  test("no stale results after invalidation") {
+    val cache = new LRUQueryCache(100, 60000)
+    val generation = cache.generation
+    //The data changes while a query is running
+    cache.invalidate()
+    cache.put("a", Vector(1), generation)
+    cache.get("a") should equal(None)
+
+    cache.put("a", Vector(2), cache.generation)
+    cache.get("a") should equal(Some(Vector(2)))
+  }
+
+  test("results are kept apart per repository") {
+    def store(value: String) = {
+      val rep = new SailRepository(new MemoryStore())
+      rep.init()
+      val ts = new SimpleTriplestore(rep.getConnection, false)
+      ts.update(s"""INSERT DATA { <http://x> <http://y> "$value" }""")
+      ts
+    }
+    val query = "SELECT ?v WHERE { <http://x> <http://y> ?v }"
+    val (ts1, ts2) = (store("1"), store("2"))
+    ts1.simpleQuery(query) should equal(Vector("1"))
+    ts2.simpleQuery(query) should equal(Vector("2"))
+    ts1.close()
+    ts2.close()
+  }
+
+  test("results are shared per endpoint") {
+    val rep = new SailRepository(new MemoryStore())
+    rep.init()
+    val query = "SELECT ?v WHERE { <http://x> <http://y> ?v }"
+    val ts1 = new SimpleTriplestore(rep.getConnection, false, "test|shared")
+    ts1.update("""INSERT DATA { <http://x> <http://y> "1" }""")
+    ts1.simpleQuery(query) should equal(Vector("1"))
+
+    val ts2 = new SimpleTriplestore(rep.getConnection, false, "test|shared")
+    val hits = Triplestore.queryCache.stats.hits
+    ts2.simpleQuery(query) should equal(Vector("1"))
+    Triplestore.queryCache.stats.hits should equal(hits + 1)
+    ts1.close()
+    ts2.close()
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.sparql
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.model.sample.OTGAttribute._
+
+@RunWith(classOf[JUnitRunner])
+class SampleAttributeCacheTest extends TTestSuite {
+
+  test("partial lookups") {
+    val cache = new SampleAttributeCache(10, 60000)
+    cache.put("e1", "s1", Seq(Compound -> Some("a"), DoseLevel -> None), 0)
+    cache.get("e1", "s1", Seq(DoseLevel, Compound)) should equal(
+      Some(Seq(DoseLevel -> None, Compound -> Some("a"))))
+    cache.get("e1", "s1", Seq(Compound, ExposureTime)) should equal(None)
+    cache.get("e1", "s2", Seq(Compound)) should equal(None)
+
+    cache.put("e1", "s1", Seq(ExposureTime -> Some("24 hr")), 0)
+    cache.get("e1", "s1", Seq(Compound, ExposureTime)) should equal(
+      Some(Seq(Compound -> Some("a"), ExposureTime -> Some("24 hr"))))
+
+    cache.invalidate()
+    cache.get("e1", "s1", Seq(Compound)) should equal(None)
+  }
+
+  test("endpoints are kept apart") {
+    val cache = new SampleAttributeCache(10, 60000)
+    cache.put("e1", "s1", Seq(Compound -> Some("a")), 0)
+    cache.put("e2", "s1", Seq(Compound -> Some("b")), 0)
+    cache.get("e1", "s1", Seq(Compound)) should equal(Some(Seq(Compound -> Some("a"))))
+    cache.get("e2", "s1", Seq(Compound)) should equal(Some(Seq(Compound -> Some("b"))))
+    cache.get("e3", "s1", Seq(Compound)) should equal(None)
+  }
+
+  test("size bound") {
+    val cache = new SampleAttributeCache(2, 60000)
+    cache.put("e1", "s1", Seq(Compound -> Some("a")), 0)
+    cache.put("e1", "s2", Seq(Compound -> Some("b")), 0)
+    cache.get("e1", "s1", Seq(Compound)) //s1 is now the most recently used entry
+    cache.put("e1", "s3", Seq(Compound -> Some("c")), 0)
+
+    cache.size should equal(2)
+    cache.get("e1", "s2", Seq(Compound)) should equal(None)
+    cache.get("e1", "s1", Seq(Compound)) should equal(Some(Seq(Compound -> Some("a"))))
+  }
+
+  test("disabled") {
+    val cache = new SampleAttributeCache(0, 60000)
+    cache.put("e1", "s1", Seq(Compound -> Some("a")), 0)
+    cache.get("e1", "s1", Seq(Compound)) should equal(None)
+  }
+
+  test("no stale values after invalidation") {
+    val cache = new SampleAttributeCache(10, 60000)
+    val generation = cache.generation
+    //The data changes while a query is running
+    cache.invalidate()
+    cache.put("e1", "s1", Seq(Compound -> Some("old")), generation)
+    cache.get("e1", "s1", Seq(Compound)) should equal(None)
+
+    cache.put("e1", "s1", Seq(Compound -> Some("new")), cache.generation)
+    cache.get("e1", "s1", Seq(Compound)) should equal(Some(Seq(Compound -> Some("new"))))
+  }
+
+  test("expiry") {
+    val cache = new SampleAttributeCache(10, 0)
+    cache.put("e1", "s1", Seq(Compound -> Some("a")), cache.generation)
+    Thread.sleep(5)
+    cache.get("e1", "s1", Seq(Compound)) should equal(None)
+    cache.size should equal(0)
+  }
+}
@@ -1,4 +1,5 @@
 import javax.servlet.ServletContext
+import t.global.Metrics
 import t.viewer.server.servlet._
 import org.scalatra._
 
@@ -9,5 +10,18 @@ import org.scalatra._
 class ScalatraBootstrap extends LifeCycle {
   override def init(context: ServletContext) {
     context.mount(new ScalatraJSONServlet(context), "/json/*")
+    context.mount(new MetricsServlet, "/metrics/*")
+    Metrics.registerJMX(metricsName(context))
   }
+
+  override def destroy(context: ServletContext) {
+    Metrics.unregisterJMX(metricsName(context))
+  }
+
+  /**
+   * Name for this web application's metrics in JMX.
+   */
+  private def metricsName(context: ServletContext) =
+    Option(context.getInitParameter("instanceName")).filter(_ != "").
+      getOrElse(context.getContextPath)
 }
@@ -30,11 +30,6 @@ abstract class ClusteringData {
   
   def colNames: Array[String]
   
-  /**
-   * A directory where the required R script is available
-   */
-  def codeDir: String
-  
   /**
    * Obtain column-major data for the specified rows and columns
    */
@@ -50,7 +45,7 @@ abstract class ClusteringData {
 /**
  * Example data provider with random data
  */
-class RandomData(val codeDir: String, cols: Array[String], rows: Array[String]) 
+class RandomData(cols: Array[String], rows: Array[String]) 
   extends ClusteringData {
   
   def rowNames = Array() ++ rows 
@@ -29,6 +29,12 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet
 
 import t.clustering.client.ClusteringService
 import t.clustering.shared.Algorithm
+import t.global.Metrics
+
+object ClusteringServiceImpl {
+  val clusteringTimer = Metrics.timer("t_clustering_seconds",
+    "Hierarchical clustering of rows and columns for heatmaps")
+}
 
 abstract class ClusteringServiceImpl[C, R] extends RemoteServiceServlet with ClusteringService[C, R] {
 
@@ -37,11 +43,13 @@ abstract class ClusteringServiceImpl[C, R] extends RemoteServiceServlet with Clu
 
     val data = clusteringData(columns, rows)
 
-    val clust = new RClustering(data.codeDir)
+    val clust = new InCHlibClustering
 
-    clust.clustering(data.data.flatten, Array() ++ data.rowNames,
+    ClusteringServiceImpl.clusteringTimer.time {
+      clust.clustering(data.data.flatten, Array() ++ data.rowNames,
         Array() ++ data.colNames,
         Array() ++ data.geneSymbols, algorithm)
+    }
   }
 
   protected def clusteringData(cols: JList[C], rows: JList[R]): ClusteringData
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import scala.collection.mutable
+
+import t.clustering.shared.{Distances, Methods}
+
+/**
+ * A distance matrix in condensed form, holding each pair (i, j), i < j, once.
+ */
+class DistanceMatrix(val n: Int) {
+  if (n.toLong * (n - 1) / 2 > Int.MaxValue) {
+    throw new IllegalArgumentException(s"Too many objects to cluster ($n)")
+  }
+
+  val values = new Array[Double]((n.toLong * (n - 1) / 2).toInt)
+
+  @inline private def index(i: Int, j: Int): Int =
+    if (i < j) {
+      (i.toLong * n - i.toLong * (i + 1) / 2 + (j - i - 1)).toInt
+    } else {
+      (j.toLong * n - j.toLong * (j + 1) / 2 + (i - j - 1)).toInt
+    }
+
+  def apply(i: Int, j: Int): Double = values(index(i, j))
+
+  def update(i: Int, j: Int, value: Double): Unit = {
+    values(index(i, j)) = value
+  }
+}
+
+object DistanceMatrix {
+
+  /**
+   * Compute distances between the rows of a matrix, in parallel.
+   * The distances are those of the R package amap (Dist), with the exception that
+   * correlation-based distances treat constant rows as uncorrelated with all other rows.
+   */
+  def apply(rows: Array[Array[Double]], distance: Distances): DistanceMatrix = {
+    import Distances._
+
+    val d = new DistanceMatrix(rows.length)
+    val prepared = distance match {
+      case PEARSON | ABSPEARSON => rows.map(normalized(_, false))
+      case COERRELATION | ABSORRELATION => rows.map(normalized(_, true))
+      case SPEARMAN => rows.map(ranks(_))
+      case _ => rows
+    }
+    val f: (Array[Double], Array[Double]) => Double = distance match {
+      case EUCLIDIAN => euclidean
+      case MAXIMUM => maximum
+      case MANHATTAN => manhattan
+      case CANBERRA => canberra
+      case BINARY => binary
+      case PEARSON | COERRELATION => (x, y) => 1 - dot(x, y)
+      case ABSPEARSON | ABSORRELATION => (x, y) => 1 - Math.abs(dot(x, y))
+      case SPEARMAN => squaredEuclidean
+      case KENDALL => kendall
+    }
+
+    for (i <- (0 until rows.length).par) {
+      var j = i + 1
+      while (j < rows.length) {
+        d(i, j) = f(prepared(i), prepared(j))
+        j += 1
+      }
+    }
+    d
+  }
+
+  private def dot(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0.0
+    var i = 0
+    while (i < x.length) {
+      r += x(i) * y(i)
+      i += 1
+    }
+    r
+  }
+
+  /**
+   * Scale a vector (optionally centred first) to unit length, so that the dot product
+   * of two such vectors is their (uncentred or centred) Pearson correlation.
+   * Vectors of length 0 are left as zero vectors.
+   */
+  private def normalized(x: Array[Double], centre: Boolean): Array[Double] = {
+    val mean = if (centre && x.length > 0) x.sum / x.length else 0.0
+    val r = x.map(_ - mean)
+    val norm = Math.sqrt(dot(r, r))
+    if (norm > 0) {
+      for (i <- 0 until r.length) {
+        r(i) /= norm
+      }
+      r
+    } else {
+      new Array[Double](x.length)
+    }
+  }
+
+  /**
+   * Ranks (starting from 1), with ties given their average rank.
+   */
+  private def ranks(x: Array[Double]): Array[Double] = {
+    val order = (0 until x.length).sortBy(x(_)).toArray
+    val r = new Array[Double](x.length)
+    var i = 0
+    while (i < order.length) {
+      var j = i
+      while (j + 1 < order.length && x(order(j + 1)) == x(order(i))) {
+        j += 1
+      }
+      val rank = (i + j) / 2.0 + 1
+      for (k <- i to j) {
+        r(order(k)) = rank
+      }
+      i = j + 1
+    }
+    r
+  }
+
+  private def squaredEuclidean(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0.0
+    var i = 0
+    while (i < x.length) {
+      val d = x(i) - y(i)
+      r += d * d
+      i += 1
+    }
+    r
+  }
+
+  private def euclidean(x: Array[Double], y: Array[Double]): Double =
+    Math.sqrt(squaredEuclidean(x, y))
+
+  private def maximum(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0.0
+    for (i <- 0 until x.length) {
+      r = Math.max(r, Math.abs(x(i) - y(i)))
+    }
+    r
+  }
+
+  private def manhattan(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0.0
+    for (i <- 0 until x.length) {
+      r += Math.abs(x(i) - y(i))
+    }
+    r
+  }
+
+  private def canberra(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0.0
+    var count = 0
+    for (i <- 0 until x.length) {
+      val sum = Math.abs(x(i) + y(i))
+      val diff = Math.abs(x(i) - y(i))
+      if (sum > 0) {
+        r += diff / sum
+        count += 1
+      } else if (diff == 0) {
+        //0/0 terms are left out, and the remaining terms scaled up
+      } else {
+        r += Double.PositiveInfinity
+        count += 1
+      }
+    }
+    if (count == 0) 0 else r * x.length / count
+  }
+
+  private def binary(x: Array[Double], y: Array[Double]): Double = {
+    var total, differing = 0
+    for (i <- 0 until x.length) {
+      if (x(i) != 0 || y(i) != 0) {
+        total += 1
+        if (x(i) == 0 || y(i) == 0) {
+          differing += 1
+        }
+      }
+    }
+    if (total == 0) 0 else differing.toDouble / total
+  }
+
+  /**
+   * The number of discordant pairs.
+   */
+  private def kendall(x: Array[Double], y: Array[Double]): Double = {
+    var r = 0
+    for (i <- 0 until x.length; j <- i + 1 until x.length) {
+      if ((x(i) - x(j)) * (y(i) - y(j)) < 0) {
+        r += 1
+      }
+    }
+    r
+  }
+}
+
+/**
+ * The result of a hierarchical clustering, in the same form as from R's hclust.
+ * @param left first member of each merge step. Objects are negative (-1 is the first object),
+ *  and clusters are numbered by the step that formed them, starting from 1.
+ * @param right second member of each merge step
+ * @param height the distance at each merge step
+ * @param order the objects (numbered from 1) in dendrogram order
+ */
+case class Dendrogram(left: Array[Int], right: Array[Int], height: Array[Double],
+                      order: Array[Int]) {
+  def size: Int = order.length
+}
+
+/**
+ * Agglomerative hierarchical clustering with the linkage methods of R's hclust,
+ * producing the same dendrograms.
+ * Methods with the reducibility property (all except median and centroid) use the
+ * nearest-neighbour chain algorithm. Median and centroid use the same nearest neighbour
+ * list algorithm as hclust. Both need O(n^2) memory, for the distance matrix only.
+ */
+object HierarchicalClustering {
+  import Methods._
+
+  def isReducible(method: Methods): Boolean =
+    method != MEDIAN && method != CENTROID
+
+  /**
+   * Cluster the objects of a distance matrix. The matrix is overwritten.
+   */
+  def apply(d: DistanceMatrix, method: Methods): Dendrogram =
+    if (isReducible(method)) nnChain(d, method) else nnList(d, method)
+
+  /**
+   * Lance-Williams update: the distance between k and the union of i and j.
+   */
+  @inline private def update(method: Methods, dik: Double, djk: Double, dij: Double,
+                             ni: Double, nj: Double, nk: Double): Double = method match {
+    case WARD_D | WARD_D2 => ((ni + nk) * dik + (nj + nk) * djk - nk * dij) / (ni + nj + nk)
+    case SINGLE => Math.min(dik, djk)
+    case COMPLETE => Math.max(dik, djk)
+    case AVERAGE => (ni * dik + nj * djk) / (ni + nj)
+    case MCQUITTY => (dik + djk) / 2
+    case MEDIAN => (dik + djk) / 2 - dij / 4
+    case CENTROID => (ni * dik + nj * djk - ni * nj * dij / (ni + nj)) / (ni + nj)
+  }
+
+  private def checkSize(d: DistanceMatrix): Unit = {
+    if (d.n < 2) {
+      throw new IllegalArgumentException("At least 2 objects are needed for clustering")
+    }
+  }
+
+  //ward.D2 works with squared distances internally, as in hclust
+  private def prepare(d: DistanceMatrix, method: Methods): Unit = {
+    if (method == WARD_D2) {
+      for (i <- 0 until d.values.length) {
+        d.values(i) *= d.values(i)
+      }
+    }
+  }
+
+  private def finishHeights(heights: Array[Double], method: Methods): Unit = {
+    if (method == WARD_D2) {
+      for (i <- 0 until heights.length) {
+        heights(i) = Math.sqrt(heights(i))
+      }
+    }
+  }
+
+  /**
+   * Merge cluster j into cluster i (i < j), updating distances to all other active clusters.
+   */
+  private def merge(d: DistanceMatrix, method: Methods, i: Int, j: Int, dij: Double,
+                    active: Array[Boolean], size: Array[Int]): Unit = {
+    active(j) = false
+    var k = 0
+    while (k < d.n) {
+      if (active(k) && k != i) {
+        d(i, k) = update(method, d(i, k), d(j, k), dij, size(i), size(j), size(k))
+      }
+      k += 1
+    }
+    size(i) += size(j)
+  }
+
+  private def nnChain(d: DistanceMatrix, method: Methods): Dendrogram = {
+    checkSize(d)
+    prepare(d, method)
+    val n = d.n
+    val active = Array.fill(n)(true)
+    val size = Array.fill(n)(1)
+    val is, js = new Array[Int](n - 1)
+    val heights = new Array[Double](n - 1)
+
+    val chain = new Array[Int](n)
+    var chainSize = 0
+    var first = 0
+    for (step <- 0 until n - 1) {
+      if (chainSize == 0) {
+        while (!active(first)) {
+          first += 1
+        }
+        chain(0) = first
+        chainSize = 1
+      }
+
+      //Grow the chain until the last two clusters are reciprocal nearest neighbours.
+      //On ties, the previous element of the chain is preferred.
+      var a, b = -1
+      var min = 0.0
+      var found = false
+      while (!found) {
+        a = chain(chainSize - 1)
+        if (chainSize >= 2) {
+          b = chain(chainSize - 2)
+          min = d(a, b)
+        } else {
+          b = -1
+          min = Double.PositiveInfinity
+        }
+        var x = 0
+        while (x < n) {
+          if (active(x) && x != a) {
+            val dx = d(a, x)
+            if (dx < min || b == -1) {
+              min = dx
+              b = x
+            }
+          }
+          x += 1
+        }
+        if (chainSize >= 2 && b == chain(chainSize - 2)) {
+          found = true
+        } else {
+          chain(chainSize) = b
+          chainSize += 1
+        }
+      }
+      chainSize -= 2
+
+      val i = Math.min(a, b)
+      val j = Math.max(a, b)
+      is(step) = i
+      js(step) = j
+      heights(step) = min
+      merge(d, method, i, j, min, active, size)
+    }
+
+    //Merges were found out of order. For reducible methods, sorting them by height
+    //(stably) gives the same sequence as hclust.
+    val sorted = (0 until n - 1).sortBy(heights(_)).toArray
+    val sortedHeights = sorted.map(heights(_))
+    finishHeights(sortedHeights, method)
+    dendrogram(n, sorted.map(is(_)), sorted.map(js(_)), sortedHeights)
+  }
+
+  /**
+   * The nearest neighbour list algorithm of hclust, which works for all methods.
+   */
+  private[server] def nnList(d: DistanceMatrix, method: Methods): Dendrogram = {
+    checkSize(d)
+    prepare(d, method)
+    val n = d.n
+    val active = Array.fill(n)(true)
+    val size = Array.fill(n)(1)
+    val is, js = new Array[Int](n - 1)
+    val heights = new Array[Double](n - 1)
+
+    //Nearest neighbours of each cluster among the clusters with a greater index
+    val nn = new Array[Int](n)
+    val nnDist = new Array[Double](n)
+
+    def findNearest(i: Int): Unit = {
+      var min = Double.PositiveInfinity
+      var nearest = -1
+      var j = i + 1
+      while (j < n) {
+        if (active(j) && d(i, j) < min) {
+          min = d(i, j)
+          nearest = j
+        }
+        j += 1
+      }
+      nn(i) = nearest
+      nnDist(i) = min
+    }
+
+    for (i <- 0 until n - 1) {
+      findNearest(i)
+    }
+
+    for (step <- 0 until n - 1) {
+      var min = Double.PositiveInfinity
+      var im, jm = -1
+      for (i <- 0 until n - 1) {
+        if (active(i) && (nnDist(i) < min || im == -1 && nn(i) >= 0)) {
+          min = nnDist(i)
+          im = i
+          jm = nn(i)
+        }
+      }
+      val i = Math.min(im, jm)
+      val j = Math.max(im, jm)
+      is(step) = i
+      js(step) = j
+      heights(step) = min
+      merge(d, method, i, j, min, active, size)
+
+      //Update the nearest neighbour list insofar as required
+      findNearest(i)
+      for (k <- 0 until i) {
+        if (active(k) && d(k, i) < nnDist(k)) {
+          nnDist(k) = d(k, i)
+          nn(k) = i
+        }
+      }
+      for (k <- 0 until n - 1) {
+        if (active(k) && k != i && (nn(k) == i || nn(k) == j)) {
+          findNearest(k)
+        }
+      }
+    }
+    finishHeights(heights, method)
+    dendrogram(n, is, js, heights)
+  }
+
+  /**
+   * Number the merge steps in the same way as hclust.
+   * @param is the cluster (by its lowest object index) that each step merged into
+   * @param js the cluster that each step merged from
+   */
+  private def dendrogram(n: Int, is: Array[Int], js: Array[Int],
+                         heights: Array[Double]): Dendrogram = {
+    //The step that last formed the cluster at each index (1-based), or 0 for single objects
+    val clusterAt = new Array[Int](n)
+    val left, right = new Array[Int](n - 1)
+    for (s <- 0 until n - 1) {
+      val x = if (clusterAt(is(s)) == 0) -(is(s) + 1) else clusterAt(is(s))
+      val y = if (clusterAt(js(s)) == 0) -(js(s) + 1) else clusterAt(js(s))
+      //Single objects first, otherwise in increasing order
+      if ((x > 0 && y < 0) || (x > 0 && y > 0 && x > y)) {
+        left(s) = y
+        right(s) = x
+      } else {
+        left(s) = x
+        right(s) = y
+      }
+      clusterAt(is(s)) = s + 1
+    }
+
+    //Depth-first, left before right
+    val order = mutable.ArrayBuilder.make[Int]
+    val stack = new Array[Int](n + 1)
+    var top = 0
+    stack(0) = n - 1
+    while (top >= 0) {
+      val node = stack(top)
+      top -= 1
+      if (node < 0) {
+        order += -node
+      } else {
+        stack(top + 1) = right(node - 1)
+        stack(top + 2) = left(node - 1)
+        top += 2
+      }
+    }
+    Dendrogram(left, right, heights, order.result)
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import java.math.{BigDecimal, MathContext}
+
+import t.clustering.shared.Algorithm
+
+object InCHlibClustering {
+
+  /**
+   * Format a number as R does when converting it to JSON (15 significant digits).
+   */
+  def formatNumber(x: Double): String = {
+    if (java.lang.Double.isNaN(x) || java.lang.Double.isInfinite(x)) {
+      "null"
+    } else if (x == Math.rint(x) && Math.abs(x) < 1e15) {
+      x.toLong.toString
+    } else {
+      val d = new BigDecimal(x).round(new MathContext(15)).stripTrailingZeros
+      if (Math.abs(x) >= 1e-4 && Math.abs(x) < 1e15) {
+        d.toPlainString
+      } else {
+        val exponent = d.precision - d.scale - 1
+        val mantissa = d.movePointLeft(exponent).toPlainString
+        val sign = if (exponent < 0) "-" else "+"
+        f"${mantissa}e$sign${Math.abs(exponent)}%02d"
+      }
+    }
+  }
+
+  def quote(s: String): String = {
+    val sb = new StringBuilder("\"")
+    for (c <- s) {
+      c match {
+        case '"' => sb ++= "\\\""
+        case '\\' => sb ++= "\\\\"
+        case '\n' => sb ++= "\\n"
+        case '\r' => sb ++= "\\r"
+        case '\t' => sb ++= "\\t"
+        case _ if c < ' ' => sb ++= "\\" += 'u' ++= "%04x".format(c.toInt)
+        case _ => sb += c
+      }
+    }
+    sb += '"'
+    sb.toString
+  }
+}
+
+/**
+ * Performs a clustering in the JVM, producing the same InCHlib JSON data as the
+ * former R implementation (InCHlibUtils.R, which used hclust and amap).
+ * Column names are used as they are, and column dendrogram leaves are labelled
+ * with the names of the columns that they represent.
+ */
+class InCHlibClustering {
+  import InCHlibClustering._
+
+  //Types are Array rather than Seq for easy interop with Java
+
+  private final def safeData(d: Array[Double]) =
+    d.map(d => if (java.lang.Double.isInfinite(d) || java.lang.Double.isNaN(d)) { 0 } else d)
+
+  /**
+   * Perform the clustering and return the clusters as JSON data.
+   *
+   * @param data Row-major data (as a single sequence)
+   * @param rowNames Row names (such as affymetrix probes)
+   * @param colNames Column names
+   * @param geneSyms Gene symbols for each row
+   * @param algorithm The clustering algorithm to use
+   * @param featureDecimalDigits the number of digits after the decimal point to retain in features
+   */
+  def clustering(data: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      algorithm: Algorithm = new Algorithm(),
+      featureDecimalDigits: Int = -1): String = {
+    assert(data.length == rowNames.length * colNames.length)
+
+    val rows = safeData(data).grouped(colNames.length).toArray
+    val cols = Array.tabulate(colNames.length, rowNames.length)((c, r) => rows(r)(c))
+
+    val rowTree = HierarchicalClustering(DistanceMatrix(rows, algorithm.getRowDistance),
+      algorithm.getRowMethod)
+    val colTree = HierarchicalClustering(DistanceMatrix(cols, algorithm.getColDistance),
+      algorithm.getColMethod)
+
+    val colOrder = colTree.order.map(_ - 1)
+    val scale = Math.pow(10, featureDecimalDigits)
+    def features(row: Int): Array[Double] = colOrder.map(c => {
+      val v = rows(row)(c)
+      if (featureDecimalDigits >= 0) Math.rint(v * scale) / scale else v
+    })
+
+    val sb = new StringBuilder
+    sb ++= "{\"data\":{\"nodes\":"
+    writeNodes(sb, rowTree, rowNames, Some(features _), geneSyms, false)
+    sb ++= ",\"feature_names\":["
+    sb ++= colOrder.map(c => quote(colNames(c))).mkString(",")
+    sb ++= "]},\"column_dendrogram\":{\"nodes\":"
+    writeNodes(sb, colTree, colNames, None, Array.fill(colNames.length)(""), true)
+    sb ++= "}}"
+    sb.toString
+  }
+
+  /**
+   * Write the nodes of a dendrogram as a JSON object.
+   * @param leavesFirst if true, leaves are written first, in dendrogram order,
+   *  and then the inner nodes. Otherwise, each inner node is followed by its leaves.
+   */
+  private def writeNodes(sb: StringBuilder, tree: Dendrogram, names: Array[String],
+                         features: Option[Int => Array[Double]], appendixes: Array[String],
+                         leavesFirst: Boolean): Unit = {
+    val steps = tree.left.length
+    val parent = new Array[Int](steps)
+    val count = new Array[Int](steps)
+    val leafParent = new Array[Int](tree.size)
+    for (s <- 0 until steps) {
+      for (child <- Seq(tree.left(s), tree.right(s))) {
+        if (child < 0) {
+          leafParent(-child - 1) = s + 1
+          count(s) += 1
+        } else {
+          parent(child - 1) = s + 1
+          count(s) += count(child - 1)
+        }
+      }
+    }
+
+    def nodeName(id: Int) = if (id < 0) names(-id - 1) else s"nodes@$id"
+
+    def writeNode(s: Int): Unit = {
+      sb ++= quote(nodeName(s + 1)) ++= ":{\"left_child\":" ++= quote(nodeName(tree.left(s))) ++=
+        ",\"right_child\":" ++= quote(nodeName(tree.right(s))) ++=
+        ",\"count\":" ++= count(s).toString ++=
+        ",\"distance\":" ++= formatNumber(Math.max(tree.height(s), 0))
+      if (parent(s) > 0) {
+        sb ++= ",\"parent\":" ++= quote(nodeName(parent(s)))
+      }
+      sb += '}'
+    }
+
+    def writeLeaf(leaf: Int): Unit = {
+      val name = quote(names(leaf))
+      sb ++= name ++= ":{\"count\":1,\"parent\":" ++= quote(nodeName(leafParent(leaf))) ++=
+        ",\"distance\":0,\"objects\":[" ++= name ++= "],\"appendix\":" ++= quote(appendixes(leaf))
+      for (f <- features) {
+        sb ++= ",\"features\":[" ++= f(leaf).map(formatNumber).mkString(",") += ']'
+      }
+      sb += '}'
+    }
+
+    var first = true
+    def separate(): Unit = {
+      if (!first) {
+        sb += ','
+      }
+      first = false
+    }
+
+    sb += '{'
+    if (leavesFirst) {
+      for (leaf <- tree.order) {
+        separate()
+        writeLeaf(leaf - 1)
+      }
+      for (s <- 0 until steps) {
+        separate()
+        writeNode(s)
+      }
+    } else {
+      for (s <- 0 until steps) {
+        separate()
+        writeNode(s)
+        for (child <- Seq(tree.left(s), tree.right(s)); if child < 0) {
+          separate()
+          writeLeaf(-child - 1)
+        }
+      }
+    }
+    sb += '}'
+  }
+}
@@ -19,6 +19,8 @@
 
 package t.common.server.sample.search
 
+import java.util.BitSet
+
 import scala.collection.JavaConverters._
 import scala.collection.Seq
 import t.common.shared.DataSchema
@@ -33,6 +35,7 @@ import t.model.sample.{Attribute, AttributeSet, CoreParameter, SampleLike, Varia
 import t.sparql.SampleClassFilter
 import t.sparql.SampleFilter
 import t.sparql.SampleStore
+import t.sparql.Triplestore
 import t.viewer.server.Conversions.asJavaSample
 import t.viewer.server.UnitsHelper
 import t.viewer.shared.OTGSchema
@@ -57,29 +60,55 @@ trait SearchCompanion[ST <: SampleLike, SS <: AbstractSampleSearch[ST]] {
   def apply(condition: MatchCondition, sampleClass: SampleClass,
             sampleStore: SampleStore, schema: DataSchema,
             attributes: AttributeSet, sampleFilter: SampleFilter): SS = {
+    //Read before querying, so that the samples are at least as new as the generation
+    val generation = Triplestore.queryCache.generation
     val samples = rawSamples(condition, sampleClass, sampleFilter,
         sampleStore, schema, attributes)
     val unitHelper = new UnitsHelper(schema)
-    apply(samples, condition, unitHelper, attributes)
+    apply(samples, condition, unitHelper, attributes, Some(generation))
   }
 
+  /**
+   * @param generation the data generation that the samples were read from, if known.
+   *                   The sample index is only shared with other searches if it is given.
+   */
   def apply(samples: Iterable[Sample], condition: MatchCondition,
-      unitsHelper: UnitsHelper, attributes: AttributeSet): SS
+      unitsHelper: UnitsHelper, attributes: AttributeSet,
+      generation: Option[Long] = None): SS
 }
 
 abstract class AbstractSampleSearch[ST <: SampleLike](condition: MatchCondition,
-                                                      varianceSets: Map[String, VarianceSet], samples: Iterable[ST]) {
+                                                      varianceSets: Map[String, VarianceSet], samples: Iterable[ST],
+                                                      generation: Option[Long]) {
 
   protected def zTestSampleSize(s: ST): Int
   protected def sortObject(s: ST): (String, Int, Int)
 
   val MAX_PRINT = 20
 
+  /**
+   * Index of the samples being searched, ordered by ID. Intermediate results are bitmaps
+   * of the positions of samples in this index.
+   * When the data generation is known, the index is shared with other searches of the
+   * same kind over the same samples.
+   */
+  protected lazy val index = {
+    def id(s: ST) = Option(s.get(CoreParameter.SampleId)).getOrElse("")
+    val ordered = samples.toVector.sortBy(id)
+    generation match {
+      case Some(g) =>
+        SampleIndex.cached(getClass.getName, ordered, ordered.map(id), sampleAttributeValue, g)
+      case None =>
+        new SampleIndex[ST](ordered, sampleAttributeValue)
+    }
+  }
+
   /**
    * Results of the search.
    */
   lazy val results: Iterable[ST] = {
-    val searchResult = results(condition).toSeq.map(postProcessSample).sortBy(sortObject(_))
+    val searchResult = index.select(results(condition)).map(postProcessSample).
+      sortBy(sortObject(_))
 
     val count = searchResult.size
     val countString = if (count > MAX_PRINT) s"(displaying $MAX_PRINT/$count)"
@@ -97,38 +126,48 @@ abstract class AbstractSampleSearch[ST <: SampleLike](condition: MatchCondition,
   protected def sampleAttributeValue(sample: ST, attribute: Attribute): Option[Double] =
     t.db.Sample.numericalValue(sample, attribute)
 
-  private def paramComparison(sample: ST, attribute: Attribute,
+  private def paramComparison(ordinal: Int, attribute: Attribute,
                               controlGroupValue: ST => Option[Double],
                               comparator: (Double, Double) => Boolean): Option[Boolean] = {
-    val testValue = sampleAttributeValue(sample, attribute)
-    val reference = controlGroupValue(sample)
+    val testValue = index.value(ordinal, attribute)
+    val reference = controlGroupValue(index.samples(ordinal))
     (testValue, reference) match {
       case (Some(t), Some(r)) => Some(comparator(t, r))
       case _                  => None
     }
   }
 
-  private def paramIsHigh(sample: ST, attribute: Attribute): Option[Boolean] = {
-    paramComparison(sample, attribute,
+  private def paramIsHigh(ordinal: Int, attribute: Attribute): Option[Boolean] = {
+    paramComparison(ordinal, attribute,
       x => varianceSets.get(x.get(CoreParameter.SampleId)).
-          flatMap(x => Option(x.upperBound(attribute, zTestSampleSize(sample)))),
+          flatMap(x => Option(x.upperBound(attribute, zTestSampleSize(index.samples(ordinal))))),
       _ > _)
   }
 
-  private def paramIsLow(sample: ST, attribute: Attribute): Option[Boolean] = {
-    paramComparison(sample, attribute,
+  private def paramIsLow(ordinal: Int, attribute: Attribute): Option[Boolean] = {
+    paramComparison(ordinal, attribute,
       x => varianceSets.get(x.get(CoreParameter.SampleId)).
-          flatMap(x => Option(x.lowerBound(attribute, zTestSampleSize(sample)))),
+          flatMap(x => Option(x.lowerBound(attribute, zTestSampleSize(index.samples(ordinal))))),
       _ < _)
   }
 
-  private def results(condition: MatchCondition): Set[ST] =
+  private def results(condition: MatchCondition): BitSet =
     condition match {
-      //Note: could optimise and-evaluation by not evaluating unnecessary conditions
       case and: AndMatch =>
-        and.subConditions.asScala.map(results _).reduce(_ intersect _)
+        val subConditions = and.subConditions.asScala.iterator
+        val r = results(subConditions.next)
+        //Once nothing matches, the remaining conditions need not be evaluated
+        while (subConditions.hasNext && !r.isEmpty) {
+          r.and(results(subConditions.next))
+        }
+        r
       case or: OrMatch =>
-        or.subConditions.asScala.map(results _).reduce(_ union _)
+        val subConditions = or.subConditions.asScala.iterator
+        val r = results(subConditions.next)
+        while (subConditions.hasNext) {
+          r.or(results(subConditions.next))
+        }
+        r
       case at: AtomicMatch =>
         results(at)
     }
@@ -136,29 +175,24 @@ abstract class AbstractSampleSearch[ST <: SampleLike](condition: MatchCondition,
   private def doubleOption(d: java.lang.Double): Option[Double] =
     if (d == null) None else Some(d)
 
-  private def results(condition: AtomicMatch): Set[ST] =
-    samples.filter(matches(_, condition.matchType, condition.parameter,
-        doubleOption(condition.param1))).toSet
+  private def results(condition: AtomicMatch): BitSet = {
+    val attr = condition.parameter
+    condition.matchType match {
+      case MatchType.AboveLimit => index.atLeast(attr, doubleOption(condition.param1).get)
+      case MatchType.BelowLimit => index.atMost(attr, doubleOption(condition.param1).get)
+      case mt                   => index.filter(matches(_, mt, attr))
+    }
+  }
 
-  private def matches(s: ST, mt: MatchType, attr: Attribute,
-                      threshold: Option[Double]): Boolean =
+  private def matches(ordinal: Int, mt: MatchType, attr: Attribute): Boolean =
     mt match {
-      case MatchType.High => paramIsHigh(s, attr).getOrElse(false)
-      case MatchType.Low  => paramIsLow(s, attr).getOrElse(false)
+      case MatchType.High => paramIsHigh(ordinal, attr).getOrElse(false)
+      case MatchType.Low  => paramIsLow(ordinal, attr).getOrElse(false)
       case MatchType.NormalRange =>
-        !sampleAttributeValue(s, attr).isEmpty &&
-          paramIsHigh(s, attr) == Some(false) &&
-          paramIsLow(s, attr) == Some(false)
-      case _ =>
-        sampleAttributeValue(s, attr) match {
-          case Some(v) =>
-            mt match {
-              case MatchType.AboveLimit => v >= threshold.get
-              case MatchType.BelowLimit => v <= threshold.get
-              case _                    => throw new Exception("Unexpected match type")
-            }
-          case None => false
-        }
+        !index.value(ordinal, attr).isEmpty &&
+          paramIsHigh(ordinal, attr) == Some(false) &&
+          paramIsLow(ordinal, attr) == Some(false)
+      case _ => throw new Exception("Unexpected match type")
     }
 
   protected def doseLevelMap: Map[String, Int] =
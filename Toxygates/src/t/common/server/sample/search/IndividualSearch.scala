@@ -34,7 +34,7 @@ import t.common.shared.sample.Unit
 object IndividualSearch extends SearchCompanion[Sample, IndividualSearch] {
 
   def apply(samples: Iterable[Sample], condition: MatchCondition,
-      unitsHelper: UnitsHelper, attributes: AttributeSet) = {
+      unitsHelper: UnitsHelper, attributes: AttributeSet, generation: Option[Long]) = {
 
     val unitsAndVarianceSets = Map() ++
       unitsHelper.formControlUnitsAndVarianceSets(samples).flatMap {
@@ -51,13 +51,14 @@ object IndividualSearch extends SearchCompanion[Sample, IndividualSearch] {
     val units = unitsAndVarianceSetsById.mapValues(_._1)
     val varianceSets = unitsAndVarianceSetsById.mapValues(_._2)
 
-    new IndividualSearch(condition, varianceSets, units, treatedSamples)
+    new IndividualSearch(condition, varianceSets, units, treatedSamples, generation)
   }
 }
 
 class IndividualSearch(condition: MatchCondition, varianceSets: Map[String, VarianceSet],
-                       units: Map[String, (Unit, Unit)], samples: Iterable[Sample])
-    extends AbstractSampleSearch[Sample](condition, varianceSets, samples)  {
+                       units: Map[String, (Unit, Unit)], samples: Iterable[Sample],
+                       generation: Option[Long])
+    extends AbstractSampleSearch[Sample](condition, varianceSets, samples, generation)  {
 
   lazy val pairedResults = results.map(sample => (sample,
       units(sample.get(CoreParameter.SampleId))))
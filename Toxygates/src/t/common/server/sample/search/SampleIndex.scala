@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.common.server.sample.search
+
+import java.util.BitSet
+
+import scala.collection.mutable
+
+import t.model.sample.Attribute
+
+object SampleIndex {
+  /**
+   * Maximum number of sample sets whose columns are kept between searches.
+   */
+  val MAX_CACHED = 20
+
+  /**
+   * Parsed and sorted attribute values for one sequence of samples.
+   * @param generation the data generation that the values were read from
+   */
+  private[search] class Columns(val generation: Long) {
+    val byAttribute = mutable.Map[Attribute, Column]()
+  }
+
+  /**
+   * Values of one attribute, by sample ordinal and in sorted order.
+   * @param values the value for each ordinal
+   * @param defined ordinals of samples that have a value (possibly NaN)
+   */
+  private[search] class Column(val values: Array[Double], val defined: BitSet) {
+    /**
+     * Ordinals of the samples with a value other than NaN, in ascending order of value.
+     * NaN values never match ordered comparisons.
+     */
+    private val order: Array[Int] = {
+      val xs = Iterator.iterate(defined.nextSetBit(0))(i => defined.nextSetBit(i + 1)).
+        takeWhile(_ >= 0).filter(i => !values(i).isNaN).toArray
+      xs.sortBy(values(_))
+    }
+
+    private val sorted: Array[Double] = order.map(values(_))
+
+    /**
+     * The first position in sorted order whose value satisfies the predicate,
+     * which must hold for all larger values once it holds for one.
+     */
+    private def firstWhere(p: Double => Boolean): Int = {
+      var lo = 0
+      var hi = sorted.length
+      while (lo < hi) {
+        val mid = (lo + hi) >>> 1
+        if (p(sorted(mid))) {
+          hi = mid
+        } else {
+          lo = mid + 1
+        }
+      }
+      lo
+    }
+
+    private def ordinals(start: Int, end: Int, size: Int): BitSet = {
+      val r = new BitSet(size)
+      for (i <- start until end) {
+        r.set(order(i))
+      }
+      r
+    }
+
+    def atLeast(threshold: Double, size: Int): BitSet =
+      ordinals(firstWhere(_ >= threshold), sorted.length, size)
+
+    def atMost(threshold: Double, size: Int): BitSet =
+      ordinals(0, firstWhere(_ > threshold), size)
+  }
+
+  private val cache = new java.util.LinkedHashMap[(String, Seq[String]), Columns](16, 0.75f, true)
+
+  /**
+   * An index whose columns are shared with earlier indexes of the same kind over the same
+   * samples, as long as the data has not changed in between.
+   * Columns are computed from the samples of whichever index needs them first, so the
+   * values must only depend on the kind, the sample IDs and the data generation.
+   * @param kind distinguishes indexes whose values are obtained differently
+   * @param ids the IDs of the samples, in the same order
+   * @param generation the data generation that the samples were read from, e.g. the
+   *                   generation of the query cache when they were queried
+   */
+  def cached[ST](kind: String, samples: IndexedSeq[ST], ids: IndexedSeq[String],
+                 valueOf: (ST, Attribute) => Option[Double], generation: Long): SampleIndex[ST] = {
+    val key = (kind, ids)
+    val columns = cache.synchronized {
+      Option(cache.get(key)).filter(_.generation == generation).getOrElse({
+        val c = new Columns(generation)
+        cache.put(key, c)
+        //Iteration order is least recently used first
+        val it = cache.entrySet.iterator
+        while (cache.size > MAX_CACHED && it.hasNext) {
+          it.next
+          it.remove()
+        }
+        c
+      })
+    }
+    new SampleIndex(samples, valueOf, columns)
+  }
+}
+
+/**
+ * A column-wise index of numerical attribute values for a fixed sequence of samples.
+ * Samples are identified by their position (ordinal) in the sequence, and sets of
+ * samples are represented as bitmaps of ordinals, so that conjunctions and disjunctions
+ * of conditions become bitwise AND and OR.
+ * Each attribute is parsed once, on first use, into a primitive array of values, which
+ * is also sorted so that range conditions are answered by binary search.
+ * Indexes obtained through SampleIndex.cached share their columns between searches.
+ * @param samples the samples being searched
+ * @param valueOf obtains the numerical value of an attribute for a sample
+ */
+class SampleIndex[ST] private[search] (val samples: IndexedSeq[ST],
+    valueOf: (ST, Attribute) => Option[Double], columns: SampleIndex.Columns) {
+  import SampleIndex._
+
+  def this(samples: IndexedSeq[ST], valueOf: (ST, Attribute) => Option[Double]) =
+    this(samples, valueOf, new SampleIndex.Columns(0L))
+
+  def size: Int = samples.size
+
+  private def column(attribute: Attribute): Column = columns.synchronized {
+    columns.byAttribute.getOrElseUpdate(attribute, {
+      val values = new Array[Double](size)
+      val defined = new BitSet(size)
+      for (i <- 0 until size; v <- valueOf(samples(i), attribute)) {
+        values(i) = v
+        defined.set(i)
+      }
+      new Column(values, defined)
+    })
+  }
+
+  /**
+   * The value of an attribute for the sample with the given ordinal.
+   */
+  def value(ordinal: Int, attribute: Attribute): Option[Double] = {
+    val c = column(attribute)
+    if (c.defined.get(ordinal)) Some(c.values(ordinal)) else None
+  }
+
+  /**
+   * Samples whose value for the attribute is at least the threshold.
+   */
+  def atLeast(attribute: Attribute, threshold: Double): BitSet =
+    column(attribute).atLeast(threshold, size)
+
+  /**
+   * Samples whose value for the attribute is at most the threshold.
+   */
+  def atMost(attribute: Attribute, threshold: Double): BitSet =
+    column(attribute).atMost(threshold, size)
+
+  /**
+   * Samples that satisfy a predicate on their ordinal.
+   */
+  def filter(p: Int => Boolean): BitSet = {
+    val r = new BitSet(size)
+    for (i <- 0 until size; if p(i)) {
+      r.set(i)
+    }
+    r
+  }
+
+  /**
+   * The samples in a bitmap, in ordinal order.
+   */
+  def select(bits: BitSet): Seq[ST] =
+    Iterator.iterate(bits.nextSetBit(0))(i => bits.nextSetBit(i + 1)).
+      takeWhile(_ >= 0).map(samples(_)).toVector
+}
@@ -30,7 +30,7 @@ import t.viewer.server.UnitsHelper
 object UnitSearch extends SearchCompanion[Unit, UnitSearch] {
 
   def apply(samples: Iterable[Sample], condition: MatchCondition,
-      unitsHelper: UnitsHelper, attributes: AttributeSet) = {
+      unitsHelper: UnitsHelper, attributes: AttributeSet, generation: Option[Long]) = {
 
     val controlUnitsAndVarianceSets = unitsHelper.formControlUnitsAndVarianceSets(samples)
 
@@ -45,14 +45,14 @@ object UnitSearch extends SearchCompanion[Unit, UnitSearch] {
     val controlUnits = controlUnitsAndVarianceSetsbyID.mapValues(_._1)
     val varianceSets = controlUnitsAndVarianceSetsbyID.mapValues(_._2)
 
-    new UnitSearch(condition, varianceSets, controlUnits, units, attributes)
+    new UnitSearch(condition, varianceSets, controlUnits, units, attributes, generation)
   }
 }
 
 class UnitSearch(condition: MatchCondition,
                  varianceSets: Map[String, VarianceSet], controlUnits: Map[String, Unit],
-                 samples: Iterable[Unit], attributes: AttributeSet)
-    extends AbstractSampleSearch[Unit](condition, varianceSets, samples)  {
+                 samples: Iterable[Unit], attributes: AttributeSet, generation: Option[Long])
+    extends AbstractSampleSearch[Unit](condition, varianceSets, samples, generation)  {
 
   lazy val pairedResults = results.map(unit => (unit,
       controlUnits(unit.get(CoreParameter.SampleId))))
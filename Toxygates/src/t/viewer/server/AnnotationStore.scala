@@ -42,14 +42,13 @@ class AnnotationStore(val schema: DataSchema, val baseConfig: BaseConfig) {
       Option(s.get(schema.timeParameter()))).distinct
 
     val params = bioParameters.sampleParameters
-    val raw = samples.map(x => {
-      sampleStore.parameterQuery(x.id, params).toSeq
-    })
+    val values = sampleStore.batchedSampleAttributes(samples.map(_.id), params)
+    val raw = samples.map(x => Map() ++ values.getOrElse(x.id, Seq()))
 
     val colNames = params.map(_.title)
 
     val data = Vector.tabulate(raw.size, colNames.size)((s, a) =>
-      raw(s)(a)._2.getOrElse(""))
+      raw(s).getOrElse(params(a), ""))
 
     val bps = params.map(p => bioParameters.get(p))
     def extracts(b: Option[BioParameter], f: BioParameter => Option[String]): String =
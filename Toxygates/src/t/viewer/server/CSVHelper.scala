@@ -19,7 +19,9 @@
 
 package t.viewer.server
 
+import java.io._
 import java.util.Calendar
+import java.util.zip.GZIPOutputStream
 
 object CSVHelper {
 
@@ -50,20 +52,7 @@ object CSVHelper {
       outb.close()
     }
 
-    def format(obj: Any): String = {
-      obj match {
-        case Some(x) => {
-          x match {
-            case d: Double => format(d)
-            case _ => ""
-          }
-        }
-        case None => ""
-        case d: Double => d.toString
-        case i: Int    => i.toString
-        case _         => "\"" + obj.toString + "\""
-      }
-    }
+    def format(obj: Any): String = formatCell(obj)
 
     def colCount: Int
     def rowCount: Int
@@ -75,6 +64,53 @@ object CSVHelper {
 
   }
 
+  /**
+   * Format a single value for CSV output.
+   */
+  def formatCell(obj: Any): String = {
+    obj match {
+      case Some(x) => {
+        x match {
+          case d: Double => formatCell(d)
+          case _ => ""
+        }
+      }
+      case None => ""
+      case d: Double => d.toString
+      case i: Int    => i.toString
+      case _         => "\"" + obj.toString + "\""
+    }
+  }
+
+  /**
+   * Writes CSV rows to a stream as they are produced, so that the full table
+   * never needs to be held in memory.
+   */
+  class CSVWriter(out: Writer) extends Closeable {
+    def writeRow(cells: Iterable[Any]): Unit = {
+      var first = true
+      for (c <- cells) {
+        if (!first) {
+          out.write(",")
+        }
+        out.write(formatCell(c))
+        first = false
+      }
+      out.write("\n")
+    }
+
+    def close(): Unit = out.close()
+  }
+
+  /**
+   * Open a CSV writer on a stream, which will be closed when the writer is closed.
+   * @param gzip whether to compress the output
+   */
+  def openWriter(out: OutputStream, gzip: Boolean): CSVWriter = {
+    val stream = if (gzip) new GZIPOutputStream(out, 65536) else out
+    new CSVWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 65536))
+  }
+
   /**
    * Write expression values to a CSV files.
    * The given probes and geneIds only will be written.
@@ -67,7 +67,8 @@ object Configuration {
       p("matrixDbOptions"),
       p("feedbackReceivers"),
       p("feedbackFromAddress"),
-      readIntermineInstances)
+      readIntermineInstances,
+      Option(p("csvGzip")).exists(_.toBoolean))
   }
 }
 
@@ -87,7 +88,8 @@ class Configuration(val repositoryName: String,
     val matrixDbOptions: String = null,
     val feedbackReceivers: String = null,
     val feedbackFromAddress: String = null,
-    val intermineInstances: Iterable[IntermineInstance] = Seq()) {
+    val intermineInstances: Iterable[IntermineInstance] = Seq(),
+    val csvGzip: Boolean = false) {
 
   println(s"Created configuration with ${intermineInstances.size} intermine instances")
 
@@ -25,7 +25,7 @@ import t.sparql.ProbeStore
 import t.platform.Species.Species
 
 class PlatformRegistry(probeStore: ProbeStore) {
-  private val platformStore = new t.sparql.PlatformStore(probeStore.config)
+  private lazy val platformStore = new t.sparql.PlatformStore(probeStore.config)
   private def allPlatforms = ProbeStore.platformsAndProbes(platformStore, probeStore)
 
   //map platform to probe sets
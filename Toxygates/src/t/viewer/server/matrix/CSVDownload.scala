@@ -19,67 +19,105 @@
 
 package t.viewer.server.matrix
 
+import java.io.FileOutputStream
+import java.io.OutputStream
+
 import t.viewer.server.CSVHelper
 import t.sparql.ProbeStore
-import t.platform.Probe
+import t.platform.{PlatformAnnotationStore, Probe}
 
 object CSVDownload {
 
+  /**
+   * Number of rows whose gene IDs are looked up together.
+   */
+  val ROW_BATCH_SIZE = 1000
+
+  /**
+   * An output column, read from either the current or the raw ungrouped matrix.
+   */
+  private case class OutputColumn(name: String, fromUngrouped: Boolean, index: Int)
+
   /**
    * Generate a downloadable CSV file.
    * @param managedMat matrix data
    * @param probeStore probe data source
+   * @param annotations locally stored probe annotations, used where available
    * @param directory the directory to place the file in
    * @param individualSamples should columns be samples or groups?
-   * @param auxColumns function to generate auxiliary columns, if any.
+   * @param gzip should the file be compressed?
    * @return the name of the file generated in the directory.
    */
   def generate(managedMat: ManagedMatrix, probeStore: ProbeStore,
-               directory: String, individualSamples: Boolean): String = {
+               annotations: PlatformAnnotationStore,
+               directory: String, individualSamples: Boolean,
+               gzip: Boolean = false): String = {
+    if (managedMat.current.rows == 0) {
+      throw new Exception("No data supplied")
+    }
+    val name = CSVHelper.filename("toxygates", if (gzip) "csv.gz" else "csv")
+    write(managedMat, probeStore, annotations, new FileOutputStream(directory + "/" + name),
+      individualSamples, gzip)
+    name
+  }
 
-     var mat = if (individualSamples &&
-      managedMat.rawUngrouped != null && managedMat.current != null) {
-      //Individual samples
+  /**
+   * Write the matrix as CSV to a stream, which is closed afterwards.
+   * Rows are written as they are produced, and gene IDs are looked up in batches,
+   * only for the probes being written. Stored annotations are used where available,
+   * and the triplestore is only queried for the remaining probes.
+   */
+  def write(managedMat: ManagedMatrix, probeStore: ProbeStore,
+            annotations: PlatformAnnotationStore, out: OutputStream,
+            individualSamples: Boolean, gzip: Boolean): Unit = {
+    val current = managedMat.current
+    val ungrouped = managedMat.rawUngrouped
+    val individual = individualSamples && ungrouped != null && current != null
+
+    val columns = if (individual) {
       val info = managedMat.info
-      val keys = managedMat.current.rowKeys.toSeq
-      val ungrouped = managedMat.rawUngrouped.selectNamedRows(keys)
-      val parts = (0 until info.numDataColumns).map(g => {
+      (0 until info.numDataColumns).flatMap(g => {
         if (!info.isPValueColumn(g)) {
           //Help the user by renaming the columns.
           //Prefix sample IDs by group IDs.
-
-          val ids = info.samples(g).map(_.id)
-          val ungroupedSel = ungrouped.selectNamedColumns(ids)
-          val newNames = Map() ++ ungroupedSel.columnMap.map(x =>
-            (info.columnName(g) + ":" + x._1 -> x._2))
-          ungroupedSel.copyWith(ungroupedSel.rowData, ungroupedSel.rowMap, newNames)
+          info.samples(g).map(_.id).toSeq.flatMap(id =>
+            ungrouped.columnMap.get(id).map(c =>
+              OutputColumn(info.columnName(g) + ":" + id, true, c)))
         } else {
           //p-value column, present as it is
-          managedMat.current.selectColumns(List(g))
+          Seq(OutputColumn(current.columnAt(g), false, g))
         }
       })
-
-      parts.reduce(_ adjoinRight _)
     } else {
       //Grouped, no editing needed
-      managedMat.current
+      current.sortedColumnMap.map(c => OutputColumn(c._1, false, c._2))
     }
 
-    val colNames = mat.sortedColumnMap.map(_._1)
-    val rows = mat.asRows
-    //Task: move into RowLabels if possible
-    val rowNames = rows.map(_.atomicProbes.mkString("/"))
+    val writer = CSVHelper.openWriter(out, gzip)
+    try {
+      writer.writeRow(Seq("", "Gene") ++ columns.map(_.name))
 
-    //May be slow!
-    val gis = probeStore.allGeneIds.mapInnerValues(_.identifier)
-    val atomics = rows.map(_.atomicProbes)
-    val geneIds = atomics.map(row =>
-      row.flatMap(at => gis.getOrElse(Probe(at), Seq.empty))).map(_.distinct.mkString(" "))
+      for (batch <- (0 until current.rows).grouped(ROW_BATCH_SIZE)) {
+        val rows = if (individual) {
+          batch.filter(r => ungrouped.rowMap.contains(current.rowAt(r)))
+        } else {
+          batch
+        }
+        val atomics = rows.map(current.annotations(_).atomics.toSeq)
+        val (stored, missing) = annotations.lookup(atomics.flatten.distinct.map(Probe(_)))
+        val gis = Map() ++ stored.map(p => p.identifier -> p.genes.map(_.identifier).toSeq) ++
+          probeStore.geneIds(missing).map(x => x._1.identifier -> x._2.toSeq.map(_.identifier))
 
-    val aux = List(("Gene", geneIds))
-    CSVHelper.writeCSV("toxygates", directory,
-      aux, rowNames, colNames,
-      mat.rowData.map(_.map(_.value)))
+        for ((r, ats) <- rows zip atomics) {
+          val geneIds = ats.flatMap(at => gis.getOrElse(at, Seq.empty)).distinct
+          val ur = if (individual) ungrouped.rowMap(current.rowAt(r)) else -1
+          val values = columns.map(c =>
+            if (c.fromUngrouped) ungrouped(ur, c.index).value else current(r, c.index).value)
+          writer.writeRow(Seq(ats.mkString("/"), geneIds.mkString(" ")) ++ values)
+        }
+      }
+    } finally {
+      writer.close()
+    }
   }
-
 }
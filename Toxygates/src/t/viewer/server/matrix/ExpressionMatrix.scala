@@ -67,6 +67,14 @@ object ExpressionMatrix {
         Map() ++ rowNames.zipWithIndex, Map() ++ colNames.zipWithIndex,
         emptyAnnotations(data.size))
 
+  def withRows(data: Seq[Seq[BasicExprValue]], rowNames: Seq[String], colNames: Seq[String],
+      storage: MatrixStorage): ExpressionMatrix =
+    storage match {
+      case BoxedMatrixStorage => withRows(data, rowNames, colNames)
+      case PrimitiveMatrixStorage => PrimitiveExpressionMatrix.withRows(data, rowNames, colNames, false)
+      case OffHeapMatrixStorage => PrimitiveExpressionMatrix.withRows(data, rowNames, colNames, true)
+    }
+
   val emptyAnnotation = RowAnnotation(null, List())
   def emptyAnnotations(rows: Int) = Array.fill(rows)(emptyAnnotation)
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.matrix
+
+import java.util.BitSet
+
+import scala.collection.mutable
+
+import t.viewer.shared.ColumnFilter
+import t.viewer.shared.FilterType
+
+object FilterSortEngine {
+  private val INSERTION_SORT_SIZE = 16
+
+  /**
+   * Sort an array of indexes in place with a stable merge sort.
+   * Unlike sortWith, indexes are compared as primitive ints, without boxing.
+   * @param before whether the first index should be ordered before the second
+   */
+  def sortIndexes(xs: Array[Int], before: (Int, Int) => Boolean): Unit = {
+    val buffer = new Array[Int](xs.length)
+
+    def sort(lo: Int, hi: Int): Unit = {
+      if (hi - lo <= INSERTION_SORT_SIZE) {
+        var i = lo + 1
+        while (i < hi) {
+          val x = xs(i)
+          var j = i - 1
+          while (j >= lo && before(x, xs(j))) {
+            xs(j + 1) = xs(j)
+            j -= 1
+          }
+          xs(j + 1) = x
+          i += 1
+        }
+      } else {
+        val mid = (lo + hi) >>> 1
+        sort(lo, mid)
+        sort(mid, hi)
+        if (before(xs(mid), xs(mid - 1))) {
+          System.arraycopy(xs, lo, buffer, lo, hi - lo)
+          var i = lo
+          var j = mid
+          var k = lo
+          while (k < hi) {
+            if (j >= hi || (i < mid && !before(buffer(j), buffer(i)))) {
+              xs(k) = buffer(i)
+              i += 1
+            } else {
+              xs(k) = buffer(j)
+              j += 1
+            }
+            k += 1
+          }
+        }
+      }
+    }
+    sort(0, xs.length)
+  }
+}
+
+/**
+ * Computes which rows of a base matrix are visible, and in what order, given a probe
+ * selection, column filters and a sort key.
+ * Sorted permutations are cached per column and direction, and the rows passing each
+ * filter are cached as bitsets, so that changing one filter or the sort key only
+ * requires re-intersecting cached data.
+ * Caches are kept for as long as the base matrix keeps the same rows.
+ */
+class FilterSortEngine(private var base: ExpressionMatrix) {
+  import java.lang.{Double => JDouble}
+
+  private val permutations = mutable.Map[(Int, Boolean), Array[Int]]()
+  private val filterRows = mutable.Map[(Int, FilterType, JDouble), BitSet]()
+
+  private var lastSelection: Seq[String] = null
+  private var selectionOrder: Array[Int] = Array()
+  private var selectionSet: BitSet = new BitSet()
+
+  /**
+   * Replace the base matrix. The rows must be the same as in the previous base.
+   * Cached data for columns below keepColumns is retained; columns from keepColumns
+   * onwards are assumed to have changed.
+   */
+  def setBase(m: ExpressionMatrix, keepColumns: Int): Unit = synchronized {
+    base = m
+    permutations.retain((k, _) => k._1 < keepColumns)
+    filterRows.retain((k, _) => k._1 < keepColumns)
+  }
+
+  private def isPresent(row: Int, col: Int): Boolean = base match {
+    case p: PrimitiveExpressionMatrix => p.call(row, col) != 'A'
+    case _ => base(row, col).present
+  }
+
+  private def valueAt(row: Int, col: Int): Double = base match {
+    case p: PrimitiveExpressionMatrix => p.value(row, col)
+    case _ => base(row, col).value
+  }
+
+  /**
+   * All rows of the base matrix sorted by a column.
+   * Absent and NaN values always come last. Ties are broken by row index.
+   */
+  private def permutation(col: Int, ascending: Boolean): Array[Int] =
+    permutations.getOrElseUpdate((col, ascending), {
+      val n = base.rows
+      val values = Array.tabulate(n)(valueAt(_, col))
+      val low = Array.tabulate(n)(r => !isPresent(r, col) || JDouble.isNaN(values(r)))
+      def before(a: Int, b: Int): Boolean = {
+        if (low(a) != low(b)) {
+          !low(a)
+        } else {
+          val c = JDouble.compare(values(a), values(b))
+          if (c == 0) {
+            a < b
+          } else if (ascending) {
+            c < 0
+          } else {
+            c > 0
+          }
+        }
+      }
+      val r = Array.range(0, n)
+      FilterSortEngine.sortIndexes(r, before)
+      r
+    })
+
+  /**
+   * Rows of the base matrix that pass a filter.
+   */
+  private def passing(col: Int, filter: ColumnFilter): BitSet =
+    filterRows.getOrElseUpdate((col, filter.filterType, filter.threshold), {
+      val r = new BitSet(base.rows)
+      for (row <- 0 until base.rows) {
+        //Note, comparisons with NaN are always false
+        if (filter.test(valueAt(row, col)) && isPresent(row, col)) {
+          r.set(row)
+        }
+      }
+      r
+    })
+
+  private def select(probes: Seq[String]): Unit = {
+    if (!(probes eq lastSelection)) {
+      selectionOrder = probes.flatMap(base.rowMap.get(_)).toArray
+      selectionSet = new BitSet(base.rows)
+      for (r <- selectionOrder) {
+        selectionSet.set(r)
+      }
+      lastSelection = probes
+    }
+  }
+
+  /**
+   * Indexes of the visible rows of the base matrix, in display order.
+   * @param probes the selected probes. Without a sort key, rows are returned in this order.
+   * @param filters active filters and the columns they apply to
+   * @param sort sort column and whether the sort is ascending
+   */
+  def rows(probes: Seq[String], filters: Seq[(Int, ColumnFilter)],
+      sort: Option[(Int, Boolean)]): Array[Int] = synchronized {
+    select(probes)
+    val pass = selectionSet.clone().asInstanceOf[BitSet]
+    for ((col, f) <- filters) {
+      pass.and(passing(col, f))
+    }
+
+    sort match {
+      case Some((col, ascending)) => permutation(col, ascending).filter(pass.get(_))
+      case None => selectionOrder.filter(pass.get(_))
+    }
+  }
+}
@@ -22,6 +22,7 @@ package t.viewer.server.matrix
 import t.common.shared.sample.ExpressionValue
 import t.common.shared.sample.{Sample => SSample}
 import t.db._
+import t.global.Metrics
 import t.viewer.server.Conversions._
 import t.viewer.shared.ColumnFilter
 import t.viewer.shared.ManagedMatrixInfo
@@ -31,6 +32,11 @@ import t.common.shared.GroupUtils
 object ManagedMatrix {
  type RowData = Seq[BasicExprValue]
 
+  val loadTimer = Metrics.timer("t_matrix_load_seconds",
+    "Loading and grouping of raw matrix data from the database")
+  val filterAndSortTimer = Metrics.timer("t_matrix_filter_sort_seconds",
+    "Filtering and sorting of managed matrices")
+
   import java.lang.{Double => JDouble}
   def makeTooltip[E <: ExprValue](data: Iterable[E]): String = {
     data.toSeq.filter(v => !JDouble.isNaN(v.value)).
@@ -72,7 +78,14 @@ class CoreMatrix(val params: LoadParams) {
 
   import ManagedMatrix._
 
-  var current: ExpressionMatrix = params.rawGrouped
+  /**
+   * The grouped matrix together with any extra columns, for all rows.
+   * The current view is derived from this by selecting, filtering and sorting.
+   */
+  protected var base: ExpressionMatrix = params.rawGrouped
+  protected val engine = new FilterSortEngine(base)
+
+  var current: ExpressionMatrix = base
   def currentInfo = params.currentInfo
   def initProbes = params.initProbes
   def rawGrouped = params.rawGrouped
@@ -153,70 +166,41 @@ class CoreMatrix(val params: LoadParams) {
     filterAndSort()
   }
 
-  protected def filterAndSort(): Unit = {
-    def f(r: RowData): Boolean = {
-      for (
+  /**
+   * Replace the base matrix, which must have the same rows as before.
+   * Cached sort and filter data is kept for columns below keepColumns.
+   */
+  protected def setBase(m: ExpressionMatrix, keepColumns: Int): Unit = {
+    base = m
+    engine.setBase(m, keepColumns)
+  }
+
+  protected def filterAndSort(): Unit = ManagedMatrix.filterAndSortTimer.time {
+    val filters = for (
         col <- 0 until currentInfo.numColumns();
         filt = currentInfo.columnFilter(col);
         if (filt != null && filt.active())
-      ) {
-        //Note, comparisons with NaN are always false
-        val pass = filt.test(r(col).value)
-        if (!pass || !r(col).present) {
-          return false
-        }
-      }
-      true
-    }
+      ) yield (col, filt)
 
     println(s"Filter: ${currentInfo.numDataColumns} data ${currentInfo.numSynthetics} synthetic")
+    println(s"Select ${requestProbes.size} probes out of ${base.rows}")
 
-    println(s"Select ${requestProbes.size} probes out of ${current.rows} from current")
-    current = current.selectNamedRows(requestProbes).filterRows(f)
-    _sortColumn match {
-      case Some(sc) => sort(sc, _sortAscending)
-      case _ => //not sorting
-    }
+    val rows = engine.rows(requestProbes, filters, _sortColumn.map((_, _sortAscending)))
+    current = base.selectRows(rows)
     currentRowsChanged()
   }
 
-  /**
-   * Returns true if v1 should be prior to v2 in the ordering.
-   */
-  private final def sortRows(col: Int, ascending: Boolean)(v1: RowData, v2: RowData): Boolean = {
-    import java.lang.{Double => JDouble}
-
-    val ev1 = v1(col)
-    val ev2 = v2(col)
-
-    def lowPriority(x: ExprValue) =
-      !x.present || JDouble.isNaN(x.value)
-
-    if (lowPriority(ev1) && !lowPriority(ev2)) {
-      false
-    } else if (!lowPriority(ev1) && lowPriority(ev2)) {
-      true
-    } else {
-      if (ascending) {
-        JDouble.compare(ev1.value, ev2.value) < 0
-      } else {
-        JDouble.compare(ev1.value, ev2.value) > 0
-      }
-    }
-  }
-
   def sort(col: Int, ascending: Boolean): Unit = {
     _sortColumn = Some(col)
     _sortAscending = ascending
-    current = current.sortRows(sortRows(col, ascending))
-    currentRowsChanged()
+    filterAndSort()
   }
 
   /**
    * Reset modifications such as filtering, sorting and probe selection.
    */
   def resetSortAndFilter(): Unit = {
-    current = rawGrouped
+    current = base
     currentRowsChanged()
   }
 
@@ -245,11 +229,21 @@ trait Synthetics extends CoreMatrix {
 
   protected var _synthetics: Vector[Synthetic] = Vector()
 
+  /**
+   * Computed two-group test columns, aligned with the rows of the base matrix.
+   * Columns are only recomputed when the data they are based on changes.
+   */
+  private val syntheticColumns = scala.collection.mutable.Map[SyntheticKey, LazyValueColumn]()
+
+  private[matrix] def computedSyntheticColumns: Iterable[LazyValueColumn] =
+    syntheticColumns.values
+  private var dataVersion = 0
+
    def removeSynthetics(): Unit = {
     _synthetics = Vector()
     val dataColumns = 0 until currentInfo.numDataColumns()
-    current = current.selectColumns(dataColumns)
     params.rawGrouped = params.rawGrouped.selectColumns(dataColumns)
+    setBase(params.rawGrouped, dataColumns.size)
     currentInfo.removeSynthetics()
 
     _sortColumn match {
@@ -267,40 +261,80 @@ trait Synthetics extends CoreMatrix {
   def addSynthetic(s: Synthetic): Unit = {
     _synthetics :+= s
     addSyntheticInner(s)
-     Option(s.initFilter) match {
-      case Some(f) =>
-        val col = current.columns - 1
-        currentInfo.setColumnFilter(col, f)
-        filterAndSort()
+    for (f <- Option(s.initFilter)) {
+      val col = base.columns - 1
+      currentInfo.setColumnFilter(col, f)
+    }
+    filterAndSort()
+  }
+
+  /**
+   * For each row of the base matrix, the corresponding row in the ungrouped matrix
+   * (which may not have its rows in the same order), or -1.
+   */
+  private def ungroupedRows: Array[Int] =
+    base.orderedRowKeys.map(rawUngrouped.rowMap.getOrElse(_, -1)).toArray
+
+  /**
+   * Obtain the column for a two-group test, computing its values lazily.
+   * Rows are computed on demand (e.g. for the visible page, or when sorting or
+   * filtering on the column).
+   * @param fillInBackground whether to compute the remaining rows of a new column
+   *  in the background
+   */
+  private def twoGroupColumn(test: Synthetic.TwoGroupSynthetic,
+      fillInBackground: Boolean): LazyValueColumn = {
+    val sc = test.getGroup1.getSchema
+    val (typ, source, sourceRows, g1s, g2s) = test match {
+      case _: Synthetic.MeanDifference =>
+        ("MeanDifference", base, (0 until base.rows).toArray,
+          Seq(test.getGroup1.getName), Seq(test.getGroup2.getName))
       case _ =>
+        val typ = test match {
+          case _: Synthetic.UTest => "UTest"
+          case _: Synthetic.TTest => "TTest"
+          case _ => throw new Exception("Unexpected test type!")
+        }
+        (typ, rawUngrouped, ungroupedRows,
+          test.getGroup1.getSamples.filter(!sc.isControl(_)).map(_.id).toSeq,
+          test.getGroup2.getSamples.filter(!sc.isControl(_)).map(_.id).toSeq)
+    }
+
+    val key = SyntheticKey(typ, g1s, g2s, dataVersion)
+    syntheticColumns.get(key) match {
+      case Some(c) => c
+      case None =>
+        val tester = typ match {
+          case "UTest" => TwoGroupTest.uTest
+          case "TTest" => TwoGroupTest.tTest
+          case _ => TwoGroupTest.meanDifference
+        }
+        val c = tester.column(source, sourceRows, g1s, g2s)
+        syntheticColumns += key -> c
+        if (fillInBackground) {
+          c.fillInBackground()
+        }
+        c
     }
   }
 
   /**
-   * Adds one two-group test to the current matrix.
+   * Adds one synthetic column to the base matrix.
    */
   protected def addSyntheticInner(s: Synthetic): Unit = {
     s match {
       case test: Synthetic.TwoGroupSynthetic =>
-        val sc = test.getGroup1.getSchema
-
-        val g1s = test.getGroup1.getSamples.filter(!sc.isControl(_)).map(_.id)
-        val g2s = test.getGroup2.getSamples.filter(!sc.isControl(_)).map(_.id)
-
-        val currentRows = (0 until current.rows).map(i => current.rowAt(i))
-        //Need this to take into account sorting and filtering of currentMat
-        val rawData = rawUngrouped.selectNamedRows(currentRows)
-
-        current = test match {
-          case ut: Synthetic.UTest =>
-            current.appendUTest(rawData, g1s, g2s, ut.getShortTitle)
-          case tt: Synthetic.TTest =>
-            current.appendTTest(rawData, g1s, g2s, tt.getShortTitle)
-          case md: Synthetic.MeanDifference =>
-            current.appendDiffTest(current, Seq(test.getGroup1.getName),
-                Seq(test.getGroup2.getName), md.getShortTitle)
-          case _ => throw new Exception("Unexpected test type!")
+        //Keep the storage the matrix was built with. Only primitive matrices can hold
+        //a lazy column; boxed ones get every row computed up front.
+        val withTest = base match {
+          case p: PrimitiveExpressionMatrix =>
+            p.appendColumn(twoGroupColumn(test, true), test.getShortTitle)
+          case _ =>
+            val column = twoGroupColumn(test, false)
+            base.appendColumn((0 until column.size).map(i =>
+              new BasicExprValue(column.value(i), column.call(i))), test.getShortTitle)
         }
+        setBase(withTest, base.columns)
         val name = test.getName
         if (!currentInfo.hasColumn(name)) {
           currentInfo.addColumn(true, name, test.getTooltip,
@@ -315,24 +349,35 @@ trait Synthetics extends CoreMatrix {
             Array[SSample]())
         }
         val data = precomp.getData
-        val inOrder = (0 until current.rows).map(i =>
-          Option(data.get(current.rowAt(i))).map(_.toDouble).getOrElse(0d))
+        val inOrder = (0 until base.rows).map(i =>
+          Option(data.get(base.rowAt(i))).map(_.toDouble).getOrElse(0d))
 
-        current = current.appendStatic(inOrder, precomp.getName)
+        setBase(base.appendStatic(inOrder, precomp.getName), base.columns)
       case _ => throw new Exception("Unexpected test type")
     }
   }
 
+  /**
+   * Recompute all synthetic columns, for example when the data they are based on has changed.
+   */
   private[server] def reapplySynthetics(): Unit = {
+    dataVersion += 1
+    syntheticColumns.clear()
+    refreshSynthetics()
+    filterAndSort()
+  }
+
+  /**
+   * Rebuild the synthetic columns from their sources without recomputing two-group tests.
+   * Needed when the data of a precomputed column is mutable, such as the count column
+   * of a network's side matrix. The current view is not updated.
+   */
+  private[server] def refreshSynthetics(): Unit = {
+    setBase(rawGrouped, currentInfo.numDataColumns())
     for (s <- _synthetics) {
       addSyntheticInner(s)
     }
   }
-
-  override def resetSortAndFilter(): Unit = {
-    super.resetSortAndFilter()
-    reapplySynthetics()
-  }
 }
 
 class ManagedMatrix(params: LoadParams) extends CoreMatrix(params) with Synthetics {
@@ -70,6 +70,11 @@ abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBR
     }
   }
 
+  /**
+   * How the grouped and ungrouped matrices are stored.
+   */
+  protected def storage: MatrixStorage = MatrixStorage.default
+
   /**
    * Default tooltip for columns
    */
@@ -93,7 +98,7 @@ abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBR
   }
 
   def loadRawData(requestColumns: Seq[Group],
-    reader: MatrixDBReader[E], sparseRead: Boolean)(implicit context: MatrixContext): ManagedMatrix = {
+    reader: MatrixDBReader[E], sparseRead: Boolean)(implicit context: MatrixContext): ManagedMatrix = loadTimer.time {
     val packedProbes = probes.map(context.probeMap.pack)
 
     val samples = requestColumns.flatMap(g => g.getSamples).distinct
@@ -117,10 +122,10 @@ abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBR
       (rowData, jointInfo)
     })
     val colNames = (0 until info.numColumns()).map(i => info.columnName(i))
-    val grouped = ExpressionMatrix.withRows(groupedData, sortedProbes, colNames)
+    val grouped = ExpressionMatrix.withRows(groupedData, sortedProbes, colNames, storage)
 
     var ungrouped = ExpressionMatrix.withRows(data.toSeq.map(_.map(asBasicValue).toSeq),
-        sortedProbes, sortedSamples.map(_.sampleId))
+        sortedProbes, sortedSamples.map(_.sampleId), storage)
 
     val baseColumns = Map() ++ (0 until info.numDataColumns()).map(i => {
       val sampleIds = info.samples(i).map(_.id).toSeq
@@ -13,7 +13,7 @@ import t.viewer.server.Conversions
  * @param context
  * @param control
  */
-class PageDecorator(context: Context, control: MatrixController) {
+class PageDecorator(context: Context, val control: MatrixController) {
   import PageDecorator._
   import t.common.server.GWTUtils._
 
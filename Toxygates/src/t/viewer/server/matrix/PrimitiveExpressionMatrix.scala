@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.matrix
+
+import java.nio.ByteBuffer
+import java.nio.DoubleBuffer
+
+import scala.collection.immutable
+
+import t.db.BasicExprValue
+
+/**
+ * Storage strategies for expression matrices.
+ */
+sealed trait MatrixStorage
+
+/**
+ * Rows of boxed BasicExprValues (the standard ExpressionMatrix).
+ */
+case object BoxedMatrixStorage extends MatrixStorage
+
+/**
+ * Primitive column arrays on the Java heap.
+ */
+case object PrimitiveMatrixStorage extends MatrixStorage
+
+/**
+ * Primitive columns in direct (off-heap) buffers.
+ */
+case object OffHeapMatrixStorage extends MatrixStorage
+
+object MatrixStorage {
+  /**
+   * The storage used for newly loaded matrices, selected by the system property
+   * toxygates.matrixStorage (boxed, primitive or offheap). The default is primitive,
+   * which also lets synthetic test columns be computed lazily.
+   */
+  lazy val default: MatrixStorage =
+    Option(System.getProperty("toxygates.matrixStorage")).map(_.toLowerCase) match {
+      case Some("boxed") => BoxedMatrixStorage
+      case Some("offheap") => OffHeapMatrixStorage
+      case _ => PrimitiveMatrixStorage
+    }
+}
+
+/**
+ * A single column of values and calls, stored as primitives.
+ */
+abstract class ValueColumn {
+  def size: Int
+  def value(row: Int): Double
+  def call(row: Int): Char
+
+  /**
+   * A new column with the given rows, in the given order.
+   */
+  def select(rows: Array[Int]): ValueColumn
+}
+
+object ValueColumn {
+  def tabulate(size: Int, offHeap: Boolean)(value: Int => Double, call: Int => Char): ValueColumn = {
+    if (offHeap) {
+      val vs = ByteBuffer.allocateDirect(size * 8).asDoubleBuffer()
+      val cs = ByteBuffer.allocateDirect(size)
+      for (i <- 0 until size) {
+        vs.put(i, value(i))
+        cs.put(i, call(i).toByte)
+      }
+      new DirectValueColumn(vs, cs)
+    } else {
+      val vs = new Array[Double](size)
+      val cs = new Array[Byte](size)
+      for (i <- 0 until size) {
+        vs(i) = value(i)
+        cs(i) = call(i).toByte
+      }
+      new HeapValueColumn(vs, cs)
+    }
+  }
+
+  def apply(values: Array[Double], calls: Array[Char], offHeap: Boolean): ValueColumn =
+    tabulate(values.length, offHeap)(values(_), calls(_))
+}
+
+private[matrix] final class HeapValueColumn(values: Array[Double], calls: Array[Byte])
+  extends ValueColumn {
+  def size = values.length
+  def value(row: Int) = values(row)
+  def call(row: Int) = (calls(row) & 0xFF).toChar
+
+  def select(rows: Array[Int]): ValueColumn =
+    new HeapValueColumn(rows.map(values(_)), rows.map(calls(_)))
+}
+
+private[matrix] final class DirectValueColumn(values: DoubleBuffer, calls: ByteBuffer)
+  extends ValueColumn {
+  def size = values.capacity
+  def value(row: Int) = values.get(row)
+  def call(row: Int) = (calls.get(row) & 0xFF).toChar
+
+  def select(rows: Array[Int]): ValueColumn =
+    ValueColumn.tabulate(rows.length, true)(i => value(rows(i)), i => call(rows(i)))
+}
+
+/**
+ * A view of one row across primitive columns. Values are materialised on access.
+ */
+private[matrix] final class PrimitiveRow(columns: IndexedSeq[ValueColumn], row: Int)
+  extends immutable.IndexedSeq[BasicExprValue] {
+  def length = columns.size
+  def apply(col: Int) = BasicExprValue(columns(col).value(row), columns(col).call(row))
+}
+
+private[matrix] final class PrimitiveColumn(column: ValueColumn)
+  extends immutable.IndexedSeq[BasicExprValue] {
+  def length = column.size
+  def apply(row: Int) = BasicExprValue(column.value(row), column.call(row))
+}
+
+object PrimitiveExpressionMatrix {
+  import ExpressionMatrix._
+
+  private def rowViews(columns: IndexedSeq[ValueColumn], rows: Int): IndexedSeq[IndexedSeq[BasicExprValue]] =
+    new immutable.IndexedSeq[IndexedSeq[BasicExprValue]] {
+      def length = rows
+      def apply(row: Int) = new PrimitiveRow(columns, row)
+    }
+
+  def fromRows(data: Seq[Seq[BasicExprValue]], rowMap: Map[String, Int],
+      columnMap: Map[String, Int], annotations: Seq[RowAnnotation],
+      offHeap: Boolean): PrimitiveExpressionMatrix = {
+    val rows = fromSeqSeq(data)
+    val columns = (0 until safeCountColumns(rows)).map(c =>
+      ValueColumn.tabulate(rows.size, offHeap)(rows(_)(c).value, rows(_)(c).call))
+    new PrimitiveExpressionMatrix(columns, rows.size, rowMap, columnMap, annotations, offHeap)
+  }
+
+  def withRows(data: Seq[Seq[BasicExprValue]], rowNames: Seq[String], colNames: Seq[String],
+      offHeap: Boolean): PrimitiveExpressionMatrix =
+    fromRows(data, Map() ++ rowNames.zipWithIndex, Map() ++ colNames.zipWithIndex,
+      emptyAnnotations(data.size), offHeap)
+
+  /**
+   * Convert any ExpressionMatrix into primitive storage, keeping keys and annotations.
+   */
+  def from(m: ExpressionMatrix, offHeap: Boolean): PrimitiveExpressionMatrix =
+    fromRows(m.rowData, m.rowMap, m.columnMap, m.annotations, offHeap)
+}
+
+/**
+ * An ExpressionMatrix backed by primitive value and call columns, optionally held off-heap.
+ * Row keys are held only in the row map; materialised cells carry no probe.
+ * Selection, sorting, filtering and column appending produce new primitive matrices
+ * without boxing the whole matrix, so CoreMatrix and ManagedMatrix can run on this class
+ * unchanged. Operations that are not specialised fall back to re-encoding rows.
+ */
+class PrimitiveExpressionMatrix(val valueColumns: IndexedSeq[ValueColumn], rows: Int,
+                                rowMap: Map[String, Int], columnMap: Map[String, Int],
+                                annotations: Seq[RowAnnotation], val offHeap: Boolean)
+    extends ExpressionMatrix(PrimitiveExpressionMatrix.rowViews(valueColumns, rows), rows,
+      valueColumns.size, rowMap, columnMap, annotations) {
+
+  override def toString: String = s"PrimitiveExprMatrix $rows x $columns"
+
+  def value(row: Int, col: Int): Double = valueColumns(col).value(row)
+  def call(row: Int, col: Int): Char = valueColumns(col).call(row)
+
+  override def apply(row: Int, col: Int): BasicExprValue =
+    BasicExprValue(value(row, col), call(row, col))
+
+  override def row(x: Int): IndexedSeq[BasicExprValue] = new PrimitiveRow(valueColumns, x)
+  override def column(x: Int): IndexedSeq[BasicExprValue] = new PrimitiveColumn(valueColumns(x))
+
+  private def withColumns(cols: IndexedSeq[ValueColumn], nrows: Int, rowMap: Map[String, Int],
+      columnMap: Map[String, Int], annotations: Seq[RowAnnotation]) =
+    new PrimitiveExpressionMatrix(cols, nrows, rowMap, columnMap, annotations, offHeap)
+
+  override def copyWith(rowData: Seq[Seq[BasicExprValue]], rowMap: Map[String, Int],
+      columnMap: Map[String, Int],
+      annotations: Seq[RowAnnotation]): ExpressionMatrix =
+    PrimitiveExpressionMatrix.fromRows(rowData, rowMap, columnMap, annotations, offHeap)
+
+  override def copyWithAnnotations(annots: Seq[RowAnnotation]): ExpressionMatrix =
+    withColumns(valueColumns, rows, rowMap, columnMap, annots)
+
+  override def selectRows(selected: Seq[Int]): ExpressionMatrix = {
+    val idx = selected.toArray
+    withColumns(valueColumns.map(_.select(idx)), idx.length, selectedRowKeys(selected),
+      columnMap, selected.map(annotations(_)))
+  }
+
+  override def selectColumns(selected: Seq[Int]): ExpressionMatrix =
+    withColumns(selected.map(valueColumns(_)).toIndexedSeq, rows, rowMap,
+      selectedColumnKeys(selected), annotations)
+
+  override def adjoinRight(other: ExpressionMatrix): ExpressionMatrix = other match {
+    case p: PrimitiveExpressionMatrix =>
+      withColumns(valueColumns ++ p.valueColumns, rows, rowMap, rightAdjoinedColKeys(p), annotations)
+    case _ => super.adjoinRight(other)
+  }
+
+  private def boxedColumn(col: Iterable[BasicExprValue]): ValueColumn = {
+    val vs = col.toIndexedSeq
+    ValueColumn.tabulate(rows, offHeap)(vs(_).value, vs(_).call)
+  }
+
+  override def appendColumn(col: Iterable[BasicExprValue]): ExpressionMatrix =
+    withColumns(valueColumns :+ boxedColumn(col), rows, rowMap, columnMap, annotations)
+
+  override def appendColumn(col: Iterable[BasicExprValue], key: String): ExpressionMatrix =
+    appendColumn(boxedColumn(col), key)
+
+  /**
+   * Append a primitive column, registering it by its key.
+   */
+  def appendColumn(col: ValueColumn, key: String): ExpressionMatrix =
+    withColumns(valueColumns :+ col, rows, rowMap, columnMap + (key -> columns), annotations)
+
+  /**
+   * Collect the present values of the given columns in a row into buffer,
+   * returning the number of values found.
+   */
+  private def presentValues(source: ExpressionMatrix, row: Int, cols: Array[Int],
+      buffer: Array[Double]): Int = {
+    var n = 0
+    source match {
+      case p: PrimitiveExpressionMatrix =>
+        for (c <- cols; if p.call(row, c) != 'A') {
+          buffer(n) = p.value(row, c)
+          n += 1
+        }
+      case _ =>
+        for (c <- cols; v = source(row, c); if v.present) {
+          buffer(n) = v.value
+          n += 1
+        }
+    }
+    n
+  }
+
+  override def appendTwoColTest(sourceData: ExpressionMatrix, group1: Seq[String], group2: Seq[String],
+                       test: (Seq[Double], Seq[Double]) => Double, minValues: Int, colName: String): ExpressionMatrix = {
+    val cols1 = group1.flatMap(sourceData.columnMap.get(_)).toArray
+    val cols2 = group2.flatMap(sourceData.columnMap.get(_)).toArray
+    val buf1 = new Array[Double](cols1.length)
+    val buf2 = new Array[Double](cols2.length)
+
+    val n = Math.min(rows, sourceData.rows)
+    val values = new Array[Double](n)
+    val calls = new Array[Char](n)
+    for (r <- 0 until n) {
+      val n1 = presentValues(sourceData, r, cols1, buf1)
+      val n2 = presentValues(sourceData, r, cols2, buf2)
+      if (n1 >= minValues && n2 >= minValues) {
+        values(r) = test(buf1.take(n1), buf2.take(n2))
+        calls(r) = 'P'
+      } else {
+        values(r) = Double.NaN
+        calls(r) = 'A'
+      }
+    }
+    appendColumn(ValueColumn(values, calls, offHeap), colName)
+  }
+
+  override def appendStatic(data: Seq[Double], name: String): ExpressionMatrix =
+    appendColumn(ValueColumn(data.toArray, Array.fill(data.size)('P'), offHeap), name)
+}
@@ -32,11 +32,15 @@ import scala.reflect.ClassTag
 class RowDecorator(context: Context) {
   val probes = context.probeStore
 
+  /**
+   * Annotations are read from the local annotation store where available,
+   * and from the triplestore otherwise.
+   */
   private def loadProbes(rows: Iterable[ExpressionRow]) =
     if (rows.isEmpty) {
       Seq()
     } else {
-      probes.withAttributes(rows.flatMap(r => r.atomicProbes.map(Probe(_))))
+      context.annotations.withAttributes(rows.flatMap(r => r.atomicProbes.map(Probe(_))), probes)
     }
 
   /**
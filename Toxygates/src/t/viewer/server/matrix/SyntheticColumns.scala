@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.matrix
+
+import java.util.BitSet
+import java.util.concurrent.{Executors, ThreadFactory}
+
+import scala.concurrent.{ExecutionContext, Future}
+
+/**
+ * Identifies a synthetic column computed from source data.
+ * @param testType the kind of test
+ * @param group1 columns (in the source data) of the first group
+ * @param group2 columns (in the source data) of the second group
+ * @param dataVersion version of the source data
+ */
+case class SyntheticKey(testType: String, group1: Seq[String], group2: Seq[String],
+  dataVersion: Int)
+
+object TwoGroupTest {
+  import ExpressionMatrix._
+  import t.util.SafeMath._
+
+  val tTest = TwoGroupTest((x, y) => ttest.tTest(x.toArray, y.toArray), 2)
+  val uTest = TwoGroupTest((x, y) => utest.mannWhitneyUTest(x.toArray, y.toArray), 2)
+  val meanDifference = TwoGroupTest((x, y) => safeMean(x) - safeMean(y), 1)
+}
+
+/**
+ * A statistical test comparing the present values of two groups of columns, row by row.
+ * @param minValues the minimum number of present values needed in each group
+ */
+case class TwoGroupTest(test: (Seq[Double], Seq[Double]) => Double, minValues: Int) {
+
+  /**
+   * A lazily computed column with the result of this test for each row of a target matrix.
+   * @param sourceRows for each target row, the corresponding row in the source data,
+   *  or -1 if there is none
+   */
+  def column(source: ExpressionMatrix, sourceRows: Array[Int],
+      group1: Seq[String], group2: Seq[String]): LazyValueColumn = {
+    val cols1 = group1.flatMap(source.columnMap.get(_))
+    val cols2 = group2.flatMap(source.columnMap.get(_))
+    new LazyValueColumn(sourceRows.length, row => {
+      val sr = sourceRows(row)
+      val vs1 = if (sr == -1) Seq() else cols1.map(source(sr, _)).filter(_.present).map(_.value)
+      val vs2 = if (sr == -1) Seq() else cols2.map(source(sr, _)).filter(_.present).map(_.value)
+      if (vs1.size >= minValues && vs2.size >= minValues) {
+        (test(vs1, vs2), 'P')
+      } else {
+        (Double.NaN, 'A')
+      }
+    })
+  }
+}
+
+object LazyValueColumn {
+  val BACKGROUND_THREADS = 2
+
+  /**
+   * Whether new columns are filled in the background. May be switched off for testing.
+   */
+  @volatile private[matrix] var backgroundFill = true
+
+  /**
+   * Background filling gets its own small pool, so that it cannot starve other users
+   * of the global execution context.
+   */
+  private[matrix] lazy val backgroundContext: ExecutionContext =
+    ExecutionContext.fromExecutorService(Executors.newFixedThreadPool(BACKGROUND_THREADS,
+      new ThreadFactory {
+        def newThread(r: Runnable): Thread = {
+          val thread = new Thread(r, "LazyValueColumn-fill")
+          thread.setDaemon(true)
+          thread
+        }
+      }))
+}
+
+/**
+ * A column whose values are computed on first access and then memoized.
+ * Sorting or filtering on the column forces all rows to be computed; page views only
+ * compute the rows they display. The remaining rows can be filled in the background.
+ */
+class LazyValueColumn(val size: Int, compute: Int => (Double, Char)) extends ValueColumn {
+  private val values = new Array[Double](size)
+  private val calls = new Array[Char](size)
+  private val computed = new BitSet(size)
+  private var computedCount = 0
+  @volatile private var complete = size == 0
+
+  private def ensure(row: Int): Unit = {
+    if (!complete) {
+      synchronized {
+        if (!computed.get(row)) {
+          val (v, c) = compute(row)
+          values(row) = v
+          calls(row) = c
+          computed.set(row)
+          computedCount += 1
+          if (computedCount == size) {
+            complete = true
+          }
+        }
+      }
+    }
+  }
+
+  def value(row: Int): Double = {
+    ensure(row)
+    values(row)
+  }
+
+  def call(row: Int): Char = {
+    ensure(row)
+    calls(row)
+  }
+
+  def isComplete: Boolean = complete
+
+  def computeAll(): Unit = {
+    for (r <- 0 until size; if !complete) {
+      ensure(r)
+    }
+  }
+
+  /**
+   * Compute any remaining rows on a background thread.
+   */
+  def fillInBackground(): Future[Unit] =
+    if (LazyValueColumn.backgroundFill) {
+      Future { computeAll() }(LazyValueColumn.backgroundContext)
+    } else {
+      Future.successful(())
+    }
+
+  /**
+   * The number of rows computed so far.
+   */
+  def computedRows: Int = synchronized { computedCount }
+
+  def select(rows: Array[Int]): ValueColumn = new MappedValueColumn(this, rows)
+}
+
+/**
+ * A selection of rows from another column, computed on access.
+ */
+class MappedValueColumn(underlying: ValueColumn, rows: Array[Int]) extends ValueColumn {
+  def size = rows.length
+  def value(row: Int) = underlying.value(rows(row))
+  def call(row: Int) = underlying.call(rows(row))
+
+  def select(selected: Array[Int]): ValueColumn =
+    new MappedValueColumn(underlying, selected.map(rows(_)))
+}
@@ -67,6 +67,8 @@ class ManagedNetwork(mainParams: LoadParams,
     val sideProbes = NetworkBuilder.extractSideProbes(targets, platforms,
         this, sideMatrix, offset, length)
     println(s"Managed network: selecting ${sideProbes.size} probes for side matrix")
+    //The side matrix's count column reads our count map, which may have changed
+    sideMatrix.refreshSynthetics()
     sideMatrix.selectProbes(sideProbes)
   }
 
@@ -56,8 +56,6 @@ class ClusteringData(val controller: MatrixController,
 
   def colNames: Array[String] = columns.map(_._1).toArray
 
-  def codeDir: String = ???
-
   /**
    * Obtain column-major data for the specified rows and columns
    */
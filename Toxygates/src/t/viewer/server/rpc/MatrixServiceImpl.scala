@@ -24,7 +24,7 @@ import java.util.{List => JList}
 
 import javax.annotation.Nullable
 import t.Context
-import t.clustering.server.RClustering
+import t.clustering.server.InCHlibClustering
 import t.clustering.shared.Algorithm
 import t.common.shared.ValueType
 import t.common.shared.sample.{ExpressionRow, Group}
@@ -97,13 +97,11 @@ class MatrixServiceImpl extends StatefulServlet[MatrixState] with MatrixService
   private def probes = context.probeStore
   private var config: Configuration = _
   private val logger = Logger.getLogger("MatrixService")
-  private var codeDir: String = null
 
   // Useful for testing
   override def localInit(config: Configuration) {
     super.localInit(config)
     this.config = config
-    this.codeDir = this.getServletContext.getRealPath("/WEB-INF/")
     mcontext = context.matrix
   }
 
@@ -213,7 +211,9 @@ class MatrixServiceImpl extends StatefulServlet[MatrixState] with MatrixService
   def prepareCSVDownload(id: String, individualSamples: Boolean): String = {
     val managedMat = stateFor(id).matrix(id)
     config.csvUrlBase + "/" +
-      CSVDownload.generate(managedMat, probes, config.csvDirectory, individualSamples)
+      CSVDownload.generate(managedMat, probes, context.annotations,
+        config.csvDirectory, individualSamples,
+        config.csvGzip)
   }
 
   @throws(classOf[NoDataLoadedException])
@@ -268,9 +268,7 @@ class MatrixServiceImpl extends StatefulServlet[MatrixState] with MatrixService
 
     val data = new ClusteringData(cont, probes, probesScala, valueType)
 
-    // R can't deal with backslashes in a file path so we need to replace them
-    // with slashes
-    val clust = new RClustering(codeDir.replace("\\", "/"))
+    val clust = new InCHlibClustering
     clust.clustering(data.data.flatten, rowNamesForHeatmap(data.rowNames),
         data.colNames, data.geneSymbols, algorithm, featureDecimalDigits)
   }
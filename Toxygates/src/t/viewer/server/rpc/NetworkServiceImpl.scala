@@ -185,12 +185,12 @@ class NetworkServiceImpl extends StatefulServlet[NetworkState] with NetworkServi
   lazy val mirdbTable =
     tryReadTargetTable(
       s"$mirnaDir/mirdb_filter.txt",
-      new MiRDBConverter(_, "MiRDB 5.0").makeTable)
+      f => TargetTable.cached(f)(new MiRDBConverter(f, "MiRDB 5.0").makeTable))
 
   lazy val mirtarbaseTable =
     tryReadTargetTable(
       s"$mirnaDir/tm_mirtarbase.txt",
-      MiRNATargets.tableFromFile(_))
+      f => TargetTable.cached(f)(MiRNATargets.tableFromFile(f)))
 
   lazy val miRawTable = {
     val allTranscripts = platforms.allProbes.iterator.flatMap(_.transcripts).toSet
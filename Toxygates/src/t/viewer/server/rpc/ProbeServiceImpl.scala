@@ -26,10 +26,10 @@ import t.common.shared._
 import t.common.shared.sample.{Group, Sample}
 import t.model.SampleClass
 import t.model.sample.{CoreParameter, OTGAttribute}
-import t.platform.{Probe, Species}
+import t.platform.{Probe, Species, SuggestionStore}
 import t.platform.mirna.TargetTable
 import t.sparql.secondary._
-import t.sparql.{ProbeStore, SampleFilter, SampleStore}
+import t.sparql.{PlatformStore, ProbeStore, SampleFilter, SampleStore}
 import t.util.{PeriodicRefresh, Refreshable}
 import t.viewer.client.rpc.ProbeService
 import t.viewer.server.Conversions.{asJavaSample, asSpecies}
@@ -38,9 +38,16 @@ import t.viewer.server.{Configuration, _}
 import t.viewer.shared.{AppInfo, Association, TimeoutException}
 
 import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.concurrent.ExecutionContext.Implicits.global
 
 object ProbeServiceImpl {
   val APPINFO_KEY = "appInfo"
+
+  /**
+   * Maximum number of gene symbol suggestions.
+   */
+  val MAX_GENE_SUGGESTIONS = 10
 }
 
 /**
@@ -53,6 +60,7 @@ class ProbeServiceImpl extends TServiceServlet with ProbeService {
 
   protected def sampleStore: SampleStore = context.sampleStore
   protected def probeStore: ProbeStore = context.probeStore
+  protected def suggestions: SuggestionStore = context.suggestions
   protected var instanceURI: Option[String] = None
 
   protected var uniprot: Uniprot = _
@@ -62,6 +70,10 @@ class ProbeServiceImpl extends TServiceServlet with ProbeService {
 
   protected var configuration: Configuration = _
 
+  //Set once all local suggestion indexes exist. Until then, suggestions are
+  //obtained from the triplestore.
+  @volatile private var suggestionsReady = false
+
   var chembl: ChEMBL = _
   var drugBank: DrugBank = _
 
@@ -89,6 +101,22 @@ class ProbeServiceImpl extends TServiceServlet with ProbeService {
     chembl = new ChEMBL()
     drugBank = new DrugBank()
     platformsCache //force preloading all platforms
+    buildSuggestions()
+  }
+
+  /**
+   * Build any missing suggestion indexes in the background.
+   */
+  private def buildSuggestions(): Unit = Future {
+    try {
+      val platforms = new PlatformStore(baseConfig.triplestore).list
+      suggestions.buildMissing(platforms, probeStore, b2rKegg)
+      suggestionsReady = true
+    } catch {
+      case e: Exception =>
+        println(s"Unable to build suggestion indexes: $e")
+        e.printStackTrace()
+    }
   }
 
   protected def reloadAppInfo = {
@@ -155,10 +183,14 @@ class ProbeServiceImpl extends TServiceServlet with ProbeService {
   }
 
   def keywordSuggestions(partialName: String, maxSize: Int): Array[Pair[String, AType]] = {
-    {
-      b2rKegg.forPattern(partialName, maxSize).map(new Pair(_, AType.KEGG)) ++
-        probeStore.goTerms(partialName, maxSize).map(x => new Pair(x.name, AType.GO))
-    }.toArray
+    val (pathways, goTerms): (Seq[String], Seq[String]) = if (suggestionsReady) {
+      (suggestions.search(SuggestionStore.PATHWAYS, partialName, maxSize).map(_.text),
+        suggestions.search(SuggestionStore.GO_TERMS, partialName, maxSize).map(_.text))
+    } else {
+      (b2rKegg.forPattern(partialName, maxSize),
+        probeStore.goTerms(partialName, maxSize).map(_.name).toSeq)
+    }
+    (pathways.map(new Pair(_, AType.KEGG)) ++ goTerms.map(new Pair(_, AType.GO))).toArray
   }
 
   @throws[TimeoutException]
@@ -216,21 +248,21 @@ class ProbeServiceImpl extends TServiceServlet with ProbeService {
       case None     => result.toArray
     }
 
-   @throws[TimeoutException]
+  @throws[TimeoutException]
   def geneSuggestions(sc: SampleClass, partialName: String): Array[Pair[String, String]] = {
-     if (sc != null) {
-      for {
-        org <- Array(sc.get(OTGAttribute.Organism))
-        sp = Species.withName(org)
-        pl <- sp.platformsForProbeSuggestion
-        hit <- probeStore.probesForPartialSymbol(Some(pl), partialName)
-        suggest = new Pair(hit._1, hit._2)
-      } yield suggest
-     } else {
-       probeStore.probesForPartialSymbol(None, partialName).
-         map(hit => new Pair(hit._1, hit._2)).toArray
-     }
-   }
+    val platforms = Option(sc).map(c =>
+      Species.withName(c.get(OTGAttribute.Organism)).platformsForProbeSuggestion)
+    val hits = if (suggestionsReady) {
+      suggestions.geneSuggestions(platforms.getOrElse(suggestions.genePlatforms),
+        partialName, MAX_GENE_SUGGESTIONS).map(e => (e.text, e.value))
+    } else {
+      platforms match {
+        case Some(pls) => pls.flatMap(pl => probeStore.probesForPartialSymbol(Some(pl), partialName))
+        case None => probeStore.probesForPartialSymbol(None, partialName)
+      }
+    }
+    hits.map(hit => new Pair(hit._1, hit._2)).toArray
+  }
 
   @throws[TimeoutException]
   private def predefinedGroups: Array[Group] = {
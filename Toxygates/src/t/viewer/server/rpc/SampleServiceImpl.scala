@@ -205,12 +205,9 @@ class SampleServiceImpl extends StatefulServlet[SampleState] with SampleService
     val keys = if (importantOnly) baseConfig.attributes.getPreviewDisplay.asScala.toSeq
       else baseConfig.attributes.getAll.asScala.toSeq
 
+    val values = sampleStore.batchedSampleAttributes(samples.map(_.id), keys)
     samples.map(sample => {
-      val ps: Seq[(Attribute, Option[String])] = sampleStore.parameterQuery(sample.id, keys)
-      val attributeValueMap = (Map() ++ (for {
-        (attribute, valueOption) <- ps
-        value <- valueOption
-      } yield (attribute, value))).asJava
+      val attributeValueMap = (Map() ++ values.getOrElse(sample.id, Seq())).asJava
       new Sample(sample.id, new SampleClass(attributeValueMap))
     })
   }
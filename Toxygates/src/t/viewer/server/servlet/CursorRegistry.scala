@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.servlet
+
+import java.util.UUID
+
+/**
+ * Server-side handles (e.g. loaded matrices) that clients refer to by an opaque token
+ * across several requests.
+ * Handles are dropped when they have not been used for idleMillis, or when more than
+ * maxEntries are held, in which case the least recently used are dropped first.
+ */
+class CursorRegistry[T](maxEntries: Int, idleMillis: Long) {
+  private case class Entry(item: T, var lastAccess: Long)
+
+  private val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+
+  protected def now = System.currentTimeMillis()
+
+  /**
+   * Register a handle, returning its token.
+   */
+  def register(item: T): String = synchronized {
+    expire()
+    val token = UUID.randomUUID().toString
+    entries.put(token, Entry(item, now))
+    val it = entries.entrySet.iterator
+    while (entries.size > maxEntries && it.hasNext) {
+      it.next
+      it.remove()
+    }
+    token
+  }
+
+  /**
+   * Look up a handle by its token, marking it as recently used.
+   */
+  def get(token: String): Option[T] = synchronized {
+    expire()
+    Option(entries.get(token)).map(e => {
+      e.lastAccess = now
+      e.item
+    })
+  }
+
+  def remove(token: String): Boolean = synchronized {
+    entries.remove(token) != null
+  }
+
+  def size: Int = synchronized { entries.size }
+
+  private def expire(): Unit = {
+    val time = now
+    //Iteration order is least recently used first
+    val it = entries.entrySet.iterator
+    var done = false
+    while (!done && it.hasNext) {
+      if (time - it.next.getValue.lastAccess > idleMillis) {
+        it.remove()
+      } else {
+        done = true
+      }
+    }
+  }
+}
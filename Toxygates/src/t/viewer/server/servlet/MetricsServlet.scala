@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.servlet
+
+import org.scalatra._
+import t.global.Metrics
+
+/**
+ * Serves all registered metrics (see t.global.Metrics) as plain text in the
+ * Prometheus exposition format, at e.g. /metrics.
+ * The metrics reveal no data, but access may still be restricted in the
+ * servlet container if desired.
+ */
+class MetricsServlet extends ScalatraServlet {
+  get("/") {
+    contentType = "text/plain; version=0.0.4"
+    response.setHeader("Cache-Control", "no-cache")
+    Metrics.scrape
+  }
+}
@@ -154,24 +154,18 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
     write(values)
   }
 
-  //URL parameters: valueType, offset, limit
-  //other parameters in MatrixParams
-  //Example request:
-  //curl -H "Content-Type:application/json" -X POST  http://127.0.0.1:8888/json/matrix\?limit\=5  \
-  //   --data '{"groups": [ { "name": "a", "samples":
-  //[
-  //  {
-  //    "id": "003017645021",
-  //    "type": "mRNA",
-  //    "platform": "Rat230_2"
-  //  }, ... (etc) ] } ] }'
-
-  post("/matrix") {
-    val matParams: json.MatrixParams = read[json.MatrixParams](request.body)
-    println(s"Load request: $matParams")
-    val valueType = ValueType.valueOf(
-      params.getOrElse("valueType", "Folds"))
-
+  /**
+   * Loaded matrices, kept so that clients can page through them without reloading.
+   */
+  private val matrixCursors = new CursorRegistry[PageDecorator](
+    Option(System.getProperty("toxygates.json.maxCursors")).map(_.toInt).getOrElse(20),
+    Option(System.getProperty("toxygates.json.cursorIdleSeconds")).map(_.toLong).
+      getOrElse(600L) * 1000)
+
+  private val defaultPageLimit = 100
+  private val streamChunkSize = 500
+
+  private def loadMatrix(matParams: json.MatrixParams, valueType: ValueType): PageDecorator = {
     val samples = matParams.groups.flatMap(_.samples.map(_.id))
     val fullSamples = Map.empty ++
       context.sampleStore.withRequiredAttributes(SampleClassFilter(), sampleFilter, samples)().map(
@@ -202,14 +196,86 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
       case _ =>
     }
 
-    val pages = new PageDecorator(context, controller)
-    val defaultLimit = 100
+    new PageDecorator(context, controller)
+  }
+
+  /**
+   * Respond with rows from a loaded matrix, according to the offset, limit and format
+   * URL parameters.
+   * With format=ndjson, rows are streamed one JSON object per line, and all rows from
+   * the offset onwards are sent unless a limit is given. Otherwise, a single JSON array
+   * of at most limit rows is sent.
+   * The cursor token and the total number of rows are sent as the headers
+   * X-Matrix-Cursor and X-Matrix-Rows.
+   */
+  private def matrixRows(cursor: String, pages: PageDecorator) = {
+    val totalRows = pages.synchronized { pages.control.managedMatrix.info.numRows }
+    response.setHeader("X-Matrix-Cursor", cursor)
+    response.setHeader("X-Matrix-Rows", totalRows.toString)
 
     val offset = params.getOrElse("offset", "0").toInt
-    val page = params.get("limit") match {
-      case Some(l) => pages.getPageView(offset, l.toInt, true)
-      case None => pages.getPageView(offset, defaultLimit, true)
+    val limit = params.get("limit").map(_.toInt)
+
+    if (params.get("format") == Some("ndjson")) {
+      contentType = "application/x-ndjson"
+      val out = response.getWriter
+      val end = Math.min(totalRows.toLong, offset.toLong + limit.getOrElse(totalRows)).toInt
+      for (start <- offset until end by streamChunkSize) {
+        val rows = pages.synchronized {
+          pages.getPageView(start, Math.min(streamChunkSize, end - start), true)
+        }
+        for (r <- rows) {
+          out.write(write(r))
+          out.write("\n")
+        }
+        out.flush()
+      }
+      ()
+    } else {
+      val page = pages.synchronized {
+        pages.getPageView(offset, limit.getOrElse(defaultPageLimit), true)
+      }
+      write(page)
     }
-    write(page)
+  }
+
+  //URL parameters: valueType, offset, limit, format, cursor
+  //other parameters in MatrixParams
+  //If the cursor parameter refers to a matrix that is still loaded, that matrix is reused
+  //and the MatrixParams are ignored. The cursor for the matrix is returned in the
+  //X-Matrix-Cursor header, and can be used to request further pages
+  //from /matrix/:cursor without reloading.
+  //Example request:
+  //curl -H "Content-Type:application/json" -X POST  http://127.0.0.1:8888/json/matrix\?limit\=5  \
+  //   --data '{"groups": [ { "name": "a", "samples":
+  //[
+  //  {
+  //    "id": "003017645021",
+  //    "type": "mRNA",
+  //    "platform": "Rat230_2"
+  //  }, ... (etc) ] } ] }'
+
+  post("/matrix") {
+    val reused = params.get("cursor").flatMap(c => matrixCursors.get(c).map(p => (c, p)))
+    val (cursor, pages) = reused.getOrElse {
+      val matParams: json.MatrixParams = read[json.MatrixParams](request.body)
+      println(s"Load request: $matParams")
+      val valueType = ValueType.valueOf(
+        params.getOrElse("valueType", "Folds"))
+      val pages = loadMatrix(matParams, valueType)
+      (matrixCursors.register(pages), pages)
+    }
+    matrixRows(cursor, pages)
+  }
+
+  //URL parameters: offset, limit, format
+  get("/matrix/:cursor") {
+    val cursor = params("cursor")
+    val pages = matrixCursors.get(cursor).getOrElse(halt(404))
+    matrixRows(cursor, pages)
+  }
+
+  delete("/matrix/:cursor") {
+    if (!matrixCursors.remove(params("cursor"))) halt(404)
   }
 }
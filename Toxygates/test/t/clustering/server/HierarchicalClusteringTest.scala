@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.clustering.server
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.clustering.shared.{Algorithm, Distances, Methods}
+
+@RunWith(classOf[JUnitRunner])
+class HierarchicalClusteringTest extends TTestSuite {
+  //Points on a line
+  val points = Array(0.0, 1, 3, 7).map(Array(_))
+
+  def cluster(rows: Array[Array[Double]], distance: Distances, method: Methods) =
+    HierarchicalClustering(DistanceMatrix(rows, distance), method)
+
+  test("distances") {
+    val rows = Array(Array(1.0, 2, 3), Array(2.0, 4, 6), Array(3.0, 2, 1), Array(1.0, 1, 1))
+    val corr = DistanceMatrix(rows, Distances.COERRELATION)
+    corr(0, 1) should be (0.0 +- 1e-12)
+    corr(0, 2) should be (2.0 +- 1e-12)
+    //Constant rows are uncorrelated
+    corr(0, 3) should be (1.0 +- 1e-12)
+
+    val eucl = DistanceMatrix(rows, Distances.EUCLIDIAN)
+    eucl(0, 1) should be (Math.sqrt(14) +- 1e-12)
+    eucl(1, 0) should equal(eucl(0, 1))
+  }
+
+  test("single, complete and average linkage") {
+    val single = cluster(points, Distances.EUCLIDIAN, Methods.SINGLE)
+    single.left.toSeq should equal(Seq(-1, -3, -4))
+    single.right.toSeq should equal(Seq(-2, 1, 2))
+    single.height.toSeq should equal(Seq(1.0, 2.0, 4.0))
+    single.order.toSeq should equal(Seq(4, 3, 1, 2))
+
+    cluster(points, Distances.EUCLIDIAN, Methods.COMPLETE).height.toSeq should
+      equal(Seq(1.0, 3.0, 7.0))
+    val average = cluster(points, Distances.EUCLIDIAN, Methods.AVERAGE).height
+    average(1) should be (2.5 +- 1e-12)
+    average(2) should be (17.0 / 3 +- 1e-12)
+  }
+
+  test("ward.D2") {
+    val ward = cluster(points, Distances.EUCLIDIAN, Methods.WARD_D2)
+    ward.left.toSeq should equal(Seq(-1, -3, -4))
+    ward.right.toSeq should equal(Seq(-2, 1, 2))
+    ward.height(0) should be (1.0 +- 1e-12)
+    ward.height(1) should be (Math.sqrt(25.0 / 3) +- 1e-12)
+    ward.height(2) should be (Math.sqrt(289.0 / 6) +- 1e-12)
+  }
+
+  test("merge numbering") {
+    //Two pairs that are merged before being joined
+    val rows = Array(0.0, 10, 1, 11).map(Array(_))
+    val d = cluster(rows, Distances.EUCLIDIAN, Methods.COMPLETE)
+    d.left.toSeq should equal(Seq(-1, -2, 1))
+    d.right.toSeq should equal(Seq(-3, -4, 2))
+    d.order.toSeq should equal(Seq(1, 3, 2, 4))
+  }
+
+  test("nearest-neighbour chain agrees with the general algorithm") {
+    val r = new scala.util.Random(1)
+    val rows = Array.fill(60, 5)(r.nextGaussian)
+    for (m <- Seq(Methods.SINGLE, Methods.COMPLETE, Methods.AVERAGE, Methods.MCQUITTY,
+        Methods.WARD_D, Methods.WARD_D2)) {
+      val chain = cluster(rows, Distances.EUCLIDIAN, m)
+      val general = HierarchicalClustering.nnList(DistanceMatrix(rows, Distances.EUCLIDIAN), m)
+      chain.left.toSeq should equal(general.left.toSeq)
+      chain.right.toSeq should equal(general.right.toSeq)
+      chain.order.toSeq should equal(general.order.toSeq)
+      for ((a, b) <- chain.height zip general.height) {
+        a should be (b +- 1e-9)
+      }
+    }
+  }
+
+  test("InCHlib output") {
+    val json = new InCHlibClustering().clustering(Array(0.0, 1, 10, 11, 1, 0),
+      Array("a", "b", "c"), Array("x", "y"), Array("A", "B", "C"),
+      new Algorithm(Methods.SINGLE, Distances.EUCLIDIAN, Methods.SINGLE, Distances.EUCLIDIAN))
+    json should startWith("{\"data\":{\"nodes\":{\"nodes@1\":{\"left_child\":\"a\"," +
+      "\"right_child\":\"c\",\"count\":2,\"distance\":1.4142135623731,\"parent\":\"nodes@2\"}," +
+      "\"a\":{\"count\":1,\"parent\":\"nodes@1\",\"distance\":0,\"objects\":[\"a\"]," +
+      "\"appendix\":\"A\",\"features\":[0,1]}")
+    json should include("\"feature_names\":[\"x\",\"y\"]")
+    json should include("\"column_dendrogram\":{\"nodes\":{\"x\":{\"count\":1," +
+      "\"parent\":\"nodes@1\",\"distance\":0,\"objects\":[\"x\"],\"appendix\":\"\"}")
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.common.server.sample.search
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.model.sample.Attribute
+import t.model.sample.OTGAttribute._
+
+@RunWith(classOf[JUnitRunner])
+class SampleIndexTest extends TTestSuite {
+  val values: Map[String, Option[Double]] = Map("a" -> Some(3.0), "b" -> Some(1.0),
+    "c" -> None, "d" -> Some(2.0), "e" -> Some(3.0), "f" -> Some(Double.NaN))
+
+  def value(sample: String, attribute: Attribute): Option[Double] =
+    if (attribute == LiverWeight) values(sample) else None
+
+  val index = new SampleIndex[String](Vector("a", "b", "c", "d", "e", "f"), value)
+
+  test("ranges") {
+    index.select(index.atLeast(LiverWeight, 2)) should equal(Seq("a", "d", "e"))
+    index.select(index.atLeast(LiverWeight, 3.5)) should equal(Seq())
+    index.select(index.atMost(LiverWeight, 2)) should equal(Seq("b", "d"))
+    index.select(index.atMost(LiverWeight, 0)) should equal(Seq())
+    index.select(index.atLeast(KidneyWeight, 0)) should equal(Seq())
+  }
+
+  test("bitmap operations") {
+    val r = index.atLeast(LiverWeight, 2)
+    r.and(index.atMost(LiverWeight, 2))
+    index.select(r) should equal(Seq("d"))
+    r.or(index.filter(i => index.value(i, LiverWeight).isEmpty))
+    index.select(r) should equal(Seq("c", "d"))
+  }
+
+  test("cached columns") {
+    var computed = 0
+    def counted(sample: String, attribute: Attribute): Option[Double] = {
+      computed += 1
+      value(sample, attribute)
+    }
+    val ids = Vector("a", "b", "c", "d", "e", "f")
+    def cached(generation: Long) =
+      SampleIndex.cached[String]("test", ids, ids, counted, generation)
+
+    cached(0).select(cached(0).atLeast(LiverWeight, 2)) should equal(Seq("a", "d", "e"))
+    computed should equal(ids.size)
+    cached(0).atMost(LiverWeight, 2)
+    computed should equal(ids.size)
+
+    //A new data generation invalidates the columns
+    cached(1).select(cached(1).atMost(LiverWeight, 2)) should equal(Seq("b", "d"))
+    computed should equal(2 * ids.size)
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.load
+
+import java.io._
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.util.{Collections, Locale}
+import java.util.concurrent.ConcurrentHashMap
+
+import javax.servlet._
+import javax.servlet.http._
+import t.viewer.server.rpc.MatrixServiceImpl
+
+import scala.collection.JavaConverters._
+
+/**
+ * Minimal implementations of the servlet API, sufficient for running the viewer's
+ * servlets in-process, without a servlet container.
+ * Only the methods that the servlets actually use are implemented.
+ * Other methods return null, false or zero.
+ */
+object InProcessServlets {
+  type Handler = PartialFunction[(String, Seq[AnyRef]), Any]
+
+  private def defaultValue(m: Method): AnyRef = {
+    val rt = m.getReturnType
+    if (rt == java.lang.Boolean.TYPE) {
+      java.lang.Boolean.FALSE
+    } else if (rt == java.lang.Integer.TYPE) {
+      Int.box(0)
+    } else if (rt == java.lang.Long.TYPE) {
+      Long.box(0L)
+    } else if (rt == java.lang.Double.TYPE) {
+      Double.box(0.0)
+    } else if (rt == classOf[java.util.Enumeration[_]]) {
+      Collections.emptyEnumeration()
+    } else {
+      null
+    }
+  }
+
+  /**
+   * Implement an interface by name-based dispatch to a handler.
+   */
+  def proxy[T](cls: Class[T])(handler: Handler): T = {
+    val ih = new InvocationHandler {
+      def invoke(p: AnyRef, m: Method, args: Array[AnyRef]): AnyRef = {
+        val as: Seq[AnyRef] = if (args == null) Seq() else args.toSeq
+        m.getName match {
+          case "hashCode" if as.isEmpty => Int.box(System.identityHashCode(p))
+          case "equals" if as.size == 1 => Boolean.box(p eq as(0))
+          case "toString" if as.isEmpty => s"in-process ${cls.getSimpleName}"
+          case n =>
+            handler.lift((n, as)) match {
+              case Some(r) if r != null && m.getReturnType != java.lang.Void.TYPE =>
+                r.asInstanceOf[AnyRef]
+              case _ => defaultValue(m)
+            }
+        }
+      }
+    }
+    Proxy.newProxyInstance(cls.getClassLoader, Array[Class[_]](cls), ih).asInstanceOf[T]
+  }
+
+  /**
+   * Attribute storage, as used by contexts, sessions and requests.
+   */
+  private class Attributes {
+    private val data = new ConcurrentHashMap[String, AnyRef]()
+
+    val handler: Handler = {
+      case ("getAttribute", Seq(k: String)) => data.get(k)
+      case ("setAttribute", Seq(k: String, v)) =>
+        if (v == null) data.remove(k) else data.put(k, v)
+      case ("removeAttribute", Seq(k: String)) => data.remove(k)
+      case ("getAttributeNames", _) => Collections.enumeration(data.keySet)
+    }
+  }
+
+  private def enumeration(xs: Iterable[String]): java.util.Enumeration[String] =
+    Collections.enumeration(xs.asJavaCollection)
+
+  def servletContext(initParams: Map[String, String]): ServletContext = {
+    val attributes = new Attributes
+    proxy(classOf[ServletContext])(attributes.handler orElse {
+      case ("getInitParameter", Seq(k: String)) => initParams.get(k).orNull
+      case ("getInitParameterNames", _) => enumeration(initParams.keys)
+      case ("getContextPath", _) => ""
+      case ("getServletContextName" | "getServerInfo", _) => "in-process"
+      case ("getMajorVersion" | "getEffectiveMajorVersion", _) => 3
+      case ("getMinorVersion" | "getEffectiveMinorVersion", _) => 1
+      case ("log", msg +: _) => println(msg)
+    })
+  }
+
+  def servletConfig(name: String, context: ServletContext): ServletConfig =
+    proxy(classOf[ServletConfig]) {
+      case ("getServletContext", _) => context
+      case ("getServletName", _) => name
+    }
+
+  def session(id: String, context: ServletContext): HttpSession = {
+    val attributes = new Attributes
+    val created = System.currentTimeMillis()
+    proxy(classOf[HttpSession])(attributes.handler orElse {
+      case ("getId", _) => id
+      case ("getServletContext", _) => context
+      case ("getCreationTime", _) => created
+      case ("getLastAccessedTime", _) => System.currentTimeMillis()
+      case ("getMaxInactiveInterval", _) => 1800
+    })
+  }
+
+  private def servletInput(in: InputStream): ServletInputStream = new ServletInputStream {
+    def read(): Int = in.read()
+    override def read(b: Array[Byte], off: Int, len: Int): Int = in.read(b, off, len)
+    def isFinished: Boolean = in.available() == 0
+    def isReady: Boolean = true
+    def setReadListener(l: ReadListener): Unit = {}
+  }
+
+  /**
+   * A request for the given servlet path (e.g. /json) and path info (e.g. /matrix).
+   */
+  def request(context: ServletContext, session: HttpSession,
+      method: String = "GET", servletPath: String = "", pathInfo: String = null,
+      params: Map[String, String] = Map(), body: String = null,
+      contentType: String = null): HttpServletRequest = {
+    val attributes = new Attributes
+    val bytes = Option(body).map(_.getBytes("UTF-8")).getOrElse(Array[Byte]())
+    val input = new ByteArrayInputStream(bytes)
+    val uri = servletPath + Option(pathInfo).getOrElse("")
+    val query =
+      if (params.isEmpty) null
+      else params.map(p => p._1 + "=" + java.net.URLEncoder.encode(p._2, "UTF-8")).mkString("&")
+    val paramMap: java.util.Map[String, Array[String]] =
+      params.map(p => p._1 -> Array(p._2)).asJava
+    val headers = Map[String, String]() ++ Option(contentType).map("Content-Type" -> _)
+    def header(k: String) = headers.find(_._1.equalsIgnoreCase(k)).map(_._2)
+
+    proxy(classOf[HttpServletRequest])(attributes.handler orElse {
+      case ("getMethod", _) => method
+      case ("getRequestURI", _) => uri
+      case ("getRequestURL", _) => new StringBuffer("http://localhost" + uri)
+      case ("getContextPath", _) => ""
+      case ("getServletPath", _) => servletPath
+      case ("getPathInfo", _) => pathInfo
+      case ("getQueryString", _) => query
+      case ("getParameter", Seq(k: String)) => params.get(k).orNull
+      case ("getParameterValues", Seq(k: String)) => params.get(k).map(Array(_)).orNull
+      case ("getParameterMap", _) => paramMap
+      case ("getParameterNames", _) => enumeration(params.keys)
+      case ("getHeader", Seq(k: String)) => header(k).orNull
+      case ("getHeaders", Seq(k: String)) => enumeration(header(k))
+      case ("getHeaderNames", _) => enumeration(headers.keys)
+      case ("getContentType", _) => contentType
+      case ("getContentLength", _) => bytes.length
+      case ("getContentLengthLong", _) => bytes.length.toLong
+      case ("getCharacterEncoding", _) => "UTF-8"
+      case ("getInputStream", _) => servletInput(input)
+      case ("getReader", _) => new BufferedReader(new InputStreamReader(input, "UTF-8"))
+      case ("getSession", _) => session
+      case ("getRequestedSessionId", _) => session.getId
+      case ("isRequestedSessionIdValid", _) => true
+      case ("getServletContext", _) => context
+      case ("getCookies", _) => Array[Cookie]()
+      case ("getScheme", _) => "http"
+      case ("getServerName" | "getRemoteHost" | "getLocalName", _) => "localhost"
+      case ("getServerPort" | "getLocalPort", _) => 80
+      case ("getRemoteAddr" | "getLocalAddr", _) => "127.0.0.1"
+      case ("getProtocol", _) => "HTTP/1.1"
+      case ("getLocale", _) => Locale.getDefault
+      case ("getLocales", _) => Collections.enumeration(Seq(Locale.getDefault).asJavaCollection)
+      case ("getDispatcherType", _) => DispatcherType.REQUEST
+    })
+  }
+
+  /**
+   * A response that keeps its status, headers and body in memory.
+   */
+  class CapturedResponse {
+    @volatile var status = 200
+    @volatile var contentType: String = null
+    @volatile var characterEncoding = "UTF-8"
+    val headers = new ConcurrentHashMap[String, String]()
+
+    private val bytes = new ByteArrayOutputStream()
+    private var writer: PrintWriter = null
+
+    private def getWriter = synchronized {
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(bytes, characterEncoding))
+      }
+      writer
+    }
+
+    private val output = new ServletOutputStream {
+      def write(b: Int): Unit = bytes.write(b)
+      override def write(b: Array[Byte], off: Int, len: Int): Unit = bytes.write(b, off, len)
+      def isReady: Boolean = true
+      def setWriteListener(l: WriteListener): Unit = {}
+    }
+
+    def body: String = synchronized {
+      if (writer != null) {
+        writer.flush()
+      }
+      bytes.toString(characterEncoding)
+    }
+
+    private def setHeader(k: String, v: Any): Unit =
+      if (v != null) headers.put(k, v.toString)
+
+    val response: HttpServletResponse = proxy(classOf[HttpServletResponse]) {
+      case ("setStatus" | "sendError", (s: Integer) +: _) => status = s
+      case ("getStatus", _) => status
+      case ("sendRedirect", Seq(location: String)) =>
+        status = 302
+        setHeader("Location", location)
+      case ("setHeader" | "addHeader" | "setIntHeader" | "addIntHeader", Seq(k: String, v)) =>
+        setHeader(k, v)
+      case ("getHeader", Seq(k: String)) => headers.get(k)
+      case ("containsHeader", Seq(k: String)) => headers.containsKey(k)
+      case ("getHeaderNames", _) => headers.keySet
+      case ("getHeaders", Seq(k: String)) => Option(headers.get(k)).toSeq.asJavaCollection
+      case ("setContentType", Seq(ct: String)) => contentType = ct
+      case ("getContentType", _) => contentType
+      case ("setCharacterEncoding", Seq(enc: String)) => characterEncoding = enc
+      case ("getCharacterEncoding", _) => characterEncoding
+      case ("getWriter", _) => getWriter
+      case ("getOutputStream", _) => output
+      case ("flushBuffer", _) => body
+      case ("reset" | "resetBuffer", _) => bytes.reset()
+      case ("getBufferSize", _) => 8192
+      case ("encodeURL" | "encodeRedirectURL" | "encodeUrl" | "encodeRedirectUrl", Seq(url)) => url
+      case ("getLocale", _) => Locale.getDefault
+    }
+  }
+}
+
+/**
+ * A MatrixServiceImpl whose methods can be called directly, on behalf of a session,
+ * rather than through GWT-RPC.
+ */
+class InProcessMatrixService extends MatrixServiceImpl {
+
+  /**
+   * Run f with the given request bound, as GWT-RPC would do for the duration of a call.
+   */
+  def inRequest[T](request: HttpServletRequest)(f: => T): T = {
+    synchronized {
+      if (perThreadRequest == null) {
+        perThreadRequest = new ThreadLocal[HttpServletRequest]()
+      }
+    }
+    perThreadRequest.set(request)
+    try {
+      f
+    } finally {
+      perThreadRequest.remove()
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.load
+
+import java.lang.management.ManagementFactory
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Records the latencies of named steps, possibly from many threads,
+ * and summarises them as percentiles.
+ */
+class LatencyRecorder {
+  private val timings = mutable.Map[String, mutable.ArrayBuffer[Long]]()
+  private val errors = mutable.Map[String, Int]()
+
+  /**
+   * Time a step. Exceptions are counted as errors for the step and then rethrown.
+   */
+  def time[T](step: String)(f: => T): T = {
+    val start = System.nanoTime()
+    try {
+      val r = f
+      record(step, System.nanoTime() - start)
+      r
+    } catch {
+      case e: Exception =>
+        synchronized {
+          errors(step) = errors.getOrElse(step, 0) + 1
+        }
+        throw e
+    }
+  }
+
+  def record(step: String, nanos: Long): Unit = synchronized {
+    timings.getOrElseUpdate(step, mutable.ArrayBuffer()) += nanos
+  }
+
+  def steps: Seq[String] = synchronized {
+    (timings.keySet ++ errors.keySet).toSeq
+  }
+
+  /**
+   * Summary of one step. Times are in milliseconds.
+   */
+  case class Summary(step: String, count: Int, errors: Int, mean: Double,
+      p50: Double, p90: Double, p95: Double, p99: Double, max: Double)
+
+  def summary(step: String): Summary = synchronized {
+    val sorted = timings.getOrElse(step, mutable.ArrayBuffer()).sorted.map(_ / 1e6)
+    def percentile(p: Double): Double =
+      if (sorted.isEmpty) 0.0
+      else sorted(Math.min(sorted.size - 1, Math.ceil(p * sorted.size).toInt - 1).max(0))
+    val mean = if (sorted.isEmpty) 0.0 else sorted.sum / sorted.size
+    Summary(step, sorted.size, errors.getOrElse(step, 0), mean,
+      percentile(0.5), percentile(0.9), percentile(0.95), percentile(0.99),
+      sorted.lastOption.getOrElse(0.0))
+  }
+
+  def report(order: Seq[String]): String = {
+    val known = steps
+    val ordered = order.filter(known.contains) ++ known.filterNot(order.contains).sorted
+    val header = f"${"step"}%-12s ${"count"}%7s ${"errors"}%7s ${"mean"}%9s ${"p50"}%9s " +
+      f"${"p90"}%9s ${"p95"}%9s ${"p99"}%9s ${"max"}%9s"
+    val lines = for (step <- ordered; s = summary(step)) yield
+      f"${s.step}%-12s ${s.count}%7d ${s.errors}%7d ${s.mean}%9.1f ${s.p50}%9.1f " +
+        f"${s.p90}%9.1f ${s.p95}%9.1f ${s.p99}%9.1f ${s.max}%9.1f"
+    (s"$header (ms)" +: lines).mkString("\n")
+  }
+}
+
+/**
+ * Heap and garbage collection statistics over a period, obtained from the
+ * platform MXBeans.
+ */
+class JVMStats {
+  private val memory = ManagementFactory.getMemoryMXBean
+  private val pools = ManagementFactory.getMemoryPoolMXBeans.asScala
+  private val collectors = ManagementFactory.getGarbageCollectorMXBeans.asScala
+
+  private var heapAtStart = 0L
+  private var gcAtStart = Map[String, (Long, Long)]()
+  private var startTime = 0L
+
+  private def gcCounts: Map[String, (Long, Long)] =
+    Map[String, (Long, Long)]() ++ collectors.map(c => c.getName -> (c.getCollectionCount, c.getCollectionTime))
+
+  /**
+   * Begin a measurement period.
+   */
+  def start(): Unit = {
+    System.gc()
+    for (p <- pools) {
+      p.resetPeakUsage()
+    }
+    heapAtStart = memory.getHeapMemoryUsage.getUsed
+    gcAtStart = gcCounts
+    startTime = System.currentTimeMillis()
+  }
+
+  private def mb(bytes: Long) = f"${bytes / (1024.0 * 1024)}%.1f MB"
+
+  /**
+   * Describe the period since start() was called.
+   */
+  def report(): String = {
+    val elapsed = System.currentTimeMillis() - startTime
+    val heap = memory.getHeapMemoryUsage
+    val peakHeap = pools.filter(_.getType == java.lang.management.MemoryType.HEAP).
+      map(_.getPeakUsage.getUsed).sum
+    val gcs = for ((name, (count, time)) <- gcCounts) yield {
+      val (count0, time0) = gcAtStart.getOrElse(name, (0L, 0L))
+      s"  $name: ${count - count0} collections, ${time - time0} ms"
+    }
+    (Seq(s"Elapsed: $elapsed ms",
+      s"Heap used at start: ${mb(heapAtStart)}, now: ${mb(heap.getUsed)}, " +
+        s"sum of pool peaks: ${mb(peakHeap)}, max: ${mb(heap.getMax)}",
+      "Garbage collection:") ++ gcs).mkString("\n")
+  }
+}
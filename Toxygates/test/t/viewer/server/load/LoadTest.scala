@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.load
+
+import java.io.{File, OutputStream, PrintStream}
+import java.nio.file.Files
+import java.util.Date
+import java.util.concurrent.{Executors, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+import friedrich.util.CmdLineOptions
+import t.common.shared.{Dataset, SeriesType, ValueType}
+import t.common.shared.sample.Group
+import t.global.{KCDBRegistry, Metrics, Timer}
+import t.sparql.MemoryRepository
+import t.viewer.server.Configuration
+import t.viewer.server.rpc.SeriesServiceImpl
+import t.viewer.server.servlet.{ScalatraJSONServlet, json}
+import t.viewer.shared._
+import t.Factory
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+/**
+ * In-process load test for the viewer's matrix, series and JSON services.
+ *
+ * A synthetic dataset is generated and inserted into local Kyoto Cabinet databases
+ * and an in-memory triplestore. The servlets are then initialised against them
+ * directly, without a servlet container, and a number of virtual users replay
+ * scripted sessions concurrently. Each session loads a matrix, pages through it,
+ * sorts and filters it, adds a t-test column, ranks compounds, prepares a CSV
+ * download and finally loads and pages the same matrix through the JSON API.
+ *
+ * Latency percentiles for each step, and heap and GC statistics for the whole run,
+ * are printed at the end.
+ *
+ * Example (from the Toxygates directory):
+ * ant loadtest -Dloadtest.args="-users 8 -sessions 40 -probes 10000"
+ */
+object LoadTest extends CmdLineOptions {
+  val steps = Seq("load", "page", "sort", "filter", "ttest", "rank", "csv",
+    "jsonLoad", "jsonPage", "jsonDelete")
+
+  def showHelp(): Unit = {
+    println("Options: -users <concurrent users> -sessions <total sessions> " +
+      "-probes <n> -compounds <n> -replicates <n> -pages <pages per session> " +
+      "-seed <n> -dir <working directory> -quiet")
+  }
+
+  def main(args: Array[String]): Unit = {
+    if (booleanOption(args, "-help")) {
+      showHelp()
+      return
+    }
+
+    MemoryRepository.register()
+
+    val users = intOption(args, "-users").getOrElse(4)
+    val sessions = intOption(args, "-sessions").getOrElse(users * 5)
+    val pages = intOption(args, "-pages").getOrElse(3)
+    val seed = longOption(args, "-seed").getOrElse(1L)
+    val dir = stringOption(args, "-dir").map(new File(_)).getOrElse(
+      Files.createTempDirectory("loadtest").toFile)
+    val dataset = new SyntheticDataset(dir.getPath,
+      intOption(args, "-probes").getOrElse(5000),
+      intOption(args, "-compounds").getOrElse(5),
+      intOption(args, "-replicates").getOrElse(3),
+      seed)
+
+    //The servlets log each request and query to stdout; optionally discard that output
+    val out = System.out
+    if (booleanOption(args, "-quiet")) {
+      val discard = new PrintStream(new OutputStream {
+        def write(b: Int): Unit = {}
+        override def write(b: Array[Byte], off: Int, len: Int): Unit = {}
+      })
+      System.setOut(discard)
+      Console.withOut(discard) {
+        run(dataset, dir, users, sessions, pages, seed, out)
+      }
+    } else {
+      run(dataset, dir, users, sessions, pages, seed, out)
+    }
+    System.setOut(out)
+    KCDBRegistry.closeWriters()
+  }
+
+  def initParams(dir: File): Map[String, String] = Map(
+    "repositoryName" -> "loadtest",
+    "repositoryURL" -> s"${MemoryRepository.PREFIX}loadtest",
+    "updateURL" -> s"${MemoryRepository.PREFIX}loadtest",
+    "dataDir" -> s"kcchunk:${dir.getPath}/data",
+    "matrixDbOptions" -> "",
+    "csvDir" -> s"${dir.getPath}/csv",
+    "csvUrlBase" -> "http://localhost/csv",
+    "instanceName" -> "",
+    "applicationName" -> "Toxygates",
+    "webappHomeDir" -> dir.getPath)
+
+  def run(data: SyntheticDataset, dir: File, users: Int, sessions: Int,
+      pages: Int, seed: Long, out: PrintStream): Unit = {
+    import InProcessServlets.{CapturedResponse, servletConfig}
+
+    val params = initParams(dir)
+    new File(dir, "data").mkdirs()
+    new File(params("csvDir")).mkdirs()
+    val servletContext = InProcessServlets.servletContext(params)
+
+    out.println(s"Generating and inserting ${data.probes} probes x ${data.samples.size} " +
+      s"samples in $dir")
+    val setupStart = System.currentTimeMillis()
+    val context = Configuration.fromServletContext(servletContext).context(new Factory)
+    data.load(context)
+    val groups = data.groups(context)
+    out.println(s"Setup took ${System.currentTimeMillis() - setupStart} ms " +
+      s"(${groups.size} units)")
+
+    val matrixService = new InProcessMatrixService
+    matrixService.init(servletConfig("matrix", servletContext))
+    val seriesService = new SeriesServiceImpl
+    seriesService.init(servletConfig("series", servletContext))
+    val jsonServlet = new ScalatraJSONServlet(servletContext)
+    jsonServlet.init(servletConfig("json", servletContext))
+
+    val rankDatasets = Array(new Dataset(SyntheticDataset.datasetName, "", "",
+      new Date(), "", 1))
+
+    val recorder = new LatencyRecorder
+    val failures = new AtomicInteger(0)
+
+    def session(n: Int): Unit = {
+      val random = new Random(seed + n)
+      val httpSession = InProcessServlets.session(s"session$n", servletContext)
+      val request = InProcessServlets.request(servletContext, httpSession,
+        method = "POST", servletPath = "/matrix")
+      def matrix[T](step: String)(f: => T): T =
+        recorder.time(step)(matrixService.inRequest(request)(f))
+
+      val unitGroups = groups(random.nextInt(groups.size))
+      val id = s"loadtest$n"
+
+      val info = matrix("load") {
+        matrixService.loadMatrix(id, unitGroups.asJava, Array(), ValueType.Folds,
+          Seq[ColumnFilter]().asJava)
+      }
+      val firstColumn = new SortKey.MatrixColumn(0)
+      for (p <- 0 until pages) {
+        matrix("page") {
+          matrixService.matrixRows(id, p * 50, 50, firstColumn, true)
+        }
+      }
+      matrix("sort") {
+        matrixService.matrixRows(id, 0, 50,
+          new SortKey.MatrixColumn(info.numDataColumns - 1), false)
+      }
+      matrix("filter") {
+        matrixService.setColumnFilter(id, 0, new ColumnFilter(1.0, FilterType.AbsGT))
+        matrixService.matrixRows(id, 0, 50, firstColumn, false)
+      }
+      matrix("ttest") {
+        val withTest = matrixService.addSyntheticColumn(id,
+          new Synthetic.TTest(unitGroups.head, unitGroups.last))
+        matrixService.matrixRows(id, 0, 50,
+          new SortKey.MatrixColumn(withTest.numColumns - 1), true)
+      }
+
+      val rankProbe = data.responsiveProbes(random.nextInt(data.responsiveProbes.size))
+      recorder.time("rank") {
+        seriesService.rankedCompounds(SeriesType.Time, rankDatasets, data.rankingClass,
+          Array(new RankRule(RuleType.Sum, rankProbe)))
+      }
+      matrix("csv") {
+        matrixService.prepareCSVDownload(id, false)
+      }
+
+      jsonSession(n, unitGroups)
+    }
+
+    def jsonRequest(httpSession: javax.servlet.http.HttpSession, method: String,
+        path: String, query: Map[String, String] = Map(),
+        body: String = null): CapturedResponse = {
+      val response = new CapturedResponse
+      val request = InProcessServlets.request(servletContext, httpSession, method,
+        "/json", path, query, body,
+        if (body != null) "application/json" else null)
+      jsonServlet.service(request: javax.servlet.ServletRequest,
+        response.response: javax.servlet.ServletResponse)
+      if (response.status >= 400) {
+        throw new Exception(s"$method $path failed with status ${response.status}")
+      }
+      response
+    }
+
+    def jsonSession(n: Int, unitGroups: Seq[Group]): Unit = {
+      val httpSession = InProcessServlets.session(s"jsonSession$n", servletContext)
+      val matrixParams = json.MatrixParams(unitGroups.map(g =>
+        json.Group(g.getName, g.getSamples.toSeq.map(s =>
+          json.Sample(s.id, "mRNA", SyntheticDataset.platformName)), Map())))
+      val loaded = recorder.time("jsonLoad") {
+        jsonRequest(httpSession, "POST", "/matrix", Map("limit" -> "50"),
+          upickle.default.write(matrixParams))
+      }
+      val cursor = loaded.headers.get("X-Matrix-Cursor")
+      for (p <- 1 until pages) {
+        recorder.time("jsonPage") {
+          jsonRequest(httpSession, "GET", s"/matrix/$cursor",
+            Map("offset" -> (p * 50).toString, "limit" -> "50"))
+        }
+      }
+      recorder.time("jsonDelete") {
+        jsonRequest(httpSession, "DELETE", s"/matrix/$cursor")
+      }
+    }
+
+    out.println(s"Running $sessions sessions with $users concurrent users")
+    val jvm = new JVMStats
+    jvm.start()
+    val executor = Executors.newFixedThreadPool(users)
+    for (n <- 0 until sessions) {
+      executor.submit(new Runnable {
+        def run(): Unit = try {
+          session(n)
+        } catch {
+          case e: Exception =>
+            failures.incrementAndGet()
+            e.printStackTrace(out)
+        }
+      })
+    }
+    executor.shutdown()
+    executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+
+    out.println()
+    out.println(recorder.report(steps))
+    out.println()
+    out.println(jvm.report())
+    out.println(s"Reader pool: ${KCDBRegistry.readerPoolStats}")
+    out.println()
+    out.println("Server-side timers (ms, quantiles are bucket upper bounds):")
+    for (timer <- Metrics.all.collect { case m: Timer if m.count > 0 => m }) {
+      out.println(f"  ${timer.name}%-34s ${timer.count}%7d calls, " +
+        f"p50 ${timer.quantile(0.5) * 1000}%8.1f, p99 ${timer.quantile(0.99) * 1000}%8.1f, " +
+        f"max ${timer.maxSeconds * 1000}%8.1f")
+    }
+    out.println(s"${sessions - failures.get} of $sessions sessions completed")
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.load
+
+import java.io.{File, PrintWriter}
+
+import t.Context
+import t.common.shared.sample.{Group, Sample}
+import t.global.KCDBRegistry
+import t.manager.{BatchManager, PlatformManager}
+import t.model.SampleClass
+import t.model.sample.OTGAttribute.{Compound, DoseLevel, ExposureTime, Organ, Organism, Repeat, TestType}
+import t.platform.GeneralPlatform
+import t.sparql.{DatasetStore, PlatformStore, SampleClassFilter, SampleFilter}
+import t.util.DoThenClose.doThenClose
+import t.viewer.server.Conversions.asJavaSample
+import t.viewer.shared.OTGSchema
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+/**
+ * A synthetic single-dose dataset with every combination of compound, exposure time
+ * and dose level, for load testing.
+ * The data is generated as files in the standard upload formats and inserted through
+ * the platform and batch managers, so that the resulting databases are laid out
+ * as they would be for real data.
+ *
+ * About 10% of the probes respond to each compound in a dose-dependent way,
+ * so that filtering, t-tests and compound ranking have some signal to work with.
+ */
+class SyntheticDataset(dir: String, val probes: Int = 10000, val compounds: Int = 10,
+    val replicates: Int = 3, seed: Long = 1L) {
+  import SyntheticDataset._
+
+  val probeIds: Seq[String] = (1 to probes).map(i => f"lt_probe_$i%06d")
+  val compoundNames: Seq[String] = (1 to compounds).map(i => s"loadtest_compound_$i")
+
+  private val random = new Random(seed)
+
+  /**
+   * Probes that respond to some compound.
+   */
+  val responsiveProbes: Seq[String] =
+    probeIds.filter(_ => random.nextDouble < 0.1)
+
+  private val baseline: Map[String, Double] =
+    Map[String, Double]() ++ probeIds.map(p => p -> (3 + random.nextDouble * 7))
+
+  private val responsive = responsiveProbes.toSet
+
+  case class TreatmentUnit(compound: String, time: String, controlGroup: String)
+
+  val units: Seq[TreatmentUnit] = (for {
+    c <- compoundNames
+    time <- times
+  } yield (c, time)).zipWithIndex.map(x => TreatmentUnit(x._1._1, x._1._2, f"${x._2}%04d"))
+
+  case class SyntheticSample(id: String, unit: TreatmentUnit, dose: String, individual: Int)
+
+  val samples: Seq[SyntheticSample] = (for {
+    u <- units
+    d <- doses
+    i <- 1 to replicates
+  } yield (u, d, i)).zipWithIndex.map(x =>
+    SyntheticSample(f"lt${x._2}%07d", x._1._1, x._1._2, x._1._3))
+
+  def platformFile = new File(dir, "platform.tsv")
+  def metadataFile = new File(dir, "metadata.tsv")
+  def dataFile = new File(dir, "data.csv")
+
+  private def writeFile(f: File)(write: PrintWriter => Unit): Unit = {
+    f.getParentFile.mkdirs()
+    doThenClose(new PrintWriter(f))(write)
+  }
+
+  /**
+   * Write the platform, metadata and expression data files.
+   */
+  def writeFiles(): Unit = {
+    writeFile(platformFile)(w =>
+      for ((p, i) <- probeIds.zipWithIndex) {
+        w.println(s"$p\tsymbol=LTG${i + 1},title=Load test gene ${i + 1}")
+      })
+
+    writeFile(metadataFile)(w => {
+      w.println(metadataColumns.mkString("\t"))
+      for (s <- samples) {
+        w.println(Seq(s.id, platformName, s.unit.controlGroup, "mRNA", "Rat", "in vivo",
+          "Single", "Liver", s.unit.compound, s.dose, s.unit.time,
+          s.individual.toString).mkString("\t"))
+      }
+    })
+
+    val effects = Map[(String, String), Double]() ++ (for {
+      p <- responsiveProbes
+      c <- compoundNames
+    } yield (p, c) -> (random.nextDouble * 3 - 1.5))
+
+    writeFile(dataFile)(w => {
+      w.println(("\"\"" +: samples.map("\"" + _.id + "\"")).mkString(","))
+      for (p <- probeIds) {
+        val vs = samples.map(s => {
+          val doseEffect = doses.indexOf(s.dose).toDouble / (doses.size - 1)
+          val effect = if (responsive(p)) effects((p, s.unit.compound)) * doseEffect else 0.0
+          Math.pow(2, baseline(p) + effect + random.nextGaussian * 0.2)
+        })
+        w.println(("\"" + p + "\"" +: vs.map(v => f"$v%.4f")).mkString(","))
+      }
+    })
+  }
+
+  /**
+   * Generate the data files and insert them into the given context.
+   */
+  def load(context: Context): Unit = {
+    writeFiles()
+    val config = context.config
+    new PlatformStore(config).populateAttributes(config.attributes)
+
+    new PlatformManager(context).add(platformName, "Synthetic load test platform",
+      platformFile.getPath, GeneralPlatform).execute().get
+    new DatasetStore(config.triplestore).addWithTimestamp(datasetName,
+      "Synthetic load test dataset")
+    val batch = BatchManager.Batch(batchName, "Synthetic load test batch", None,
+      Some(datasetName))
+    new BatchManager(context).add(batch, metadataFile.getPath, dataFile.getPath,
+      None, false).execute().get
+
+    //Writers must be released so that the servlets can open the databases for reading
+    KCDBRegistry.closeWriters()
+  }
+
+  /**
+   * The treated groups of each unit as they are stored in the database: one group
+   * per dose level.
+   */
+  def groups(context: Context): Seq[Seq[Group]] = {
+    val sf = SampleFilter(datasetURIs = List(DatasetStore.packURI(datasetName)))
+    val stored = context.sampleStore.sampleQuery(SampleClassFilter(), sf)()
+    val schema = new OTGSchema()
+
+    val byUnit = stored.groupBy(s => (s(Compound), s(ExposureTime)))
+    for {
+      u <- units
+      unitSamples <- byUnit.get((u.compound, u.time)).toSeq
+    } yield {
+      for (d <- doses.filter(_ != controlDose)) yield {
+        val treated = unitSamples.filter(_(DoseLevel) == d).map(asJavaSample)
+        new Group(schema, s"${u.compound} ${u.time} $d", treated.toArray[Sample])
+      }
+    }
+  }
+
+  /**
+   * The sample class that compound rankings are computed for.
+   */
+  def rankingClass: SampleClass = {
+    val r = new SampleClass()
+    r.put(Organism, "Rat")
+    r.put(TestType, "in vivo")
+    r.put(Repeat, "Single")
+    r.put(Organ, "Liver")
+    r
+  }
+}
+
+object SyntheticDataset {
+  val platformName = "LoadTestPlatform"
+  val batchName = "LoadTestBatch"
+  val datasetName = "LoadTestDataset"
+
+  val times = Seq("3 hr", "6 hr", "9 hr", "24 hr")
+  val controlDose = "Control"
+  val doses = Seq(controlDose, "Low", "Middle", "High")
+
+  val metadataColumns = Seq("sample_id", "platform_id", "control_group", "type",
+    "organism", "test_type", "sin_rep_type", "organ_id", "compound_name",
+    "dose_level", "exposure_time", "individual_id")
+}
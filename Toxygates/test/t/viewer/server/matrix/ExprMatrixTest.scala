@@ -233,6 +233,51 @@ class ExprMatrixTest extends TTestSuite {
     assert(r.rows === 5)
   }
 
+  test("primitive storage") {
+    val em = testMatrix
+    for (offHeap <- List(false, true)) {
+      val pm = PrimitiveExpressionMatrix.from(em, offHeap)
+      assert(pm.rows === em.rows)
+      assert(pm.columns === em.columns)
+      assert(pm.toRowVectors === em.toRowVectors)
+      assert(pm.toColVectors === em.toColVectors)
+      assert(pm.annotations === em.annotations)
+
+      val sel = pm.selectRows(List(3, 1, 4))
+      assert(sel.isInstanceOf[PrimitiveExpressionMatrix])
+      assert(sel.rowMap === Map("d" -> 0, "b" -> 1, "e" -> 2))
+      assert(sel.toRowVectors === em.selectRows(List(3, 1, 4)).toRowVectors)
+      assert(sel.annotations.map(_.probe) === List("p4", "p2", "p5"))
+
+      val cols = pm.selectNamedColumns(List("d", "e"))
+      assert(cols.isInstanceOf[PrimitiveExpressionMatrix])
+      assert(cols.columnMap === Map("d" -> 0, "e" -> 1))
+      assert(cols.toRowVectors === em.selectNamedColumns(List("d", "e")).toRowVectors)
+
+      val filt = pm.filterRows(_.head.value > 2)
+      assert(filt.toRowVectors === em.filterRows(_.head.value > 2).toRowVectors)
+
+      val tt = pm.appendTTest(pm, Seq("a", "b", "c"), Seq("d", "e", "f"), "TTest")
+      val ett = em.appendTTest(em, Seq("a", "b", "c"), Seq("d", "e", "f"), "TTest")
+      assert(tt.isInstanceOf[PrimitiveExpressionMatrix])
+      assert(tt.columnMap("TTest") === 6)
+      assert(tt.column(6) === ett.column(6))
+
+      val sorted = tt.sortRows((v1, v2) => v1(6).value < v2(6).value)
+      assert(sorted(0, 6).value < 0.002)
+      assert(sorted(4, 6).value > 0.8)
+
+      val adj = pm.adjoinRight(PrimitiveExpressionMatrix.withRows(
+        (1 to 5).map(i => List(ExprValue(i))), Seq(), Seq("x"), offHeap))
+      assert(adj.columns === 7)
+      assert(adj.column(6) === (1 to 5).map(ExprValue(_)))
+
+      val mapped = pm.map(v => ExprValue(v.value * 2))
+      assert(mapped.isInstanceOf[PrimitiveExpressionMatrix])
+      assert(mapped(1, 3).value === 18)
+    }
+  }
+
   test("empty matrix") {
     val m = testMatrix
     val empty = m.copyWithColumns(Seq())
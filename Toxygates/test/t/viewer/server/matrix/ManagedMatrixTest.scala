@@ -93,4 +93,115 @@ class ManagedMatrixTest extends TTestSuite {
       preSort.row(p) should equal(m.rawGrouped.row(p))
     }
   }
+
+  test("filter and sort") {
+    import t.viewer.shared.ColumnFilter
+    import t.viewer.shared.FilterType
+
+    val m = foldBuilder.build(groups, false)
+    def checkSorted(col: Int, ascending: Boolean) {
+      val vs = m.current.toRowVectors.map(_(col)).filter(v => v.present && !v.value.isNaN).map(_.value)
+      val expected = if (ascending) vs.sorted else vs.sorted.reverse
+      vs should equal(expected)
+    }
+
+    m.sort(1, true)
+    checkSorted(1, true)
+    m.current.rows should equal(m.rawGrouped.rows)
+
+    val filter = new ColumnFilter(10.0, FilterType.AbsGT)
+    m.setFilter(0, filter)
+    checkSorted(1, true)
+    for (r <- m.current.toRowVectors) {
+      r(0).present should be(true)
+      filter.test(r(0).value) should be(true)
+    }
+    val filtered = m.current.rows
+
+    //Changing the sort key keeps the filtered set
+    m.sort(1, false)
+    checkSorted(1, false)
+    m.current.rows should equal(filtered)
+    m.current.rowKeys.toSet should equal(
+      m.rawGrouped.rowKeys.filter(k => {
+        val v = m.rawGrouped(k, m.rawGrouped.columnAt(0))
+        v.present && filter.test(v.value)
+      }).toSet)
+
+    m.setFilter(0, filter.asInactive())
+    m.current.rows should equal(m.rawGrouped.rows)
+    checkSorted(1, false)
+  }
+
+  test("synthetic columns") {
+    checkSynthetics(foldBuilder.build(groups, false))
+  }
+
+  test("synthetic columns, boxed storage") {
+    val builder = new ExtFoldBuilder(false, context.foldsDBReader,
+      probes.map(probeMap.unpack)) {
+      override protected def storage = BoxedMatrixStorage
+    }
+    val m = builder.build(groups, false)
+    checkSynthetics(m)
+    m.current should not be a[PrimitiveExpressionMatrix]
+  }
+
+  test("synthetic columns are computed lazily by default") {
+    import t.viewer.shared.Synthetic
+
+    LazyValueColumn.backgroundFill = false
+    try {
+      val m = foldBuilder.build(groups, false)
+      m.current shouldBe a[PrimitiveExpressionMatrix]
+      m.addSynthetic(new Synthetic.TTest(groups(0), groups(1)))
+      val column = m.computedSyntheticColumns.head
+      column.computedRows should be < m.current.rows
+
+      m.getPageView(0, 10)
+      column.computedRows should be <= 10
+      column.isComplete should be(false)
+
+      //Sorting on the column needs every row
+      m.sort(m.rawGrouped.columns, true)
+      column.isComplete should be(true)
+    } finally {
+      LazyValueColumn.backgroundFill = true
+    }
+  }
+
+  def checkSynthetics(m: ManagedMatrix) {
+    import t.viewer.shared.Synthetic
+
+    val (g1, g2) = (groups(0), groups(1))
+    val tt = new Synthetic.TTest(g1, g2)
+    m.addSynthetic(tt)
+
+    val sc = g1.getSchema
+    val g1s = g1.getSamples.filter(!sc.isControl(_)).map(_.id).toSeq
+    val g2s = g2.getSamples.filter(!sc.isControl(_)).map(_.id).toSeq
+    val expected = m.rawGrouped.appendTTest(
+      m.rawUngrouped.selectNamedRows(m.rawGrouped.orderedRowKeys), g1s, g2s, tt.getShortTitle)
+    val col = m.rawGrouped.columns
+    m.current.columns should equal(col + 1)
+    for (p <- m.current.rowKeys) {
+      val v = m.current(p, m.current.columnAt(col))
+      val e = expected(p, expected.columnAt(col))
+      v.present should equal(e.present)
+      if (e.present) {
+        v.value should equal(e.value)
+      }
+    }
+
+    //Sorting on the synthetic column computes the remaining rows
+    m.sort(col, true)
+    val vs = m.current.toRowVectors.map(_(col)).filter(v => v.present && !v.value.isNaN).map(_.value)
+    vs should equal(vs.sorted)
+
+    //Removing and re-adding reuses the computed column
+    m.removeSynthetics()
+    m.current.columns should equal(col)
+    m.addSynthetic(tt)
+    m.current.columns should equal(col + 1)
+  }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.network
+
+import scala.collection.JavaConverters._
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.{Context, TTestSuite}
+import t.common.shared.ValueType
+import t.common.shared.sample.Group
+import t.db.testing.NetworkTestData
+import t.platform.Probe
+import t.viewer.server.Conversions._
+import t.viewer.server.PlatformRegistry
+import t.viewer.server.matrix.{ControllerParams, ExtFoldBuilder, ManagedMatrix}
+import t.viewer.shared.{ColumnFilter, FilterType, Synthetic}
+
+/**
+ * Tests that the count column of a network's side matrix follows the current view
+ * of the main matrix.
+ */
+@RunWith(classOf[JUnitRunner])
+class NetworkCountTest extends TTestSuite {
+  import t.db.testing.NetworkTestData._
+
+  NetworkTestData.populate()
+  val dataSchema = t.common.testing.TestData.dataSchema
+  val mirnaBuilder = new ExtFoldBuilder(false, context.foldsDBReader, mirnaIds)
+  val mirnaGroup = new Group(dataSchema, "mirnaGroup",
+    mirnaSamples.map(s => asJavaSample(s)).toArray)
+  val mrnaGroups = t.common.testing.TestData.groups take 5
+
+  //Resolves mRNA probes from the test data instead of the triplestore
+  val mrnaLookup = Map() ++ mrnaProbes.map(p => p.identifier -> p)
+  val platforms = new PlatformRegistry(null) {
+    override def resolve(identifiers: Seq[String]): Seq[Probe] =
+      identifiers.flatMap(mrnaLookup.get(_))
+  }
+
+  def checkCounts(main: ManagedNetwork, side: ManagedMatrix) {
+    val counts = main.currentViewCountMap.asScala
+    val countColumn = side.current.columns - 1
+    for (row <- 0 until side.current.rows) {
+      val expected = counts.get(side.current.rowAt(row)).map(_.doubleValue).getOrElse(0d)
+      side.current(row, countColumn).value should equal(expected)
+    }
+  }
+
+  test("count column") {
+    val side = mirnaBuilder.build(Seq(mirnaGroup), false)
+    val testContext = new Context(null, null, null, null, context)
+    val params = ControllerParams(mrnaGroups, Seq(), ValueType.Folds)
+    val netCon = new NetworkController(testContext, platforms, params, side, targets, 100,
+      false)
+    val main = netCon.managedMatrix
+    side.addSynthetic(new Synthetic.Precomputed("Count", "Count",
+      main.currentViewCountMap, null))
+
+    main.getPageView(0, 100)
+    checkCounts(main, side)
+    main.getPageView(100, 100)
+    checkCounts(main, side)
+
+    //Changing the main view changes the counts
+    val before = main.currentViewCountMap.asScala.toMap
+    main.selectProbes(mrnaIds take 50)
+    main.currentViewCountMap.asScala.toMap should not equal(before)
+    main.getPageView(0, 20)
+    checkCounts(main, side)
+
+    main.setFilter(0, new ColumnFilter(0.5, FilterType.AbsGT))
+    main.getPageView(0, 20)
+    checkCounts(main, side)
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+package t.viewer.server.servlet
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class CursorRegistryTest extends TTestSuite {
+
+  class TestRegistry(maxEntries: Int) extends CursorRegistry[String](maxEntries, 1000) {
+    var time = 0L
+    override protected def now = time
+  }
+
+  test("lookup") {
+    val reg = new TestRegistry(10)
+    val a = reg.register("a")
+    val b = reg.register("b")
+    a should not equal(b)
+    reg.get(a) should equal(Some("a"))
+    reg.get(b) should equal(Some("b"))
+    reg.get("unknown") should equal(None)
+    reg.remove(a) should equal(true)
+    reg.get(a) should equal(None)
+  }
+
+  test("eviction and expiry") {
+    val reg = new TestRegistry(2)
+    val a = reg.register("a")
+    val b = reg.register("b")
+    reg.get(a)
+    val c = reg.register("c")
+    //b was least recently used
+    reg.get(b) should equal(None)
+    reg.size should equal(2)
+
+    reg.time = 500
+    reg.get(c) should equal(Some("c"))
+    reg.time = 1200
+    reg.get(a) should equal(None)
+    reg.get(c) should equal(Some("c"))
+  }
+}